@@ -0,0 +1,175 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Completion handle returned when a batch of messages is submitted to a
+ * FlowModDispatcher, the batch is done once every message has been
+ * acknowledged by a barrier reply from the switch or has failed
+ */
+public class DispatchHandle {
+
+	private final int messageCount;
+	private final CountDownLatch remaining;
+	private int failedCount;
+	private int writtenCount;
+	private final long submitTime = System.nanoTime();
+	private volatile long writtenTime;
+	private volatile long completionTime;
+	private List<Runnable> completionListeners = new ArrayList<Runnable>();
+
+	public DispatchHandle(int messageCount) {
+
+		this.messageCount = messageCount;
+		this.remaining = new CountDownLatch(messageCount);
+
+		if (messageCount == 0) {
+			writtenTime = submitTime;
+			completionTime = submitTime;
+			completionListeners = null;
+		}
+
+	}
+
+	synchronized void messagesWritten(int count) {
+
+		writtenCount += count;
+
+		if (writtenCount >= messageCount && writtenTime == 0) {
+			writtenTime = System.nanoTime();
+		}
+
+	}
+
+	void messagesAcknowledged(int count) {
+
+		countDown(count, false);
+
+	}
+
+	void messagesFailed(int count) {
+
+		countDown(count, true);
+
+	}
+
+	private void countDown(int count, boolean failed) {
+
+		List<Runnable> listeners = null;
+
+		synchronized (this) {
+
+			if (failed) {
+				failedCount += count;
+			}
+
+			if (remaining.getCount() <= count && completionTime == 0) {
+				completionTime = System.nanoTime();
+			}
+
+			for (int i = 0; i < count; i++) {
+				remaining.countDown();
+			}
+
+			if (remaining.getCount() == 0 && completionListeners != null) {
+				listeners = completionListeners;
+				completionListeners = null;
+			}
+		}
+
+		if (listeners != null) {
+			for (Runnable listener : listeners) {
+				runListener(listener);
+			}
+		}
+
+	}
+
+	/**
+	 * run the listener once the batch is done, or right away if it is done
+	 * already
+	 *
+	 * @param listener
+	 */
+	public void onCompletion(Runnable listener) {
+
+		synchronized (this) {
+			if (completionListeners != null) {
+				completionListeners.add(listener);
+				return;
+			}
+		}
+
+		runListener(listener);
+
+	}
+
+	private void runListener(Runnable listener) {
+
+		try {
+			listener.run();
+		} catch (Exception e) {
+			FlowscaleController.logger.error("{}", e);
+		}
+
+	}
+
+	public boolean isDone() {
+		return remaining.getCount() == 0;
+	}
+
+	/**
+	 * wait until the batch is done
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return true if the batch completed before the timeout
+	 * @throws InterruptedException
+	 */
+	public boolean await(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return remaining.await(timeout, unit);
+	}
+
+	public void await() throws InterruptedException {
+		remaining.await();
+	}
+
+	public int getMessageCount() {
+		return messageCount;
+	}
+
+	public synchronized int getFailedCount() {
+		return failedCount;
+	}
+
+	/**
+	 * @return System.nanoTime() when the last message of the batch was
+	 *         written to the switch, 0 if some are not written yet
+	 */
+	public long getWrittenTime() {
+		return writtenTime;
+	}
+
+	/**
+	 * @return milliseconds between submission and completion, or -1 if the
+	 *         batch is not done yet
+	 */
+	public long getElapsedMillis() {
+
+		if (!isDone()) {
+			return -1;
+		}
+
+		return TimeUnit.NANOSECONDS.toMillis(completionTime - submitTime);
+	}
+
+}
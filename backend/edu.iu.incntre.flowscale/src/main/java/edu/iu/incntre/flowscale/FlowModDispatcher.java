@@ -0,0 +1,1004 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.beaconcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.openflow.util.HexString;
+
+import edu.iu.incntre.flowscale.metrics.Gauge;
+import edu.iu.incntre.flowscale.metrics.Histogram;
+import edu.iu.incntre.flowscale.metrics.Meter;
+import edu.iu.incntre.flowscale.metrics.MetricsRegistry;
+
+/**
+ * Sends the messages queued for one switch from a dedicated thread so the
+ * thread that generated the rules never has to wait.
+ *
+ * Messages are sent in batches of at most batchSize messages, every message of
+ * a batch carries the batch xid and the batch is closed with an
+ * OFBarrierRequest of the same xid. No more than barrierWindow batches are
+ * left unacknowledged, the window advances when FlowscaleController receives
+ * the BARRIER_REPLY, so flow mods go out as fast as the switch acknowledges
+ * them. A batch, urgent or not, whose reply does not come within the barrier
+ * timeout is failed, whether or not the dispatcher is waiting for room in the
+ * window. Flow mods can in addition be paced by a token bucket.
+ *
+ * When a coalescing window is set, flow mods that add, strictly modify or
+ * strictly delete a flow are held for that many milliseconds and only the
+ * last one queued for a given match and priority is sent. The superseded flow
+ * mods complete along with the one that replaced them. Any other message ends
+ * the window so the order between flows and wildcard deletes is kept.
+ *
+ * Messages submitted with submitUrgent, the flow mods moving rules off a port
+ * that went down, are sent ahead of everything queued in their own batches,
+ * without waiting for tokens or for room in the barrier window. They are sent
+ * even while the dispatcher waits for a token or for a window slot.
+ */
+public class FlowModDispatcher {
+
+	/**
+	 * xids used by the dispatcher start here to stay clear of the xids used
+	 * by beacon for its own requests
+	 */
+	private static final int FIRST_XID = 0x40000000;
+
+	private final long datapathId;
+	private final TokenBucket tokenBucket;
+	private final LinkedBlockingQueue<PendingMessage> queue = new LinkedBlockingQueue<PendingMessage>();
+	private final LinkedBlockingQueue<PendingMessage> urgentQueue = new LinkedBlockingQueue<PendingMessage>();
+	private final ConcurrentHashMap<Integer, Batch> inFlightBatches = new ConcurrentHashMap<Integer, Batch>();
+	private final AtomicInteger nextXid = new AtomicInteger(FIRST_XID);
+	// released to wake the dispatcher thread up when it waits for a token or
+	// a window slot
+	private final Semaphore wakeUp = new Semaphore(0);
+	private volatile Thread dispatcherThread;
+
+	private int batchSize = 100;
+	private int barrierWindow = 4;
+	private long barrierTimeout = 10000;
+	private long coalesceWindow = 0;
+	private Semaphore window;
+
+	// only used by the dispatcher thread
+	private final LinkedHashMap<CoalesceKey, PendingMessage> coalescing = new LinkedHashMap<CoalesceKey, PendingMessage>();
+	private final LinkedList<PendingMessage> ready = new LinkedList<PendingMessage>();
+	private long coalesceDeadline;
+	private int coalesceGeneration;
+	private final AtomicInteger cancelGeneration = new AtomicInteger();
+
+	private volatile long lastBatchLatency = -1;
+	private final AtomicInteger acknowledgedBatches = new AtomicInteger();
+	private final AtomicInteger timedOutBatches = new AtomicInteger();
+	private final AtomicLong coalescedFlowMods = new AtomicLong();
+	private final AtomicLong droppedMessages = new AtomicLong();
+	private final AtomicInteger unsentMessages = new AtomicInteger();
+	private final AtomicInteger unflushedMessages = new AtomicInteger();
+
+	// replaced by registered metrics in registerMetrics
+	private Meter flowModsSent = new Meter();
+	private Histogram barrierRoundTrip = new Histogram();
+
+	private static class PendingMessage {
+
+		IOFSwitch sw;
+		OFMessage message;
+		DispatchHandle handle;
+		boolean urgent;
+		// counts the message until it is written, dropped or replaced,
+		// null for urgent messages
+		AtomicInteger unsent;
+		// handles of the flow mods this message replaced, one entry per flow
+		// mod
+		List<DispatchHandle> supersededHandles;
+
+		PendingMessage(IOFSwitch sw, OFMessage message, DispatchHandle handle) {
+			this.sw = sw;
+			this.message = message;
+			this.handle = handle;
+		}
+
+		void supersede(PendingMessage previous) {
+
+			if (supersededHandles == null) {
+				supersededHandles = new ArrayList<DispatchHandle>();
+			}
+
+			supersededHandles.add(previous.handle);
+
+			if (previous.supersededHandles != null) {
+				supersededHandles.addAll(previous.supersededHandles);
+			}
+		}
+
+		void written() {
+
+			done();
+			handle.messagesWritten(1);
+
+			if (supersededHandles != null) {
+				for (DispatchHandle supersededHandle : supersededHandles) {
+					supersededHandle.messagesWritten(1);
+				}
+			}
+		}
+
+		void failed() {
+
+			done();
+			handle.messagesFailed(1);
+
+			if (supersededHandles != null) {
+				for (DispatchHandle supersededHandle : supersededHandles) {
+					supersededHandle.messagesFailed(1);
+				}
+			}
+		}
+
+		void done() {
+
+			if (unsent != null) {
+				unsent.decrementAndGet();
+				unsent = null;
+			}
+		}
+	}
+
+	/**
+	 * queued behind urgent messages to wake the dispatcher thread up when it
+	 * waits on the regular queue
+	 */
+	private static final PendingMessage WAKE_UP = new PendingMessage(null,
+			null, null);
+
+	/**
+	 * flows are coalesced by switch connection, match and priority
+	 */
+	private static final class CoalesceKey {
+
+		private final IOFSwitch sw;
+		private final MatchKey matchKey;
+		private final short priority;
+
+		CoalesceKey(IOFSwitch sw, OFFlowMod flowMod) {
+			this.sw = sw;
+			this.matchKey = MatchKey.fromMatch(flowMod.getMatch());
+			this.priority = flowMod.getPriority();
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * System.identityHashCode(sw) + matchKey.hashCode())
+					+ priority;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+
+			if (!(object instanceof CoalesceKey)) {
+				return false;
+			}
+
+			CoalesceKey other = (CoalesceKey) object;
+			return sw == other.sw && priority == other.priority
+					&& matchKey.equals(other.matchKey);
+		}
+	}
+
+	/**
+	 * messages written under one xid and waiting for their barrier reply
+	 */
+	private static class Batch {
+
+		int xid;
+		IOFSwitch sw;
+		DispatchHandle handle;
+		int size;
+		long sendTime;
+		boolean urgent;
+		List<DispatchHandle> supersededHandles;
+
+		Batch(int xid, IOFSwitch sw, DispatchHandle handle, boolean urgent) {
+			this.xid = xid;
+			this.sw = sw;
+			this.handle = handle;
+			this.urgent = urgent;
+		}
+	}
+
+	public FlowModDispatcher(long datapathId, double flowModsPerSecond,
+			int burstSize) {
+
+		this.datapathId = datapathId;
+		this.tokenBucket = new TokenBucket(flowModsPerSecond, burstSize);
+
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public void setBarrierWindow(int barrierWindow) {
+		this.barrierWindow = Math.max(1, barrierWindow);
+	}
+
+	/**
+	 * @param barrierTimeout
+	 *            milliseconds to wait for a barrier reply before the batch is
+	 *            considered failed
+	 */
+	public void setBarrierTimeout(long barrierTimeout) {
+		this.barrierTimeout = barrierTimeout;
+	}
+
+	/**
+	 * @param coalesceWindow
+	 *            milliseconds flow mods are held to be replaced by a later
+	 *            flow mod for the same match and priority, 0 sends them
+	 *            without waiting
+	 */
+	public void setCoalesceWindow(long coalesceWindow) {
+		this.coalesceWindow = Math.max(0, coalesceWindow);
+	}
+
+	/**
+	 * record the flow mods sent and the barrier round trips in the registry
+	 * and expose the queues and counters of the dispatcher, called before
+	 * startUp
+	 */
+	public void registerMetrics(MetricsRegistry registry) {
+
+		String switchId = HexString.toHexString(datapathId);
+
+		flowModsSent = registry.meter("flowscale_flow_mods_sent",
+				"flow mods written to the switch", "switch", switchId);
+		barrierRoundTrip = registry.histogram(
+				"flowscale_barrier_round_trip_seconds",
+				"time from the barrier closing a batch to its reply",
+				"switch", switchId);
+
+		registry.gauge("flowscale_dispatcher_queued_messages",
+				"messages queued for the dispatcher thread", new Gauge() {
+
+					@Override
+					public double getValue() {
+						return getQueueSize();
+					}
+				}, "switch", switchId);
+		registry.gauge("flowscale_dispatcher_unsent_messages",
+				"messages submitted and not written yet, including held flow mods",
+				new Gauge() {
+
+					@Override
+					public double getValue() {
+						return getUnsentMessages();
+					}
+				}, "switch", switchId);
+		registry.gauge("flowscale_dispatcher_unflushed_messages",
+				"messages written and waiting for the output stream to be flushed",
+				new Gauge() {
+
+					@Override
+					public double getValue() {
+						return unflushedMessages.get();
+					}
+				}, "switch", switchId);
+		registry.gauge("flowscale_dispatcher_unacknowledged_batches",
+				"batches waiting for their barrier reply", new Gauge() {
+
+					@Override
+					public double getValue() {
+						return getInFlightBatches();
+					}
+				}, "switch", switchId);
+		registry.counter("flowscale_dispatcher_timed_out_batches_total",
+				"batches failed because no barrier reply came in time",
+				new Gauge() {
+
+					@Override
+					public double getValue() {
+						return getTimedOutBatches();
+					}
+				}, "switch", switchId);
+		registry.counter("flowscale_dispatcher_dropped_messages_total",
+				"messages dropped without being sent", new Gauge() {
+
+					@Override
+					public double getValue() {
+						return getDroppedMessages();
+					}
+				}, "switch", switchId);
+		registry.counter("flowscale_dispatcher_coalesced_flow_mods_total",
+				"flow mods replaced by a later flow mod before being sent",
+				new Gauge() {
+
+					@Override
+					public double getValue() {
+						return getCoalescedFlowMods();
+					}
+				}, "switch", switchId);
+
+	}
+
+	public void startUp() {
+
+		window = new Semaphore(barrierWindow);
+
+		dispatcherThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "FlowMod Dispatcher " + HexString.toHexString(datapathId));
+		dispatcherThread.setDaemon(true);
+		dispatcherThread.start();
+
+	}
+
+	public void shutDown() {
+
+		Thread thread = dispatcherThread;
+		dispatcherThread = null;
+
+		if (thread != null) {
+			thread.interrupt();
+		}
+
+		cancelPending();
+
+	}
+
+	/**
+	 * queue messages to be sent to the switch in order
+	 *
+	 * @param sw
+	 *            the switch connection the messages are written to
+	 * @param messages
+	 * @return handle that completes once all messages are acknowledged
+	 */
+	public DispatchHandle submit(IOFSwitch sw,
+			List<? extends OFMessage> messages) {
+
+		DispatchHandle handle = new DispatchHandle(messages.size());
+		unsentMessages.addAndGet(messages.size());
+
+		for (OFMessage message : messages) {
+			PendingMessage pending = new PendingMessage(sw, message, handle);
+			pending.unsent = unsentMessages;
+			queue.add(pending);
+		}
+
+		return handle;
+	}
+
+	/**
+	 * queue messages to be sent before any message queued with submit, they
+	 * are not coalesced nor paced
+	 *
+	 * @param sw
+	 *            the switch connection the messages are written to
+	 * @param messages
+	 * @return handle that completes once all messages are acknowledged
+	 */
+	public DispatchHandle submitUrgent(IOFSwitch sw,
+			List<? extends OFMessage> messages) {
+
+		DispatchHandle handle = new DispatchHandle(messages.size());
+
+		for (OFMessage message : messages) {
+			PendingMessage pending = new PendingMessage(sw, message, handle);
+			pending.urgent = true;
+			urgentQueue.add(pending);
+		}
+
+		queue.add(WAKE_UP);
+		wakeUp.release();
+
+		return handle;
+	}
+
+	/**
+	 * called when the switch replies to a barrier request
+	 *
+	 * @param xid
+	 * @return true if the barrier was sent by this dispatcher
+	 */
+	public boolean barrierReplied(int xid) {
+
+		Batch batch = inFlightBatches.remove(xid);
+
+		if (batch == null) {
+			return false;
+		}
+
+		releaseWindow(batch);
+		acknowledgeSuperseded(batch, false);
+
+		long roundTrip = System.nanoTime() - batch.sendTime;
+		barrierRoundTrip.observe(roundTrip);
+		lastBatchLatency = TimeUnit.NANOSECONDS.toMillis(roundTrip);
+		acknowledgedBatches.incrementAndGet();
+
+		FlowscaleController.logger.debug(
+				"batch {} of {} messages acknowledged by switch {} in {} ms",
+				new Object[] { xid, batch.size,
+						HexString.toHexString(datapathId), lastBatchLatency });
+
+		batch.handle.messagesAcknowledged(batch.size);
+
+		return true;
+	}
+
+	/**
+	 * drop every message still waiting to be sent or acknowledged, used when
+	 * the switch disconnects
+	 */
+	public void cancelPending() {
+
+		// flow mods held for coalescing are dropped by the dispatcher thread
+		cancelGeneration.incrementAndGet();
+
+		List<PendingMessage> dropped = new ArrayList<PendingMessage>();
+		urgentQueue.drainTo(dropped);
+		queue.drainTo(dropped);
+
+		while (dropped.remove(WAKE_UP)) {
+			// not a message
+		}
+
+		droppedMessages.addAndGet(dropped.size());
+
+		if (dropped.size() > 0 || inFlightBatches.size() > 0) {
+			FlowscaleController.logger.info(
+					"dropped {} pending messages and {} unacknowledged batches for switch {}",
+					new Object[] { dropped.size(), inFlightBatches.size(),
+							HexString.toHexString(datapathId) });
+		}
+
+		for (PendingMessage pending : dropped) {
+			pending.failed();
+		}
+
+		for (Integer xid : inFlightBatches.keySet()) {
+			failBatch(xid);
+		}
+
+	}
+
+	public int getQueueSize() {
+		return queue.size() + urgentQueue.size();
+	}
+
+	public int getInFlightBatches() {
+		return inFlightBatches.size();
+	}
+
+	/**
+	 * @return milliseconds between sending the last acknowledged batch and its
+	 *         barrier reply, -1 if no batch was acknowledged yet
+	 */
+	public long getLastBatchLatency() {
+		return lastBatchLatency;
+	}
+
+	public int getAcknowledgedBatches() {
+		return acknowledgedBatches.get();
+	}
+
+	public int getTimedOutBatches() {
+		return timedOutBatches.get();
+	}
+
+	public TokenBucket getTokenBucket() {
+		return tokenBucket;
+	}
+
+	/**
+	 * @return number of flow mods that were not sent because a later flow mod
+	 *         for the same match and priority replaced them
+	 */
+	public long getCoalescedFlowMods() {
+		return coalescedFlowMods.get();
+	}
+
+	/**
+	 * @return number of messages queued with submit that are not written yet,
+	 *         including flow mods held for coalescing
+	 */
+	public int getUnsentMessages() {
+		return unsentMessages.get();
+	}
+
+	/**
+	 * @return number of messages dropped without being sent because the
+	 *         switch disconnected or the dispatcher was shut down
+	 */
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+
+	private void dispatch() {
+
+		Batch batch = null;
+
+		while (dispatcherThread != null) {
+
+			PendingMessage pending = null;
+
+			try {
+
+				pending = nextMessage(batch != null);
+
+				if (pending == null) {
+					closeBatch(batch);
+					batch = null;
+					continue;
+				}
+
+				if (batch != null
+						&& (batch.handle != pending.handle || batch.sw != pending.sw)) {
+					closeBatch(batch);
+					batch = null;
+				}
+
+				if (batch == null) {
+					if (!pending.urgent) {
+						acquireWindow();
+					}
+					batch = new Batch(nextXid.getAndIncrement(), pending.sw,
+							pending.handle, pending.urgent);
+				}
+
+				if (!pending.urgent
+						&& pending.message.getType() == OFType.FLOW_MOD
+						&& !tokenBucket.tryAcquire()) {
+
+					// out of tokens, let the switch work on what was written
+					// so far while waiting
+					flush(batch.sw);
+					acquireToken();
+
+				}
+
+			} catch (InterruptedException e) {
+				FlowscaleController.logger.info(
+						"dispatcher for switch {} interrupted",
+						HexString.toHexString(datapathId));
+				if (pending != null) {
+					pending.failed();
+					droppedMessages.incrementAndGet();
+				}
+				if (batch != null) {
+					batch.handle.messagesFailed(batch.size);
+					acknowledgeSuperseded(batch, true);
+				}
+				dropCoalesced();
+				break;
+			}
+
+			write(batch, pending);
+
+			if (batch.size >= batchSize) {
+				closeBatch(batch);
+				batch = null;
+			}
+
+		}
+
+	}
+
+	private void write(Batch batch, PendingMessage pending) {
+
+		try {
+			pending.message.setXid(batch.xid);
+			pending.sw.getOutputStream().write(pending.message);
+			unflushedMessages.incrementAndGet();
+			batch.size++;
+			pending.written();
+
+			if (pending.message.getType() == OFType.FLOW_MOD) {
+				flowModsSent.mark(1);
+			}
+
+			if (pending.supersededHandles != null) {
+				if (batch.supersededHandles == null) {
+					batch.supersededHandles = new ArrayList<DispatchHandle>();
+				}
+				batch.supersededHandles.addAll(pending.supersededHandles);
+			}
+		} catch (IOException e) {
+			FlowscaleController.logger.error("{}", e);
+			pending.failed();
+		}
+
+	}
+
+	/**
+	 * send every urgent message queued so far in batches of their own, used
+	 * while the dispatcher waits so urgent messages do not wait with it
+	 */
+	private void sendUrgent() {
+
+		Batch batch = null;
+		PendingMessage pending;
+
+		while ((pending = urgentQueue.poll()) != null) {
+
+			if (batch != null
+					&& (batch.handle != pending.handle || batch.sw != pending.sw)) {
+				closeBatch(batch);
+				batch = null;
+			}
+
+			if (batch == null) {
+				batch = new Batch(nextXid.getAndIncrement(), pending.sw,
+						pending.handle, true);
+			}
+
+			write(batch, pending);
+
+			if (batch.size >= batchSize) {
+				closeBatch(batch);
+				batch = null;
+			}
+		}
+
+		if (batch != null) {
+			closeBatch(batch);
+		}
+
+	}
+
+	/**
+	 * next message to send, urgent messages first
+	 *
+	 * @param batchOpen
+	 *            true if a batch is being written, null is then returned
+	 *            instead of waiting so the batch can be closed
+	 * @return message to send or null
+	 * @throws InterruptedException
+	 */
+	private PendingMessage nextMessage(boolean batchOpen)
+			throws InterruptedException {
+
+		while (true) {
+
+			PendingMessage urgent = urgentQueue.poll();
+
+			if (urgent != null) {
+				return urgent;
+			}
+
+			PendingMessage pending = nextQueuedMessage(batchOpen);
+
+			if (pending != WAKE_UP) {
+				return pending;
+			}
+		}
+
+	}
+
+	/**
+	 * next message of the regular queue, with no coalescing window this is
+	 * the head of the queue. WAKE_UP is returned as soon as it is taken from
+	 * the queue
+	 */
+	private PendingMessage nextQueuedMessage(boolean batchOpen)
+			throws InterruptedException {
+
+		if (coalesceWindow <= 0 && coalescing.isEmpty() && ready.isEmpty()) {
+			return batchOpen ? queue.poll() : takeQueued();
+		}
+
+		while (true) {
+
+			if (coalesceGeneration != cancelGeneration.get()) {
+				coalesceGeneration = cancelGeneration.get();
+				dropCoalesced();
+			}
+
+			if (!ready.isEmpty()) {
+				return ready.removeFirst();
+			}
+
+			PendingMessage pending;
+
+			if (coalescing.isEmpty()) {
+
+				pending = batchOpen ? queue.poll() : takeQueued();
+
+				if (pending == null || pending == WAKE_UP) {
+					return pending;
+				}
+
+				if (!isCoalescable(pending.message)) {
+					return pending;
+				}
+
+				coalesceDeadline = System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(coalesceWindow);
+				hold(pending);
+				continue;
+			}
+
+			if (batchOpen) {
+				// let the batch go out while the window is open
+				return null;
+			}
+
+			long remaining = coalesceDeadline - System.nanoTime();
+			pending = remaining > 0 ? queue.poll(remaining,
+					TimeUnit.NANOSECONDS) : null;
+
+			if (pending == WAKE_UP) {
+				// the window stays open while urgent messages are sent
+				return pending;
+			} else if (pending == null) {
+				releaseCoalesced();
+			} else if (isCoalescable(pending.message)) {
+				hold(pending);
+			} else {
+				// any other message ends the window and keeps its place
+				releaseCoalesced();
+				ready.add(pending);
+			}
+
+		}
+
+	}
+
+	/**
+	 * wait for the next message of the regular queue, failing the batches
+	 * whose barrier reply is late while nothing is queued
+	 */
+	private PendingMessage takeQueued() throws InterruptedException {
+
+		while (true) {
+
+			expireBatches();
+
+			PendingMessage pending = queue.poll(nanosUntilExpiry(),
+					TimeUnit.NANOSECONDS);
+
+			if (pending != null) {
+				return pending;
+			}
+		}
+
+	}
+
+	private static boolean isCoalescable(OFMessage message) {
+
+		if (message.getType() != OFType.FLOW_MOD) {
+			return false;
+		}
+
+		short command = ((OFFlowMod) message).getCommand();
+
+		return command == OFFlowMod.OFPFC_ADD
+				|| command == OFFlowMod.OFPFC_MODIFY_STRICT
+				|| command == OFFlowMod.OFPFC_DELETE_STRICT;
+	}
+
+	/**
+	 * hold a flow mod in the window, replacing the one held for the same
+	 * match and priority
+	 */
+	private void hold(PendingMessage pending) {
+
+		CoalesceKey key = new CoalesceKey(pending.sw,
+				(OFFlowMod) pending.message);
+		PendingMessage previous = coalescing.remove(key);
+
+		if (previous != null) {
+			previous.done();
+			pending.supersede(previous);
+			coalescedFlowMods.incrementAndGet();
+		}
+
+		coalescing.put(key, pending);
+
+	}
+
+	private void releaseCoalesced() {
+
+		ready.addAll(coalescing.values());
+		coalescing.clear();
+
+	}
+
+	private void dropCoalesced() {
+
+		releaseCoalesced();
+		droppedMessages.addAndGet(ready.size());
+
+		for (PendingMessage pending : ready) {
+			pending.failed();
+		}
+
+		ready.clear();
+
+	}
+
+	private void acknowledgeSuperseded(Batch batch, boolean failed) {
+
+		if (batch.supersededHandles == null) {
+			return;
+		}
+
+		for (DispatchHandle handle : batch.supersededHandles) {
+			if (failed) {
+				handle.messagesFailed(1);
+			} else {
+				handle.messagesAcknowledged(1);
+			}
+		}
+
+	}
+
+	/**
+	 * wait for room in the window of unacknowledged barriers, batches that
+	 * were not acknowledged within the timeout are failed to make room and
+	 * urgent messages are sent while waiting
+	 */
+	private void acquireWindow() throws InterruptedException {
+
+		while (true) {
+
+			// a wake up released after this point is not lost
+			wakeUp.drainPermits();
+
+			if (window.tryAcquire()) {
+				return;
+			}
+
+			sendUrgent();
+			expireBatches();
+
+			if (window.tryAcquire()) {
+				return;
+			}
+
+			wakeUp.tryAcquire(nanosUntilExpiry(), TimeUnit.NANOSECONDS);
+		}
+
+	}
+
+	/**
+	 * wait for a token, urgent messages are sent and late batches failed
+	 * while waiting
+	 */
+	private void acquireToken() throws InterruptedException {
+
+		while (true) {
+
+			wakeUp.drainPermits();
+
+			if (tokenBucket.tryAcquire()) {
+				return;
+			}
+
+			sendUrgent();
+			expireBatches();
+
+			wakeUp.tryAcquire(Math.min(tokenBucket.getNanosUntilNextToken(),
+					nanosUntilExpiry()), TimeUnit.NANOSECONDS);
+		}
+
+	}
+
+	/**
+	 * urgent batches do not take a slot in the window
+	 */
+	private void releaseWindow(Batch batch) {
+
+		if (!batch.urgent) {
+			window.release();
+			wakeUp.release();
+		}
+
+	}
+
+	private void expireBatches() {
+
+		long now = System.nanoTime();
+
+		for (Batch batch : inFlightBatches.values()) {
+
+			if (TimeUnit.NANOSECONDS.toMillis(now - batch.sendTime) >= barrierTimeout) {
+				FlowscaleController.logger.warn(
+						"no barrier reply from switch {} for batch {} after {} ms",
+						new Object[] { HexString.toHexString(datapathId),
+								batch.xid, barrierTimeout });
+				timedOutBatches.incrementAndGet();
+				failBatch(batch.xid);
+			}
+		}
+
+	}
+
+	/**
+	 * @return nanoseconds until the oldest unacknowledged batch times out, the
+	 *         barrier timeout if there is none
+	 */
+	private long nanosUntilExpiry() {
+
+		long timeout = TimeUnit.MILLISECONDS.toNanos(barrierTimeout);
+		long now = System.nanoTime();
+		long remaining = timeout;
+
+		for (Batch batch : inFlightBatches.values()) {
+			remaining = Math.min(remaining, batch.sendTime + timeout - now);
+		}
+
+		return Math.max(0, remaining);
+	}
+
+	private void failBatch(int xid) {
+
+		Batch batch = inFlightBatches.remove(xid);
+
+		if (batch != null) {
+			releaseWindow(batch);
+			batch.handle.messagesFailed(batch.size);
+			acknowledgeSuperseded(batch, true);
+		}
+
+	}
+
+	private void closeBatch(Batch batch) {
+
+		if (batch.size == 0) {
+			// nothing was written, give the window slot back
+			releaseWindow(batch);
+			return;
+		}
+
+		OFBarrierRequest barrierRequest = new OFBarrierRequest();
+		barrierRequest.setXid(batch.xid);
+		batch.sendTime = System.nanoTime();
+		inFlightBatches.put(batch.xid, batch);
+
+		try {
+			batch.sw.getOutputStream().write(barrierRequest);
+		} catch (IOException e) {
+			FlowscaleController.logger.error("{}", e);
+			failBatch(batch.xid);
+		}
+
+		flush(batch.sw);
+
+	}
+
+	private void flush(IOFSwitch sw) {
+
+		try {
+			sw.getOutputStream().flush();
+			unflushedMessages.set(0);
+		} catch (IOException e) {
+			FlowscaleController.logger.error("{}", e);
+		}
+
+	}
+
+}
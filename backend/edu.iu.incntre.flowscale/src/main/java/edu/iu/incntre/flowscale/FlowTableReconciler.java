@@ -0,0 +1,188 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.util.U16;
+
+/**
+ * Compares the flows a switch should have with the flows read from its flow
+ * table and produces the flow mods needed to go from one to the other. Flows
+ * are identified by their match and priority, a flow whose actions differ is
+ * modified in place so traffic it carries is never interrupted. Adds and
+ * modifies are returned before deletes.
+ */
+public class FlowTableReconciler {
+
+	private int added;
+	private int modified;
+	private int deleted;
+	private int unchanged;
+
+	/**
+	 * @param expectedFlows
+	 *            OFPFC_ADD flow mods for every flow the switch should have
+	 * @param installedFlows
+	 *            flow statistics read from the switch
+	 * @return flow mods to send to the switch
+	 */
+	public List<OFFlowMod> reconcile(List<OFFlowMod> expectedFlows,
+			List<OFStatistics> installedFlows) {
+
+		added = 0;
+		modified = 0;
+		deleted = 0;
+		unchanged = 0;
+
+		Map<FlowKey, OFFlowStatisticsReply> installed = new HashMap<FlowKey, OFFlowStatisticsReply>();
+
+		for (OFStatistics statistics : installedFlows) {
+			OFFlowStatisticsReply flow = (OFFlowStatisticsReply) statistics;
+			installed.put(new FlowKey(flow.getMatch(), flow.getPriority()), flow);
+		}
+
+		Map<FlowKey, OFFlowMod> expected = new LinkedHashMap<FlowKey, OFFlowMod>();
+
+		for (OFFlowMod flowMod : expectedFlows) {
+			expected.put(new FlowKey(flowMod.getMatch(), flowMod.getPriority()),
+					flowMod);
+		}
+
+		List<OFFlowMod> changes = new ArrayList<OFFlowMod>();
+
+		for (Map.Entry<FlowKey, OFFlowMod> entry : expected.entrySet()) {
+
+			OFFlowMod flowMod = entry.getValue();
+			OFFlowStatisticsReply flow = installed.remove(entry.getKey());
+
+			if (flow == null) {
+				changes.add(flowMod);
+				added++;
+			} else if (!sameActions(flowMod.getActions(), flow.getActions())) {
+				flowMod.setCommand(OFFlowMod.OFPFC_MODIFY_STRICT);
+				changes.add(flowMod);
+				modified++;
+			} else {
+				unchanged++;
+			}
+
+		}
+
+		// whatever is left on the switch is not expected anymore
+		for (OFFlowStatisticsReply flow : installed.values()) {
+
+			OFFlowMod flowToDelete = new OFFlowMod();
+			flowToDelete.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+			flowToDelete.setMatch(flow.getMatch());
+			flowToDelete.setPriority(flow.getPriority());
+			flowToDelete.setOutPort(OFPort.OFPP_NONE);
+			flowToDelete.setBufferId(-1);
+			flowToDelete.setActions(new ArrayList<OFAction>());
+			flowToDelete.setLength(U16.t(OFFlowMod.MINIMUM_LENGTH));
+			changes.add(flowToDelete);
+			deleted++;
+
+		}
+
+		return changes;
+	}
+
+	/**
+	 * a flow table entry is identified by its match and priority
+	 */
+	private static final class FlowKey {
+
+		private final MatchKey matchKey;
+		private final short priority;
+
+		FlowKey(OFMatch match, short priority) {
+			this.matchKey = MatchKey.fromMatch(match);
+			this.priority = priority;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * matchKey.hashCode() + priority;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+
+			if (!(object instanceof FlowKey)) {
+				return false;
+			}
+
+			FlowKey other = (FlowKey) object;
+			return priority == other.priority
+					&& matchKey.equals(other.matchKey);
+		}
+	}
+
+	/**
+	 * compare two action lists, only output actions are used by FlowScale so
+	 * the comparison is done on the output ports in order
+	 */
+	static boolean sameActions(List<OFAction> actions,
+			List<OFAction> otherActions) {
+
+		int size = actions == null ? 0 : actions.size();
+		int otherSize = otherActions == null ? 0 : otherActions.size();
+
+		if (size != otherSize) {
+			return false;
+		}
+
+		for (int i = 0; i < size; i++) {
+
+			OFAction action = actions.get(i);
+			OFAction otherAction = otherActions.get(i);
+
+			if (action instanceof OFActionOutput
+					&& otherAction instanceof OFActionOutput) {
+
+				if (((OFActionOutput) action).getPort() != ((OFActionOutput) otherAction)
+						.getPort()) {
+					return false;
+				}
+
+			} else if (!action.equals(otherAction)) {
+				return false;
+			}
+
+		}
+
+		return true;
+	}
+
+	public int getAdded() {
+		return added;
+	}
+
+	public int getModified() {
+		return modified;
+	}
+
+	public int getDeleted() {
+		return deleted;
+	}
+
+	public int getUnchanged() {
+		return unchanged;
+	}
+
+}
@@ -5,7 +5,6 @@ http://www.apache.org/licenses/LICENSE-2.0
 
 package edu.iu.incntre.flowscale;
 
-import org.openflow.protocol.OFBarrierRequest;
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
@@ -33,16 +32,34 @@ import net.beaconcontroller.core.IOFSwitchListener;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 import org.json.simple.JSONObject;
 
 import edu.iu.incntre.flowscale.exception.NoDatabaseException;
 import edu.iu.incntre.flowscale.exception.NoSwitchException;
+import edu.iu.incntre.flowscale.metrics.Gauge;
+import edu.iu.incntre.flowscale.metrics.MetricsRegistry;
+import edu.iu.incntre.flowscale.stats.SampleStore;
 
 /**
  * This class is the main controller and communicates with the switch
@@ -56,11 +73,12 @@ public class FlowscaleController implements IOFSwitchListener,
 	protected IBeaconProvider ibeaconProvider;
 
 	private HashMap<Long, SwitchDevice> controllerSwitches = new HashMap<Long, SwitchDevice>();
-	private HashMap<Integer, Group> groupList = new HashMap<Integer, Group>();
+	private GroupRegistry groupRegistry = new GroupRegistry();
+	private RuleIndex ruleIndex = new RuleIndex();
 
 	private String username, password, connectionString, dbDriverString;
 
-	private ArrayList<SwitchDevice> connectedSwitches = new ArrayList<SwitchDevice>();
+	private List<SwitchDevice> connectedSwitches = new CopyOnWriteArrayList<SwitchDevice>();
 	private String mirroringRules;
 	private int defaultRulePriority;
 	private short mirrorPriority;
@@ -68,10 +86,35 @@ public class FlowscaleController implements IOFSwitchListener,
 	HashMap<Long, HashMap<Short, Short>> switchFlowMirrorPortsHashMap;
 
 	private int maximumFlowsToPush;
+	private int flowModRate;
+	private int flowModBurst;
+	private int flowModBatchSize = 100;
+	private int barrierWindow = 4;
+	private long barrierTimeout = 10000;
+	private long coalesceWindow = 0;
+	private int tableHeadroom = 0;
+	private boolean prefixAggregation = true;
+	private long failoverTarget = 50;
+	private volatile long lastFailoverLatency = -1;
+	private final AtomicLong failovers = new AtomicLong();
+	private final AtomicLong failoversOverTarget = new AtomicLong();
+	private String reconnectMode = RECONNECT_MODE_REINSTALL;
+	private ConcurrentHashMap<Long, FlowModDispatcher> flowModDispatchers = new ConcurrentHashMap<Long, FlowModDispatcher>();
+	private ConcurrentHashMap<Long, SwitchEventLoop> switchEventLoops = new ConcurrentHashMap<Long, SwitchEventLoop>();
+	private int switchStartupThreads = 4;
+	private long switchStartupTimeout = 600000;
+	private ThreadPoolExecutor switchStartupExecutor;
+	private volatile long controllerStartTime;
+	private ConcurrentHashMap<Long, Long> switchStartupTimes = new ConcurrentHashMap<Long, Long>();
+	private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+	private SampleStore sampleStore = new SampleStore(12);
 
 	public static Logger logger = LoggerFactory
 			.getLogger(FlowscaleController.class);
 
+	public static final String RECONNECT_MODE_REINSTALL = "reinstall";
+	public static final String RECONNECT_MODE_RECONCILE = "reconcile";
+
 	// implementation of the IOFMessage Listener
 
 	@Override
@@ -80,39 +123,18 @@ public class FlowscaleController implements IOFSwitchListener,
 
 		if (msg.getType() == OFType.BARRIER_REPLY) {
 
-			logger.info("received barrier info from switch {} with xid {}",
+			logger.debug("received barrier info from switch {} with xid {}",
 					sw.getId(), msg.getXid());
 
-			if (msg.getXid() == 2) {
-				SwitchDevice switchDevice = controllerSwitches.get(sw.getId());
-				logger.debug("ports on initiation {}", sw.getFeaturesReply()
-						.getPorts());
-
-				switchDevice.setPhysicalPorts(sw.getFeaturesReply().getPorts());
-
-				controllerSwitches.put(sw.getId(), switchDevice);
-
-				for (Integer groupId : groupList.keySet()) {
-					Group group = groupList.get(groupId);
-
-					if (sw.getId() == group.getOutputSwitchDatapathId()) {
-
-						try {
-							group.switchUpAlert(sw);
-						} catch (Exception e) {
-							// TODO Auto-generated catch block
-							logger.error("{}", e);
-						}
-
-					}
-
-				}
-
-				logger.info("switch {} added",
-						HexString.toHexString(sw.getId()));
-				connectedSwitches.add(switchDevice);
+			FlowModDispatcher dispatcher = flowModDispatchers.get(sw.getId());
 
+			if (dispatcher == null || !dispatcher.barrierReplied(msg.getXid())) {
+				logger.info(
+						"unexpected barrier reply from switch {} with xid {}",
+						HexString.toHexString(sw.getId()), msg.getXid());
 			}
+
+			return Command.CONTINUE;
 		}
 
 		if (msg.getType() == OFType.PACKET_IN) {
@@ -123,11 +145,14 @@ public class FlowscaleController implements IOFSwitchListener,
 
 		if (msg.getType() == OFType.PORT_STATUS) {
 
+			// failover latency is measured from here
+			long portStatusTime = System.nanoTime();
+
 			logger.info(
 					"controller received a port status message from switch {}",
 					HexString.toHexString(sw.getId()));
 
-			OFPortStatus ps = (OFPortStatus) msg;
+			final OFPortStatus ps = (OFPortStatus) msg;
 
 			logger.info(
 					"port {}, with h/w address {} sent a port update message",
@@ -140,16 +165,22 @@ public class FlowscaleController implements IOFSwitchListener,
 			if (OFPortReason.values()[ps.getReason()] == OFPortReason.OFPPR_MODIFY) {
 
 				updateGroupsWithPortStatus(sw, ps.getDesc().getPortNumber(),
-						ps.getDesc());
+						ps.getDesc(), portStatusTime);
 
 			}
 
 			// update switch as well
 
-			SwitchDevice switchDevice = controllerSwitches.get(sw.getId());
+			final SwitchDevice switchDevice = controllerSwitches.get(sw.getId());
 
 			if (switchDevice != null) {
-				switchDevice.updatePort(ps);
+				getSwitchEventLoop(sw.getId()).execute(new Runnable() {
+
+					@Override
+					public void run() {
+						switchDevice.updatePort(ps);
+					}
+				});
 
 			}
 		}
@@ -159,33 +190,102 @@ public class FlowscaleController implements IOFSwitchListener,
 
 	/**
 	 * once a port is updated , all groups that have this port as value must be
-	 * invoked inorder to updated any flow associated with the particular port
+	 * invoked inorder to updated any flow associated with the particular port,
+	 * the groups are looked up in the registry by switch and port. Each group
+	 * is updated on the event loop of its output switch
 	 * 
 	 * @param sw
 	 * @param portNum
 	 * @param physicalPort
+	 * @param portStatusTime
+	 *            System.nanoTime() when the port status was received
 	 */
-	public void updateGroupsWithPortStatus(IOFSwitch sw, short portNum,
-			OFPhysicalPort physicalPort) {
+	public void updateGroupsWithPortStatus(final IOFSwitch sw,
+			final short portNum, final OFPhysicalPort physicalPort,
+			final long portStatusTime) {
 		logger.trace("updating groups with port number {} on switch {} ",
 				portNum, HexString.toHexString(sw.getId()));
-		for (Integer groupId : groupList.keySet()) {
-			Group group = groupList.get(groupId);
-
-			if ((sw.getId() == group.getInputSwitchDatapathId() || sw.getId() == group
-					.getOutputSwitchDatapathId())
-					&& (group.getInputPorts().contains(portNum) || group
-							.getOutputPorts().contains(portNum))) {
-				logger.trace(
-						"group with value {} contains this port ,updating ...",
-						group.getValues());
-				group.alert(sw, portNum, physicalPort, null);
+		for (final Group group : groupRegistry.getGroupsForPort(sw.getId(),
+				portNum)) {
+
+			logger.trace("group with value {} contains this port ,updating ...",
+					group.getValues());
+			getSwitchEventLoop(group.getOutputSwitchDatapathId()).execute(
+					new Runnable() {
+
+						@Override
+						public void run() {
+							DispatchHandle handle = group.alert(sw, portNum,
+									physicalPort, null);
+							recordPortEvent(group, portNum, handle,
+									portStatusTime,
+									physicalPort.getState() % 2 != 0);
+						}
+					});
 
-			}
 		}
 
 	}
 
+	/**
+	 * once the flow mods of a group for a port event are written, record the
+	 * time since the port status was received. Failovers are also compared
+	 * with the failover target
+	 */
+	private void recordPortEvent(final Group group, final short portNum,
+			final DispatchHandle handle, final long portStatusTime,
+			final boolean down) {
+
+		if (handle == null || handle.getMessageCount() == 0) {
+			return;
+		}
+
+		handle.onCompletion(new Runnable() {
+
+			@Override
+			public void run() {
+
+				if (handle.getWrittenTime() == 0) {
+					// some flow mods were dropped
+					return;
+				}
+
+				long latencyNanos = handle.getWrittenTime() - portStatusTime;
+
+				metricsRegistry.histogram(
+						"flowscale_port_event_reprogram_seconds",
+						"time from a port status to the flow mods of a group written",
+						"switch",
+						HexString.toHexString(group
+								.getOutputSwitchDatapathId()), "state",
+						down ? "down" : "up").observe(latencyNanos);
+
+				if (!down) {
+					return;
+				}
+
+				long latency = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+				lastFailoverLatency = latency;
+				failovers.incrementAndGet();
+
+				if (latency > failoverTarget) {
+					failoversOverTarget.incrementAndGet();
+					logger.warn(
+							"failover of port {} for group {} took {} ms for {} flow mods, target is {} ms",
+							new Object[] { portNum, group.getGrouopId(),
+									latency, handle.getMessageCount(),
+									failoverTarget });
+				} else {
+					logger.info(
+							"failover of port {} for group {} took {} ms for {} flow mods",
+							new Object[] { portNum, group.getGrouopId(),
+									latency, handle.getMessageCount() });
+				}
+			}
+		});
+
+	}
+
 	// implementation of the IOFSwitchLisnter
 
 	@Override
@@ -210,186 +310,983 @@ public class FlowscaleController implements IOFSwitchListener,
 				return;
 			}
 
+			switchDevice.setOpenFlowSwitch(sw);
+
 			// initiate switch
 
-			initiateSwitch(sw);
+			startSwitch(sw);
+
+		} catch (Exception e) {
+			// TODO Auto-generated catch block
+			logger.info("adding group exception {}", e);
+		}
+
+	}
+
+	/**
+	 * queue the initiation of a switch on the switch startup executor,
+	 * switches are brought up in parallel by at most switchStartupThreads
+	 * threads
+	 * 
+	 * @param sw
+	 *            IOFSwitch
+	 */
+	private void startSwitch(final IOFSwitch sw) {
+
+		switchStartupExecutor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				initiateSwitch(sw);
+			}
+		});
+
+	}
+
+	/**
+	 * method invoked after the switch is connected to the controller and
+	 * default reles are pushed to the switch in addition, the group rules
+	 * associated with this switch are inserted. The method returns once the
+	 * switch acknowledged all flows, it must not be called from the thread
+	 * delivering the switch messages nor from the event loop of the switch
+	 * 
+	 * @param sw
+	 *            IOFSwitch
+	 */
+	public void initiateSwitch(IOFSwitch sw) {
+
+		try {
+
+			ArrayList<OFFlowMod> defaultFlowMods = getDefaultFlowMods();
+			applyTableBudget(sw, defaultFlowMods.size());
+			boolean initiated;
+
+			if (RECONNECT_MODE_RECONCILE.equals(reconnectMode)) {
+				initiated = reconcileSwitch(sw, defaultFlowMods);
+			} else {
+				initiated = reinstallSwitch(sw, defaultFlowMods);
+			}
+
+			if (initiated) {
+				recordStartupTime(sw);
+			}
+
+		} catch (InterruptedException e) {
+
+			logger.info("initiation of switch {} interrupted",
+					HexString.toHexString(sw.getId()));
+			Thread.currentThread().interrupt();
+
+		} catch (Exception e) {
+
+			FlowscaleController.logger.error("{}", e);
+		}
+
+	}
+
+	/**
+	 * limit the groups of a connecting switch to the space of its flow table,
+	 * the default flows and the table headroom are kept out of the budget
+	 * 
+	 * @param sw
+	 * @param defaultFlowCount
+	 * @throws InterruptedException
+	 */
+	private void applyTableBudget(final IOFSwitch sw, int defaultFlowCount)
+			throws InterruptedException {
+
+		final TableCapacityBudget budget = readTableBudget(sw.getId());
+
+		if (budget == null) {
+			return;
+		}
+
+		final int availableEntries = budget.getMaximumEntries()
+				- defaultFlowCount - tableHeadroom;
+
+		logger.info("switch {} has {} flow table entries, {} left for groups",
+				new Object[] { HexString.toHexString(sw.getId()),
+						budget.getMaximumEntries(), availableEntries });
+
+		callOnSwitch(sw.getId(), new Callable<Void>() {
+
+			@Override
+			public Void call() {
+				budget.allocate(groupRegistry.getGroupsForOutputSwitch(sw
+						.getId()), availableEntries);
+				return null;
+			}
+		});
+
+	}
+
+	/**
+	 * read the table statistics of a switch, this blocks until the switch
+	 * replies
+	 * 
+	 * @param datapathId
+	 * @return budget of the switch or null if the statistics are not available
+	 */
+	private TableCapacityBudget readTableBudget(long datapathId) {
+
+		SwitchDevice switchDevice = controllerSwitches.get(datapathId);
+
+		if (switchDevice == null || switchDevice.getOpenFlowSwitch() == null) {
+			return null;
+		}
+
+		try {
+
+			long requestTime = System.nanoTime();
+			List<OFStatistics> tableStatistics;
+
+			try {
+				tableStatistics = switchDevice.getStatistics("table");
+			} finally {
+				observeStatisticsRequest(datapathId, "table", requestTime);
+			}
+
+			if (tableStatistics == null || tableStatistics.isEmpty()) {
+				return null;
+			}
+
+			TableCapacityBudget budget = TableCapacityBudget
+					.fromTableStatistics(datapathId, tableStatistics);
+
+			return budget.getMaximumEntries() > 0 ? budget : null;
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (Exception e) {
+			logger.info(
+					"could not read table statistics of switch {}, groups are not limited",
+					HexString.toHexString(datapathId));
+			return null;
+		}
+
+	}
+
+	/**
+	 * share the flow table of the output switch of a new group between the
+	 * new group and the groups already on the switch, groups whose budget
+	 * shrank are regenerated. Runs on the event loop of the switch.
+	 * 
+	 * @param newGroup
+	 * @param budget
+	 * @return false if the new group does not fit in the flow table
+	 */
+	private boolean fitTableBudget(Group newGroup, TableCapacityBudget budget) {
+
+		Set<Group> groups = groupRegistry.getGroupsForOutputSwitch(newGroup
+				.getOutputSwitchDatapathId());
+		HashMap<Group, Integer> previousBudgets = new HashMap<Group, Integer>();
+		int groupEntries = 0;
+
+		for (Group group : groups) {
+			previousBudgets.put(group, group.getFlowBudget());
+			groupEntries += group.getInstalledRules().size();
+		}
+
+		// entries used by anything other than the groups stay in use
+		int availableEntries = budget.getMaximumEntries()
+				- Math.max(0, budget.getActiveCount() - groupEntries)
+				- tableHeadroom;
+
+		ArrayList<Group> sharingGroups = new ArrayList<Group>(groups);
+		sharingGroups.add(newGroup);
+
+		if (!budget.allocate(sharingGroups, availableEntries)) {
+			return false;
+		}
+
+		for (Group group : groups) {
+
+			if (group.getFlowBudget() != previousBudgets.get(group)
+					&& !group.getGroupRules().isEmpty()) {
+				group.regenerateRules();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * delete all flows of the switch then add the default flows, the group
+	 * rules are pushed once the switch acknowledged them
+	 * 
+	 * @param sw
+	 * @param defaultFlowMods
+	 * @return true if the switch acknowledged all flows
+	 * @throws InterruptedException
+	 */
+	private boolean reinstallSwitch(final IOFSwitch sw,
+			List<OFFlowMod> defaultFlowMods) throws InterruptedException {
+
+		// 1) delete all flows
+
+		OFFlowMod ofDeleteAll = new OFFlowMod();
+		OFMatch ofMatchAll = new OFMatch();
+		ofMatchAll.setWildcards(OFMatch.OFPFW_ALL);
+		ofDeleteAll.setMatch(ofMatchAll);
+		ofDeleteAll.setCommand(OFFlowMod.OFPFC_DELETE);
+
+		// finally, insert above flows to the switch
+		ArrayList<OFFlowMod> initialFlowMods = new ArrayList<OFFlowMod>();
+		initialFlowMods.add(ofDeleteAll);
+		logger.debug("deleting all flows...");
+
+		for (OFFlowMod defaultFlowMod : defaultFlowMods) {
+
+			logger.debug("adding default rule {}", defaultFlowMod.toString());
+			initialFlowMods.add(defaultFlowMod);
+
+		}
+
+		// the group rules are pushed once the switch acknowledged the above
+		// flows
+		if (!awaitAcknowledged(sw,
+				Collections.singletonList(submitFlowMods(sw, initialFlowMods)),
+				"initial flows")) {
+			return false;
+		}
+
+		List<DispatchHandle> ruleHandles = callOnSwitch(sw.getId(),
+				new Callable<List<DispatchHandle>>() {
+
+					@Override
+					public List<DispatchHandle> call() {
+						return switchInitiated(sw);
+					}
+				});
+
+		return awaitAcknowledged(sw, ruleHandles, "group rules");
+
+	}
+
+	/**
+	 * wait until the switch acknowledged the flow mods of the handles, at most
+	 * switchStartupTimeout milliseconds in total
+	 * 
+	 * @param sw
+	 * @param handles
+	 *            handles to wait for, null entries are ignored
+	 * @param description
+	 *            what the flow mods are, used in the log
+	 * @return true if every flow mod was acknowledged
+	 * @throws InterruptedException
+	 */
+	private boolean awaitAcknowledged(IOFSwitch sw,
+			List<DispatchHandle> handles, String description)
+			throws InterruptedException {
+
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(switchStartupTimeout);
+		int failedCount = 0;
+
+		for (DispatchHandle handle : handles) {
+
+			if (handle == null) {
+				continue;
+			}
+
+			if (!handle.await(deadline - System.nanoTime(),
+					TimeUnit.NANOSECONDS)) {
+				logger.error(
+						"switch {} did not acknowledge the {} within {} ms",
+						new Object[] { HexString.toHexString(sw.getId()),
+								description, switchStartupTimeout });
+				return false;
+			}
+
+			failedCount += handle.getFailedCount();
+		}
+
+		if (failedCount > 0) {
+			logger.error("switch {} did not acknowledge {} of the {}",
+					new Object[] { HexString.toHexString(sw.getId()),
+							failedCount, description });
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * remember how long after the controller started the switch acknowledged
+	 * its flows, only the first time the switch comes up is recorded. The
+	 * time is exposed as flowscale_switch_startup_seconds
+	 * 
+	 * @param sw
+	 */
+	private void recordStartupTime(IOFSwitch sw) {
+
+		final long startupTime = System.currentTimeMillis() - controllerStartTime;
+
+		if (switchStartupTimes.putIfAbsent(sw.getId(), startupTime) == null) {
+			logger.info(
+					"switch {} acknowledged all flows {} ms after controller start",
+					HexString.toHexString(sw.getId()), startupTime);
+			metricsRegistry.gauge("flowscale_switch_startup_seconds",
+					"time from the controller start to the switch acknowledging its flows",
+					new Gauge() {
+
+						@Override
+						public double getValue() {
+							return startupTime / 1000.0;
+						}
+					}, "switch", HexString.toHexString(sw.getId()));
+		}
+
+	}
+
+	/**
+	 * flows every switch has besides the group rules: the default drop rule
+	 * and the mirroring rules
+	 * 
+	 * @return list of OFFlowMod to add
+	 */
+	private ArrayList<OFFlowMod> getDefaultFlowMods() {
+
+		ArrayList<OFFlowMod> defaultFlowMods = new ArrayList<OFFlowMod>();
+
+		// inset default drop rule to avoid sending any packet to the
+		// controller
+		OFFlowMod ofDefaultDropRule = new OFFlowMod();
+		OFMatch ofMatchAll = new OFMatch();
+		ofMatchAll.setWildcards(OFMatch.OFPFW_ALL);
+
+		ofDefaultDropRule.setPriority((short) defaultRulePriority);
+		ofDefaultDropRule.setMatch(ofMatchAll);
+		ofDefaultDropRule.setIdleTimeout((short) 0);
+		ofDefaultDropRule.setHardTimeout((short) 0);
+		ArrayList<OFAction> emptyActions = new ArrayList<OFAction>();
+
+		ofDefaultDropRule.setActions(emptyActions);
+		ofDefaultDropRule.setBufferId(-1);
+		ofDefaultDropRule.setLength(U16.t(OFFlowMod.MINIMUM_LENGTH));
+		defaultFlowMods.add(ofDefaultDropRule);
+
+		// insert mirroring rules for UISO flowscale
+		if (mirroringRules == null) {
+			logger.info("no mirroring rules configured");
+			return defaultFlowMods;
+		}
+
+		String[] mirrorValues = mirroringRules.split(";");
+
+		// loop over comma separated value
+
+		OFFlowMod mirrorFlowMod;
+		OFMatch mirrorMatch;
+		ArrayList<OFAction> mirrorOutput;
+		OFActionOutput mirrorAction;
+		for (String mirrorValue : mirrorValues) {
+
+			String[] mirrorIndex = mirrorValue.split("-");
+
+			short inputPort = Short.parseShort(mirrorIndex[0]);
+
+			String[] mirrorPortValues = mirrorIndex[1].split(",");
+
+			// add the flows
+
+			mirrorFlowMod = new OFFlowMod();
+			mirrorMatch = new OFMatch();
+			mirrorMatch.setWildcards(OFMatch.OFPFW_ALL ^ OFMatch.OFPFW_IN_PORT);
+			mirrorMatch.setInputPort(inputPort);
+			mirrorFlowMod.setMatch(mirrorMatch);
+
+			mirrorFlowMod.setIdleTimeout((short) 0);
+			mirrorFlowMod.setHardTimeout((short) 0);
+			mirrorFlowMod.setPriority(mirrorPriority);
+
+			mirrorOutput = new ArrayList<OFAction>();
+
+			for (String mirrorPortValue : mirrorPortValues) {
+
+				mirrorAction = new OFActionOutput();
+				mirrorAction.setPort(Short.parseShort(mirrorPortValue));
+
+				mirrorOutput.add(mirrorAction);
+
+			}
+
+			mirrorFlowMod.setActions(mirrorOutput);
+			mirrorFlowMod.setBufferId(-1);
+			mirrorFlowMod.setLength(U16.t(OFFlowMod.MINIMUM_LENGTH
+					+ OFActionOutput.MINIMUM_LENGTH * mirrorOutput.size()));
+
+			defaultFlowMods.add(mirrorFlowMod);
+
+		}
+
+		return defaultFlowMods;
+	}
+
+	/**
+	 * read the flow table of a reconnected switch and send only the flow mods
+	 * needed to bring it in line with the default flows and the group rules,
+	 * flows that are already correct are left untouched. If the flow table
+	 * cannot be read the switch is reinstalled. Reading the flow statistics
+	 * blocks, so this must not run on the thread delivering the reply.
+	 * 
+	 * @param sw
+	 * @param defaultFlowMods
+	 * @return true if the switch acknowledged all flows
+	 * @throws InterruptedException
+	 */
+	private boolean reconcileSwitch(final IOFSwitch sw,
+			final List<OFFlowMod> defaultFlowMods) throws InterruptedException {
+
+		SwitchDevice switchDevice = controllerSwitches.get(sw.getId());
+		List<OFStatistics> installedFlows;
+
+		try {
+			switchDevice.setOpenFlowSwitch(sw);
+			long requestTime = System.nanoTime();
+			try {
+				installedFlows = switchDevice.getFlowStatisticsForLoader();
+			} finally {
+				observeStatisticsRequest(sw.getId(), "flow", requestTime);
+			}
+		} catch (Exception e) {
+			logger.error(
+					"could not read flow table of switch {}, reinstalling all flows",
+					HexString.toHexString(sw.getId()));
+			logger.error("{}", e);
+			callOnSwitch(sw.getId(), new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					for (Group group : groupRegistry.getGroupsForOutputSwitch(sw
+							.getId())) {
+						group.switchDownAlert(sw);
+					}
+					return null;
+				}
+			});
+			return reinstallSwitch(sw, defaultFlowMods);
+		}
+
+		List<OFFlowMod> expectedFlows = callOnSwitch(sw.getId(),
+				new Callable<List<OFFlowMod>>() {
+
+					@Override
+					public List<OFFlowMod> call() {
+
+						ArrayList<OFFlowMod> expectedFlows = new ArrayList<OFFlowMod>(
+								defaultFlowMods);
+
+						for (Group group : groupRegistry
+								.getGroupsForOutputSwitch(sw.getId())) {
+							for (OFRule rule : group.getRulesForReconcile(sw)) {
+								expectedFlows.add(rule
+										.toFlowMod(OFFlowMod.OFPFC_ADD));
+							}
+						}
+
+						return expectedFlows;
+					}
+				});
+
+		FlowTableReconciler reconciler = new FlowTableReconciler();
+		List<OFFlowMod> changes = reconciler.reconcile(expectedFlows,
+				installedFlows);
+
+		logger.info(
+				"reconciling switch {}: {} flows added, {} modified, {} deleted, {} unchanged",
+				new Object[] { HexString.toHexString(sw.getId()),
+						reconciler.getAdded(), reconciler.getModified(),
+						reconciler.getDeleted(), reconciler.getUnchanged() });
+
+		boolean reconciled = awaitAcknowledged(sw,
+				Collections.singletonList(submitFlowMods(sw, changes)),
+				"reconciled flows");
+
+		// port changes are applied even if some reconciled flows failed
+		List<DispatchHandle> portHandles = callOnSwitch(sw.getId(),
+				new Callable<List<DispatchHandle>>() {
+
+					@Override
+					public List<DispatchHandle> call() {
+						return switchReconciled(sw);
+					}
+				});
+		boolean portsReconciled = awaitAcknowledged(sw, portHandles,
+				"port updates");
+
+		return reconciled && portsReconciled;
+
+	}
+
+	/**
+	 * invoked once the switch acknowledged the reconciled flows, port changes
+	 * that happened while the switch was disconnected are applied to the
+	 * groups
+	 * 
+	 * @param sw
+	 * @return handles of the flow mods queued for the port changes
+	 */
+	private List<DispatchHandle> switchReconciled(IOFSwitch sw) {
+
+		SwitchDevice switchDevice = controllerSwitches.get(sw.getId());
+		switchDevice.setPhysicalPorts(sw.getFeaturesReply().getPorts());
+		ArrayList<DispatchHandle> handles = new ArrayList<DispatchHandle>();
+
+		for (Group group : groupRegistry.getGroupsForOutputSwitch(sw.getId())) {
+
+			try {
+				handles.addAll(group.reconcilePorts(sw));
+			} catch (Exception e) {
+				logger.error("{}", e);
+			}
+
+		}
+
+		logger.info("switch {} reconciled", HexString.toHexString(sw.getId()));
+		connectedSwitches.add(switchDevice);
+
+		return handles;
+
+	}
+
+	/**
+	 * invoked once the switch acknowledged the flows sent by initiateSwitch,
+	 * the switch ports are stored and the group rules are pushed
+	 * 
+	 * @param sw
+	 * @return handles of the group rules queued for the switch
+	 */
+	private List<DispatchHandle> switchInitiated(IOFSwitch sw) {
+
+		SwitchDevice switchDevice = controllerSwitches.get(sw.getId());
+		logger.debug("ports on initiation {}", sw.getFeaturesReply().getPorts());
+
+		switchDevice.setPhysicalPorts(sw.getFeaturesReply().getPorts());
+
+		controllerSwitches.put(sw.getId(), switchDevice);
+		ArrayList<DispatchHandle> handles = new ArrayList<DispatchHandle>();
+
+		for (Group group : groupRegistry.getGroupsForOutputSwitch(sw.getId())) {
+
+			try {
+				handles.add(group.switchUpAlert(sw));
+			} catch (Exception e) {
+				// TODO Auto-generated catch block
+				logger.error("{}", e);
+			}
+
+		}
+
+		logger.info("switch {} added", HexString.toHexString(sw.getId()));
+		connectedSwitches.add(switchDevice);
+
+		return handles;
+
+	}
+
+	@Override
+	public void removedSwitch(final IOFSwitch sw) {
+		// TODO Auto-generated method stub
+
+		// in reconcile mode the rules are kept to be compared with the flow
+		// table when the switch reconnects
+		if (!RECONNECT_MODE_RECONCILE.equals(reconnectMode)) {
+			getSwitchEventLoop(sw.getId()).execute(new Runnable() {
+
+				@Override
+				public void run() {
+					for (Group group : groupRegistry
+							.getGroupsForOutputSwitch(sw.getId())) {
+
+						group.switchDownAlert(sw);
+
+					}
+				}
+			});
+		}
+		connectedSwitches.remove(controllerSwitches.get(sw.getId()));
+
+		FlowModDispatcher dispatcher = flowModDispatchers.get(sw.getId());
+		if (dispatcher != null) {
+			dispatcher.cancelPending();
+		}
+
+		try {
+			sw.getSocketChannel().close();
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			logger.error("{}", e);
+		}
+		logger.info("switch {} removed", HexString.toHexString(sw.getId()));
+	}
+
+	@Override
+	public String getName() {
+		// TODO Auto-generated method stub
+		return "flowscaleController";
+	}
+
+	// controller listeners
+
+	public IBeaconProvider getIBeaconProvider() {
+
+		return this.ibeaconProvider;
+
+	}
+
+	public void setMaximumFlowsToPush(int maximumFlowsToPush) {
+
+		if (maximumFlowsToPush == 0) {
+
+			this.maximumFlowsToPush = Integer.MAX_VALUE;
+
+		} else {
+			this.maximumFlowsToPush = maximumFlowsToPush;
+		}
+
+	}
+
+	public int getMaximumFlowsToPush() {
+		return this.maximumFlowsToPush;
+	}
+
+	/**
+	 * number of flow mods per second sent to each switch, when not set the
+	 * rate is derived from maximumFlowsToPush which used to be sent every 5
+	 * seconds
+	 * 
+	 * @param flowModRate
+	 */
+	public void setFlowModRate(int flowModRate) {
+		this.flowModRate = flowModRate;
+	}
+
+	public int getFlowModRate() {
 
-			switchDevice.setOpenFlowSwitch(sw);
+		if (flowModRate > 0) {
+			return flowModRate;
+		}
 
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			logger.info("adding group exception {}", e);
+		if (maximumFlowsToPush == 0 || maximumFlowsToPush == Integer.MAX_VALUE) {
+			return 0;
 		}
 
+		return Math.max(1, maximumFlowsToPush / 5);
+
 	}
 
 	/**
-	 * method invoked after the switch is connected to the controller and
-	 * default reles are pushed to the switch in addition, the group rules
-	 * associated with this switch are inserted
+	 * number of flow mods that can be sent to a switch at once before the
+	 * rate applies, defaults to maximumFlowsToPush
 	 * 
-	 * @param sw
-	 *            IOFSwitch
+	 * @param flowModBurst
 	 */
-	public void initiateSwitch(IOFSwitch sw) {
+	public void setFlowModBurst(int flowModBurst) {
+		this.flowModBurst = flowModBurst;
+	}
 
-		try {
+	public int getFlowModBurst() {
 
-			// 1) delete all flows
-
-			OFFlowMod ofDeleteAll = new OFFlowMod();
-			OFMatch ofMatchAll = new OFMatch();
-			ofMatchAll.setWildcards(OFMatch.OFPFW_ALL);
-			ofDeleteAll.setMatch(ofMatchAll);
-			ofDeleteAll.setCommand(OFFlowMod.OFPFC_DELETE);
-
-			// 2) inset default drop rule to avoid sending any packet to the
-			// controller
-			OFFlowMod ofDefaultDropRule = new OFFlowMod();
-
-			ofDefaultDropRule.setPriority((short) defaultRulePriority);
-			ofDefaultDropRule.setMatch(ofMatchAll);
-			ofDefaultDropRule.setIdleTimeout((short) 0);
-			ofDefaultDropRule.setHardTimeout((short) 0);
-			ArrayList<OFAction> emptyActions = new ArrayList<OFAction>();
-
-			ofDefaultDropRule.setActions(emptyActions);
-			ArrayList<OFFlowMod> mirroringOFFlowMods = new ArrayList<OFFlowMod>();
-			// 3) insert mirroring rules for UISO flowscale
-			if (mirroringRules == null) {
-				logger.info("no mirroring rules configured");
-			} else {
-				String[] mirrorValues = mirroringRules.split(";");
+		if (flowModBurst > 0) {
+			return flowModBurst;
+		}
 
-				// loop over comma separated value
+		if (maximumFlowsToPush == 0 || maximumFlowsToPush == Integer.MAX_VALUE) {
+			return 1;
+		}
 
-				OFFlowMod mirrorFlowMod;
-				OFMatch mirrorMatch;
-				ArrayList<OFAction> mirrorOutput;
-				OFActionOutput mirrorAction;
-				for (String mirrorValue : mirrorValues) {
+		return maximumFlowsToPush;
 
-					String[] mirrorIndex = mirrorValue.split("-");
+	}
 
-					short inputPort = Short.parseShort(mirrorIndex[0]);
+	/**
+	 * what to do with the flow table of a switch that connects,
+	 * RECONNECT_MODE_REINSTALL deletes all flows and pushes the rules again,
+	 * RECONNECT_MODE_RECONCILE only sends the flows that differ from the rules
+	 * 
+	 * @param reconnectMode
+	 */
+	public void setReconnectMode(String reconnectMode) {
 
-					String[] mirrorPortValues = mirrorIndex[1].split(",");
+		if (RECONNECT_MODE_RECONCILE.equals(reconnectMode)) {
+			this.reconnectMode = RECONNECT_MODE_RECONCILE;
+		} else {
+			this.reconnectMode = RECONNECT_MODE_REINSTALL;
+		}
 
-					// add the flows
+	}
 
-					mirrorFlowMod = new OFFlowMod();
-					mirrorMatch = new OFMatch();
-					mirrorMatch.setWildcards(OFMatch.OFPFW_ALL
-							^ OFMatch.OFPFW_IN_PORT);
-					mirrorMatch.setInputPort(inputPort);
-					mirrorFlowMod.setMatch(mirrorMatch);
+	public String getReconnectMode() {
+		return reconnectMode;
+	}
 
-					mirrorFlowMod.setIdleTimeout((short) 0);
-					mirrorFlowMod.setHardTimeout((short) 0);
-					mirrorFlowMod.setPriority(mirrorPriority);
+	/**
+	 * number of flow mods sent under one xid and followed by a barrier request
+	 * 
+	 * @param flowModBatchSize
+	 */
+	public void setFlowModBatchSize(int flowModBatchSize) {
+		this.flowModBatchSize = flowModBatchSize;
+	}
 
-					mirrorOutput = new ArrayList<OFAction>();
+	/**
+	 * number of barrier requests that may be waiting for a reply before the
+	 * dispatcher of a switch stops sending
+	 * 
+	 * @param barrierWindow
+	 */
+	public void setBarrierWindow(int barrierWindow) {
+		this.barrierWindow = barrierWindow;
+	}
 
-					for (String mirrorPortValue : mirrorPortValues) {
+	/**
+	 * milliseconds after which a barrier request without reply fails its batch
+	 * 
+	 * @param barrierTimeout
+	 */
+	public void setBarrierTimeout(long barrierTimeout) {
+		this.barrierTimeout = barrierTimeout;
+	}
 
-						mirrorAction = new OFActionOutput();
-						mirrorAction.setPort(Short.parseShort(mirrorPortValue));
+	/**
+	 * milliseconds flow mods are held by the dispatcher of a switch so a
+	 * later flow mod for the same match and priority can replace them, 0
+	 * disables coalescing
+	 * 
+	 * @param coalesceWindow
+	 */
+	public void setCoalesceWindow(long coalesceWindow) {
+		this.coalesceWindow = coalesceWindow;
+	}
 
-						mirrorOutput.add(mirrorAction);
+	/**
+	 * number of flow table entries of each switch kept out of the budget the
+	 * groups are generated in
+	 * 
+	 * @param tableHeadroom
+	 */
+	public void setTableHeadroom(int tableHeadroom) {
+		this.tableHeadroom = tableHeadroom;
+	}
 
-					}
+	/**
+	 * merge the rules of a group matching sibling prefixes with the same
+	 * actions into one rule before they are installed
+	 * 
+	 * @param prefixAggregation
+	 */
+	public void setPrefixAggregation(boolean prefixAggregation) {
+		this.prefixAggregation = prefixAggregation;
+	}
 
-					mirrorFlowMod.setActions(mirrorOutput);
-					mirrorFlowMod.setBufferId(-1);
+	/**
+	 * milliseconds allowed between a port status reporting an output port
+	 * down and the last flow mod moving its rules being written, failovers
+	 * taking longer are logged as warnings
+	 * 
+	 * @param failoverTarget
+	 */
+	public void setFailoverTarget(long failoverTarget) {
+		this.failoverTarget = failoverTarget;
+	}
 
-					mirroringOFFlowMods.add(mirrorFlowMod);
+	/**
+	 * @return latency in milliseconds of the last failover, -1 if there was
+	 *         none
+	 */
+	public long getLastFailoverLatency() {
+		return lastFailoverLatency;
+	}
 
-				}
-			}
+	public long getFailovers() {
+		return failovers.get();
+	}
 
-			// finally, insert above flows to the switch
-			sw.getOutputStream().write(ofDeleteAll);
-			logger.debug("deleting all flows...");
-			ofDefaultDropRule.setBufferId(-1);
-			ofDefaultDropRule.setLength(U16.t(OFFlowMod.MINIMUM_LENGTH));
-			logger.debug("adding default rule {}", ofDefaultDropRule.toString());
-			sw.getOutputStream().write(ofDefaultDropRule);
+	public long getFailoversOverTarget() {
+		return failoversOverTarget.get();
+	}
 
-			for (OFFlowMod mirrorFlowModValue : mirroringOFFlowMods) {
+	public boolean isPrefixAggregation() {
+		return prefixAggregation;
+	}
 
-				logger.debug("adding mirror rules {}",
-						mirrorFlowModValue.toString());
-				sw.getOutputStream().write(mirrorFlowModValue);
+	/**
+	 * number of switches initiated in parallel when switches connect
+	 * 
+	 * @param switchStartupThreads
+	 */
+	public void setSwitchStartupThreads(int switchStartupThreads) {
+		this.switchStartupThreads = Math.max(1, switchStartupThreads);
+	}
 
-			}
+	/**
+	 * milliseconds a switch is given to acknowledge the flows sent when it
+	 * connects before its initiation is abandoned
+	 * 
+	 * @param switchStartupTimeout
+	 */
+	public void setSwitchStartupTimeout(long switchStartupTimeout) {
+		this.switchStartupTimeout = switchStartupTimeout;
+	}
 
-			OFBarrierRequest ofbr = new OFBarrierRequest();
+	/**
+	 * @return milliseconds between the controller start and the moment each
+	 *         switch acknowledged its flows, by datapath id
+	 */
+	public Map<Long, Long> getSwitchStartupTimes() {
+		return Collections.unmodifiableMap(switchStartupTimes);
+	}
 
-			ofbr.setXid(2);
+	public long getControllerStartTime() {
+		return controllerStartTime;
+	}
 
-			sw.getOutputStream().write(ofbr);
+	/**
+	 * @return metrics of the controller and of the bundles using it
+	 */
+	public MetricsRegistry getMetricsRegistry() {
+		return metricsRegistry;
+	}
 
-			sw.getOutputStream().flush();
+	/**
+	 * number of statistics samples kept in memory for each switch
+	 * 
+	 * @param sampleHistory
+	 */
+	public void setSampleHistory(int sampleHistory) {
+		this.sampleStore = new SampleStore(sampleHistory);
+	}
 
-		} catch (Exception e) {
+	/**
+	 * @return recent statistics of the switches, published by the stat
+	 *         collector
+	 */
+	public SampleStore getSampleStore() {
+		return sampleStore;
+	}
 
-			FlowscaleController.logger.error("{}", e);
+	/**
+	 * get the dispatcher of a switch, creating and starting it the first time
+	 * 
+	 * @param datapathId
+	 * @return FlowModDispatcher of the switch
+	 */
+	public FlowModDispatcher getFlowModDispatcher(long datapathId) {
+
+		FlowModDispatcher dispatcher = flowModDispatchers.get(datapathId);
+
+		if (dispatcher == null) {
+
+			FlowModDispatcher created = new FlowModDispatcher(datapathId,
+					getFlowModRate(), getFlowModBurst());
+			created.setBatchSize(flowModBatchSize);
+			created.setBarrierWindow(barrierWindow);
+			created.setBarrierTimeout(barrierTimeout);
+			created.setCoalesceWindow(coalesceWindow);
+			dispatcher = flowModDispatchers.putIfAbsent(datapathId, created);
+
+			if (dispatcher == null) {
+				dispatcher = created;
+				dispatcher.registerMetrics(metricsRegistry);
+				dispatcher.startUp();
+				logger.info(
+						"started flow mod dispatcher for switch {} at {} flow mods/sec",
+						HexString.toHexString(datapathId), getFlowModRate());
+			}
 		}
 
+		return dispatcher;
 	}
 
-	@Override
-	public void removedSwitch(IOFSwitch sw) {
-		// TODO Auto-generated method stub
-		for (Integer groupId : groupList.keySet()) {
-			Group group = groupList.get(groupId);
+	/**
+	 * get the event loop owning the groups and ports of a switch, creating and
+	 * starting it the first time
+	 * 
+	 * @param datapathId
+	 * @return SwitchEventLoop of the switch
+	 */
+	public SwitchEventLoop getSwitchEventLoop(long datapathId) {
 
-			if (sw.getId() == group.getOutputSwitchDatapathId()) {
+		SwitchEventLoop eventLoop = switchEventLoops.get(datapathId);
 
-				group.switchDownAlert(sw);
+		if (eventLoop == null) {
 
-			}
+			final SwitchEventLoop created = new SwitchEventLoop(datapathId);
+			eventLoop = switchEventLoops.putIfAbsent(datapathId, created);
 
-		}
-		connectedSwitches.remove(controllerSwitches.get(sw.getId()));
+			if (eventLoop == null) {
+				eventLoop = created;
+				eventLoop.startUp();
+				metricsRegistry.gauge("flowscale_event_loop_queued_events",
+						"group updates waiting on the event loop of a switch",
+						new Gauge() {
 
-		try {
-			sw.getSocketChannel().close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			logger.error("{}", e);
+							@Override
+							public double getValue() {
+								return created.getQueueSize();
+							}
+						}, "switch", HexString.toHexString(datapathId));
+			}
 		}
-		logger.info("switch {} removed", HexString.toHexString(sw.getId()));
-	}
 
-	@Override
-	public String getName() {
-		// TODO Auto-generated method stub
-		return "flowscaleController";
+		return eventLoop;
 	}
 
-	// controller listeners
+	/**
+	 * run an event on the event loop of a switch and wait for its result,
+	 * exceptions thrown by the event are rethrown to the caller
+	 * 
+	 * @param datapathId
+	 * @param event
+	 * @return value returned by the event
+	 * @throws InterruptedException
+	 */
+	private <T> T callOnSwitch(long datapathId, Callable<T> event)
+			throws InterruptedException {
 
-	public IBeaconProvider getIBeaconProvider() {
+		try {
+			return getSwitchEventLoop(datapathId).call(event);
+		} catch (ExecutionException e) {
 
-		return this.ibeaconProvider;
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+
+			throw new RuntimeException(e.getCause());
+		}
 
 	}
 
-	public void setMaximumFlowsToPush(int maximumFlowsToPush) {
+	/**
+	 * queue flow mods, or any other messages, to be sent to a switch by its
+	 * dispatcher
+	 * 
+	 * @param sw
+	 * @param messages
+	 * @return completion handle of the messages
+	 */
+	public DispatchHandle submitFlowMods(IOFSwitch sw,
+			List<? extends OFMessage> messages) {
 
-		if (maximumFlowsToPush == 0) {
+		return getFlowModDispatcher(sw.getId()).submit(sw, messages);
 
-			this.maximumFlowsToPush = Integer.MAX_VALUE;
+	}
 
-		} else {
-			this.maximumFlowsToPush = maximumFlowsToPush;
-		}
+	/**
+	 * queue flow mods to be sent to a switch ahead of everything already
+	 * queued, used to move rules off a port that went down
+	 * 
+	 * @param sw
+	 * @param messages
+	 * @return completion handle of the messages
+	 */
+	public DispatchHandle submitUrgentFlowMods(IOFSwitch sw,
+			List<? extends OFMessage> messages) {
 
-	}
+		return getFlowModDispatcher(sw.getId()).submitUrgent(sw, messages);
 
-	public int getMaximumFlowsToPush() {
-		return this.maximumFlowsToPush;
 	}
 
 	public void setBeaconProvider(IBeaconProvider beaconProvider) {
@@ -474,6 +1371,43 @@ public class FlowscaleController implements IOFSwitchListener,
 	public void startUp() {
 
 		logger.info("starting controller ");
+		controllerStartTime = System.currentTimeMillis();
+
+		switchStartupExecutor = new ThreadPoolExecutor(switchStartupThreads,
+				switchStartupThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+					private AtomicInteger threadCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "Switch Startup "
+								+ threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		switchStartupExecutor.allowCoreThreadTimeOut(true);
+
+		metricsRegistry.counter("flowscale_failovers_total",
+				"port down events whose flow mods were all written",
+				new Gauge() {
+
+					@Override
+					public double getValue() {
+						return getFailovers();
+					}
+				});
+		metricsRegistry.counter("flowscale_failovers_over_target_total",
+				"failovers that took longer than the failover target",
+				new Gauge() {
+
+					@Override
+					public double getValue() {
+						return getFailoversOverTarget();
+					}
+				});
+
 		DatabaseUtility db = new DatabaseUtility();
 		db.setConnection(username, password, connectionString, dbDriverString);
 
@@ -491,7 +1425,9 @@ public class FlowscaleController implements IOFSwitchListener,
 
 		try {
 			this.controllerSwitches = db.populateSwitchesFromDatabase(this);
-			this.groupList = db.populateGroupsFromDatabase(this);
+			for (Group group : db.populateGroupsFromDatabase(this).values()) {
+				groupRegistry.addGroup(group);
+			}
 			logger.debug("controller switches are {}", controllerSwitches);
 		} catch (NoDatabaseException e) {
 
@@ -500,12 +1436,7 @@ public class FlowscaleController implements IOFSwitchListener,
 			ibeaconProvider.notify();
 		}
 
-		logger.debug("groupList has {}", groupList);
-
-		for (Integer groupId : groupList.keySet()) {
-			Group group = groupList.get(groupId);
-
-		}
+		logger.debug("group registry has {} groups", groupRegistry.size());
 
 		logger.info("controller instance is {}", this.toString());
 
@@ -521,6 +1452,20 @@ public class FlowscaleController implements IOFSwitchListener,
 
 		try {
 
+			if (switchStartupExecutor != null) {
+				switchStartupExecutor.shutdownNow();
+			}
+
+			for (FlowModDispatcher dispatcher : flowModDispatchers.values()) {
+				dispatcher.shutDown();
+			}
+			flowModDispatchers.clear();
+
+			for (SwitchEventLoop eventLoop : switchEventLoops.values()) {
+				eventLoop.shutDown();
+			}
+			switchEventLoops.clear();
+
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			logger.error("{}", e
@@ -536,6 +1481,18 @@ public class FlowscaleController implements IOFSwitchListener,
 
 	}
 
+	public GroupRegistry getGroupRegistry() {
+
+		return this.groupRegistry;
+
+	}
+
+	public RuleIndex getRuleIndex() {
+
+		return this.ruleIndex;
+
+	}
+
 	/**
 	 * insterface to add switches , usually called from flowscalehttplistener
 	 * 
@@ -599,17 +1556,49 @@ public class FlowscaleController implements IOFSwitchListener,
 			String maximumFlowsAllowedString, String networkProtocolString,
 			String transportDirectionString) {
 
-		Group g = new Group(this);
+		final Group g = new Group(this);
 		g.addGroupDetails(groupIdString, groupName,
 				inputSwitchDatapathIdString, outputSwitchDatapathIdString,
 				inputPortListString, outputPortListString, typeString,
 				priorityString, valuesString, maximumFlowsAllowedString,
 				networkProtocolString, transportDirectionString);
 
-		g.pushRules();
+		final TableCapacityBudget budget = readTableBudget(g
+				.getOutputSwitchDatapathId());
+		boolean added;
+
+		// the group is not shared until it reaches the event loop of its
+		// output switch
+		try {
+			added = callOnSwitch(g.getOutputSwitchDatapathId(),
+					new Callable<Boolean>() {
+
+						@Override
+						public Boolean call() {
+
+							if (budget != null && !fitTableBudget(g, budget)) {
+								return false;
+							}
+
+							g.pushRules();
+							groupRegistry.addGroup(g);
+							return true;
+						}
+					});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("interrupted while adding group {}", groupIdString);
+			return null;
+		}
 
-		groupList.put(Integer.parseInt(groupIdString), g);
 		JSONObject jsonObject = new JSONObject();
+
+		if (!added) {
+			jsonObject.put("result", "flow table of switch "
+					+ outputSwitchDatapathIdString + " is full, group not added");
+			return jsonObject.toJSONString();
+		}
+
 		jsonObject.put("result", "group added");
 
 		return jsonObject.toJSONString();
@@ -627,10 +1616,39 @@ public class FlowscaleController implements IOFSwitchListener,
 	 */
 	@Deprecated
 	public String editGroupFromInterface(String groupIdString,
-			String editTypeString, String updateValueString) {
+			final String editTypeString, final String updateValueString) {
+
+		final Group g = groupRegistry.getGroup(Integer
+				.parseInt(groupIdString));
+
+		if (g == null) {
+			logger.info("group {} does not exist", groupIdString);
+			return null;
+		}
+
+		try {
+			callOnSwitch(g.getOutputSwitchDatapathId(), new Callable<Void>() {
+
+				@Override
+				public Void call() {
+
+					// ports of the group may change, it is taken out of the
+					// index while they do and indexed again under the new ones
+					groupRegistry.removeGroup(g.getGrouopId());
+
+					try {
+						g.editGroup(editTypeString, updateValueString);
+					} finally {
+						groupRegistry.addGroup(g);
+					}
 
-		Group g = groupList.get(Integer.parseInt(groupIdString));
-		g.editGroup(editTypeString, updateValueString);
+					return null;
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("interrupted while editing group {}", groupIdString);
+		}
 
 		return null;
 	}
@@ -644,12 +1662,29 @@ public class FlowscaleController implements IOFSwitchListener,
 	 */
 	public String deleteGroupFromInterface(String groupIdString) {
 
-		logger.debug(groupList.toString());
+		final Group g = groupRegistry.removeGroup(Integer
+				.parseInt(groupIdString));
 
-		Group g = groupList.get(Integer.parseInt(groupIdString));
+		if (g == null) {
+			logger.info("group {} does not exist", groupIdString);
+			return null;
+		}
 
-		g.removeGroup();
-		groupList.remove(Integer.parseInt(groupIdString));
+		try {
+			callOnSwitch(g.getOutputSwitchDatapathId(), new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					g.removeGroup();
+					ruleIndex.removeRules(g.getOutputSwitchDatapathId(), g,
+							g.getInstalledRules());
+					return null;
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("interrupted while deleting group {}", groupIdString);
+		}
 
 		return null;
 
@@ -678,9 +1713,56 @@ public class FlowscaleController implements IOFSwitchListener,
 		if (switchDevice == null) {
 			throw new NoSwitchException(datapathIdString);
 		}
-		List<OFStatistics> ofst = switchDevice.getStatistics(typeString);
+		long requestTime = System.nanoTime();
+
+		try {
+			return switchDevice.getStatistics(typeString);
+		} finally {
+			observeStatisticsRequest(datapathId, typeString, requestTime);
+		}
+
+	}
+
+	/**
+	 * send a statistics request to a switch without waiting for the reply, the
+	 * caller records the time the request took with observeStatisticsRequest
+	 * 
+	 * @param datapathIdString
+	 * @param typeString
+	 * @return future of the statistics, null if the type is unknown
+	 * @throws NoSwitchException
+	 * @throws IOException
+	 */
+	public Future<List<OFStatistics>> requestSwitchStatistics(
+			String datapathIdString, String typeString)
+			throws NoSwitchException, IOException {
+
+		SwitchDevice switchDevice = controllerSwitches.get(HexString
+				.toLong(datapathIdString));
+		if (switchDevice == null) {
+			throw new NoSwitchException(datapathIdString);
+		}
+
+		return switchDevice.requestStatistics(typeString);
+
+	}
 
-		return ofst;
+	/**
+	 * record the time a statistics request took, whether the switch replied or
+	 * not
+	 * 
+	 * @param datapathId
+	 * @param type
+	 * @param requestTime
+	 *            System.nanoTime() when the request was sent
+	 */
+	public void observeStatisticsRequest(long datapathId, String type,
+			long requestTime) {
+
+		metricsRegistry.histogram("flowscale_stats_request_seconds",
+				"time to get the statistics of a switch, by type", "switch",
+				HexString.toHexString(datapathId), "type", type).observe(
+				System.nanoTime() - requestTime);
 
 	}
 
@@ -693,72 +1775,112 @@ public class FlowscaleController implements IOFSwitchListener,
 	 * @param datapathId
 	 *            id of concerned switch that we desire to hotswap flows
 	 */
-	public void injectFlows(ArrayList<OFFlowMod> ofFlowMods, long datapathId) {
+	public void injectFlows(final ArrayList<OFFlowMod> ofFlowMods,
+			final long datapathId) {
 		logger.info("injecting flows in controller");
 		IOFSwitch sw = this.ibeaconProvider.getSwitches().get(datapathId);
 		if (sw == null) {
 			logger.error("no switch {} exists", datapathId);
 			return;
 		}
+
+		// the rules belong to groups owned by the event loop of the switch
+		List<OFFlowMod> flowModsToSend;
+		try {
+			flowModsToSend = callOnSwitch(datapathId,
+					new Callable<List<OFFlowMod>>() {
+
+						@Override
+						public List<OFFlowMod> call() {
+							return updateInjectedRules(ofFlowMods, datapathId);
+						}
+					});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("interrupted while injecting flows to switch {}",
+					HexString.toHexString(datapathId));
+			return;
+		}
+
+		submitFlowMods(sw, flowModsToSend);
+
+	}
+
+	/**
+	 * point the group rules matching the injected flows to their new port,
+	 * runs on the event loop of the switch. An injected flow matching an
+	 * aggregated rule moves every rule it covers, and the rules of every group
+	 * with that match are moved.
+	 * 
+	 * @param ofFlowMods
+	 * @param datapathId
+	 * @return flow mods to send to the switch, injected flows not matching a
+	 *         group rule are sent as they are
+	 */
+	private List<OFFlowMod> updateInjectedRules(List<OFFlowMod> ofFlowMods,
+			long datapathId) {
+
+		ArrayList<OFFlowMod> flowModsToSend = new ArrayList<OFFlowMod>();
+		Set<Group> updatedGroups = new LinkedHashSet<Group>();
+
 		for (OFFlowMod ofFlowMod : ofFlowMods) {
 			logger.info("injecting flow {}", ofFlowMod);
-			for (Integer groupKey : groupList.keySet()) {
 
-				Group group = groupList.get(groupKey);
+			Collection<RuleIndex.Entry> entries = ruleIndex.getRules(
+					datapathId, MatchKey.fromMatch(ofFlowMod.getMatch()));
+
+			if (entries.isEmpty()) {
+				flowModsToSend.add(ofFlowMod);
+				continue;
+			}
+
+			short port = ((OFActionOutput) ofFlowMod.getActions().get(0))
+					.getPort();
 
-				ArrayList<OFRule> groupRules = (ArrayList<OFRule>) group
-						.getGroupRules();
+			Short mirrorPort = null;
+			if (switchFlowMirrorPortsHashMap != null
+					&& switchFlowMirrorPortsHashMap.get(datapathId) != null) {
+				mirrorPort = switchFlowMirrorPortsHashMap.get(datapathId).get(
+						port);
+			}
 
-				for (OFRule rule : groupRules) {
+			// every group with a rule of the same match follows the flow
+			for (RuleIndex.Entry entry : entries) {
 
-					if (rule.getMatch().equals(ofFlowMod.getMatch())
-							&& group.getOutputSwitchDatapathId() == datapathId) {
-						logger.info("rule equal", rule.getMatch().toString(),
-								ofFlowMod.getMatch().toString()); 
-						
-						ofFlowMod.setPriority(rule.getPriority());
-						
-						ArrayList<OFAction> aList = rule.getActions();
+				OFRule rule = entry.getRule();
+				logger.info("rule equal", rule.getMatch().toString(),
+						ofFlowMod.getMatch().toString());
 
-						aList.clear();
+				List<OFRule> groupRules = rule.getAggregatedRules();
+				if (groupRules == null) {
+					groupRules = Collections.singletonList(rule);
+				}
 
-						short port = ((OFActionOutput) ofFlowMod.getActions()
-								.get(0)).getPort();
-						rule.setPort(port);
+				for (OFRule groupRule : groupRules) {
 
-						Short mirrorPort = 0;
-						if (switchFlowMirrorPortsHashMap.get(datapathId) != null) {
-							mirrorPort = switchFlowMirrorPortsHashMap.get(
-									datapathId).get(port);
-						}
-						if (mirrorPort != null) {
-							rule.setMirrorPort(mirrorPort);
-						}
-						logger.info("new rule is {} and port is {}",
-								rule.getMatch(), rule.getActions().get(0));
+					// setPort(-1) leaves the rule without actions, a new list
+					// is set rather than clearing one that may be gone
+					groupRule.setActions(new ArrayList<OFAction>());
+					groupRule.setPort(port);
 
+					if (mirrorPort != null && groupRule.getActions() != null) {
+						groupRule.setMirrorPort(mirrorPort);
 					}
-
 				}
 
-			}
-
-			try {
-				sw.getOutputStream().write(ofFlowMod);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				logger.error("{}", e);
+				updatedGroups.add(entry.getGroup());
+				logger.info("new rule is {} and port is {}", rule.getMatch(),
+						port);
 			}
 
 		}
 
-		try {
-			sw.getOutputStream().flush();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			logger.error("{}", e);
+		for (Group group : updatedGroups) {
+			flowModsToSend.addAll(group.updateInstalledRules());
 		}
 
+		return flowModsToSend;
+
 	}
 
 }
@@ -4,11 +4,15 @@ http://www.apache.org/licenses/LICENSE-2.0
  */
 package edu.iu.incntre.flowscale;
 
-import grnoc.net.util.ipaddress.IPv4Address;
+import grnoc.net.util.ipaddress.IPv4Prefix;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 import net.beaconcontroller.core.IOFSwitch;
@@ -16,14 +20,14 @@ import net.beaconcontroller.core.IOFSwitch;
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFPhysicalPort;
-import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFPortStatus.OFPortReason;
-import org.openflow.protocol.OFType;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.util.HexString;
 import org.openflow.util.U16;
 
+import edu.iu.incntre.flowscale.metrics.MetricsRegistry;
+
 /**
  * @author Ali Khalfan (akhalfan@indiana.edu)
  */
@@ -47,13 +51,21 @@ public class Group {
 	public static final int ETHERNET_TYPE = 3;
 	private int type;
 	private int maximumFlowsAllowed;
+	private int flowBudget = Integer.MAX_VALUE;
 	private boolean dropPortGroup = false;
 	private FlowscaleController flowscaleController;
 	private byte transportDirection;
 	private byte networkProtocol;
-	private int portCounter = 0;
 	HashMap<Integer, Integer> mirrorMapper = new HashMap<Integer, Integer>();
 	private ArrayList<OFRule> groupRules = new ArrayList<OFRule>();
+	private LinkedHashMap<MatchKey, OFRule> installedRules = new LinkedHashMap<MatchKey, OFRule>();
+	// actions of the installed rules as they were sent, the rules themselves
+	// are updated in place by port changes
+	private HashMap<MatchKey, List<OFAction>> installedActions = new HashMap<MatchKey, List<OFAction>>();
+	// installed rules by output port and the flow mods moving them to their
+	// backup ports, kept ready for the port going down
+	private HashMap<Short, LinkedHashSet<OFRule>> installedRulesByPort = new HashMap<Short, LinkedHashSet<OFRule>>();
+	private HashMap<Short, List<OFFlowMod>> failoverBatches = new HashMap<Short, List<OFFlowMod>>();
 
 	public Group(FlowscaleController controller) {
 
@@ -73,11 +85,22 @@ public class Group {
 	 * ports and push the default rules to the switch plus the group rules
 	 * 
 	 * @param sw
+	 * @return handle of the queued group rules, null if no rules were queued
 	 * @throws Exception
 	 */
-	public void switchUpAlert(IOFSwitch sw) throws Exception {
+	public DispatchHandle switchUpAlert(IOFSwitch sw) throws Exception {
+
+		updatePortsUp(sw.getFeaturesReply().getPorts());
+
+		return pushRules();
+	}
 
-		List<OFPhysicalPort> physicalPorts = sw.getFeaturesReply().getPorts();
+	/**
+	 * add the output ports that are up on the switch to outputPortsUp
+	 * 
+	 * @param physicalPorts
+	 */
+	private void updatePortsUp(List<OFPhysicalPort> physicalPorts) {
 
 		for (OFPhysicalPort ofp : physicalPorts) {
 
@@ -97,7 +120,61 @@ public class Group {
 		FlowscaleController.logger.debug("output ports up after adding is {}",
 				outputPortsUp.size());
 
-		pushRules();
+	}
+
+	/**
+	 * used when a switch reconnects and its flow table is reconciled instead
+	 * of reinstalled, the rules are generated if the group has none yet
+	 * 
+	 * @param sw
+	 * @return rules expected on the output switch
+	 */
+	public List<OFRule> getRulesForReconcile(IOFSwitch sw) {
+
+		if (this.groupRules.size() == 0) {
+			updatePortsUp(sw.getFeaturesReply().getPorts());
+			generateRulesIfNeeded();
+		}
+
+		// the reconcile brings the switch to exactly these flows
+		clearInstalledRules();
+		updateInstalledRules();
+
+		return new ArrayList<OFRule>(installedRules.values());
+	}
+
+	/**
+	 * after a reconcile, move the rules away from output ports that went down
+	 * while the switch was disconnected and spread rules over the ports that
+	 * came up
+	 * 
+	 * @param sw
+	 * @return handles of the flow mods queued for the ports that changed
+	 */
+	public List<DispatchHandle> reconcilePorts(IOFSwitch sw) {
+
+		ArrayList<DispatchHandle> handles = new ArrayList<DispatchHandle>();
+
+		for (OFPhysicalPort ofp : sw.getFeaturesReply().getPorts()) {
+
+			if (!this.outputPorts.contains(ofp.getPortNumber())) {
+				continue;
+			}
+
+			boolean portUp = ofp.getState() % 2 == 0;
+			boolean knownUp = outputPortsUp.contains(new Short(ofp
+					.getPortNumber()));
+
+			if (portUp != knownUp) {
+				FlowscaleController.logger.info(
+						"port {} changed state while switch {} was disconnected",
+						ofp.getPortNumber(), HexString.toHexString(sw.getId()));
+				handles.add(alert(sw, ofp.getPortNumber(), ofp, null));
+			}
+
+		}
+
+		return handles;
 	}
 
 	/**
@@ -107,6 +184,7 @@ public class Group {
 	 */
 	public void switchDownAlert(IOFSwitch sw) {
 
+		clearInstalledRules();
 		this.groupRules.clear();
 
 	}
@@ -254,10 +332,9 @@ public class Group {
 	/**
 	 * This private method is called whenever the group inserted is an IP rule
 	 * (usually the majority of rules), it break the IP subnets in chunks based
-	 * on how many flows are specified , current method of assigning chunks of
-	 * smaller IP subnets to ports is being done in a round-robin fashion , it
-	 * is possible to change this to random assignment creating a random integer
-	 * and retrieving a port from the ouputPortsUp list using that random index
+	 * on how many flows are specified , each chunk of smaller IP subnet is
+	 * assigned a port by PortAssignment so ports going up or down move as few
+	 * chunks as possible
 	 * 
 	 * @throws ArithmeticException
 	 */
@@ -265,38 +342,27 @@ public class Group {
 
 		FlowscaleController.logger.debug(" up ports are {}", outputPortsUp);
 
-		int flowForEachValue = (this.maximumFlowsAllowed / values.length);
-		ArrayList<IPAddress> ipAddressValues = null;
+		int flowForEachValue = (getEffectiveMaximumFlows() / values.length);
 
 		for (String s : values) {
 
-			String[] ipAndSubnet = s.split("/");
+			long prefix = IPv4Prefix.parsePrefix(s);
+			int prefixLength = IPv4Prefix.length(prefix);
 
-			ipAddressValues = generateIPandSubnets(ipAndSubnet,
+			// the value is broken in chunks of smaller subnets
+			int subPrefixLength = subPrefixLength(prefixLength,
+					flowForEachValue / 2);
+			int numberOfValues = subPrefixCount(prefixLength,
 					flowForEachValue / 2);
+			int subPrefixAddress = IPv4Prefix.address(prefix);
+
+			FlowscaleController.logger.debug(
+					"value {} is split in {} subnets", s, numberOfValues);
 
 			int actionPort = 0;
-			
-			int portCounter = 0;
-			for (IPAddress ipAddress : ipAddressValues) {
 
-				if (this.dropPortGroup) {
-					actionPort = -1;
-				} else {
-					try {
-
-						actionPort = this.outputPortsUp.get(portCounter
-								% outputPortsUp.size());
-						portCounter = portCounter + 1;
-
-					} catch (ArithmeticException ae) {
-						throw new ArithmeticException();
-					} catch (IllegalArgumentException iae) {
-						FlowscaleController.logger
-								.info("No ports are up for this group exiting...");
-						continue;
-					}
-				}
+			for (int i = 0; i < numberOfValues; i++, subPrefixAddress = IPv4Prefix
+					.increment(subPrefixAddress, subPrefixLength)) {
 
 				// set source rule
 
@@ -317,9 +383,9 @@ public class Group {
 				OFMatch ofMatchSource = new OFMatch();
 				ofMatchSource.setDataLayerType((short) 0x0800);
 
-				ofMatchSource.setNetworkSource(ipAddress.getIpAddressValue());
+				ofMatchSource.setNetworkSource(subPrefixAddress);
 
-				short maskingBits = (short) (ipAddress.getSubnet() - 1);
+				short maskingBits = (short) (subPrefixLength - 1);
 				int wildCardSource = OFMatch.OFPFW_ALL ^ OFMatch.OFPFW_DL_TYPE
 						^ OFMatch.OFPFW_NW_SRC_ALL
 						^ (maskingBits << OFMatch.OFPFW_NW_SRC_SHIFT);
@@ -329,15 +395,20 @@ public class Group {
 				ofRuleSource.setMatch(ofMatchSource);
 				ofRuleSource.setPriority(rulePriority);
 
-				ofRuleSource.setPort(actionPort);
-
-				FlowscaleController.logger.debug(
-						"ip address match is {} and masking bit is {} ",
-						ipAddress.getIpAddressValue(), ipAddress.getSubnet());
+				if (this.dropPortGroup) {
+					actionPort = -1;
+				} else if (outputPortsUp.isEmpty()) {
+					FlowscaleController.logger
+							.info("No ports are up for this group exiting...");
+					continue;
+				} else {
+					// the destination rule has the same key
+					actionPort = PortAssignment.selectPort(
+							PortAssignment.keyOf(ofRuleSource.getMatchKey()),
+							outputPortsUp);
+				}
 
-				FlowscaleController.logger.debug(
-						"match is {} and wildcard is {}",
-						ofMatchSource.toString(), wildCardSource);
+				ofRuleSource.setPort(actionPort);
 
 				this.groupRules.add(ofRuleSource);
 
@@ -348,8 +419,7 @@ public class Group {
 				OFMatch ofMatchDestination = new OFMatch();
 
 				ofMatchDestination.setDataLayerType((short) 0x0800);
-				ofMatchDestination.setNetworkDestination(ipAddress
-						.getIpAddressValue());
+				ofMatchDestination.setNetworkDestination(subPrefixAddress);
 
 				int wildCardDestination = OFMatch.OFPFW_ALL
 						^ OFMatch.OFPFW_DL_TYPE ^ OFMatch.OFPFW_NW_DST_ALL
@@ -361,13 +431,15 @@ public class Group {
 				ofRuleDestination.setPriority(rulePriority);
 				ofRuleDestination.setPort(actionPort);
 
-				FlowscaleController.logger.debug(
-						"ip address match is {} and masking bit is {} ",
-						ipAddress.getIpAddressValue(), ipAddress.getSubnet());
+				ofRuleSource.setOppositeRule(ofRuleDestination);
+				ofRuleDestination.setOppositeRule(ofRuleSource);
 
-				FlowscaleController.logger.debug(
-						"match is {} and wildcard is {}",
-						ofMatchDestination.toString(), wildCardDestination);
+				if (FlowscaleController.logger.isDebugEnabled()) {
+					FlowscaleController.logger.debug(
+							"match is {} and {} for port {}",
+							new Object[] { ofMatchSource, ofMatchDestination,
+									actionPort });
+				}
 
 				this.groupRules.add(ofRuleDestination);
 
@@ -380,62 +452,84 @@ public class Group {
 	}
 
 	/**
-	 * utility method for breaking the IP subnet into more chunks of subnets
-	 * based on how many flows are allowed - consider having this in the
-	 * utilities package
+	 * length of the subnets a prefix is broken into so that each value gets
+	 * about flowForEachValue flows
 	 * 
-	 * @param ipAndSubnet
+	 * @param prefixLength
 	 * @param flowForEachValue
-	 * @return
+	 * @return length of the sub prefixes
 	 */
-	private ArrayList<IPAddress> generateIPandSubnets(String[] ipAndSubnet,
-			int flowForEachValue) {
-		ArrayList<IPAddress> ipAddressValues = new ArrayList<IPAddress>();
-		FlowscaleController.logger.debug("in method generate ips and subnets");
-		String byteValue = Long.toBinaryString(flowForEachValue);
-		FlowscaleController.logger.debug("IP and subnet details {}",
-				ipAndSubnet);
-		FlowscaleController.logger.debug("group type is {}", type);
-		int newSubnetValue = Integer.parseInt(ipAndSubnet[1])
-				+ byteValue.length() - 1;
-
-		int numberOfValues = (int) Math.pow(2, (byteValue.length() - 1));
-		if (newSubnetValue > 32) {
-			newSubnetValue = 32;
-
-			numberOfValues = 32 - Integer.parseInt(ipAndSubnet[1]);
-		}
+	private static int subPrefixLength(int prefixLength, int flowForEachValue) {
 
-		int oldByteValue = 32 - Integer.parseInt(ipAndSubnet[1]);
+		return Math.min(32, prefixLength + bitLength(flowForEachValue) - 1);
+	}
+
+	/**
+	 * number of subnets generateIPRules breaks a prefix into
+	 * 
+	 * @param prefixLength
+	 * @param flowForEachValue
+	 * @return number of sub prefixes
+	 */
+	private static int subPrefixCount(int prefixLength, int flowForEachValue) {
 
-		int originalNumberOfFlows = (int) Math.pow(2, oldByteValue);
+		int splitBits = bitLength(flowForEachValue) - 1;
+
+		long numberOfValues = 1L << splitBits;
+		if (prefixLength + splitBits > 32) {
+			numberOfValues = 32 - prefixLength;
+		}
+
+		long originalNumberOfFlows = IPv4Prefix.size(prefixLength);
 		if (originalNumberOfFlows < numberOfValues) {
 			numberOfValues = originalNumberOfFlows;
-
 		}
 
-		IPv4Address ipv4Address = new IPv4Address(ipAndSubnet[0]);
-		ipv4Address.setSubnet(Integer.parseInt(ipAndSubnet[1]));
-		int ipAddressInt = ipv4Address.getIPv4AddressInt();
+		return (int) numberOfValues;
+	}
 
-		IPAddress ipAddress = new IPAddress();
-		ipAddress.setIpAddressValue(ipAddressInt);
-		ipAddress.setSubnet(newSubnetValue);
-		ipAddressValues.add(ipAddress);
-		for (int i = 0; i < numberOfValues - 1; i++) {
+	/**
+	 * @return number of binary digits of the value, 1 for 0
+	 */
+	private static int bitLength(int value) {
+		return Math.max(1, 32 - Integer.numberOfLeadingZeros(value));
+	}
 
-			ipAddressInt = IPAddressUtility.incrementSubnet(ipAddressInt,
-					newSubnetValue);
+	/**
+	 * number of rules the group generates when it is allowed the given number
+	 * of flows, the values are not split when maximumFlows is 0
+	 * 
+	 * @param maximumFlows
+	 * @return number of OFRules
+	 */
+	public int estimateRuleCount(int maximumFlows) {
 
-			ipAddress = new IPAddress();
-			ipAddress.setIpAddressValue(ipAddressInt);
-			ipAddress.setSubnet(newSubnetValue);
-			ipAddressValues.add(ipAddress);
+		if (values == null) {
+			return 0;
+		}
 
+		if (type != IP_TYPE) {
+			return values.length;
 		}
 
-		return ipAddressValues;
+		int flowForEachValue = maximumFlows / values.length;
+		int ruleCount = 0;
 
+		for (String s : values) {
+
+			try {
+				int prefixLength = IPv4Prefix.length(IPv4Prefix
+						.parsePrefix(s));
+				// one rule per sub prefix in each direction
+				ruleCount += 2 * subPrefixCount(prefixLength,
+						flowForEachValue / 2);
+			} catch (RuntimeException e) {
+				ruleCount += 2;
+			}
+
+		}
+
+		return ruleCount;
 	}
 
 	/**
@@ -446,9 +540,7 @@ public class Group {
 	 */
 	private void generateTransportPortRules(byte protocol, byte direction) {
 
-		// loop round robin through output ports
-
-		int i = 0;
+		// each port value is assigned a port by PortAssignment
 
 		int actionPort = 0;
 
@@ -466,29 +558,10 @@ public class Group {
 					return;
 				}
 
-				try {
-					java.util.Random generator = new java.util.Random();
-					int randomIndex = generator.nextInt(outputPortsUp.size());
-					actionPort = this.outputPortsUp.get(randomIndex);
-
-					actionPort = this.outputPortsUp.get(portCounter
-							% outputPortsUp.size());
-					portCounter = portCounter + 1;
-
-				} catch (ArithmeticException ae) {
-					throw new ArithmeticException();
-				} catch (IllegalArgumentException iae) {
-					FlowscaleController.logger
-							.info("No ports are up for this group exiting...");
-					continue;
-				}
-
 			}
-			i++;
 
 			OFRule rule = new OFRule();
 
-			rule.setPort(actionPort);
 			OFMatch match = new OFMatch();
 			match.setDataLayerType(ETHERTYPE_IP);
 			match.setNetworkProtocol(protocol);
@@ -506,6 +579,12 @@ public class Group {
 
 			rule.setMatch(match);
 
+			if (!this.dropPortGroup) {
+				actionPort = PortAssignment.selectPort(
+						PortAssignment.keyOf(rule.getMatchKey()), outputPortsUp);
+			}
+			rule.setPort(actionPort);
+
 			groupRules.add(rule);
 
 		}
@@ -518,8 +597,6 @@ public class Group {
 	 */
 	private void generateEtherRules() {
 
-		int i = 0;
-
 		int actionPort = 0;
 
 		for (String s : values) {
@@ -537,19 +614,22 @@ public class Group {
 							.info("No ports up , can't add flow to switch");
 					return;
 				}
-				actionPort = outputPortsUp.get(i % outputPortsUp.size());
 			}
-			i++;
 
 			OFRule rule = new OFRule();
 			rule.setPriority(this.priority);
-			rule.setPort(actionPort);
 			OFMatch match = new OFMatch();
 			match.setDataLayerType((short) etherTypeMatch);
 			rule.setWildcards(OFMatch.OFPFW_ALL ^ OFMatch.OFPFW_DL_TYPE);
 			match.setWildcards((short) rule.getWildcards());
 			rule.setMatch(match);
 
+			if (!this.dropPortGroup) {
+				actionPort = PortAssignment.selectPort(
+						PortAssignment.keyOf(rule.getMatchKey()), outputPortsUp);
+			}
+			rule.setPort(actionPort);
+
 			groupRules.add(rule);
 
 		}
@@ -559,23 +639,16 @@ public class Group {
 	/**
 	 * this method reads the list of OFRules and pushes them to the switch, if
 	 * the rules do no exist, then the generateRules() is called and the list of
-	 * OFRules is generated
+	 * OFRules is generated. The flow mods are queued on the dispatcher of the
+	 * output switch, this method does not wait for them to be sent
+	 * 
+	 * @return handle of the queued flow mods, null if no rules were queued
 	 */
-	public void pushRules() {
-		if (this.groupRules == null || this.groupRules.size() == 0)
-			try {
-				generateRules();
-			} catch (ArithmeticException ae) {
-				FlowscaleController.logger
-						.error("no output ports are up , no rules injected");
-				FlowscaleController.logger.error("{}", ae);
-				return;
-			} catch (ArrayIndexOutOfBoundsException aeiob) {
-				FlowscaleController.logger
-						.error("There seems to be a conflict in the values and group type!");
-				FlowscaleController.logger.error("{}", aeiob);
-				return;
-			}
+	public DispatchHandle pushRules() {
+
+		if (!generateRulesIfNeeded()) {
+			return null;
+		}
 
 		// handle two switches later
 		FlowscaleController.logger.trace("in ruleset pushing rules now: ");
@@ -586,105 +659,496 @@ public class Group {
 		IOFSwitch outputSwitch = flowscaleController.getIBeaconProvider()
 				.getSwitches().get(outputSwitchDatapathId);
 
-		OFFlowMod flowModRule = new OFFlowMod();
-		flowModRule.setType(OFType.FLOW_MOD);
-		flowModRule.setCommand(OFFlowMod.OFPFC_ADD);
-		flowModRule.setHardTimeout((short) 0);
-		flowModRule.setIdleTimeout((short) 0);
-		flowModRule.setBufferId(-1);
+		if (outputSwitch == null) {
+			FlowscaleController.logger.info(
+					"switch {} is not connected, rules will be pushed later",
+					HexString.toHexString(outputSwitchDatapathId));
+			return null;
+		}
 
-		int count = 0;
+		List<OFFlowMod> flowMods = updateInstalledRules();
 
-		int actionOutputLength;
+		for (OFFlowMod flowModRule : flowMods) {
+			FlowscaleController.logger.debug("{}", flowModRule);
+		}
 
-		if (this.dropPortGroup) {
-			actionOutputLength = 0;
-		} else {
-			actionOutputLength = OFActionOutput.MINIMUM_LENGTH;
+		return flowscaleController.submitFlowMods(outputSwitch, flowMods);
+
+	}
+
+	/**
+	 * generate the rules if the group has none and add the mirror ports of the
+	 * output switch to the new rules
+	 * 
+	 * @return false if the rules could not be generated
+	 */
+	private boolean generateRulesIfNeeded() {
+
+		if (this.groupRules != null && this.groupRules.size() > 0) {
+			return true;
 		}
 
-		for (OFRule rule : this.groupRules) {
-			count++;
+		try {
+			generateRules();
+		} catch (ArithmeticException ae) {
+			FlowscaleController.logger
+					.error("no output ports are up , no rules injected");
+			FlowscaleController.logger.error("{}", ae);
+			return false;
+		} catch (ArrayIndexOutOfBoundsException aeiob) {
+			FlowscaleController.logger
+					.error("There seems to be a conflict in the values and group type!");
+			FlowscaleController.logger.error("{}", aeiob);
+			return false;
+		}
 
-			flowModRule.setMatch(rule.getMatch());
-			if (!this.dropPortGroup) {
-				// add mirroring capabitlites
-
-				HashMap<Short, Short> switchMirrors = flowscaleController
-						.getSwitchFlowMirrorPortsHashMap().get(
-								outputSwitch.getId());
-
-				if (switchMirrors != null) {
-					FlowscaleController.logger.debug("Mirror hashmap {}",
-							switchMirrors.toString());
-					OFActionOutput actionPort = null;
-					try {
-						FlowscaleController.logger.debug("Mirror actions = {}",
-								rule.getActions());
-						if (rule.getActions() != null) {
-
-							actionPort = ((OFActionOutput) rule.getActions()
-									.get(0));
-
-							FlowscaleController.logger.debug(
-									"Action port for Mirror is {}",
-									actionPort.getPort());
-						}
-						Short mirrorPortValue = switchMirrors.get(actionPort
-								.getPort());
-						if (mirrorPortValue != null) {
-							FlowscaleController.logger
-									.debug("mirror {} for switch {} set ",
-											actionPort.getPort()
-													+ ","
-													+ mirrorPortValue
-															.toString(),
-											HexString.toHexString(outputSwitch
-													.getId()));
-							rule.setMirrorPort(mirrorPortValue);
-						}
-
-					} catch (NumberFormatException nfe) {
-						FlowscaleController.logger.error(
-								"OFAction {} is not directed to a switch port",
-								flowModRule.getActions().get(0).toString());
-					}
+		if (!this.dropPortGroup) {
+			addMirrorPorts();
+		}
+
+		return true;
+	}
+
+	/**
+	 * bring the rules installed on the output switch in line with the group
+	 * rules, aggregated by PrefixAggregator when prefix aggregation is enabled.
+	 * Flows that are new or whose actions changed are added first, flows that
+	 * are no longer needed are deleted after, flows that did not change are not
+	 * sent.
+	 * 
+	 * @return flow mods to send to the output switch
+	 */
+	public List<OFFlowMod> updateInstalledRules() {
+
+		long startTime = System.nanoTime();
+		List<OFRule> desiredRules = flowscaleController.isPrefixAggregation() ? PrefixAggregator
+				.aggregate(groupRules) : groupRules;
+
+		LinkedHashMap<MatchKey, OFRule> previousRules = installedRules;
+		LinkedHashMap<MatchKey, OFRule> nextRules = new LinkedHashMap<MatchKey, OFRule>();
+		HashMap<MatchKey, List<OFAction>> nextActions = new HashMap<MatchKey, List<OFAction>>();
+		ArrayList<OFFlowMod> flowMods = new ArrayList<OFFlowMod>();
+		ArrayList<OFFlowMod> deletes = new ArrayList<OFFlowMod>();
+
+		for (OFRule rule : desiredRules) {
+
+			OFRule installedRule = previousRules.remove(rule.getMatchKey());
+			nextRules.put(rule.getMatchKey(), rule);
+			nextActions.put(rule.getMatchKey(),
+					rule.getActions() == null ? null
+							: new ArrayList<OFAction>(rule.getActions()));
+
+			if (installedRule != null
+					&& installedRule.getPriority() != rule.getPriority()) {
+				deletes.add(installedRule
+						.toFlowMod(OFFlowMod.OFPFC_DELETE_STRICT));
+				installedRule = null;
+			}
+
+			if (installedRule == null
+					|| !FlowTableReconciler.sameActions(
+							installedActions.get(rule.getMatchKey()),
+							rule.getActions())) {
+				flowMods.add(rule.toFlowMod(OFFlowMod.OFPFC_ADD));
+			}
+		}
+
+		for (OFRule installedRule : previousRules.values()) {
+			deletes.add(installedRule.toFlowMod(OFFlowMod.OFPFC_DELETE_STRICT));
+		}
+
+		RuleIndex ruleIndex = flowscaleController.getRuleIndex();
+		ruleIndex.removeRules(outputSwitchDatapathId, this,
+				previousRules.values());
+		ruleIndex.addRules(outputSwitchDatapathId, this, nextRules.values());
+
+		installedRules = nextRules;
+		installedActions = nextActions;
+		flowMods.addAll(deletes);
+
+		prepareFailover();
+
+		String switchId = HexString.toHexString(outputSwitchDatapathId);
+		MetricsRegistry metricsRegistry = flowscaleController
+				.getMetricsRegistry();
+		metricsRegistry.histogram("flowscale_group_rule_update_seconds",
+				"time to compute the flow mods of a group", "switch",
+				switchId).observe(System.nanoTime() - startTime);
+		metricsRegistry.counter("flowscale_group_flow_mods_total",
+				"flow mods computed by group rule updates", "switch",
+				switchId).add(flowMods.size());
+
+		return flowMods;
+	}
+
+	/**
+	 * index the installed rules by output port, pick the backup port of every
+	 * group rule and build the failover batch of every port
+	 */
+	private void prepareFailover() {
 
+		installedRulesByPort = new HashMap<Short, LinkedHashSet<OFRule>>();
+		failoverBatches = new HashMap<Short, List<OFFlowMod>>();
+		HashMap<Short, Short> switchMirrors = getSwitchMirrors();
+
+		for (OFRule rule : installedRules.values()) {
+			addFailoverRule(rule, switchMirrors);
+		}
+
+	}
+
+	/**
+	 * add an installed rule to the index and to the failover batch of its
+	 * output port, dropping rules have no output port and are left out
+	 */
+	private void addFailoverRule(OFRule rule, HashMap<Short, Short> switchMirrors) {
+
+		short port = rule.getOutputPort();
+
+		if (port == -1) {
+			return;
+		}
+
+		LinkedHashSet<OFRule> portRules = installedRulesByPort.get(port);
+		List<OFFlowMod> batch = failoverBatches.get(port);
+
+		if (portRules == null) {
+			portRules = new LinkedHashSet<OFRule>();
+			installedRulesByPort.put(port, portRules);
+			batch = new ArrayList<OFFlowMod>();
+			failoverBatches.put(port, batch);
+		}
+
+		portRules.add(rule);
+
+		for (OFRule groupRule : coveredRules(rule)) {
+			groupRule.setBackupPort(PortAssignment.selectPort(
+					PortAssignment.keyOf(groupRule.getMatchKey()),
+					outputPortsUp, port));
+		}
+
+		batch.addAll(failoverFlowMods(rule, switchMirrors));
+
+	}
+
+	/**
+	 * flow mods moving an installed rule to the backup ports of the group
+	 * rules it covers. An aggregated rule whose group rules do not share one
+	 * backup port is replaced by its group rules, added before the aggregated
+	 * rule is deleted
+	 */
+	private List<OFFlowMod> failoverFlowMods(OFRule rule,
+			HashMap<Short, Short> switchMirrors) {
+
+		List<OFRule> coveredRules = coveredRules(rule);
+		ArrayList<OFFlowMod> flowMods = new ArrayList<OFFlowMod>();
+		short backupPort = sharedBackupPort(coveredRules);
+
+		if (backupPort != -1) {
+			flowMods.add(flowModToPort(rule, backupPort, switchMirrors));
+		} else if (coveredRules.get(0).getBackupPort() != -1) {
+
+			for (OFRule groupRule : coveredRules) {
+				flowMods.add(flowModToPort(groupRule,
+						groupRule.getBackupPort(), switchMirrors));
+			}
+
+			flowMods.add(rule.toFlowMod(OFFlowMod.OFPFC_DELETE_STRICT));
+		}
+
+		return flowMods;
+	}
+
+	/**
+	 * move the installed rules of a port that went down to their backup
+	 * ports. The failover batch of the port is sent ahead of any flow mod
+	 * queued for the switch, it is only rebuilt if one of its backup ports
+	 * went down since it was built. The work done is proportional to the
+	 * number of rules on the port
+	 * 
+	 * @param sw
+	 * @param portNum
+	 *            port that went down, already removed from outputPortsUp
+	 * @return handle of the failover batch
+	 */
+	private DispatchHandle failover(IOFSwitch sw, short portNum) {
+
+		HashMap<Short, Short> switchMirrors = getSwitchMirrors();
+		LinkedHashSet<OFRule> portRules = installedRulesByPort.remove(portNum);
+		List<OFFlowMod> batch = failoverBatches.remove(portNum);
+
+		if (portRules == null || portRules.isEmpty()) {
+			return new DispatchHandle(0);
+		}
+
+		if (outputPortsUp.isEmpty()) {
+			FlowscaleController.logger
+					.info("No group ports are up , ...no flows redirected");
+			return new DispatchHandle(0);
+		}
+
+		if (batch == null || !backupPortsUp(portRules)) {
+
+			batch = new ArrayList<OFFlowMod>();
+
+			for (OFRule rule : portRules) {
+				for (OFRule groupRule : coveredRules(rule)) {
+					groupRule.setBackupPort(PortAssignment.selectPort(
+							PortAssignment.keyOf(groupRule.getMatchKey()),
+							outputPortsUp));
 				}
+				batch.addAll(failoverFlowMods(rule, switchMirrors));
+			}
 
-				// after checking mirrors set actions
-				flowModRule.setActions(rule.getActions());
+			FlowscaleController.logger.debug(
+					"rebuilt failover batch of port {} for group {}", portNum,
+					groupId);
+		}
+
+		// flow mods queued before the port went down could overwrite the
+		// failover, the new flows are then queued again behind them
+		boolean resend = flowscaleController.getFlowModDispatcher(sw.getId())
+				.getUnsentMessages() > 0;
+
+		DispatchHandle handle = flowscaleController.submitUrgentFlowMods(sw,
+				batch);
+
+		// the group rules now follow what was sent
+		RuleIndex ruleIndex = flowscaleController.getRuleIndex();
+		ArrayList<OFRule> movedRules = new ArrayList<OFRule>();
+		ArrayList<OFFlowMod> splitDeletes = new ArrayList<OFFlowMod>();
+
+		for (OFRule rule : portRules) {
+
+			List<OFRule> coveredRules = coveredRules(rule);
+			short backupPort = sharedBackupPort(coveredRules);
+
+			for (OFRule groupRule : coveredRules) {
+				setRuleOutputPort(groupRule, groupRule.getBackupPort(),
+						switchMirrors);
 			}
-			flowModRule.setLength(U16.t(OFFlowMod.MINIMUM_LENGTH
-					+ actionOutputLength));
-			flowModRule.setPriority(rule.getPriority());
 
-			try {
-				FlowscaleController.logger.debug("{}", flowModRule);
-				outputSwitch.getOutputStream().write(flowModRule);
-				if (count >= flowscaleController.getMaximumFlowsToPush()) {
-					count = 0;
+			if (backupPort != -1) {
 
-					outputSwitch.getOutputStream().flush();
+				if (rule.getAggregatedRules() != null) {
+					setRuleOutputPort(rule, backupPort, switchMirrors);
+				}
+				installedActions.put(rule.getMatchKey(),
+						new ArrayList<OFAction>(rule.getActions()));
+				movedRules.add(rule);
+
+			} else {
 
-					Thread.sleep(5000);
+				installedRules.remove(rule.getMatchKey());
+				installedActions.remove(rule.getMatchKey());
+				ruleIndex.removeRules(outputSwitchDatapathId, this,
+						Collections.singletonList(rule));
 
+				for (OFRule groupRule : coveredRules) {
+					installedRules.put(groupRule.getMatchKey(), groupRule);
+					installedActions.put(groupRule.getMatchKey(),
+							new ArrayList<OFAction>(groupRule.getActions()));
+					movedRules.add(groupRule);
 				}
-			} catch (InterruptedException interruptedException) {
-				FlowscaleController.logger.error("{}", interruptedException);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				FlowscaleController.logger.error("{}", e);
+
+				ruleIndex.addRules(outputSwitchDatapathId, this, coveredRules);
+				splitDeletes.add(rule.toFlowMod(OFFlowMod.OFPFC_DELETE_STRICT));
 			}
+		}
 
+		// the moved rules can fail over again from their new ports
+		for (OFRule rule : movedRules) {
+			addFailoverRule(rule, switchMirrors);
 		}
 
-		try {
+		if (resend) {
+
+			ArrayList<OFFlowMod> resentFlowMods = new ArrayList<OFFlowMod>();
+
+			for (OFRule rule : movedRules) {
+				resentFlowMods.add(rule.toFlowMod(OFFlowMod.OFPFC_ADD));
+			}
+
+			resentFlowMods.addAll(splitDeletes);
+			flowscaleController.submitFlowMods(sw, resentFlowMods);
+		}
+
+		if (!splitDeletes.isEmpty() && flowscaleController.isPrefixAggregation()) {
+			aggregateLater(sw);
+		}
+
+		FlowscaleController.logger.info(
+				"moved {} flows of port {} to their backup ports for group {}",
+				new Object[] { batch.size(), portNum, groupId });
+
+		return handle;
+	}
+
+	/**
+	 * merge the group rules split by a failover again once the events already
+	 * queued for the switch are handled
+	 */
+	private void aggregateLater(final IOFSwitch sw) {
+
+		flowscaleController.getSwitchEventLoop(outputSwitchDatapathId).execute(
+				new Runnable() {
+
+					@Override
+					public void run() {
+						flowscaleController.submitFlowMods(sw,
+								updateInstalledRules());
+					}
+				});
+
+	}
+
+	/**
+	 * @return true if the backup ports of the rules are still usable
+	 */
+	private boolean backupPortsUp(Collection<OFRule> rules) {
+
+		for (OFRule rule : rules) {
+			for (OFRule groupRule : coveredRules(rule)) {
+				if (!outputPortsUp.contains(groupRule.getBackupPort())) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return backup port of the rules if they all have the same one, -1
+	 *         otherwise
+	 */
+	private static short sharedBackupPort(List<OFRule> rules) {
+
+		short backupPort = rules.get(0).getBackupPort();
+
+		for (OFRule rule : rules) {
+			if (rule.getBackupPort() != backupPort) {
+				return -1;
+			}
+		}
+
+		return backupPort;
+	}
+
+	/**
+	 * @return group rules an installed rule was merged from, or the rule
+	 *         itself
+	 */
+	private static List<OFRule> coveredRules(OFRule rule) {
+
+		if (rule.getAggregatedRules() != null) {
+			return rule.getAggregatedRules();
+		}
+
+		return Collections.singletonList(rule);
+	}
+
+	private OFFlowMod flowModToPort(OFRule rule, short port,
+			HashMap<Short, Short> switchMirrors) {
+
+		OFFlowMod flowMod = rule.toFlowMod(OFFlowMod.OFPFC_ADD);
+		List<OFAction> actions = outputActions(port, switchMirrors);
+		int actionsLength = 0;
+
+		for (OFAction action : actions) {
+			actionsLength += action.getLengthU();
+		}
+
+		flowMod.setActions(actions);
+		flowMod.setLength(U16.t(OFFlowMod.MINIMUM_LENGTH + actionsLength));
+
+		return flowMod;
+	}
+
+	private HashMap<Short, Short> getSwitchMirrors() {
+
+		if (flowscaleController.getSwitchFlowMirrorPortsHashMap() == null) {
+			return null;
+		}
+
+		return flowscaleController.getSwitchFlowMirrorPortsHashMap().get(
+				outputSwitchDatapathId);
+	}
+
+	/**
+	 * forget the rules installed on the output switch, used when its flow
+	 * table is wiped or the group is cleared
+	 */
+	private void clearInstalledRules() {
+
+		flowscaleController.getRuleIndex().removeRules(outputSwitchDatapathId,
+				this, installedRules.values());
+		installedRules = new LinkedHashMap<MatchKey, OFRule>();
+		installedActions = new HashMap<MatchKey, List<OFAction>>();
+		installedRulesByPort = new HashMap<Short, LinkedHashSet<OFRule>>();
+		failoverBatches = new HashMap<Short, List<OFFlowMod>>();
+
+	}
+
+	/**
+	 * @return rules currently installed on the output switch for this group
+	 */
+	public Collection<OFRule> getInstalledRules() {
+		return installedRules.values();
+	}
+
+	/**
+	 * add mirroring capabilities, a rule sent to a port that has a mirror port
+	 * on the output switch is also sent to the mirror port
+	 */
+	private void addMirrorPorts() {
+
+		if (flowscaleController.getSwitchFlowMirrorPortsHashMap() == null) {
+			return;
+		}
+
+		HashMap<Short, Short> switchMirrors = flowscaleController
+				.getSwitchFlowMirrorPortsHashMap().get(outputSwitchDatapathId);
+
+		if (switchMirrors == null) {
+			return;
+		}
+
+		FlowscaleController.logger.debug("Mirror hashmap {}",
+				switchMirrors.toString());
+
+		for (OFRule rule : this.groupRules) {
+
+			if (rule.getActions() == null || rule.getActions().size() == 0) {
+				continue;
+			}
+
+			try {
+				FlowscaleController.logger.debug("Mirror actions = {}",
+						rule.getActions());
+
+				OFActionOutput actionPort = ((OFActionOutput) rule.getActions()
+						.get(0));
+
+				FlowscaleController.logger.debug(
+						"Action port for Mirror is {}", actionPort.getPort());
+
+				Short mirrorPortValue = switchMirrors.get(actionPort.getPort());
+				if (mirrorPortValue != null) {
+					FlowscaleController.logger.debug(
+							"mirror {} for switch {} set ",
+							actionPort.getPort() + ","
+									+ mirrorPortValue.toString(),
+							HexString.toHexString(outputSwitchDatapathId));
+					rule.setMirrorPort(mirrorPortValue);
+				}
 
-			outputSwitch.getOutputStream().flush();
+			} catch (NumberFormatException nfe) {
+				FlowscaleController.logger.error(
+						"OFAction {} is not directed to a switch port", rule
+								.getActions().get(0).toString());
+			}
 
-		} catch (Exception e) {
-			FlowscaleController.logger.error("{}", e);
 		}
 
 	}
@@ -742,46 +1206,52 @@ public class Group {
 
 	}
 
+	/**
+	 * delete the rules of the group from the switch and generate them again,
+	 * used when the flow budget of the group changed
+	 * 
+	 * @return handle of the new rules, null if no rules were queued
+	 */
+	public DispatchHandle regenerateRules() {
+
+		deleteAllRules();
+		clearInstalledRules();
+		this.groupRules.clear();
+
+		return pushRules();
+	}
+
 	/**
 	 * remove thsi group, an interface where the group can be removed from a web
 	 * user interface or a cli, and delete the rules from the switch
 	 */
-	public void removeGroup() {
+	public DispatchHandle removeGroup() {
 
-		deleteAllRules();
+		return deleteAllRules();
 
 	}
 
-	private void deleteAllRules() {
+	private DispatchHandle deleteAllRules() {
 		// algorithm to nuke all rules from all switches
 		IOFSwitch sw = flowscaleController.ibeaconProvider.getSwitches().get(
 				this.outputSwitchDatapathId);
-		OFFlowMod flowToDelete = new OFFlowMod();
-		flowToDelete.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
-		flowToDelete.setOutPort(OFPort.OFPP_NONE);
-		for (OFRule ofRule : this.groupRules) {
 
-			flowToDelete.setMatch(ofRule.getMatch());
-			flowToDelete.setPriority(ofRule.getPriority());
-			flowToDelete.setLength(U16.t(OFFlowMod.MINIMUM_LENGTH));
+		if (sw == null) {
+			return null;
+		}
 
-			try {
+		ArrayList<OFFlowMod> flowsToDelete = new ArrayList<OFFlowMod>();
+		for (OFRule ofRule : this.installedRules.values()) {
 
-				FlowscaleController.logger.debug(
-						" Attempting to delete flow  {}", flowToDelete);
-				sw.getOutputStream().write(flowToDelete);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				FlowscaleController.logger.error("{}", e);
-			}
+			OFFlowMod flowToDelete = ofRule
+					.toFlowMod(OFFlowMod.OFPFC_DELETE_STRICT);
+			FlowscaleController.logger.debug(" Attempting to delete flow  {}",
+					flowToDelete);
+			flowsToDelete.add(flowToDelete);
 
 		}
 
-		try {
-			sw.getOutputStream().flush();
-		} catch (IOException ioe) {
-			FlowscaleController.logger.error("{}", ioe);
-		}
+		return flowscaleController.submitFlowMods(sw, flowsToDelete);
 
 	}
 
@@ -798,25 +1268,24 @@ public class Group {
 	 * @param physicalPort
 	 * @param reason
 	 *            the reason for the update
+	 * @return handle of the flow mods queued for the switch
 	 */
-	public void alert(IOFSwitch sw, short portNum, OFPhysicalPort physicalPort,
-			OFPortReason reason) {
-		OFFlowMod updateFlow = new OFFlowMod();
-		OFFlowMod updateFlow2 = new OFFlowMod();
-		updateFlow.setType(OFType.FLOW_MOD);
-		updateFlow.setCommand(OFFlowMod.OFPFC_ADD);
-		updateFlow.setHardTimeout((short) 0);
-		updateFlow.setIdleTimeout((short) 0);
+	public DispatchHandle alert(IOFSwitch sw, short portNum,
+			OFPhysicalPort physicalPort, OFPortReason reason) {
 		int portStatus = 0;
 
-		FlowscaleController.logger
-				.trace("current rules for group with update port");
+		if (FlowscaleController.logger.isTraceEnabled()) {
 
-		for (OFRule rule : this.groupRules) {
+			FlowscaleController.logger
+					.trace("current rules for group with update port");
+
+			for (OFRule rule : this.groupRules) {
 
-			FlowscaleController.logger.trace("rule match is {} and port is {}",
-					rule.getMatch().toString(), rule.getActions().get(0));
+				FlowscaleController.logger.trace(
+						"rule match is {} and port is {}", rule.getMatch()
+								.toString(), rule.getOutputPort());
 
+			}
 		}
 
 		if (physicalPort == null) {
@@ -846,6 +1315,9 @@ public class Group {
 				"updating flows since there is a port modification at port {}",
 				physicalPort.getPortNumber());
 
+		HashMap<Short, Short> switchMirrors = flowscaleController
+				.getSwitchFlowMirrorPortsHashMap().get(sw.getId());
+
 		switch (portStatus) {
 
 		case 0:
@@ -856,138 +1328,45 @@ public class Group {
 					.contains(new Short(physicalPort.getPortNumber())))) {
 				outputPortsUp.add(physicalPort.getPortNumber());
 			}
-			int ruleDistribution = this.outputPortsUp.size();
-
-			int i = 1;
 
 			FlowscaleController.logger.info(
 					"Modifying flows for switch {} to add port {}",
 					HexString.toHexString(sw.getId()),
 					physicalPort.getPortNumber());
-			ArrayList<OFRule> checkedRules = new ArrayList<OFRule>();
+			HashSet<OFRule> checkedRules = new HashSet<OFRule>();
 			for (OFRule ofRule : this.groupRules) {
 
 				if (checkedRules.contains(ofRule)) {
 					continue;
 				}
 
-				if (i % ruleDistribution == 0) {
-
-					OFActionOutput ofActionOutput = new OFActionOutput();
-					ofActionOutput.setPort(portNum);
-
-					String thisMatchString = ofRule.getMatch().toString();
-					String otherMatchString = "";
-					OFRule otherDirectionRule = null;
-					if (thisMatchString.indexOf("nw_src") != -1) {
-						otherMatchString = thisMatchString.replace("nw_src",
-								"nw_dst");
-
-					} else if (thisMatchString.indexOf("nw_dst") != -1) {
-						otherMatchString = thisMatchString.replace("nw_dst",
-								"nw_src");
-					}
-
-					if (this.type == IP_TYPE) {
-
-						for (OFRule ofRule2 : this.groupRules) {
-
-							if (ofRule2.getMatch().toString()
-									.equals(otherMatchString)) {
-								otherDirectionRule = ofRule2;
-								checkedRules.add(ofRule2);
-								break;
-							}
-
-						}
-
-					}
-
-					ArrayList<OFAction> actionList = ofRule.getActions();
-					actionList.clear();
-					HashMap<Short, Short> switchMirrors = flowscaleController
-							.getSwitchFlowMirrorPortsHashMap().get(sw.getId());
-					actionList.add(ofActionOutput);
-					if (switchMirrors != null) {
-						Short mirrorPort = switchMirrors.get(portNum);
-						if (mirrorPort != null) {
-							OFActionOutput mirrorAction = new OFActionOutput();
-							mirrorAction.setPort(mirrorPort);
-							actionList.add(mirrorAction);
-
-						}
-
-					}
-
-					updateFlow.setMatch(ofRule.getMatch());
-					updateFlow.setBufferId(-1);
-					updateFlow.setPriority(ofRule.getPriority());
-
-					updateFlow.setActions(actionList);
-					updateFlow.setLength(U16.t(OFFlowMod.MINIMUM_LENGTH
-							+ OFActionOutput.MINIMUM_LENGTH));
-
-					if (this.type == IP_TYPE) {
-
-						updateFlow2 = new OFFlowMod();
-
-						updateFlow2.setType(OFType.FLOW_MOD);
-						updateFlow2.setCommand(OFFlowMod.OFPFC_ADD);
-						updateFlow2.setHardTimeout((short) 0);
-						updateFlow2.setIdleTimeout((short) 0);
-
-						ArrayList<OFAction> actionList2 = otherDirectionRule
-								.getActions();
-						actionList2.clear();
-						HashMap<Short, Short> switchMirrors2 = flowscaleController
-								.getSwitchFlowMirrorPortsHashMap().get(
-										sw.getId());
-						actionList2.add(ofActionOutput);
-						if (switchMirrors2 != null) {
-							Short mirrorPort = switchMirrors2.get(portNum);
-							if (mirrorPort != null) {
-								OFActionOutput mirrorAction = new OFActionOutput();
-								mirrorAction.setPort(mirrorPort);
-								actionList2.add(mirrorAction);
-
-							}
-
-						}
-
-						updateFlow2.setMatch(otherDirectionRule.getMatch());
-						updateFlow2.setBufferId(-1);
-						updateFlow2.setPriority(otherDirectionRule
-								.getPriority());
-
-						updateFlow2.setActions(actionList2);
-						updateFlow2.setLength(U16.t(OFFlowMod.MINIMUM_LENGTH
-								+ OFActionOutput.MINIMUM_LENGTH));
-					}
-
-					try {
-						FlowscaleController.logger.trace("modifying flow   {}",
-								updateFlow);
-
-						sw.getOutputStream().write(updateFlow);
-						if (this.type == IP_TYPE) {
-							sw.getOutputStream().write(updateFlow2);
-						}
-
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						FlowscaleController.logger.error("{}", e);
+				// only the rules the new port wins move, the others keep their
+				// port even if it was hot swapped
+				if (!dropPortGroup
+						&& PortAssignment.movesTo(
+								PortAssignment.keyOf(ofRule.getMatchKey()),
+								portNum, outputPortsUp)) {
+
+					setRuleOutputPort(ofRule, portNum, switchMirrors);
+					FlowscaleController.logger.trace("modifying rule   {}",
+							ofRule.getMatch());
+
+					// both directions of a subnet are moved together
+					OFRule otherDirectionRule = ofRule.getOppositeRule();
+					if (otherDirectionRule != null) {
+						checkedRules.add(otherDirectionRule);
+						setRuleOutputPort(otherDirectionRule, portNum,
+								switchMirrors);
 					}
 
 				}
 
-				i++;
 			}
 			FlowscaleController.logger.info("Modification of flows completed");
 
 			break;
 		case 1:
 
-			i = 0;
 			FlowscaleController.logger.trace("outputPortUp before removal {}",
 					outputPortsUp);
 
@@ -999,164 +1378,52 @@ public class Group {
 					.info("port {} for switch {} is down so flows for this will be updated",
 							physicalPort.getPortNumber(),
 							HexString.toHexString(sw.getId()));
-			int count = 0;
-
-			ArrayList<OFRule> checkedRulesonPortDown = new ArrayList<OFRule>();
-
-			for (OFRule ofRule : this.groupRules) {
-
-				if (checkedRulesonPortDown.contains(ofRule)) {
-					continue;
-				}
 
-				OFActionOutput ofActionOutput = (OFActionOutput) ofRule
-						.getActions().get(0);
+			// only the rules of the port are touched, the rest of the group
+			// is not sent again
+			return failover(sw, portNum);
 
-				FlowscaleController.logger.trace(
-						"match here is {} and port is {}", ofRule.getMatch(),
-						ofActionOutput.getPort());
-
-				if (ofActionOutput.getPort() == portNum) {
-					short newPort = 0;
-					try {
-						newPort = this.outputPortsUp.get(i++
-								% outputPortsUp.size());
-						ofActionOutput.setPort(newPort);
-
-					} catch (ArithmeticException aeException) {
-						FlowscaleController.logger
-								.info("No group ports are up , ...no flows redirected");
-						continue;
-					}
-					ArrayList<OFAction> actionList = ofRule.getActions();
-					actionList.clear();
-					// add mirror ports if there are any
-
-					HashMap<Short, Short> switchMirrors = flowscaleController
-							.getSwitchFlowMirrorPortsHashMap().get(sw.getId());
-					actionList.add(ofActionOutput);
-					if (switchMirrors != null) {
-						Short mirrorPort = switchMirrors.get(newPort);
-						if (mirrorPort != null) {
-							OFActionOutput mirrorAction = new OFActionOutput();
-							mirrorAction.setPort(mirrorPort);
-							actionList.add(mirrorAction);
-
-						}
-
-					}
-					String thisMatchString = ofRule.getMatch().toString();
-					String otherMatchString = "";
-					OFRule otherDirectionRule = null;
-					if (thisMatchString.indexOf("nw_src") != -1) {
-						otherMatchString = thisMatchString.replace("nw_src",
-								"nw_dst");
-
-					} else if (thisMatchString.indexOf("nw_dst") != -1) {
-						otherMatchString = thisMatchString.replace("nw_dst",
-								"nw_src");
-					}
-					if (this.type == IP_TYPE) {
-
-						for (OFRule ofRule2 : this.groupRules) {
-
-							if (ofRule2.getMatch().toString()
-									.equals(otherMatchString)) {
-								otherDirectionRule = ofRule2;
-								checkedRulesonPortDown.add(ofRule2);
-								break;
-
-							}
-
-						}
-
-					}
-
-					updateFlow.setMatch(ofRule.getMatch());
-					updateFlow.setBufferId(-1);
-				
-					updateFlow.setPriority(ofRule.getPriority());
-
-					updateFlow.setActions(actionList);
-
-					if (this.type == IP_TYPE) {
-
-						updateFlow2 = new OFFlowMod();
-						updateFlow2.setType(OFType.FLOW_MOD);
-						updateFlow2.setCommand(OFFlowMod.OFPFC_ADD);
-						updateFlow2.setHardTimeout((short) 0);
-						updateFlow2.setIdleTimeout((short) 0);
-
-						ArrayList<OFAction> actionList2 = otherDirectionRule
-								.getActions();
-						actionList2.clear();
-						HashMap<Short, Short> switchMirrors2 = flowscaleController
-								.getSwitchFlowMirrorPortsHashMap().get(
-										sw.getId());
-						actionList2.add(ofActionOutput);
-						if (switchMirrors2 != null) {
-							Short mirrorPort = switchMirrors2.get(portNum);
-							if (mirrorPort != null) {
-								OFActionOutput mirrorAction = new OFActionOutput();
-								mirrorAction.setPort(mirrorPort);
-								actionList2.add(mirrorAction);
-
-							}
-
-						}
-
-						updateFlow2.setMatch(otherDirectionRule.getMatch());
-						updateFlow2.setBufferId(-1);
-						updateFlow2.setPriority(otherDirectionRule.getPriority());
-
-						updateFlow2.setActions(actionList2);
+		}
+		// only the flows that changed once the rules are aggregated are sent
+		List<OFFlowMod> updateFlows = updateInstalledRules();
+		FlowscaleController.logger.trace("queueing {} updated flows",
+				updateFlows.size());
+		return flowscaleController.submitFlowMods(sw, updateFlows);
 
-					}
+	}
 
-					try {
-						FlowscaleController.logger.trace("updating flow {}",
-								updateFlow);
-						sw.getOutputStream().write(updateFlow);
-						if (type == IP_TYPE) {
-							sw.getOutputStream().write(updateFlow2);
-						}
-						if (count >= flowscaleController
-								.getMaximumFlowsToPush()) {
-							count = 0;
-							sw.getOutputStream().flush();
-							FlowscaleController.logger
-									.trace("reached maximum flows to push to switch thread sleeping");
-							try {
-								Thread.sleep(5000);
-							} catch (InterruptedException e) {
-								// TODO Auto-generated catch block
-								FlowscaleController.logger.error("{}", e);
-							}
-
-						}
-
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						FlowscaleController.logger.error("{}", e);
-					}
+	/**
+	 * replace the actions of a rule with an output to the given port and the
+	 * mirror port of that port if there is one
+	 */
+	private void setRuleOutputPort(OFRule rule, short port,
+			HashMap<Short, Short> switchMirrors) {
 
-				}
+		rule.setActions(outputActions(port, switchMirrors));
+	}
 
+	/**
+	 * @return an output to the given port followed by an output to its mirror
+	 *         port if there is one
+	 */
+	private static ArrayList<OFAction> outputActions(short port,
+			HashMap<Short, Short> switchMirrors) {
+
+		ArrayList<OFAction> actionList = new ArrayList<OFAction>();
+		OFActionOutput ofActionOutput = new OFActionOutput();
+		ofActionOutput.setPort(port);
+		actionList.add(ofActionOutput);
+
+		if (switchMirrors != null) {
+			Short mirrorPort = switchMirrors.get(port);
+			if (mirrorPort != null) {
+				OFActionOutput mirrorAction = new OFActionOutput();
+				mirrorAction.setPort(mirrorPort);
+				actionList.add(mirrorAction);
 			}
-			FlowscaleController.logger
-					.info("Flow modification for port removal complete");
-
-			break;
-
-		}
-		try {
-			FlowscaleController.logger.trace("flushing rules");
-			sw.getOutputStream().flush();
-			FlowscaleController.logger.info("update complete");
-		} catch (IOException ioe) {
-			FlowscaleController.logger.error("{}", ioe);
 		}
 
+		return actionList;
 	}
 
 	// list of setters and getters
@@ -1165,6 +1432,29 @@ public class Group {
 		return maximumFlowsAllowed;
 	}
 
+	/**
+	 * @return number of flows the group may use in the flow table of its
+	 *         output switch, Integer.MAX_VALUE if it is not limited
+	 */
+	public int getFlowBudget() {
+		return flowBudget;
+	}
+
+	public void setFlowBudget(int flowBudget) {
+		this.flowBudget = flowBudget;
+	}
+
+	/**
+	 * @return the lower of maximumFlowsAllowed and the flow budget
+	 */
+	public int getEffectiveMaximumFlows() {
+		return Math.min(maximumFlowsAllowed, flowBudget);
+	}
+
+	public short getPriority() {
+		return priority;
+	}
+
 	public void setMaximumFlowsAllowed(int maximumFlowsAllowed) {
 		this.maximumFlowsAllowed = maximumFlowsAllowed;
 	}
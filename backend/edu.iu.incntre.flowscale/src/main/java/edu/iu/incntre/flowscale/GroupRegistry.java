@@ -0,0 +1,246 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Concurrent registry of all the groups known to the controller. Besides the
+ * lookup by group id, groups are indexed by (datapathId, port) and by output
+ * switch so that a port status message or a switch event only reaches the
+ * groups it affects instead of scanning the whole group list.
+ *
+ * A group is indexed under both its input and output switch for every one of
+ * its input and output ports, which matches the check previously done in
+ * FlowscaleController.updateGroupsWithPortStatus. If the ports or switches of
+ * a group change after it was added, the group must be added again so the
+ * index is rebuilt. The switches and ports a group was indexed under are kept,
+ * so it is removed from them even if the group changed in between.
+ */
+public class GroupRegistry {
+
+	private ConcurrentHashMap<Integer, Group> groups = new ConcurrentHashMap<Integer, Group>();
+
+	private ConcurrentHashMap<Long, ConcurrentHashMap<Short, Set<Group>>> portIndex = new ConcurrentHashMap<Long, ConcurrentHashMap<Short, Set<Group>>>();
+
+	private ConcurrentHashMap<Long, Set<Group>> outputSwitchIndex = new ConcurrentHashMap<Long, Set<Group>>();
+
+	private ConcurrentHashMap<Group, IndexEntry> indexEntries = new ConcurrentHashMap<Group, IndexEntry>();
+
+	/**
+	 * switches and ports a group was indexed under
+	 */
+	private static class IndexEntry {
+
+		final long inputSwitchDatapathId;
+		final long outputSwitchDatapathId;
+		final Set<Short> ports;
+
+		IndexEntry(Group group) {
+			inputSwitchDatapathId = group.getInputSwitchDatapathId();
+			outputSwitchDatapathId = group.getOutputSwitchDatapathId();
+			ports = getGroupPorts(group);
+		}
+	}
+
+	/**
+	 * add a group to the registry, a group previously registered with the same
+	 * id is replaced and removed from the index
+	 *
+	 * @param group
+	 */
+	public void addGroup(Group group) {
+
+		Group previous = groups.put(group.getGrouopId(), group);
+
+		if (previous != null) {
+			unindex(previous);
+		}
+
+		index(group);
+
+	}
+
+	/**
+	 * remove a group from the registry and from all indexes
+	 *
+	 * @param groupId
+	 * @return the removed group or null if no group has this id
+	 */
+	public Group removeGroup(int groupId) {
+
+		Group group = groups.remove(groupId);
+
+		if (group != null) {
+			unindex(group);
+		}
+
+		return group;
+	}
+
+	public Group getGroup(int groupId) {
+		return groups.get(groupId);
+	}
+
+	public Collection<Group> getGroups() {
+		return Collections.unmodifiableCollection(groups.values());
+	}
+
+	public int size() {
+		return groups.size();
+	}
+
+	/**
+	 * @param datapathId
+	 * @param port
+	 * @return groups that have this port as an input or output port on the
+	 *         given switch, never null
+	 */
+	public Set<Group> getGroupsForPort(long datapathId, short port) {
+
+		ConcurrentHashMap<Short, Set<Group>> switchPorts = portIndex
+				.get(datapathId);
+
+		if (switchPorts == null) {
+			return Collections.emptySet();
+		}
+
+		Set<Group> portGroups = switchPorts.get(port);
+
+		if (portGroups == null) {
+			return Collections.emptySet();
+		}
+
+		return Collections.unmodifiableSet(portGroups);
+	}
+
+	/**
+	 * @param datapathId
+	 * @return groups whose output switch is the given switch, never null
+	 */
+	public Set<Group> getGroupsForOutputSwitch(long datapathId) {
+
+		Set<Group> switchGroups = outputSwitchIndex.get(datapathId);
+
+		if (switchGroups == null) {
+			return Collections.emptySet();
+		}
+
+		return Collections.unmodifiableSet(switchGroups);
+	}
+
+	private void index(Group group) {
+
+		IndexEntry entry = new IndexEntry(group);
+		indexEntries.put(group, entry);
+
+		getOrCreate(outputSwitchIndex, entry.outputSwitchDatapathId).add(group);
+
+		for (short port : entry.ports) {
+
+			getOrCreate(getOrCreatePorts(entry.inputSwitchDatapathId), port)
+					.add(group);
+			getOrCreate(getOrCreatePorts(entry.outputSwitchDatapathId), port)
+					.add(group);
+
+		}
+
+	}
+
+	private void unindex(Group group) {
+
+		IndexEntry entry = indexEntries.remove(group);
+
+		if (entry == null) {
+			return;
+		}
+
+		Set<Group> switchGroups = outputSwitchIndex
+				.get(entry.outputSwitchDatapathId);
+		if (switchGroups != null) {
+			switchGroups.remove(group);
+		}
+
+		for (short port : entry.ports) {
+
+			removeFromPort(entry.inputSwitchDatapathId, port, group);
+			removeFromPort(entry.outputSwitchDatapathId, port, group);
+
+		}
+
+	}
+
+	private void removeFromPort(long datapathId, short port, Group group) {
+
+		ConcurrentHashMap<Short, Set<Group>> switchPorts = portIndex
+				.get(datapathId);
+
+		if (switchPorts == null) {
+			return;
+		}
+
+		Set<Group> portGroups = switchPorts.get(port);
+
+		if (portGroups != null) {
+			portGroups.remove(group);
+		}
+
+	}
+
+	private static Set<Short> getGroupPorts(Group group) {
+
+		Set<Short> ports = new HashSet<Short>();
+
+		if (group.getInputPorts() != null) {
+			ports.addAll(group.getInputPorts());
+		}
+		if (group.getOutputPorts() != null) {
+			ports.addAll(group.getOutputPorts());
+		}
+
+		return ports;
+	}
+
+	private ConcurrentHashMap<Short, Set<Group>> getOrCreatePorts(
+			long datapathId) {
+
+		ConcurrentHashMap<Short, Set<Group>> switchPorts = portIndex
+				.get(datapathId);
+
+		if (switchPorts == null) {
+			ConcurrentHashMap<Short, Set<Group>> created = new ConcurrentHashMap<Short, Set<Group>>();
+			switchPorts = portIndex.putIfAbsent(datapathId, created);
+			if (switchPorts == null) {
+				switchPorts = created;
+			}
+		}
+
+		return switchPorts;
+	}
+
+	private static <K> Set<Group> getOrCreate(ConcurrentMap<K, Set<Group>> map,
+			K key) {
+
+		Set<Group> value = map.get(key);
+
+		if (value == null) {
+			Set<Group> created = Collections
+					.newSetFromMap(new ConcurrentHashMap<Group, Boolean>());
+			value = map.putIfAbsent(key, created);
+			if (value == null) {
+				value = created;
+			}
+		}
+
+		return value;
+	}
+
+}
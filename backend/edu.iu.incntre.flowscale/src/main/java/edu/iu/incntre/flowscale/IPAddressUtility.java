@@ -4,9 +4,12 @@ http://www.apache.org/licenses/LICENSE-2.0
  */
 
 package edu.iu.incntre.flowscale;
+
+import grnoc.net.util.ipaddress.IPv4Prefix;
+
 /** 
  * This class is a utility class fo IPv4 and subnets ,
- * has methods that maybe used on subnets , might consider merging this class with grnoc.net.util.IPv4Address
+ * has methods that maybe used on subnets , the arithmetic itself is done by grnoc.net.util.ipaddress.IPv4Prefix
  * 
  * @author Ali Khalfan (akhalfan@indiana.edu)
  *
@@ -24,14 +27,7 @@ public class IPAddressUtility{
  */
     public static int incrementSubnet(int ip,int subnet){
 
-            int newIP = 0;
-
-            int raiseTo  = (int)Math.pow(2,32-subnet);
-
-            newIP  = ip + raiseTo;
-
-            return newIP;
-
+            return IPv4Prefix.increment(ip, subnet);
 
     }
 
@@ -46,16 +42,7 @@ public class IPAddressUtility{
  */
     public static boolean checkIfInRange(int ip1,int subnet1,int ip2,int subnet2){
 
-            if(subnet2 < subnet1)
-                    return false;
-
-            String ip1String = Integer.toHexString(ip1);
-            String ip2String = Integer.toHexString(ip2);
-
-            if(ip1String.substring(0,subnet1).equals(ip2String.substring(0,subnet2)))
-                    return true;
-
-            return false;
+            return IPv4Prefix.contains(ip1, subnet1, ip2, subnet2);
     }
     
     /**
@@ -65,24 +52,7 @@ public class IPAddressUtility{
      */
     public static String toIPString(int ipValue){
     	
-    	FlowscaleController.logger.info("ip address is {}", ipValue);
-    	
-    	String a = Integer.toBinaryString(ipValue);
-    	String zeroString ="";
-    	for(int i = a.length(); i < 32; i++){
-    		zeroString += "0";
-    	}
-    	a = zeroString +a;
-    	
-    	String ip = "";
-    	for(int i = 0 ;i < 4; i++){
-    
-    		ip = ip +"." + Integer.parseInt(a.substring(i*8, 8*(i+1)),2);
-    		
-    		
-    	}
-    	
-    	return ip.substring(1);
+    	return IPv4Prefix.format(ipValue);
     	
     }
 
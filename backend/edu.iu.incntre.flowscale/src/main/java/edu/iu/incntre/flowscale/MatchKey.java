@@ -0,0 +1,263 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale;
+
+import grnoc.net.util.ipaddress.IPv4Prefix;
+
+import org.openflow.protocol.OFMatch;
+
+/**
+ * Immutable key identifying an OFMatch by the fields FlowScale matches on:
+ * input port, ethernet type, ip protocol, source and destination ip with their
+ * prefix lengths and transport ports. Fields that are wildcarded are ignored
+ * and the ip addresses are masked to their prefix, so two matches a switch
+ * treats as the same produce equal keys.
+ */
+public final class MatchKey {
+
+	private final int wildcards;
+	private final short inputPort;
+	private final short dataLayerType;
+	private final byte networkProtocol;
+	private final int networkSource;
+	private final int networkDestination;
+	private final short transportSource;
+	private final short transportDestination;
+	private final int hash;
+
+	public MatchKey(int wildcards, short inputPort, short dataLayerType,
+			byte networkProtocol, int networkSource, int networkDestination,
+			short transportSource, short transportDestination) {
+
+		int sourceBits = Math.min(32,
+				(wildcards & OFMatch.OFPFW_NW_SRC_MASK) >> OFMatch.OFPFW_NW_SRC_SHIFT);
+		int destinationBits = Math.min(32,
+				(wildcards & OFMatch.OFPFW_NW_DST_MASK) >> OFMatch.OFPFW_NW_DST_SHIFT);
+
+		this.wildcards = (wildcards & OFMatch.OFPFW_ALL
+				& ~OFMatch.OFPFW_NW_SRC_MASK & ~OFMatch.OFPFW_NW_DST_MASK)
+				| (sourceBits << OFMatch.OFPFW_NW_SRC_SHIFT)
+				| (destinationBits << OFMatch.OFPFW_NW_DST_SHIFT);
+
+		this.inputPort = isWildcarded(OFMatch.OFPFW_IN_PORT) ? 0 : inputPort;
+		this.dataLayerType = isWildcarded(OFMatch.OFPFW_DL_TYPE) ? 0
+				: dataLayerType;
+		this.networkProtocol = isWildcarded(OFMatch.OFPFW_NW_PROTO) ? 0
+				: networkProtocol;
+		this.networkSource = networkSource & IPv4Prefix.mask(32 - sourceBits);
+		this.networkDestination = networkDestination
+				& IPv4Prefix.mask(32 - destinationBits);
+		this.transportSource = isWildcarded(OFMatch.OFPFW_TP_SRC) ? 0
+				: transportSource;
+		this.transportDestination = isWildcarded(OFMatch.OFPFW_TP_DST) ? 0
+				: transportDestination;
+
+		int h = this.wildcards;
+		h = 31 * h + this.inputPort;
+		h = 31 * h + this.dataLayerType;
+		h = 31 * h + this.networkProtocol;
+		h = 31 * h + this.networkSource;
+		h = 31 * h + this.networkDestination;
+		h = 31 * h + this.transportSource;
+		h = 31 * h + this.transportDestination;
+		this.hash = h;
+
+	}
+
+	public static MatchKey fromMatch(OFMatch match) {
+
+		return new MatchKey(match.getWildcards(), match.getInputPort(),
+				match.getDataLayerType(), match.getNetworkProtocol(),
+				match.getNetworkSource(), match.getNetworkDestination(),
+				match.getTransportSource(), match.getTransportDestination());
+
+	}
+
+	/**
+	 * @return key of the same match with source and destination ip swapped,
+	 *         this is the key of the opposite direction rule of an ip rule
+	 */
+	public MatchKey reverse() {
+
+		int sourceBits = (wildcards & OFMatch.OFPFW_NW_SRC_MASK) >> OFMatch.OFPFW_NW_SRC_SHIFT;
+		int destinationBits = (wildcards & OFMatch.OFPFW_NW_DST_MASK) >> OFMatch.OFPFW_NW_DST_SHIFT;
+
+		int reversedWildcards = (wildcards & ~OFMatch.OFPFW_NW_SRC_MASK & ~OFMatch.OFPFW_NW_DST_MASK)
+				| (destinationBits << OFMatch.OFPFW_NW_SRC_SHIFT)
+				| (sourceBits << OFMatch.OFPFW_NW_DST_SHIFT);
+
+		return new MatchKey(reversedWildcards, inputPort, dataLayerType,
+				networkProtocol, networkDestination, networkSource,
+				transportSource, transportDestination);
+	}
+
+	/**
+	 * @param source
+	 *            true for the source ip prefix, false for the destination
+	 * @return key of the prefix one bit shorter that covers this one, null if
+	 *         the prefix is already fully wildcarded
+	 */
+	public MatchKey parent(boolean source) {
+
+		int maskLength = source ? getNetworkSourceMaskLength()
+				: getNetworkDestinationMaskLength();
+
+		if (maskLength == 0) {
+			return null;
+		}
+
+		return withPrefix(source, source ? networkSource : networkDestination,
+				maskLength - 1);
+	}
+
+	/**
+	 * @param source
+	 *            true for the source ip prefix, false for the destination
+	 * @return key of the other half of the parent prefix, null if the prefix
+	 *         is fully wildcarded
+	 */
+	public MatchKey sibling(boolean source) {
+
+		int maskLength = source ? getNetworkSourceMaskLength()
+				: getNetworkDestinationMaskLength();
+
+		if (maskLength == 0) {
+			return null;
+		}
+
+		int address = source ? networkSource : networkDestination;
+
+		return withPrefix(source, address ^ (1 << (32 - maskLength)),
+				maskLength);
+	}
+
+	private MatchKey withPrefix(boolean source, int address, int maskLength) {
+
+		if (source) {
+			int prefixWildcards = (wildcards & ~OFMatch.OFPFW_NW_SRC_MASK)
+					| ((32 - maskLength) << OFMatch.OFPFW_NW_SRC_SHIFT);
+			return new MatchKey(prefixWildcards, inputPort, dataLayerType,
+					networkProtocol, address, networkDestination,
+					transportSource, transportDestination);
+		}
+
+		int prefixWildcards = (wildcards & ~OFMatch.OFPFW_NW_DST_MASK)
+				| ((32 - maskLength) << OFMatch.OFPFW_NW_DST_SHIFT);
+		return new MatchKey(prefixWildcards, inputPort, dataLayerType,
+				networkProtocol, networkSource, address, transportSource,
+				transportDestination);
+	}
+
+	/**
+	 * @return a new OFMatch with the fields of this key
+	 */
+	public OFMatch toMatch() {
+
+		OFMatch match = new OFMatch();
+		match.setWildcards(wildcards);
+		match.setInputPort(inputPort);
+		match.setDataLayerType(dataLayerType);
+		match.setNetworkProtocol(networkProtocol);
+		match.setNetworkSource(networkSource);
+		match.setNetworkDestination(networkDestination);
+		match.setTransportSource(transportSource);
+		match.setTransportDestination(transportDestination);
+
+		return match;
+	}
+
+	private boolean isWildcarded(int field) {
+		return (wildcards & field) != 0;
+	}
+
+	public int getWildcards() {
+		return wildcards;
+	}
+
+	public short getInputPort() {
+		return inputPort;
+	}
+
+	public short getDataLayerType() {
+		return dataLayerType;
+	}
+
+	public byte getNetworkProtocol() {
+		return networkProtocol;
+	}
+
+	public int getNetworkSource() {
+		return networkSource;
+	}
+
+	public int getNetworkDestination() {
+		return networkDestination;
+	}
+
+	/**
+	 * @return prefix length of the source ip, 0 if it is wildcarded
+	 */
+	public int getNetworkSourceMaskLength() {
+		return 32 - ((wildcards & OFMatch.OFPFW_NW_SRC_MASK) >> OFMatch.OFPFW_NW_SRC_SHIFT);
+	}
+
+	/**
+	 * @return prefix length of the destination ip, 0 if it is wildcarded
+	 */
+	public int getNetworkDestinationMaskLength() {
+		return 32 - ((wildcards & OFMatch.OFPFW_NW_DST_MASK) >> OFMatch.OFPFW_NW_DST_SHIFT);
+	}
+
+	public short getTransportSource() {
+		return transportSource;
+	}
+
+	public short getTransportDestination() {
+		return transportDestination;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object object) {
+
+		if (this == object) {
+			return true;
+		}
+
+		if (!(object instanceof MatchKey)) {
+			return false;
+		}
+
+		MatchKey other = (MatchKey) object;
+
+		return hash == other.hash && wildcards == other.wildcards
+				&& inputPort == other.inputPort
+				&& dataLayerType == other.dataLayerType
+				&& networkProtocol == other.networkProtocol
+				&& networkSource == other.networkSource
+				&& networkDestination == other.networkDestination
+				&& transportSource == other.transportSource
+				&& transportDestination == other.transportDestination;
+	}
+
+	@Override
+	public String toString() {
+
+		return "MatchKey[wildcards=0x" + Integer.toHexString(wildcards)
+				+ ",in_port=" + inputPort + ",dl_type=0x"
+				+ Integer.toHexString(dataLayerType & 0xffff) + ",nw_proto="
+				+ networkProtocol + ",nw_src=" + IPv4Prefix.format(networkSource)
+				+ "/" + getNetworkSourceMaskLength() + ",nw_dst="
+				+ IPv4Prefix.format(networkDestination) + "/"
+				+ getNetworkDestinationMaskLength() + ",tp_src="
+				+ transportSource + ",tp_dst=" + transportDestination + "]";
+	}
+
+}
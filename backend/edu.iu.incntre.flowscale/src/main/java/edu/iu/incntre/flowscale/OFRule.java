@@ -14,13 +14,21 @@ package edu.iu.incntre.flowscale;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFType;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.util.U16;
 
 public class OFRule {
 
     OFMatch match ;
+    MatchKey matchKey;
+    OFRule oppositeRule;
+    List<OFRule> aggregatedRules;
+    short backupPort = -1;
     short priority;
     ArrayList<OFAction> actions = new ArrayList<OFAction>();
     long wildcards;
@@ -43,6 +51,66 @@ public class OFRule {
 
     public void setMatch(OFMatch match) {
         this.match = match;
+        this.matchKey = null;
+    }
+
+    /**
+     * the key is built from the match the first time it is needed, the match
+     * should not be changed after it is set on the rule
+     * @return key identifying the match of this rule
+     */
+    public MatchKey getMatchKey() {
+        if (matchKey == null && match != null) {
+            matchKey = MatchKey.fromMatch(match);
+        }
+        return matchKey;
+    }
+
+    /**
+     * @return the rule matching the other direction of the same subnet, null
+     *         if this rule is not an ip rule
+     */
+    public OFRule getOppositeRule() {
+        return oppositeRule;
+    }
+
+    public void setOppositeRule(OFRule oppositeRule) {
+        this.oppositeRule = oppositeRule;
+    }
+
+    /**
+     * @return the group rules this rule was merged from by PrefixAggregator,
+     *         null if the rule is a group rule itself
+     */
+    public List<OFRule> getAggregatedRules() {
+        return aggregatedRules;
+    }
+
+    public void setAggregatedRules(List<OFRule> aggregatedRules) {
+        this.aggregatedRules = aggregatedRules;
+    }
+
+    /**
+     * @return port the rule moves to when its output port goes down, -1 if
+     *         there is none
+     */
+    public short getBackupPort() {
+        return backupPort;
+    }
+
+    public void setBackupPort(short backupPort) {
+        this.backupPort = backupPort;
+    }
+
+    /**
+     * @return port of the first output action, -1 if the rule has no output
+     */
+    public short getOutputPort() {
+        if (actions == null || actions.isEmpty()
+                || !(actions.get(0) instanceof OFActionOutput)) {
+            return -1;
+        }
+        return ((OFActionOutput) actions.get(0)).getPort();
     }
 
     public ArrayList<OFAction> getActions() {
@@ -78,6 +146,53 @@ public class OFRule {
     	
     }
     
+    /**
+     * build a flow mod for this rule, the actions are copied so the flow mod is not
+     * affected if the rule is updated before the flow mod reaches the switch
+     * @param command OFFlowMod command, delete commands are sent without actions
+     * @return a new OFFlowMod with its length set from its actions
+     */
+    public OFFlowMod toFlowMod(short command) {
+
+    	OFFlowMod flowMod = new OFFlowMod();
+    	flowMod.setType(OFType.FLOW_MOD);
+    	flowMod.setCommand(command);
+    	flowMod.setMatch(match);
+    	flowMod.setPriority(priority);
+    	flowMod.setHardTimeout((short) 0);
+    	flowMod.setIdleTimeout((short) 0);
+    	flowMod.setBufferId(-1);
+
+    	ArrayList<OFAction> flowModActions = new ArrayList<OFAction>();
+    	int actionsLength = 0;
+
+    	if (command == OFFlowMod.OFPFC_DELETE
+    			|| command == OFFlowMod.OFPFC_DELETE_STRICT) {
+    		flowMod.setOutPort(OFPort.OFPP_NONE);
+    	} else if (actions != null) {
+
+    		for (OFAction action : actions) {
+
+    			if (action instanceof OFActionOutput) {
+    				OFActionOutput outputAction = (OFActionOutput) action;
+    				OFActionOutput copy = new OFActionOutput();
+    				copy.setPort(outputAction.getPort());
+    				copy.setMaxLength(outputAction.getMaxLength());
+    				action = copy;
+    			}
+
+    			flowModActions.add(action);
+    			actionsLength += action.getLengthU();
+    		}
+
+    	}
+
+    	flowMod.setActions(flowModActions);
+    	flowMod.setLength(U16.t(OFFlowMod.MINIMUM_LENGTH + actionsLength));
+
+    	return flowMod;
+    }
+
     public short getPriority() {
         return priority;
     }
@@ -90,21 +205,26 @@ public class OFRule {
     @Override
     public boolean equals(Object otherRule){
     	
-    	OFRule otherRuleObject = (OFRule)otherRule;
-    	
-    	if(otherRuleObject.getMatch().toString().equals(this.match.toString() )){
+    	if (this == otherRule) {
     		return true;
     	}
     	
-    	return false;
+    	if (!(otherRule instanceof OFRule)) {
+    		return false;
+    	}
+    	
+    	MatchKey key = getMatchKey();
+    	MatchKey otherKey = ((OFRule) otherRule).getMatchKey();
+    	
+    	return key == null ? otherKey == null : key.equals(otherKey);
     	
+    }
+    
+    @Override
+    public int hashCode() {
     	
+    	MatchKey key = getMatchKey();
+    	return key == null ? 0 : key.hashCode();
     	
     }
 }
-
-
-
-
-
-
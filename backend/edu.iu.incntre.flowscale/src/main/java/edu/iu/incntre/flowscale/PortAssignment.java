@@ -0,0 +1,142 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale;
+
+import java.util.List;
+
+/**
+ * Rendezvous (highest random weight) hashing of group rules to output ports.
+ * Every port gets a pseudo random weight for a rule and the rule goes to the
+ * port with the highest weight, so the port of a rule only depends on the rule
+ * and the ports that are up. When a port comes up only the rules it now wins
+ * move to it, when a port goes down only its rules move, each to the port that
+ * was second for it. With N ports about 1/N of the rules move either way.
+ *
+ * Both directions of an ip subnet have the same key so they always get the
+ * same port.
+ */
+public class PortAssignment {
+
+	private PortAssignment() {
+
+	}
+
+	/**
+	 * @param key
+	 *            key of the rule, from keyOf
+	 * @param ports
+	 *            output ports that are up
+	 * @return port with the highest weight for the key, -1 if no port is up
+	 */
+	public static short selectPort(long key, List<Short> ports) {
+		return selectPort(key, ports, (short) -1);
+	}
+
+	/**
+	 * the backup port of a rule is the port it would get if its own port was
+	 * down
+	 *
+	 * @param key
+	 *            key of the rule, from keyOf
+	 * @param ports
+	 *            output ports that are up
+	 * @param excludedPort
+	 *            port left out of the selection
+	 * @return port with the highest weight for the key other than
+	 *         excludedPort, -1 if there is none
+	 */
+	public static short selectPort(long key, List<Short> ports,
+			short excludedPort) {
+
+		short selected = -1;
+		long selectedWeight = 0;
+
+		for (Short port : ports) {
+
+			if (port == excludedPort) {
+				continue;
+			}
+
+			long weight = weight(key, port);
+
+			// ties go to the lower port so the result does not depend on the
+			// order of the list
+			if (selected == -1 || weight > selectedWeight
+					|| (weight == selectedWeight && port < selected)) {
+				selected = port;
+				selectedWeight = weight;
+			}
+		}
+
+		return selected;
+	}
+
+	/**
+	 * @param key
+	 *            key of the rule, from keyOf
+	 * @param port
+	 *            port that came up
+	 * @param ports
+	 *            output ports that are up, including port
+	 * @return true if the rule moves to the port that came up
+	 */
+	public static boolean movesTo(long key, short port, List<Short> ports) {
+		return selectPort(key, ports) == port;
+	}
+
+	/**
+	 * key of a rule, ip prefix rules are keyed by their prefix alone so the
+	 * source and destination rule of a subnet share it, other rules by their
+	 * whole match
+	 *
+	 * @param matchKey
+	 * @return key to hash the rule with
+	 */
+	public static long keyOf(MatchKey matchKey) {
+
+		int sourceMaskLength = matchKey.getNetworkSourceMaskLength();
+		int destinationMaskLength = matchKey.getNetworkDestinationMaskLength();
+
+		if (sourceMaskLength > 0 && destinationMaskLength == 0) {
+			return prefixKey(matchKey.getNetworkSource(), sourceMaskLength);
+		}
+
+		if (destinationMaskLength > 0 && sourceMaskLength == 0) {
+			return prefixKey(matchKey.getNetworkDestination(),
+					destinationMaskLength);
+		}
+
+		return mix(0x100000000L | (matchKey.hashCode() & 0xffffffffL));
+	}
+
+	/**
+	 * @param address
+	 *            network address of the prefix
+	 * @param maskLength
+	 * @return key of the prefix
+	 */
+	public static long prefixKey(int address, int maskLength) {
+		return ((long) maskLength << 32) | (address & 0xffffffffL);
+	}
+
+	private static long weight(long key, short port) {
+		return mix(key * 0x9e3779b97f4a7c15L + (port & 0xffff));
+	}
+
+	/**
+	 * 64 bit finalizer of splitmix64, spreads keys differing in a single bit
+	 * over the whole range
+	 */
+	private static long mix(long value) {
+
+		long z = value + 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+
+		return z ^ (z >>> 31);
+	}
+
+}
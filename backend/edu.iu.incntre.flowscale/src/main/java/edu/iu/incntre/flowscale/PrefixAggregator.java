@@ -0,0 +1,113 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.openflow.protocol.action.OFAction;
+
+/**
+ * Merges the rules of a group that match sibling ip prefixes and have the same
+ * priority and actions into one rule matching their parent prefix, repeating
+ * until no siblings can be merged. Source and destination prefix rules are
+ * merged separately, rules matching on both or on neither are kept as they
+ * are. A merged rule lists the rules it replaces in getAggregatedRules.
+ */
+public class PrefixAggregator {
+
+	private PrefixAggregator() {
+
+	}
+
+	/**
+	 * @param rules
+	 *            rules of a group, they are not modified
+	 * @return rules to install on the switch
+	 */
+	public static List<OFRule> aggregate(List<OFRule> rules) {
+
+		LinkedHashMap<MatchKey, OFRule> rulesByMatch = new LinkedHashMap<MatchKey, OFRule>();
+
+		for (OFRule rule : rules) {
+			rulesByMatch.put(rule.getMatchKey(), rule);
+		}
+
+		// longest prefixes first so merged rules are merged again with their
+		// own sibling
+		for (int maskLength = 32; maskLength > 0; maskLength--) {
+
+			for (OFRule rule : new ArrayList<OFRule>(rulesByMatch.values())) {
+
+				MatchKey key = rule.getMatchKey();
+
+				if (!rulesByMatch.containsKey(key)) {
+					// already merged with its sibling
+					continue;
+				}
+
+				if (key.getNetworkSourceMaskLength() == maskLength
+						&& key.getNetworkDestinationMaskLength() == 0) {
+					merge(rulesByMatch, rule, true);
+				} else if (key.getNetworkDestinationMaskLength() == maskLength
+						&& key.getNetworkSourceMaskLength() == 0) {
+					merge(rulesByMatch, rule, false);
+				}
+			}
+		}
+
+		return new ArrayList<OFRule>(rulesByMatch.values());
+	}
+
+	private static void merge(LinkedHashMap<MatchKey, OFRule> rulesByMatch,
+			OFRule rule, boolean source) {
+
+		MatchKey key = rule.getMatchKey();
+		OFRule sibling = rulesByMatch.get(key.sibling(source));
+
+		if (sibling == null || sibling.getPriority() != rule.getPriority()
+				|| rule.getActions() == null || sibling.getActions() == null
+				|| !FlowTableReconciler.sameActions(rule.getActions(),
+						sibling.getActions())) {
+			return;
+		}
+
+		MatchKey parentKey = key.parent(source);
+
+		if (rulesByMatch.containsKey(parentKey)) {
+			// the group already has a rule for the parent prefix
+			return;
+		}
+
+		OFRule parent = new OFRule();
+		parent.setMatch(parentKey.toMatch());
+		parent.setPriority(rule.getPriority());
+		parent.setActions(new ArrayList<OFAction>(rule.getActions()));
+
+		ArrayList<OFRule> aggregatedRules = new ArrayList<OFRule>();
+		addAggregatedRules(aggregatedRules, rule);
+		addAggregatedRules(aggregatedRules, sibling);
+		parent.setAggregatedRules(aggregatedRules);
+
+		rulesByMatch.remove(key);
+		rulesByMatch.remove(sibling.getMatchKey());
+		rulesByMatch.put(parentKey, parent);
+
+	}
+
+	private static void addAggregatedRules(List<OFRule> aggregatedRules,
+			OFRule rule) {
+
+		if (rule.getAggregatedRules() == null) {
+			aggregatedRules.add(rule);
+		} else {
+			aggregatedRules.addAll(rule.getAggregatedRules());
+		}
+
+	}
+
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Controller wide index of the rules of every group, keyed by output switch
+ * and MatchKey. Several groups can have a rule with the same match on a
+ * switch, each of them is kept under its group. Groups register their rules
+ * when they are generated and remove them when they are cleared, so finding
+ * the rules and groups owning a match does not require walking the groups.
+ */
+public class RuleIndex {
+
+	/**
+	 * a rule together with the group it belongs to
+	 */
+	public static class Entry {
+
+		private final Group group;
+		private final OFRule rule;
+
+		Entry(Group group, OFRule rule) {
+			this.group = group;
+			this.rule = rule;
+		}
+
+		public Group getGroup() {
+			return group;
+		}
+
+		public OFRule getRule() {
+			return rule;
+		}
+	}
+
+	private ConcurrentHashMap<Long, ConcurrentHashMap<MatchKey, ConcurrentHashMap<Group, Entry>>> switchRules = new ConcurrentHashMap<Long, ConcurrentHashMap<MatchKey, ConcurrentHashMap<Group, Entry>>>();
+
+	/**
+	 * index the rules of a group on its output switch, a rule of the same
+	 * group already indexed with the same match is replaced
+	 *
+	 * @param datapathId
+	 * @param group
+	 * @param rules
+	 */
+	public void addRules(long datapathId, Group group,
+			Collection<OFRule> rules) {
+
+		ConcurrentHashMap<MatchKey, ConcurrentHashMap<Group, Entry>> rulesByMatch = getOrCreate(datapathId);
+
+		for (OFRule rule : rules) {
+
+			MatchKey key = rule.getMatchKey();
+			Entry entry = new Entry(group, rule);
+
+			while (true) {
+
+				ConcurrentHashMap<Group, Entry> entries = rulesByMatch.get(key);
+
+				if (entries == null) {
+					ConcurrentHashMap<Group, Entry> created = new ConcurrentHashMap<Group, Entry>();
+					entries = rulesByMatch.putIfAbsent(key, created);
+					if (entries == null) {
+						entries = created;
+					}
+				}
+
+				entries.put(group, entry);
+
+				// the map may have been dropped as empty by removeRules in
+				// the meantime, add the entry again to the one in the index
+				if (rulesByMatch.get(key) == entries) {
+					break;
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * remove the rules of a group from the index of its output switch, the
+	 * rules other groups have with the same matches stay
+	 *
+	 * @param datapathId
+	 * @param group
+	 * @param rules
+	 */
+	public void removeRules(long datapathId, Group group,
+			Collection<OFRule> rules) {
+
+		ConcurrentHashMap<MatchKey, ConcurrentHashMap<Group, Entry>> rulesByMatch = switchRules
+				.get(datapathId);
+
+		if (rulesByMatch == null) {
+			return;
+		}
+
+		for (OFRule rule : rules) {
+
+			MatchKey key = rule.getMatchKey();
+			ConcurrentHashMap<Group, Entry> entries = rulesByMatch.get(key);
+
+			if (entries == null) {
+				continue;
+			}
+
+			entries.remove(group);
+
+			if (entries.isEmpty()) {
+				rulesByMatch.remove(key, entries);
+			}
+		}
+
+	}
+
+	/**
+	 * @param datapathId
+	 * @param key
+	 * @return the rules of every group with this match on the switch, empty
+	 *         if there is none
+	 */
+	public Collection<Entry> getRules(long datapathId, MatchKey key) {
+
+		ConcurrentHashMap<MatchKey, ConcurrentHashMap<Group, Entry>> rulesByMatch = switchRules
+				.get(datapathId);
+
+		if (rulesByMatch == null) {
+			return Collections.emptyList();
+		}
+
+		ConcurrentHashMap<Group, Entry> entries = rulesByMatch.get(key);
+
+		if (entries == null) {
+			return Collections.emptyList();
+		}
+
+		return entries.values();
+	}
+
+	/**
+	 * @return number of rules indexed on the switch
+	 */
+	public int size(long datapathId) {
+
+		ConcurrentHashMap<MatchKey, ConcurrentHashMap<Group, Entry>> rulesByMatch = switchRules
+				.get(datapathId);
+
+		if (rulesByMatch == null) {
+			return 0;
+		}
+
+		int size = 0;
+
+		for (ConcurrentHashMap<Group, Entry> entries : rulesByMatch.values()) {
+			size += entries.size();
+		}
+
+		return size;
+	}
+
+	private ConcurrentHashMap<MatchKey, ConcurrentHashMap<Group, Entry>> getOrCreate(
+			long datapathId) {
+
+		ConcurrentHashMap<MatchKey, ConcurrentHashMap<Group, Entry>> rulesByMatch = switchRules
+				.get(datapathId);
+
+		if (rulesByMatch == null) {
+			ConcurrentHashMap<MatchKey, ConcurrentHashMap<Group, Entry>> created = new ConcurrentHashMap<MatchKey, ConcurrentHashMap<Group, Entry>>();
+			rulesByMatch = switchRules.putIfAbsent(datapathId, created);
+			if (rulesByMatch == null) {
+				rulesByMatch = created;
+			}
+		}
+
+		return rulesByMatch;
+	}
+
+}
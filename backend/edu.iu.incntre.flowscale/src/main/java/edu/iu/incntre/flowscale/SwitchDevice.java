@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -45,7 +46,7 @@ public class SwitchDevice {
 	private ArrayList<OFRule> switchRules = new ArrayList<OFRule>();
 
 	private IOFSwitch openFlowSwitch;
-	private List<OFPhysicalPort> portList;
+	private volatile List<OFPhysicalPort> portList;
 	private List<Short> outputPortsUp = new ArrayList<Short>();
 	
 	private short switchPriority =100;
@@ -113,10 +114,15 @@ public class SwitchDevice {
 		this.datapathId = datapathId;
 	}
 
+	/**
+	 * the ports are copied, the list is changed on the event loop of the switch
+	 * while other threads read it through getPortStates
+	 * @param portList
+	 */
 	public void setPhysicalPorts(List<OFPhysicalPort> portList) {
 	
 
-		this.portList = portList;
+		this.portList = new CopyOnWriteArrayList<OFPhysicalPort>(portList);
 
 	}
 
@@ -208,16 +214,37 @@ public class SwitchDevice {
  */
 	  List<OFStatistics> getStatistics(String type) throws IOException, InterruptedException, ExecutionException, TimeoutException, NoSwitchException {
 
-		
+		Future<List<OFStatistics>> future = requestStatistics(type);
+
+		if (future == null) {
+			return null;
+		}
+
+		return future.get(10, TimeUnit.SECONDS);
+
+	}
+
+	/**
+	 * send a statistics request to the switch without waiting for the reply, so
+	 * several switches and types can be requested at once
+	 * 
+	 * @param type
+	 *            aggregate, table, flow or port
+	 * @return future of the reply, null if the type is unknown
+	 * @throws IOException
+	 * @throws NoSwitchException
+	 */
+	Future<List<OFStatistics>> requestStatistics(String type)
+			throws IOException, NoSwitchException {
 
 		if (type.equals("aggregate")) {
-			return getAggregateStatistics();
+			return requestAggregateStatistics();
 		} else if (type.equals("table")) {
-			return getTableStatistics();
+			return requestTableStatistics();
 		} else if (type.equals("flow")) {
-			return getFlowStatistics();
+			return requestFlowStatistics();
 		} else if (type.equals("port")) {
-			return getPortStatistics();
+			return requestPortStatistics();
 		}
 
 		return null;
@@ -274,15 +301,12 @@ public class SwitchDevice {
 	
 	
 	/** 
-	 * getPortStatistics is a private method only called by getStatistics
-	 * @return  List<OFStatistics>
+	 * requestPortStatistics is a private method only called by requestStatistics
+	 * @return  Future<List<OFStatistics>>
 	 * @throws NoSwitchException
 	 * @throws IOException
-	 * @throws InterruptedException
-	 * @throws ExecutionException
-	 * @throws TimeoutException
 	 */
-	private  List<OFStatistics> getPortStatistics() throws NoSwitchException, IOException, InterruptedException, ExecutionException, TimeoutException {
+	private Future<List<OFStatistics>> requestPortStatistics() throws NoSwitchException, IOException {
 
 		
 
@@ -297,30 +321,19 @@ public class SwitchDevice {
 		req.setStatisticType(OFStatisticsType.PORT);
 		req.setStatistics(Collections.singletonList((OFStatistics) fsr));
 		req.setLengthU(fsr.getLength() + req.getLength());
-		List<OFStatistics> values = null;
-	
 
-				future = iofSwitch.getStatistics(req);
-				
-				 values = future.get(10, TimeUnit.SECONDS);
-		
-			return values;
-			 
+		future = iofSwitch.getStatistics(req);
 
-				
-				
+		return future;
 
 	}
 /**
- * a private method to retrieve the table statistics from the switch , this method is only called by getStatistics
- * @return List<OFStatistics>
+ * a private method to request the table statistics from the switch , this method is only called by requestStatistics
+ * @return Future<List<OFStatistics>>
  * @throws IOException
- * @throws InterruptedException
- * @throws ExecutionException
- * @throws TimeoutException
  * @throws NoSwitchException
  */
-	private List<OFStatistics> getTableStatistics() throws IOException, InterruptedException, ExecutionException, TimeoutException, NoSwitchException {
+	private Future<List<OFStatistics>> requestTableStatistics() throws IOException, NoSwitchException {
 
 		
 
@@ -336,11 +349,9 @@ public class SwitchDevice {
 
 	
 		
-				futureTable = iofSwitch.getStatistics(reqTable);
-				List<OFStatistics> values = null;
-				
-				values = futureTable.get(10, TimeUnit.SECONDS);
-				return values;
+		futureTable = iofSwitch.getStatistics(reqTable);
+
+		return futureTable;
 
 	}
 	
@@ -348,17 +359,14 @@ public class SwitchDevice {
 	
 	
 	/**
-	 * This method is used to retrieve to Flows from the switch this method is only called getStatistics 
+	 * This method is used to request the Flows from the switch this method is only called requestStatistics 
 	 * 
-	 * @return List<OFStatistics>
+	 * @return Future<List<OFStatistics>>
 	 * @throws IOException
-	 * @throws InterruptedException
-	 * @throws ExecutionException
-	 * @throws TimeoutException
 	 * @throws NoSwitchException
 	 */
 	
-	private List<OFStatistics>getFlowStatistics() throws IOException, InterruptedException, ExecutionException, TimeoutException, NoSwitchException {
+	private Future<List<OFStatistics>> requestFlowStatistics() throws IOException, NoSwitchException {
 
 		
 
@@ -379,32 +387,26 @@ public class SwitchDevice {
 		req.setLengthU(req.getLengthU() + fsr.getLength());
 
 	
-			future = iofSwitch.getStatistics(req);
-			List<OFStatistics> futureValues = null;
+		future = iofSwitch.getStatistics(req);
 
-			futureValues = future.get(10, TimeUnit.SECONDS);
-			
-			return futureValues;
+		return future;
 
 	}
 
 	/**
 	 * 
-	 * @return List<OFStatistics>
+	 * @return Future<List<OFStatistics>>
 	 * @throws NoSwitchException
 	 * @throws IOException
-	 * @throws InterruptedException
-	 * @throws ExecutionException
-	 * @throws TimeoutException
 	 */
-	private List<OFStatistics> getAggregateStatistics() throws NoSwitchException , IOException, InterruptedException, ExecutionException, TimeoutException {
+	private Future<List<OFStatistics>> requestAggregateStatistics() throws NoSwitchException , IOException {
 
 	
 
 		Future<List<OFStatistics>> future;
 		IOFSwitch iofSwitch = this.openFlowSwitch;
 		if(iofSwitch == null){
-			
+			throw new NoSwitchException(HexString.toHexString(this.datapathId));
 		}
 
 		OFStatisticsRequest req = new OFStatisticsRequest();
@@ -415,10 +417,9 @@ public class SwitchDevice {
 		req.setLengthU(fsr.getLength() + req.getLength());
 
 		
-			future = iofSwitch.getStatistics(req);
-			List<OFStatistics> values = null;
-			values = future.get(10, TimeUnit.SECONDS);
-			return values;
+		future = iofSwitch.getStatistics(req);
+
+		return future;
 			
 	}
 
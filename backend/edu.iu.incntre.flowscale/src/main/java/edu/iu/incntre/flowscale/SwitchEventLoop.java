@@ -0,0 +1,187 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.util.HexString;
+
+/**
+ * Single thread owning the state of one switch: the groups whose output
+ * switch it is, their rules and the ports of its SwitchDevice. Every change to
+ * that state is queued as an event and run by the loop thread in the order it
+ * was queued, so the state needs no locks no matter which thread the change
+ * came from (beacon IO threads, the http listener, the hot swapping thread or
+ * the switch startup threads).
+ */
+public class SwitchEventLoop {
+
+	private final long datapathId;
+	private final LinkedBlockingQueue<Runnable> events = new LinkedBlockingQueue<Runnable>();
+	private volatile Thread loopThread;
+	private final AtomicLong processedEvents = new AtomicLong();
+
+	public SwitchEventLoop(long datapathId) {
+		this.datapathId = datapathId;
+	}
+
+	public void startUp() {
+
+		loopThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "Switch Event Loop " + HexString.toHexString(datapathId));
+		loopThread.setDaemon(true);
+		loopThread.start();
+
+	}
+
+	public void shutDown() {
+
+		Thread thread = loopThread;
+		loopThread = null;
+
+		if (thread != null) {
+			thread.interrupt();
+		}
+
+		// callers waiting on a dropped event get a CancellationException
+		List<Runnable> dropped = new ArrayList<Runnable>();
+		events.drainTo(dropped);
+
+		for (Runnable event : dropped) {
+			if (event instanceof FutureTask<?>) {
+				((FutureTask<?>) event).cancel(false);
+			}
+		}
+
+	}
+
+	/**
+	 * queue an event without waiting for it to run, the event is dropped with
+	 * a warning once the loop is shut down
+	 *
+	 * @param event
+	 */
+	public void execute(Runnable event) {
+
+		if (!queue(event)) {
+			FlowscaleController.logger.warn(
+					"event loop of switch {} is shut down, event dropped",
+					HexString.toHexString(datapathId));
+		}
+
+	}
+
+	/**
+	 * run an event on the loop and wait for its result, the event is run
+	 * directly when called from the loop thread itself
+	 *
+	 * @param event
+	 * @return value returned by the event
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 *             if the event threw an exception
+	 */
+	public <T> T call(Callable<T> event) throws InterruptedException,
+			ExecutionException {
+
+		if (inEventLoop()) {
+			try {
+				return event.call();
+			} catch (Exception e) {
+				throw new ExecutionException(e);
+			}
+		}
+
+		FutureTask<T> task = new FutureTask<T>(event);
+
+		if (!queue(task)) {
+			task.cancel(false);
+			throw new RejectedExecutionException("event loop of switch "
+					+ HexString.toHexString(datapathId) + " is shut down");
+		}
+
+		return task.get();
+	}
+
+	/**
+	 * add an event to the queue unless the loop is shut down. The loop is
+	 * checked again once the event is queued, an event added after shutDown
+	 * drained the queue would otherwise never run
+	 *
+	 * @return false if the event was not queued
+	 */
+	private boolean queue(Runnable event) {
+
+		if (loopThread == null) {
+			return false;
+		}
+
+		events.add(event);
+
+		// when remove fails the event was run or cancelled by shutDown
+		return loopThread != null || !events.remove(event);
+	}
+
+	/**
+	 * @return true if the calling thread is the loop thread
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == loopThread;
+	}
+
+	public long getDatapathId() {
+		return datapathId;
+	}
+
+	public int getQueueSize() {
+		return events.size();
+	}
+
+	public long getProcessedEvents() {
+		return processedEvents.get();
+	}
+
+	private void loop() {
+
+		while (loopThread != null) {
+
+			Runnable event;
+
+			try {
+				event = events.take();
+			} catch (InterruptedException e) {
+				FlowscaleController.logger.info(
+						"event loop for switch {} interrupted",
+						HexString.toHexString(datapathId));
+				break;
+			}
+
+			try {
+				event.run();
+			} catch (Exception e) {
+				// an event failing must not stop the loop
+				FlowscaleController.logger.error("{}", e);
+			}
+
+			processedEvents.incrementAndGet();
+
+		}
+
+	}
+
+}
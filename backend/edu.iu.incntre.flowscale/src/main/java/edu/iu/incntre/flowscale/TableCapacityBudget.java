@@ -0,0 +1,161 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFTableStatistics;
+import org.openflow.util.HexString;
+
+/**
+ * Flow table space of a switch as reported by its table statistics, used to
+ * limit how finely the groups of the switch split their values so their rules
+ * fit in the table.
+ *
+ * Every group is first given one rule per value, the rest of the table is
+ * then handed out in group priority order: a group keeps its
+ * maximumFlowsAllowed if the remaining space allows it, otherwise its flow
+ * budget is halved until its rules fit, so lower priority groups are the first
+ * to be split less.
+ */
+public class TableCapacityBudget {
+
+	private final long datapathId;
+	private final int maximumEntries;
+	private final int activeCount;
+
+	public TableCapacityBudget(long datapathId, int maximumEntries,
+			int activeCount) {
+
+		this.datapathId = datapathId;
+		this.maximumEntries = maximumEntries;
+		this.activeCount = activeCount;
+
+	}
+
+	/**
+	 * only the tables that can wildcard fields hold FlowScale rules, if no
+	 * table reports wildcards every table is counted
+	 *
+	 * @param datapathId
+	 * @param tableStatistics
+	 *            reply to a table statistics request
+	 * @return budget of the switch
+	 */
+	public static TableCapacityBudget fromTableStatistics(long datapathId,
+			List<OFStatistics> tableStatistics) {
+
+		int maximumEntries = 0;
+		int activeCount = 0;
+		int allMaximumEntries = 0;
+		int allActiveCount = 0;
+
+		for (OFStatistics statistics : tableStatistics) {
+
+			OFTableStatistics table = (OFTableStatistics) statistics;
+			allMaximumEntries += table.getMaximumEntries();
+			allActiveCount += table.getActiveCount();
+
+			if (table.getWildcards() != 0) {
+				maximumEntries += table.getMaximumEntries();
+				activeCount += table.getActiveCount();
+			}
+		}
+
+		if (maximumEntries == 0) {
+			maximumEntries = allMaximumEntries;
+			activeCount = allActiveCount;
+		}
+
+		return new TableCapacityBudget(datapathId, maximumEntries, activeCount);
+	}
+
+	/**
+	 * set the flow budget of every group so that all their rules fit in the
+	 * given number of entries, the budgets are left unchanged if even one rule
+	 * per value does not fit
+	 *
+	 * @param groups
+	 *            groups whose output switch is this switch
+	 * @param availableEntries
+	 *            entries the groups may use
+	 * @return false if the groups do not fit
+	 */
+	public boolean allocate(Collection<Group> groups, int availableEntries) {
+
+		List<Group> byPriority = new ArrayList<Group>(groups);
+		Collections.sort(byPriority, new Comparator<Group>() {
+
+			@Override
+			public int compare(Group group, Group otherGroup) {
+				return otherGroup.getPriority() - group.getPriority();
+			}
+		});
+
+		int remaining = availableEntries;
+
+		for (Group group : byPriority) {
+			remaining -= group.estimateRuleCount(0);
+		}
+
+		if (remaining < 0) {
+			FlowscaleController.logger.error(
+					"flow table of switch {} has {} entries available but its groups need at least {}",
+					new Object[] { HexString.toHexString(datapathId),
+							availableEntries, availableEntries - remaining });
+			return false;
+		}
+
+		for (Group group : byPriority) {
+
+			int minimum = group.estimateRuleCount(0);
+			int budget = group.getMaximumFlowsAllowed();
+
+			while (budget > 0
+					&& group.estimateRuleCount(budget) - minimum > remaining) {
+				budget = budget / 2;
+			}
+
+			remaining -= group.estimateRuleCount(budget) - minimum;
+
+			if (budget == group.getMaximumFlowsAllowed()) {
+				group.setFlowBudget(Integer.MAX_VALUE);
+			} else {
+				FlowscaleController.logger.info(
+						"group {} limited to {} flows to fit the flow table of switch {}",
+						new Object[] { group.getGrouopId(), budget,
+								HexString.toHexString(datapathId) });
+				group.setFlowBudget(budget);
+			}
+		}
+
+		return true;
+	}
+
+	public long getDatapathId() {
+		return datapathId;
+	}
+
+	/**
+	 * @return entries of the tables holding FlowScale rules
+	 */
+	public int getMaximumEntries() {
+		return maximumEntries;
+	}
+
+	/**
+	 * @return entries in use when the statistics were read
+	 */
+	public int getActiveCount() {
+		return activeCount;
+	}
+
+}
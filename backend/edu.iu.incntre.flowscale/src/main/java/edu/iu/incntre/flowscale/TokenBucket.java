@@ -0,0 +1,100 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale;
+
+/**
+ * Token bucket used to pace the flow mods sent to a switch, tokens are added
+ * at a fixed rate per second up to the burst size. A rate of zero or less
+ * means the bucket never runs out of tokens.
+ */
+public class TokenBucket {
+
+	private final double ratePerSecond;
+	private final double burstSize;
+	private double tokens;
+	private long lastRefill;
+
+	public TokenBucket(double ratePerSecond, int burstSize) {
+
+		this.ratePerSecond = ratePerSecond;
+		this.burstSize = Math.max(1, burstSize);
+		this.tokens = this.burstSize;
+		this.lastRefill = System.nanoTime();
+
+	}
+
+	/**
+	 * take one token if available without waiting
+	 *
+	 * @return true if a token was taken
+	 */
+	public synchronized boolean tryAcquire() {
+
+		if (ratePerSecond <= 0) {
+			return true;
+		}
+
+		refill();
+
+		if (tokens >= 1) {
+			tokens -= 1;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * take one token, waiting until one is available
+	 *
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException {
+
+		while (!tryAcquire()) {
+
+			long waitNanos = getNanosUntilNextToken();
+			Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+
+		}
+
+	}
+
+	public double getRatePerSecond() {
+		return ratePerSecond;
+	}
+
+	public int getBurstSize() {
+		return (int) burstSize;
+	}
+
+	/**
+	 * @return nanoseconds until a token is available, 0 if one is available
+	 *         now
+	 */
+	public synchronized long getNanosUntilNextToken() {
+
+		refill();
+
+		double missing = 1 - tokens;
+
+		if (missing <= 0) {
+			return 0;
+		}
+
+		return (long) Math.ceil(missing * 1000000000L / ratePerSecond);
+	}
+
+	private void refill() {
+
+		long now = System.nanoTime();
+		tokens = Math.min(burstSize, tokens + (now - lastRefill)
+				* ratePerSecond / 1000000000L);
+		lastRefill = now;
+
+	}
+
+}
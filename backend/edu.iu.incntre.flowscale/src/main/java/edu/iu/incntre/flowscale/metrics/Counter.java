@@ -0,0 +1,34 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count that only goes up, safe to increment from any thread
+ */
+public class Counter extends Metric {
+
+	private final AtomicLong count = new AtomicLong();
+
+	public void increment() {
+		count.incrementAndGet();
+	}
+
+	public void add(long amount) {
+		count.addAndGet(amount);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	void write(StringBuilder out, String name, String labels) {
+		writeSample(out, name, labels, Long.toString(count.get()));
+	}
+
+}
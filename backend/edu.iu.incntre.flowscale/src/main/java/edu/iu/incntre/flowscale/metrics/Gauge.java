@@ -0,0 +1,15 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.metrics;
+
+/**
+ * Value read when the metrics are written, such as the size of a queue
+ */
+public interface Gauge {
+
+	double getValue();
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations over fixed buckets from 1 ms to 10 minutes, the
+ * longest for switch startups, written in seconds as cumulative buckets with
+ * their sum and count
+ */
+public class Histogram extends Metric {
+
+	private static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01,
+			0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300,
+			600 };
+
+	private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+
+	static {
+		for (int i = 0; i < BUCKETS.length; i++) {
+			BUCKET_NANOS[i] = Math.round(BUCKETS[i] * 1e9);
+		}
+	}
+
+	// the last entry counts the durations above every bucket
+	private final AtomicLongArray counts = new AtomicLongArray(
+			BUCKETS.length + 1);
+	private final AtomicLong sumNanos = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            duration in nanoseconds
+	 */
+	public void observe(long nanos) {
+
+		int bucket = 0;
+
+		while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+			bucket++;
+		}
+
+		counts.incrementAndGet(bucket);
+		sumNanos.addAndGet(nanos);
+
+	}
+
+	public long getCount() {
+
+		long count = 0;
+
+		for (int i = 0; i < counts.length(); i++) {
+			count += counts.get(i);
+		}
+
+		return count;
+	}
+
+	@Override
+	void write(StringBuilder out, String name, String labels) {
+
+		String prefix = labels.length() > 0 ? labels + "," : "";
+		long cumulative = 0;
+
+		for (int i = 0; i < BUCKETS.length; i++) {
+			cumulative += counts.get(i);
+			writeSample(out, name + "_bucket", prefix + "le=\""
+					+ formatValue(BUCKETS[i]) + "\"", Long.toString(cumulative));
+		}
+
+		cumulative += counts.get(BUCKETS.length);
+		writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"",
+				Long.toString(cumulative));
+		writeSample(out, name + "_sum", labels,
+				formatValue(sumNanos.get() / 1e9));
+		writeSample(out, name + "_count", labels, Long.toString(cumulative));
+
+	}
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counter that also keeps the rate of events per second, averaged over the
+ * last minute with an exponentially weighted moving average. The average is
+ * updated every 5 seconds by whichever thread marks or reads the meter, so no
+ * timer thread is needed.
+ */
+public class Meter extends Counter {
+
+	private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+	private static final double ALPHA = 1 - Math.exp(-5.0 / 60.0);
+
+	private final AtomicLong uncounted = new AtomicLong();
+	private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+	private volatile double rate;
+	private boolean initialized;
+
+	public void mark(long events) {
+
+		tickIfNecessary();
+		add(events);
+		uncounted.addAndGet(events);
+
+	}
+
+	/**
+	 * @return events per second over about the last minute
+	 */
+	public double getRate() {
+
+		tickIfNecessary();
+		return rate;
+	}
+
+	private void tickIfNecessary() {
+
+		long oldTick = lastTick.get();
+		long now = System.nanoTime();
+		long age = now - oldTick;
+
+		if (age < TICK_INTERVAL) {
+			return;
+		}
+
+		// only the thread that moves lastTick does the ticks it covers
+		if (lastTick.compareAndSet(oldTick, now - age % TICK_INTERVAL)) {
+			for (long i = age / TICK_INTERVAL; i > 0; i--) {
+				tick();
+			}
+		}
+
+	}
+
+	private synchronized void tick() {
+
+		double instantRate = uncounted.getAndSet(0)
+				/ (double) TimeUnit.NANOSECONDS.toSeconds(TICK_INTERVAL);
+
+		if (initialized) {
+			rate += ALPHA * (instantRate - rate);
+		} else {
+			rate = instantRate;
+			initialized = true;
+		}
+
+	}
+
+}
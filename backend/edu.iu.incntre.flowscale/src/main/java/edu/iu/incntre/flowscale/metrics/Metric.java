@@ -0,0 +1,50 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.metrics;
+
+/**
+ * One labeled series of a metric family, written by the registry in the text
+ * exposition format
+ */
+abstract class Metric {
+
+	/**
+	 * @param out
+	 *            text being built
+	 * @param name
+	 *            name of the family
+	 * @param labels
+	 *            labels of the series without braces, empty if there are none
+	 */
+	abstract void write(StringBuilder out, String name, String labels);
+
+	static void writeSample(StringBuilder out, String name, String labels,
+			String value) {
+
+		out.append(name);
+
+		if (labels.length() > 0) {
+			out.append('{').append(labels).append('}');
+		}
+
+		out.append(' ').append(value).append('\n');
+
+	}
+
+	static String formatValue(double value) {
+
+		if (Double.isNaN(value)) {
+			return "NaN";
+		} else if (Double.isInfinite(value)) {
+			return value > 0 ? "+Inf" : "-Inf";
+		} else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+
+		return Double.toString(value);
+	}
+
+}
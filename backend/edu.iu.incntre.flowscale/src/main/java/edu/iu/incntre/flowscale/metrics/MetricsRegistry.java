@@ -0,0 +1,237 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Metrics of the controller by name and labels, written in the Prometheus
+ * text exposition format by toText.
+ *
+ * Asking twice for the same name and labels returns the same counter or
+ * histogram, so callers can look them up where they record instead of keeping
+ * them. Gauges are read when the text is written, registering a gauge again
+ * for the same labels replaces it. Labels are given as name, value pairs.
+ */
+public class MetricsRegistry {
+
+	private static final String COUNTER = "counter";
+	private static final String GAUGE = "gauge";
+	private static final String HISTOGRAM = "histogram";
+
+	private final ConcurrentSkipListMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+	private static class Family {
+
+		final String help;
+		final String type;
+		final ConcurrentMap<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+
+		Family(String help, String type) {
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * gauge written as a sample of its family
+	 */
+	private static class GaugeMetric extends Metric {
+
+		private final Gauge gauge;
+
+		GaugeMetric(Gauge gauge) {
+			this.gauge = gauge;
+		}
+
+		@Override
+		void write(StringBuilder out, String name, String labels) {
+			writeSample(out, name, labels, formatValue(gauge.getValue()));
+		}
+	}
+
+	public Counter counter(String name, String help, String... labels) {
+
+		Family family = family(name, help, COUNTER);
+		String labelString = labelString(labels);
+		Metric metric = family.metrics.get(labelString);
+
+		if (metric == null) {
+			Metric created = new Counter();
+			metric = family.metrics.putIfAbsent(labelString, created);
+			if (metric == null) {
+				metric = created;
+			}
+		}
+
+		return (Counter) metric;
+	}
+
+	/**
+	 * counter kept elsewhere, such as the statistics of the flow mod
+	 * dispatcher, read when the text is written
+	 */
+	public void counter(String name, String help, Gauge count,
+			String... labels) {
+
+		family(name, help, COUNTER).metrics.put(labelString(labels),
+				new GaugeMetric(count));
+
+	}
+
+	public void gauge(String name, String help, Gauge gauge, String... labels) {
+
+		family(name, help, GAUGE).metrics.put(labelString(labels),
+				new GaugeMetric(gauge));
+
+	}
+
+	/**
+	 * meter written as the counter name_total and the gauge name_per_second
+	 */
+	public Meter meter(String name, String help, String... labels) {
+
+		Family family = family(name + "_total", help, COUNTER);
+		String labelString = labelString(labels);
+		Metric metric = family.metrics.get(labelString);
+
+		if (metric != null) {
+			return (Meter) metric;
+		}
+
+		final Meter meter = new Meter();
+		metric = family.metrics.putIfAbsent(labelString, meter);
+
+		if (metric != null) {
+			// registered by another thread, which also adds the rate
+			return (Meter) metric;
+		}
+
+		family(name + "_per_second", help + ", per second over the last minute",
+				GAUGE).metrics.put(labelString, new GaugeMetric(new Gauge() {
+
+			@Override
+			public double getValue() {
+				return meter.getRate();
+			}
+		}));
+
+		return meter;
+	}
+
+	public Histogram histogram(String name, String help, String... labels) {
+
+		Family family = family(name, help, HISTOGRAM);
+		String labelString = labelString(labels);
+		Metric metric = family.metrics.get(labelString);
+
+		if (metric == null) {
+			Metric created = new Histogram();
+			metric = family.metrics.putIfAbsent(labelString, created);
+			if (metric == null) {
+				metric = created;
+			}
+		}
+
+		return (Histogram) metric;
+	}
+
+	/**
+	 * @return every metric in the text exposition format, families sorted by
+	 *         name
+	 */
+	public String toText() {
+
+		StringBuilder out = new StringBuilder();
+
+		for (Map.Entry<String, Family> entry : families.entrySet()) {
+
+			String name = entry.getKey();
+			Family family = entry.getValue();
+
+			if (family.metrics.isEmpty()) {
+				continue;
+			}
+
+			out.append("# HELP ").append(name).append(' ')
+					.append(family.help.replace("\\", "\\\\").replace("\n", "\\n"))
+					.append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(family.type)
+					.append('\n');
+
+			for (Map.Entry<String, Metric> metric : family.metrics.entrySet()) {
+				metric.getValue().write(out, name, metric.getKey());
+			}
+		}
+
+		return out.toString();
+	}
+
+	private Family family(String name, String help, String type) {
+
+		Family family = families.get(name);
+
+		if (family == null) {
+			Family created = new Family(help, type);
+			family = families.putIfAbsent(name, created);
+			if (family == null) {
+				family = created;
+			}
+		}
+
+		if (!family.type.equals(type)) {
+			throw new IllegalArgumentException("metric " + name + " is a "
+					+ family.type + ", not a " + type);
+		}
+
+		return family;
+	}
+
+	private String labelString(String[] labels) {
+
+		if (labels.length == 0) {
+			return "";
+		}
+
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException(
+					"labels must be name, value pairs");
+		}
+
+		StringBuilder builder = new StringBuilder();
+
+		for (int i = 0; i < labels.length; i += 2) {
+
+			if (i > 0) {
+				builder.append(',');
+			}
+
+			builder.append(labels[i]).append("=\"");
+
+			String value = labels[i + 1];
+
+			for (int j = 0; j < value.length(); j++) {
+
+				char c = value.charAt(j);
+
+				if (c == '\\' || c == '"') {
+					builder.append('\\').append(c);
+				} else if (c == '\n') {
+					builder.append("\\n");
+				} else {
+					builder.append(c);
+				}
+			}
+
+			builder.append('"');
+		}
+
+		return builder.toString();
+	}
+
+}
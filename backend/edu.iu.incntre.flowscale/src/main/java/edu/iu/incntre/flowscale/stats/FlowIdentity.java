@@ -0,0 +1,131 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.stats;
+
+import grnoc.net.util.ipaddress.IPv4Prefix;
+
+/**
+ * A flow match string with the source and destination prefixes FlowScale
+ * balances on, parsed once so the bundles reading the statistics do not have
+ * to search the string again. The prefixes are packed by IPv4Prefix.pack, or
+ * IPv4Prefix.NO_PREFIX when the match does not have the field.
+ */
+public class FlowIdentity {
+
+	private final String match;
+	private final long networkSource;
+	private final long networkDestination;
+
+	public FlowIdentity(String match, long networkSource,
+			long networkDestination) {
+
+		this.match = match;
+		this.networkSource = networkSource;
+		this.networkDestination = networkDestination;
+
+	}
+
+	/**
+	 * @param match
+	 *            match as written by OFMatch.toString, e.g.
+	 *            "OFMatch[dl_type=0x800,nw_src=192.168.0.0/21]"
+	 * @return the identity of the match, an address without a length is a /32
+	 */
+	public static FlowIdentity parse(String match) {
+
+		return new FlowIdentity(match, parseField(match, "nw_src="),
+				parseField(match, "nw_dst="));
+	}
+
+	/**
+	 * @return packed prefix following the field, NO_PREFIX if the match does
+	 *         not have it or it is not a prefix
+	 */
+	private static long parseField(String match, String field) {
+
+		int start = match.indexOf(field);
+
+		if (start < 0) {
+			return IPv4Prefix.NO_PREFIX;
+		}
+
+		start += field.length();
+		int end = start;
+		int slash = -1;
+
+		while (end < match.length() && match.charAt(end) != ','
+				&& match.charAt(end) != ']') {
+
+			if (match.charAt(end) == '/') {
+				slash = end;
+			}
+
+			end++;
+		}
+
+		try {
+
+			if (slash < 0) {
+				return IPv4Prefix.pack(
+						IPv4Prefix.parseAddress(match, start, end), 32);
+			}
+
+			return IPv4Prefix.pack(IPv4Prefix.parseAddress(match, start, slash),
+					IPv4Prefix.parseLength(match, slash + 1, end));
+
+		} catch (NumberFormatException e) {
+			return IPv4Prefix.NO_PREFIX;
+		}
+	}
+
+	public String getMatch() {
+		return match;
+	}
+
+	/**
+	 * @return packed source prefix, NO_PREFIX if the match has none
+	 */
+	public long getNetworkSource() {
+		return networkSource;
+	}
+
+	/**
+	 * @return packed destination prefix, NO_PREFIX if the match has none
+	 */
+	public long getNetworkDestination() {
+		return networkDestination;
+	}
+
+	/**
+	 * @return true if the match has a source or destination prefix, the only
+	 *         flows the hot swap moves
+	 */
+	public boolean isLayer3() {
+		return networkSource != IPv4Prefix.NO_PREFIX
+				|| networkDestination != IPv4Prefix.NO_PREFIX;
+	}
+
+	@Override
+	public int hashCode() {
+		return match.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object object) {
+
+		if (!(object instanceof FlowIdentity)) {
+			return false;
+		}
+
+		return match.equals(((FlowIdentity) object).match);
+	}
+
+	@Override
+	public String toString() {
+		return match;
+	}
+
+}
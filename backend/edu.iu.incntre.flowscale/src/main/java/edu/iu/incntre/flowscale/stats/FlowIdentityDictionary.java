@@ -0,0 +1,393 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.stats;
+
+import grnoc.net.util.ipaddress.IPv4Prefix;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Integer ids of the flow matches, kept in the flow_identity table so the
+ * statistics tables store the id of a flow instead of its match string. Each
+ * row also holds the source and destination prefixes of the match, so readers
+ * get them without parsing the string.
+ *
+ * Up to capacity rows read or added are cached, the least recently used
+ * being dropped first. The matches that are not cached are looked up in the
+ * database together and only those it does not have are added, so a working
+ * set larger than the cache costs one select per batch of misses. An id that
+ * is not cached is read on its own, or with the rows added since the last
+ * read when it is newer than them. The first read starts at the last row of
+ * the table, the older rows are only read when asked for. Ids are given by
+ * the database, so writers and readers in other processes agree on them. Rows
+ * are added with insert ignore, which is MySQL syntax, and are never removed,
+ * a match keeps its id for as long as the table exists.
+ */
+public class FlowIdentityDictionary {
+
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	// matches looked up by one select
+	private static final int LOOKUP_BATCH_SIZE = 256;
+
+	private static final String INSERT_IDENTITY = "insert ignore into flow_identity"
+			+ " (match_string, nw_src, nw_src_length, nw_dst, nw_dst_length) values (?,?,?,?,?)";
+	private static final String SELECT_IDENTITY = "select flow_id, match_string, nw_src, nw_src_length,"
+			+ " nw_dst, nw_dst_length from flow_identity";
+	private static final String SELECT_NEW_IDENTITIES = SELECT_IDENTITY
+			+ " where flow_id > ? order by flow_id";
+	private static final String SELECT_IDENTITY_BY_ID = SELECT_IDENTITY
+			+ " where flow_id = ?";
+	private static final String SELECT_IDENTITIES_BY_MATCH = SELECT_IDENTITY
+			+ " where match_string in ";
+	private static final String SELECT_LAST_ID = "select max(flow_id) from flow_identity";
+
+	private final HashMap<String, Integer> flowIds = new HashMap<String, Integer>();
+	private final LinkedHashMap<Integer, FlowIdentity> identities;
+	// -1 until the first read
+	private int lastLoadedId = -1;
+
+	public FlowIdentityDictionary() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            rows kept in memory
+	 */
+	public FlowIdentityDictionary(final int capacity) {
+
+		identities = new LinkedHashMap<Integer, FlowIdentity>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Integer, FlowIdentity> eldest) {
+
+				if (size() <= Math.max(1, capacity)) {
+					return false;
+				}
+
+				flowIds.remove(eldest.getValue().getMatch());
+				return true;
+			}
+		};
+
+	}
+
+	/**
+	 * ids of the matches of the flows, the matches seen for the first time are
+	 * added to flow_identity. Call it outside of a transaction so the rows
+	 * added are kept if the transaction rolls back
+	 *
+	 * @param conn
+	 * @param flows
+	 * @return id of the match of each flow
+	 * @throws SQLException
+	 */
+	public synchronized int[] getFlowIds(Connection conn, List<FlowSample> flows)
+			throws SQLException {
+
+		int[] ids = new int[flows.size()];
+		LinkedHashSet<String> misses = new LinkedHashSet<String>();
+
+		for (int i = 0; i < ids.length; i++) {
+
+			Integer flowId = flowIds.get(flows.get(i).getMatch());
+
+			if (flowId != null) {
+				// keeps the row from being the next one dropped
+				identities.get(flowId);
+				ids[i] = flowId;
+			} else {
+				ids[i] = -1;
+				misses.add(flows.get(i).getMatch());
+			}
+		}
+
+		if (misses.isEmpty()) {
+			return ids;
+		}
+
+		// the misses may not all fit in the cache, their ids are kept here
+		HashMap<String, Integer> found = selectByMatch(conn, misses);
+
+		misses.removeAll(found.keySet());
+
+		if (!misses.isEmpty()) {
+			insert(conn, misses);
+			found.putAll(selectByMatch(conn, misses));
+		}
+
+		for (int i = 0; i < ids.length; i++) {
+
+			if (ids[i] >= 0) {
+				continue;
+			}
+
+			String match = flows.get(i).getMatch();
+			Integer flowId = found.get(match);
+
+			if (flowId == null) {
+				throw new SQLException("flow_identity has no row for " + match);
+			}
+
+			ids[i] = flowId;
+		}
+
+		return ids;
+	}
+
+	/**
+	 * @param conn
+	 * @param flowId
+	 *            id read from a statistics table
+	 * @return identity of the id, null if flow_identity does not have it
+	 * @throws SQLException
+	 */
+	public synchronized FlowIdentity getIdentity(Connection conn, int flowId)
+			throws SQLException {
+
+		FlowIdentity identity = identities.get(flowId);
+
+		if (identity == null && flowId > lastLoadedId) {
+			load(conn);
+			identity = identities.get(flowId);
+		}
+
+		if (identity == null && flowId <= lastLoadedId) {
+			identity = select(conn, SELECT_IDENTITY_BY_ID, flowId);
+		}
+
+		return identity;
+	}
+
+	/**
+	 * @return number of matches cached
+	 */
+	public synchronized int size() {
+		return identities.size();
+	}
+
+	/**
+	 * add the matches to flow_identity, those added in the meantime by
+	 * another writer are ignored
+	 */
+	private void insert(Connection conn, Collection<String> matches)
+			throws SQLException {
+
+		PreparedStatement statement = conn.prepareStatement(INSERT_IDENTITY);
+
+		try {
+			for (String match : matches) {
+
+				FlowIdentity identity = FlowIdentity.parse(match);
+
+				statement.setString(1, match);
+				setPrefix(statement, 2, identity.getNetworkSource());
+				setPrefix(statement, 4, identity.getNetworkDestination());
+				statement.addBatch();
+			}
+
+			statement.executeBatch();
+		} finally {
+			statement.close();
+		}
+
+	}
+
+	/**
+	 * read the rows of the matches, LOOKUP_BATCH_SIZE matches at a time
+	 *
+	 * @return id of each match flow_identity has
+	 */
+	private HashMap<String, Integer> selectByMatch(Connection conn,
+			Collection<String> matches) throws SQLException {
+
+		HashMap<String, Integer> found = new HashMap<String, Integer>();
+		Iterator<String> iterator = matches.iterator();
+
+		while (iterator.hasNext()) {
+
+			ArrayList<String> lookup = new ArrayList<String>();
+
+			while (iterator.hasNext() && lookup.size() < LOOKUP_BATCH_SIZE) {
+				lookup.add(iterator.next());
+			}
+
+			StringBuilder query = new StringBuilder(SELECT_IDENTITIES_BY_MATCH)
+					.append('(');
+
+			for (int i = 0; i < lookup.size(); i++) {
+				query.append(i == 0 ? "?" : ",?");
+			}
+
+			PreparedStatement statement = conn.prepareStatement(query.append(
+					')').toString());
+
+			try {
+				for (int i = 0; i < lookup.size(); i++) {
+					statement.setString(i + 1, lookup.get(i));
+				}
+
+				ResultSet resultSet = statement.executeQuery();
+
+				while (resultSet.next()) {
+					FlowIdentity identity = cache(resultSet);
+					found.put(identity.getMatch(), resultSet.getInt(1));
+				}
+
+				resultSet.close();
+			} finally {
+				statement.close();
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * read the rows added since the last read, the first read only finds
+	 * where the table ends
+	 */
+	private void load(Connection conn) throws SQLException {
+
+		if (lastLoadedId < 0) {
+
+			Statement lastId = conn.createStatement();
+
+			try {
+				ResultSet resultSet = lastId.executeQuery(SELECT_LAST_ID);
+				lastLoadedId = resultSet.next() ? resultSet.getInt(1) : 0;
+				resultSet.close();
+			} finally {
+				lastId.close();
+			}
+		}
+
+		PreparedStatement statement = conn
+				.prepareStatement(SELECT_NEW_IDENTITIES);
+
+		try {
+			statement.setInt(1, lastLoadedId);
+
+			ResultSet resultSet = statement.executeQuery();
+
+			while (resultSet.next()) {
+				cache(resultSet);
+				lastLoadedId = resultSet.getInt(1);
+			}
+
+			resultSet.close();
+		} finally {
+			statement.close();
+		}
+
+	}
+
+	/**
+	 * read one row by its id
+	 *
+	 * @return identity of the row, null if flow_identity does not have it
+	 */
+	private FlowIdentity select(Connection conn, String query, Object key)
+			throws SQLException {
+
+		PreparedStatement statement = conn.prepareStatement(query);
+
+		try {
+			statement.setObject(1, key);
+
+			ResultSet resultSet = statement.executeQuery();
+			FlowIdentity identity = resultSet.next() ? cache(resultSet) : null;
+
+			resultSet.close();
+			return identity;
+		} finally {
+			statement.close();
+		}
+
+	}
+
+	private FlowIdentity cache(ResultSet resultSet) throws SQLException {
+
+		int flowId = resultSet.getInt(1);
+		String match = resultSet.getString(2);
+		FlowIdentity identity = new FlowIdentity(match, getPrefix(resultSet, 3),
+				getPrefix(resultSet, 5));
+
+		flowIds.put(match, flowId);
+		identities.put(flowId, identity);
+
+		return identity;
+	}
+
+	private static void setPrefix(PreparedStatement statement, int index,
+			long prefix) throws SQLException {
+
+		if (prefix == IPv4Prefix.NO_PREFIX) {
+			statement.setNull(index, Types.BIGINT);
+			statement.setNull(index + 1, Types.INTEGER);
+			return;
+		}
+
+		statement.setLong(index, IPv4Prefix.address(prefix) & 0xffffffffL);
+		statement.setInt(index + 1, IPv4Prefix.length(prefix));
+
+	}
+
+	private static long getPrefix(ResultSet resultSet, int index)
+			throws SQLException {
+
+		long address = resultSet.getLong(index);
+
+		if (resultSet.wasNull()) {
+			return IPv4Prefix.NO_PREFIX;
+		}
+
+		return IPv4Prefix.pack((int) address, resultSet.getInt(index + 1));
+	}
+
+	/**
+	 * create flow_identity if it does not exist, for databases created before
+	 * it
+	 *
+	 * @throws SQLException
+	 */
+	public static void createTable(Connection conn) throws SQLException {
+
+		Statement statement = conn.createStatement();
+
+		try {
+			statement.executeUpdate("create table if not exists flow_identity"
+					+ " (flow_id int not null auto_increment,"
+					+ " match_string varchar(255) not null,"
+					+ " nw_src bigint, nw_src_length int,"
+					+ " nw_dst bigint, nw_dst_length int,"
+					+ " primary key (flow_id),"
+					+ " unique key flow_identity_match (match_string))"
+					+ " engine=InnoDB");
+		} finally {
+			statement.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.stats;
+
+/**
+ * Packets counted by a flow over a window of samples, with the actions and
+ * priority it had in the latest of them
+ */
+public class FlowLoad {
+
+	private final int flowId;
+	private final FlowIdentity identity;
+	private final String actions;
+	private final short priority;
+	private final long packetCount;
+
+	/**
+	 * @param flowId
+	 *            id of the match in the sample store of its switch
+	 * @param identity
+	 *            match of the flow with its prefixes
+	 * @param actions
+	 *            output ports separated by commas, or DROP
+	 * @param priority
+	 * @param packetCount
+	 *            packets counted in the window
+	 */
+	public FlowLoad(int flowId, FlowIdentity identity, String actions,
+			short priority, long packetCount) {
+
+		this.flowId = flowId;
+		this.identity = identity;
+		this.actions = actions;
+		this.priority = priority;
+		this.packetCount = packetCount;
+
+	}
+
+	public int getFlowId() {
+		return flowId;
+	}
+
+	public String getMatch() {
+		return identity.getMatch();
+	}
+
+	public FlowIdentity getIdentity() {
+		return identity;
+	}
+
+	public String getActions() {
+		return actions;
+	}
+
+	public short getPriority() {
+		return priority;
+	}
+
+	public long getPacketCount() {
+		return packetCount;
+	}
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.util.U16;
+
+/**
+ * Counters of one flow as read from a flow statistics reply. The match is kept
+ * as the string stored in the database and the actions as the output ports
+ * separated by commas, or DROP when the flow has no output.
+ */
+public class FlowSample {
+
+	private final String match;
+	private final String actions;
+	private final short priority;
+	private final long packetCount;
+	private final long byteCount;
+	private final long durationSeconds;
+	private final short idleTimeout;
+	private final short hardTimeout;
+	private final byte tableId;
+
+	public FlowSample(String match, String actions, short priority,
+			long packetCount, long byteCount, long durationSeconds,
+			short idleTimeout, short hardTimeout, byte tableId) {
+
+		this.match = match;
+		this.actions = actions;
+		this.priority = priority;
+		this.packetCount = packetCount;
+		this.byteCount = byteCount;
+		this.durationSeconds = durationSeconds;
+		this.idleTimeout = idleTimeout;
+		this.hardTimeout = hardTimeout;
+		this.tableId = tableId;
+
+	}
+
+	public static FlowSample fromReply(OFFlowStatisticsReply reply) {
+
+		return new FlowSample(reply.getMatch().toString(),
+				outputPorts(reply.getActions()), reply.getPriority(),
+				reply.getPacketCount(), reply.getByteCount(),
+				reply.getDurationSeconds() & 0xffffffffL,
+				reply.getIdleTimeout(), reply.getHardTimeout(),
+				reply.getTableId());
+	}
+
+	/**
+	 * @param statistics
+	 *            flow statistics replies
+	 * @return one sample per flow
+	 */
+	public static List<FlowSample> fromStatistics(List<OFStatistics> statistics) {
+
+		List<FlowSample> samples = new ArrayList<FlowSample>(statistics.size());
+
+		for (OFStatistics flowStatistics : statistics) {
+			samples.add(fromReply((OFFlowStatisticsReply) flowStatistics));
+		}
+
+		return samples;
+	}
+
+	/**
+	 * @return output ports of the actions as unsigned numbers separated by
+	 *         commas, DROP if there is none
+	 */
+	public static String outputPorts(List<OFAction> actions) {
+
+		StringBuilder ports = new StringBuilder();
+
+		if (actions != null) {
+			for (OFAction action : actions) {
+
+				if (!(action instanceof OFActionOutput)) {
+					continue;
+				}
+
+				if (ports.length() > 0) {
+					ports.append(',');
+				}
+
+				ports.append(U16.f(((OFActionOutput) action).getPort()));
+			}
+		}
+
+		return ports.length() == 0 ? "DROP" : ports.toString();
+	}
+
+	public String getMatch() {
+		return match;
+	}
+
+	public String getActions() {
+		return actions;
+	}
+
+	public short getPriority() {
+		return priority;
+	}
+
+	public long getPacketCount() {
+		return packetCount;
+	}
+
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * @return seconds the flow has been installed, it starts again from 0
+	 *         when the flow is replaced
+	 */
+	public long getDurationSeconds() {
+		return durationSeconds;
+	}
+
+	public short getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public short getHardTimeout() {
+		return hardTimeout;
+	}
+
+	public byte getTableId() {
+		return tableId;
+	}
+
+}
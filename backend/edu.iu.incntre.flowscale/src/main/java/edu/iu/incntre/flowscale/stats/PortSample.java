@@ -0,0 +1,87 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+
+/**
+ * Counters of one port as read from a port statistics reply
+ */
+public class PortSample {
+
+	private final short portNumber;
+	private final long receivePackets;
+	private final long transmitPackets;
+	private final long receiveBytes;
+	private final long transmitBytes;
+
+	public PortSample(short portNumber, long receivePackets,
+			long transmitPackets, long receiveBytes, long transmitBytes) {
+
+		this.portNumber = portNumber;
+		this.receivePackets = receivePackets;
+		this.transmitPackets = transmitPackets;
+		this.receiveBytes = receiveBytes;
+		this.transmitBytes = transmitBytes;
+
+	}
+
+	public static PortSample fromReply(OFPortStatisticsReply reply) {
+
+		return new PortSample(reply.getPortNumber(), reply.getreceivePackets(),
+				reply.getTransmitPackets(), reply.getReceiveBytes(),
+				reply.getTransmitBytes());
+	}
+
+	/**
+	 * @param statistics
+	 *            port statistics replies
+	 * @return one sample per port, the reserved ports above OFPP_LOCAL are
+	 *         left out
+	 */
+	public static List<PortSample> fromStatistics(List<OFStatistics> statistics) {
+
+		List<PortSample> samples = new ArrayList<PortSample>(statistics.size());
+
+		for (OFStatistics portStatistics : statistics) {
+
+			OFPortStatisticsReply reply = (OFPortStatisticsReply) portStatistics;
+
+			if (reply.getPortNumber() < -2) {
+				continue;
+			}
+
+			samples.add(fromReply(reply));
+		}
+
+		return samples;
+	}
+
+	public short getPortNumber() {
+		return portNumber;
+	}
+
+	public long getReceivePackets() {
+		return receivePackets;
+	}
+
+	public long getTransmitPackets() {
+		return transmitPackets;
+	}
+
+	public long getReceiveBytes() {
+		return receiveBytes;
+	}
+
+	public long getTransmitBytes() {
+		return transmitBytes;
+	}
+
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.util.HexString;
+
+/**
+ * Link state of one port of a switch when its statistics were read
+ */
+public class PortStateSample {
+
+	private final short portNumber;
+	private final String hardwareAddress;
+	private final int state;
+
+	public PortStateSample(short portNumber, String hardwareAddress, int state) {
+
+		this.portNumber = portNumber;
+		this.hardwareAddress = hardwareAddress;
+		this.state = state;
+
+	}
+
+	/**
+	 * @param ports
+	 *            ports of the switch
+	 * @return one sample per physical port, the reserved ports are left out
+	 */
+	public static List<PortStateSample> fromPorts(List<OFPhysicalPort> ports) {
+
+		List<PortStateSample> samples = new ArrayList<PortStateSample>(
+				ports.size());
+
+		for (OFPhysicalPort port : ports) {
+
+			if (port.getPortNumber() < 0) {
+				continue;
+			}
+
+			samples.add(new PortStateSample(port.getPortNumber(), HexString
+					.toHexString(port.getHardwareAddress()), port.getState()));
+		}
+
+		return samples;
+	}
+
+	public short getPortNumber() {
+		return portNumber;
+	}
+
+	public String getHardwareAddress() {
+		return hardwareAddress;
+	}
+
+	/**
+	 * @return state bits of the port as sent by the switch
+	 */
+	public int getState() {
+		return state;
+	}
+
+	public boolean isLinkDown() {
+		return state % 2 != 0;
+	}
+
+}
@@ -0,0 +1,383 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.stats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent samples of every switch kept in memory, so the bundles that act on
+ * the statistics do not have to read back what was just written to the
+ * database.
+ *
+ * Each switch has a ring of the last capacity samples. The packet counts of a
+ * sample are kept as deltas from the previous sample of the switch, the whole
+ * count when a counter is new or went backwards. Flows are identified by a
+ * compact id given to each match the first time the switch reports it, the
+ * id is given to another match once no sample in the ring refers to it. The
+ * match is parsed into its FlowIdentity when it is given an id.
+ */
+public class SampleStore {
+
+	private final int capacity;
+	private final ConcurrentHashMap<Long, SwitchHistory> histories = new ConcurrentHashMap<Long, SwitchHistory>();
+
+	/**
+	 * one sample in the ring, its arrays are reused by the sample that takes
+	 * its place
+	 */
+	private static class Slot {
+
+		long timestamp;
+		int flowCount;
+		int[] flowIds = new int[0];
+		long[] packetDeltas = new long[0];
+		String[] actions = new String[0];
+		short[] priorities = new short[0];
+		PortSample[] portDeltas = new PortSample[0];
+
+		void ensureCapacity(int flows) {
+
+			if (flowIds.length >= flows) {
+				return;
+			}
+
+			flowIds = new int[flows];
+			packetDeltas = new long[flows];
+			actions = new String[flows];
+			priorities = new short[flows];
+		}
+	}
+
+	private static class SwitchHistory {
+
+		final Slot[] slots;
+		long published;
+
+		final HashMap<String, Integer> flowIds = new HashMap<String, Integer>();
+		String[] matches = new String[64];
+		FlowIdentity[] identities = new FlowIdentity[64];
+		long[] lastPacketCounts = new long[64];
+		long[] lastSequences = new long[64];
+		int flowIdCount;
+		int[] freeFlowIds = new int[16];
+		int freeFlowIdCount;
+
+		final HashMap<Short, PortSample> lastPorts = new HashMap<Short, PortSample>();
+
+		SwitchHistory(int capacity) {
+
+			slots = new Slot[capacity];
+
+			for (int i = 0; i < capacity; i++) {
+				slots[i] = new Slot();
+			}
+		}
+
+		synchronized void publish(SwitchSample sample) {
+
+			long sequence = published++;
+			Slot slot = slots[(int) (sequence % slots.length)];
+			List<FlowSample> flows = sample.getFlows();
+
+			slot.timestamp = sample.getTimestamp();
+			slot.ensureCapacity(flows.size());
+
+			int flowCount = 0;
+
+			for (FlowSample flow : flows) {
+
+				int flowId = flowId(flow.getMatch());
+
+				// the same match twice in a sample is counted once
+				if (lastSequences[flowId] == sequence) {
+					continue;
+				}
+
+				long lastCount = lastPacketCounts[flowId];
+				long count = flow.getPacketCount();
+				boolean seen = lastSequences[flowId] >= 0;
+
+				slot.flowIds[flowCount] = flowId;
+				slot.packetDeltas[flowCount] = seen && count >= lastCount ? count
+						- lastCount
+						: count;
+				slot.actions[flowCount] = flow.getActions();
+				slot.priorities[flowCount] = flow.getPriority();
+				flowCount++;
+
+				lastPacketCounts[flowId] = count;
+				lastSequences[flowId] = sequence;
+			}
+
+			slot.flowCount = flowCount;
+			Arrays.fill(slot.actions, flowCount, slot.actions.length, null);
+
+			List<PortSample> ports = sample.getPorts();
+			slot.portDeltas = new PortSample[ports.size()];
+
+			for (int i = 0; i < ports.size(); i++) {
+
+				PortSample port = ports.get(i);
+				PortSample lastPort = lastPorts.put(port.getPortNumber(), port);
+
+				slot.portDeltas[i] = lastPort == null ? port : new PortSample(
+						port.getPortNumber(), delta(lastPort.getReceivePackets(),
+								port.getReceivePackets()), delta(
+								lastPort.getTransmitPackets(),
+								port.getTransmitPackets()), delta(
+								lastPort.getReceiveBytes(),
+								port.getReceiveBytes()), delta(
+								lastPort.getTransmitBytes(),
+								port.getTransmitBytes()));
+			}
+
+			releaseFlowIds(sequence - slots.length + 1);
+
+		}
+
+		/**
+		 * @return the flows of the samples taken at or after since, the
+		 *         packets of a flow whose actions changed in the window are
+		 *         only counted since the change
+		 */
+		synchronized List<FlowLoad> getFlowLoads(long since) {
+
+			long[] packetCounts = new long[flowIdCount];
+			String[] actions = new String[flowIdCount];
+			short[] priorities = new short[flowIdCount];
+
+			for (Slot slot : windowSlots(since)) {
+
+				for (int i = 0; i < slot.flowCount; i++) {
+
+					int flowId = slot.flowIds[i];
+
+					if (actions[flowId] != null
+							&& actions[flowId].equals(slot.actions[i])) {
+						packetCounts[flowId] += slot.packetDeltas[i];
+					} else {
+						packetCounts[flowId] = slot.packetDeltas[i];
+						actions[flowId] = slot.actions[i];
+					}
+
+					priorities[flowId] = slot.priorities[i];
+				}
+			}
+
+			List<FlowLoad> flowLoads = new ArrayList<FlowLoad>();
+
+			for (int flowId = 0; flowId < flowIdCount; flowId++) {
+
+				if (actions[flowId] != null) {
+					flowLoads.add(new FlowLoad(flowId, identities[flowId],
+							actions[flowId], priorities[flowId],
+							packetCounts[flowId]));
+				}
+			}
+
+			return flowLoads;
+		}
+
+		/**
+		 * @return the counters of each port summed over the samples taken at
+		 *         or after since
+		 */
+		synchronized List<PortSample> getPortLoads(long since) {
+
+			HashMap<Short, PortSample> portLoads = new HashMap<Short, PortSample>();
+
+			for (Slot slot : windowSlots(since)) {
+
+				for (PortSample port : slot.portDeltas) {
+
+					PortSample portLoad = portLoads.get(port.getPortNumber());
+
+					portLoads.put(port.getPortNumber(), portLoad == null ? port
+							: new PortSample(port.getPortNumber(), portLoad
+									.getReceivePackets()
+									+ port.getReceivePackets(), portLoad
+									.getTransmitPackets()
+									+ port.getTransmitPackets(), portLoad
+									.getReceiveBytes() + port.getReceiveBytes(),
+									portLoad.getTransmitBytes()
+											+ port.getTransmitBytes()));
+				}
+			}
+
+			return new ArrayList<PortSample>(portLoads.values());
+		}
+
+		synchronized long getLatestTimestamp() {
+
+			if (published == 0) {
+				return -1;
+			}
+
+			return slots[(int) ((published - 1) % slots.length)].timestamp;
+		}
+
+		/**
+		 * @return the slots in the ring taken at or after since, oldest first
+		 */
+		private List<Slot> windowSlots(long since) {
+
+			List<Slot> window = new ArrayList<Slot>();
+
+			for (long sequence = Math.max(0, published - slots.length); sequence < published; sequence++) {
+
+				Slot slot = slots[(int) (sequence % slots.length)];
+
+				if (slot.timestamp >= since) {
+					window.add(slot);
+				}
+			}
+
+			return window;
+		}
+
+		private int flowId(String match) {
+
+			Integer flowId = flowIds.get(match);
+
+			if (flowId != null) {
+				return flowId;
+			}
+
+			int newFlowId;
+
+			if (freeFlowIdCount > 0) {
+				newFlowId = freeFlowIds[--freeFlowIdCount];
+			} else {
+
+				if (flowIdCount == matches.length) {
+					int length = matches.length * 2;
+					matches = Arrays.copyOf(matches, length);
+					identities = Arrays.copyOf(identities, length);
+					lastPacketCounts = Arrays.copyOf(lastPacketCounts, length);
+					lastSequences = Arrays.copyOf(lastSequences, length);
+				}
+
+				newFlowId = flowIdCount++;
+			}
+
+			flowIds.put(match, newFlowId);
+			matches[newFlowId] = match;
+			identities[newFlowId] = FlowIdentity.parse(match);
+			lastPacketCounts[newFlowId] = 0;
+			lastSequences[newFlowId] = -1;
+
+			return newFlowId;
+		}
+
+		/**
+		 * free the ids of the flows no slot from oldestSequence on refers to
+		 */
+		private void releaseFlowIds(long oldestSequence) {
+
+			for (int flowId = 0; flowId < flowIdCount; flowId++) {
+
+				if (matches[flowId] == null
+						|| lastSequences[flowId] >= oldestSequence) {
+					continue;
+				}
+
+				flowIds.remove(matches[flowId]);
+				matches[flowId] = null;
+				identities[flowId] = null;
+
+				if (freeFlowIdCount == freeFlowIds.length) {
+					freeFlowIds = Arrays.copyOf(freeFlowIds,
+							freeFlowIds.length * 2);
+				}
+
+				freeFlowIds[freeFlowIdCount++] = flowId;
+			}
+
+		}
+
+		private static long delta(long lastCount, long count) {
+			return count >= lastCount ? count - lastCount : count;
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            samples kept per switch
+	 */
+	public SampleStore(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * add the latest sample of a switch, replacing its oldest sample once the
+	 * ring is full. Samples of a switch must be published in the order they
+	 * were taken
+	 *
+	 * @param sample
+	 */
+	public void publish(SwitchSample sample) {
+
+		SwitchHistory history = histories.get(sample.getDatapathId());
+
+		if (history == null) {
+			SwitchHistory created = new SwitchHistory(capacity);
+			history = histories.putIfAbsent(sample.getDatapathId(), created);
+			if (history == null) {
+				history = created;
+			}
+		}
+
+		history.publish(sample);
+
+	}
+
+	/**
+	 * @param datapathId
+	 * @param since
+	 *            milliseconds since the epoch of the oldest sample to count
+	 * @return packets counted by each flow of the switch in the samples taken
+	 *         at or after since, empty if the switch has none
+	 */
+	public List<FlowLoad> getFlowLoads(long datapathId, long since) {
+
+		SwitchHistory history = histories.get(datapathId);
+		return history == null ? new ArrayList<FlowLoad>() : history
+				.getFlowLoads(since);
+	}
+
+	/**
+	 * @param datapathId
+	 * @param since
+	 *            milliseconds since the epoch of the oldest sample to count
+	 * @return counters of each port of the switch summed over the samples
+	 *         taken at or after since, empty if the switch has none
+	 */
+	public List<PortSample> getPortLoads(long datapathId, long since) {
+
+		SwitchHistory history = histories.get(datapathId);
+		return history == null ? new ArrayList<PortSample>() : history
+				.getPortLoads(since);
+	}
+
+	/**
+	 * @return milliseconds since the epoch of the latest sample of the switch,
+	 *         -1 if it has none
+	 */
+	public long getLatestTimestamp(long datapathId) {
+
+		SwitchHistory history = histories.get(datapathId);
+		return history == null ? -1 : history.getLatestTimestamp();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscale.stats;
+
+import java.util.List;
+
+/**
+ * Flows, port counters and port states of a switch read in one poll
+ */
+public class SwitchSample {
+
+	private final long datapathId;
+	private final long timestamp;
+	private final List<FlowSample> flows;
+	private final List<PortSample> ports;
+	private final List<PortStateSample> portStates;
+
+	/**
+	 * @param datapathId
+	 * @param timestamp
+	 *            milliseconds since the epoch the poll is stored under
+	 * @param flows
+	 * @param ports
+	 * @param portStates
+	 */
+	public SwitchSample(long datapathId, long timestamp,
+			List<FlowSample> flows, List<PortSample> ports,
+			List<PortStateSample> portStates) {
+
+		this.datapathId = datapathId;
+		this.timestamp = timestamp;
+		this.flows = flows;
+		this.ports = ports;
+		this.portStates = portStates;
+
+	}
+
+	public long getDatapathId() {
+		return datapathId;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public List<FlowSample> getFlows() {
+		return flows;
+	}
+
+	public List<PortSample> getPorts() {
+		return ports;
+	}
+
+	public List<PortStateSample> getPortStates() {
+		return portStates;
+	}
+
+}
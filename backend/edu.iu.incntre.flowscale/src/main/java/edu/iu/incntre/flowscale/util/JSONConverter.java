@@ -6,9 +6,6 @@ http://www.apache.org/licenses/LICENSE-2.0
 package edu.iu.incntre.flowscale.util;
 
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -21,6 +18,7 @@ import org.openflow.protocol.statistics.OFTableStatistics;
 import org.openflow.util.HexString;
 
 import edu.iu.incntre.flowscale.FlowscaleController;
+import edu.iu.incntre.flowscale.stats.FlowSample;
 
 /**
  * Uility class to convert structure in openflowj to json 
@@ -180,39 +178,7 @@ public static JSONArray toStat(List<OFStatistics> ofs, String type){
 			OFFlowStatisticsReply st = (OFFlowStatisticsReply) ofst;
 
 			JSONObject jsonObject = new JSONObject();
-			String[] a = st.getActions().toString().split("port=");
-			String c;
-			c = st.getActions().toString();
-			if (a.length == 1) {
-				c = st.getActions().toString();
-			} else {
-
-				String[] b = a[1].split(",");
-				c = b[0];
-			}
-
-			// parse the output
-			String outputString = "";
-			try {
-				Pattern pattern = Pattern.compile("port=\\w*");
-
-				Matcher matcher = pattern.matcher(st.getActions()
-						.toString());
-
-				while (matcher.find()) {
-
-					outputString += matcher.group().split("=")[1] + ",";
-				}
-
-			} catch (PatternSyntaxException pse) {
-				outputString = "malformed";
-			}
-
-			if (outputString.length() == 0) {
-				outputString = "DROP,";
-			}
-			jsonObject.put("actions",
-					outputString.substring(0, outputString.length() - 1));
+			jsonObject.put("actions", FlowSample.outputPorts(st.getActions()));
 			jsonObject.put("hard_timeout", st.getHardTimeout());
 			jsonObject.put("idle_timeout", st.getIdleTimeout());
 			jsonObject.put("match", st.getMatch().toString());
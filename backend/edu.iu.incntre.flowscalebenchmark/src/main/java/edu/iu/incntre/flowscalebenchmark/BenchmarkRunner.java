@@ -0,0 +1,197 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalebenchmark;
+
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+/**
+ * Runs every benchmark of the bundle and writes the results as JSON, one entry
+ * per benchmark and set of parameters with the median, min and max
+ * nanoseconds per operation.
+ *
+ * usage: BenchmarkRunner results.json [baseline.json [tolerance]]
+ *
+ * When a baseline written by an earlier run is given, every result more than
+ * tolerance percent (20 by default) slower than its baseline is reported and
+ * the runner exits with status 1, so a build can stop before a regression is
+ * deployed.
+ */
+public class BenchmarkRunner {
+
+	private static final double DEFAULT_TOLERANCE = 20;
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length < 1) {
+			System.err
+					.println("usage: BenchmarkRunner results.json [baseline.json [tolerance]]");
+			System.exit(2);
+		}
+
+		MicroBenchmark benchmark = new MicroBenchmark(3, 7, 1);
+
+		GroupDispatchBenchmark.run(benchmark);
+		PrefixArithmeticBenchmark.run(benchmark);
+		GroupBenchmark.run(benchmark);
+		HotSwapBenchmark.run(benchmark);
+		StatBenchmark.run(benchmark);
+		StoreBenchmark.run(benchmark);
+		SwitchEventLoopBenchmark.run(benchmark);
+
+		writeResults(benchmark.getResults(), args[0]);
+		System.out.println("results written to " + args[0]);
+
+		int regressions = 0;
+
+		if (args.length > 1) {
+
+			double tolerance = args.length > 2 ? Double.parseDouble(args[2])
+					: DEFAULT_TOLERANCE;
+			regressions = compare(benchmark.getResults(),
+					readBaseline(args[1]), tolerance);
+		}
+
+		// the switch event loops of the benchmarks are still running
+		System.exit(regressions > 0 ? 1 : 0);
+
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void writeResults(List<MicroBenchmark.Result> results,
+			String fileName) throws IOException {
+
+		JSONArray jsonResults = new JSONArray();
+
+		for (MicroBenchmark.Result result : results) {
+			jsonResults.add(result.toJSON());
+		}
+
+		JSONObject report = new JSONObject();
+		report.put("timestamp", System.currentTimeMillis());
+		report.put("java_version", System.getProperty("java.version"));
+		report.put("os", System.getProperty("os.name") + " "
+				+ System.getProperty("os.arch"));
+		report.put("processors", Runtime.getRuntime().availableProcessors());
+		report.put("results", jsonResults);
+
+		Writer writer = new FileWriter(fileName);
+
+		try {
+			report.writeJSONString(writer);
+		} finally {
+			writer.close();
+		}
+
+	}
+
+	/**
+	 * @return median of each result of the baseline by key
+	 */
+	private static Map<String, Double> readBaseline(String fileName)
+			throws IOException {
+
+		Reader reader = new FileReader(fileName);
+		JSONObject report;
+
+		try {
+			report = (JSONObject) JSONValue.parse(reader);
+		} finally {
+			reader.close();
+		}
+
+		if (report == null) {
+			throw new IOException("baseline " + fileName + " is not JSON");
+		}
+
+		Map<String, Double> baseline = new HashMap<String, Double>();
+
+		for (Object result : (JSONArray) report.get("results")) {
+
+			JSONObject jsonResult = (JSONObject) result;
+			baseline.put(
+					key((String) jsonResult.get("benchmark"),
+							(Map<?, ?>) jsonResult.get("parameters")),
+					((Number) jsonResult.get("median_ns")).doubleValue());
+		}
+
+		return baseline;
+	}
+
+	/**
+	 * print the results slower than their baseline by more than tolerance
+	 * percent
+	 *
+	 * @return number of regressions
+	 */
+	private static int compare(List<MicroBenchmark.Result> results,
+			Map<String, Double> baseline, double tolerance) {
+
+		List<String> regressions = new ArrayList<String>();
+
+		for (MicroBenchmark.Result result : results) {
+
+			Double baselineMedian = baseline.get(key(result.getBenchmark(),
+					result.getParameters()));
+
+			if (baselineMedian == null || baselineMedian <= 0) {
+				continue;
+			}
+
+			double change = (result.getMedian() / baselineMedian - 1) * 100;
+
+			if (change > tolerance) {
+				regressions.add(String.format(
+						"%s: %.1f ns/op, baseline %.1f ns/op (+%.0f%%)",
+						result.getKey(), result.getMedian(), baselineMedian,
+						change));
+			}
+		}
+
+		if (regressions.isEmpty()) {
+			System.out.println("no result is more than " + tolerance
+					+ "% slower than the baseline");
+		} else {
+			System.out.println(regressions.size()
+					+ " results are more than " + tolerance
+					+ "% slower than the baseline:");
+			for (String regression : regressions) {
+				System.out.println("  " + regression);
+			}
+		}
+
+		return regressions.size();
+	}
+
+	/**
+	 * key of a result independent of the order of its parameters, which is
+	 * lost when the baseline is parsed
+	 */
+	private static String key(String benchmark, Map<?, ?> parameters) {
+
+		TreeMap<String, String> sortedParameters = new TreeMap<String, String>();
+
+		for (Map.Entry<?, ?> parameter : parameters.entrySet()) {
+			sortedParameters.put(parameter.getKey().toString(), parameter
+					.getValue().toString());
+		}
+
+		return benchmark + sortedParameters;
+	}
+
+}
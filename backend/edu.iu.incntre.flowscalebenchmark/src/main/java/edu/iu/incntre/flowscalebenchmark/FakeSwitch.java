@@ -0,0 +1,152 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalebenchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.beaconcontroller.core.IBeaconProvider;
+import net.beaconcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFFeaturesReply;
+import org.openflow.protocol.OFPhysicalPort;
+
+/**
+ * Switch without a connection for the benchmarks. Only the datapath id and
+ * the features reply, listing ports 1 to portCount all up, are answered, any
+ * other method of IOFSwitch returns null, 0 or false. The switch is a dynamic
+ * proxy so it does not depend on the rest of the Beacon interface.
+ */
+public class FakeSwitch implements InvocationHandler {
+
+	private final long datapathId;
+	private final OFFeaturesReply featuresReply;
+
+	private FakeSwitch(long datapathId, int portCount) {
+
+		this.datapathId = datapathId;
+
+		List<OFPhysicalPort> ports = new ArrayList<OFPhysicalPort>();
+
+		for (int i = 1; i <= portCount; i++) {
+
+			OFPhysicalPort port = new OFPhysicalPort();
+			port.setPortNumber((short) i);
+			port.setName("eth" + i);
+			port.setHardwareAddress(new byte[] { 0, 0, 0, 0, 0, (byte) i });
+			port.setState(0);
+			ports.add(port);
+		}
+
+		featuresReply = new OFFeaturesReply();
+		featuresReply.setDatapathId(datapathId);
+		featuresReply.setPorts(ports);
+
+	}
+
+	/**
+	 * @param datapathId
+	 * @param portCount
+	 *            ports numbered from 1, all of them up
+	 * @return the fake switch
+	 */
+	public static IOFSwitch create(long datapathId, int portCount) {
+
+		return (IOFSwitch) Proxy.newProxyInstance(
+				IOFSwitch.class.getClassLoader(),
+				new Class<?>[] { IOFSwitch.class }, new FakeSwitch(datapathId,
+						portCount));
+	}
+
+	/**
+	 * @return beacon provider whose only connected switch is sw
+	 */
+	public static IBeaconProvider beaconProvider(IOFSwitch sw) {
+
+		final Map<Long, IOFSwitch> switches = new HashMap<Long, IOFSwitch>();
+		switches.put(sw.getId(), sw);
+
+		return (IBeaconProvider) Proxy.newProxyInstance(
+				IBeaconProvider.class.getClassLoader(),
+				new Class<?>[] { IBeaconProvider.class },
+				new InvocationHandler() {
+
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+
+						if (method.getName().equals("getSwitches")) {
+							return switches;
+						}
+
+						return objectMethod(proxy, method, args,
+								"FakeBeaconProvider");
+					}
+				});
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) {
+
+		if (method.getName().equals("getId")) {
+			return datapathId;
+		}
+
+		if (method.getName().equals("getFeaturesReply")) {
+			return featuresReply;
+		}
+
+		return objectMethod(proxy, method, args, "FakeSwitch " + datapathId);
+	}
+
+	/**
+	 * equals, hashCode and toString of a proxy, default values for the rest
+	 */
+	private static Object objectMethod(Object proxy, Method method,
+			Object[] args, String name) {
+
+		if (method.getName().equals("equals") && args != null
+				&& args.length == 1) {
+			return proxy == args[0];
+		}
+
+		if (method.getName().equals("hashCode")) {
+			return System.identityHashCode(proxy);
+		}
+
+		if (method.getName().equals("toString")) {
+			return name;
+		}
+
+		Class<?> returnType = method.getReturnType();
+
+		if (returnType == boolean.class) {
+			return false;
+		} else if (returnType == byte.class) {
+			return (byte) 0;
+		} else if (returnType == short.class) {
+			return (short) 0;
+		} else if (returnType == char.class) {
+			return (char) 0;
+		} else if (returnType == int.class) {
+			return 0;
+		} else if (returnType == long.class) {
+			return 0L;
+		} else if (returnType == float.class) {
+			return 0f;
+		} else if (returnType == double.class) {
+			return 0d;
+		}
+
+		return null;
+	}
+
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalebenchmark;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import net.beaconcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFPhysicalPort;
+
+import edu.iu.incntre.flowscale.DispatchHandle;
+import edu.iu.incntre.flowscale.Group;
+
+/**
+ * Measures the rule work of an IP group on a FakeSwitch: generating and
+ * pushing its rules, pushing them again when nothing changed, and the alerts
+ * of an output port going down and coming back up. The group has between 100
+ * and 100000 rules spread over 2 to 64 output ports.
+ */
+public class GroupBenchmark {
+
+	private static final int[] RULE_COUNTS = { 100, 1000, 10000, 100000 };
+
+	// /16 prefixes of the group for each rule count, each is split in 2, 4, 8
+	// and 16 sub prefixes and every sub prefix has a rule in each direction
+	private static final int[] VALUE_COUNTS = { 25, 125, 625, 3125 };
+
+	private static final int[] PORT_COUNTS = { 2, 8, 64 };
+
+	// about this many rules are handled in each round
+	private static final int RULES_PER_ROUND = 200000;
+
+	private static final long DATAPATH_ID = 1;
+	private static final short FLAPPING_PORT = 1;
+
+	public static void main(String[] args) {
+
+		run(new MicroBenchmark(3, 7, 1));
+
+	}
+
+	public static void run(MicroBenchmark benchmark) {
+
+		for (int i = 0; i < RULE_COUNTS.length; i++) {
+
+			final int ruleCount = RULE_COUNTS[i];
+			final String[] values = createValues(VALUE_COUNTS[i]);
+
+			benchmark.setOperationsPerRound(Math.max(1, RULES_PER_ROUND
+					/ ruleCount));
+
+			for (int portCount : PORT_COUNTS) {
+
+				final IOFSwitch sw = FakeSwitch.create(DATAPATH_ID, portCount);
+
+				benchmark.measure("group push rules", MicroBenchmark
+						.parameters("rules", ruleCount, "ports", portCount),
+						new MicroBenchmark.Operation() {
+
+							@Override
+							public long run(int iteration) {
+								return pushNewGroup(sw, values, ruleCount);
+							}
+						});
+
+				final RecordingController controller = new RecordingController(
+						sw);
+				final Group group = controller.createIPGroup(1, values,
+						ruleCount);
+				group.pushRules();
+
+				benchmark.measure("group push unchanged rules", MicroBenchmark
+						.parameters("rules", ruleCount, "ports", portCount),
+						new MicroBenchmark.Operation() {
+
+							@Override
+							public long run(int iteration) {
+								return messageCount(group.pushRules());
+							}
+						});
+
+				final OFPhysicalPort portUp = physicalPort(FLAPPING_PORT, 0);
+				final OFPhysicalPort portDown = physicalPort(FLAPPING_PORT,
+						OFPhysicalPort.OFPortState.OFPPS_LINK_DOWN.getValue());
+
+				benchmark.measure("group alert port down", MicroBenchmark
+						.parameters("rules", ruleCount, "ports", portCount),
+						new MicroBenchmark.PreparedOperation() {
+
+							@Override
+							public void prepare(int iteration) {
+								alert(controller, group, portUp);
+							}
+
+							@Override
+							public long run(int iteration) {
+								return alert(controller, group, portDown);
+							}
+						});
+
+				benchmark.measure("group alert port up", MicroBenchmark
+						.parameters("rules", ruleCount, "ports", portCount),
+						new MicroBenchmark.PreparedOperation() {
+
+							@Override
+							public void prepare(int iteration) {
+								alert(controller, group, portDown);
+							}
+
+							@Override
+							public long run(int iteration) {
+								return alert(controller, group, portUp);
+							}
+						});
+
+				// the port is left up for the next parameters
+				alert(controller, group, portUp);
+			}
+		}
+
+	}
+
+	/**
+	 * generate and push the rules of a new group, each group gets its own
+	 * controller so the rule index does not grow from one run to the next
+	 */
+	private static long pushNewGroup(IOFSwitch sw, String[] values,
+			int ruleCount) {
+
+		RecordingController controller = new RecordingController(sw);
+		Group group = controller.createIPGroup(1, values, ruleCount);
+
+		return messageCount(group.pushRules());
+	}
+
+	/**
+	 * alert the group of a port status change on the event loop of the switch
+	 * as the controller does, the rules split by a port going down are merged
+	 * again by a later event which is not part of the timing
+	 */
+	private static long alert(final RecordingController controller,
+			final Group group, final OFPhysicalPort physicalPort) {
+
+		try {
+			return controller.getSwitchEventLoop(DATAPATH_ID).call(
+					new Callable<Long>() {
+
+						@Override
+						public Long call() {
+							return messageCount(group.alert(
+									controller.getSwitch(),
+									physicalPort.getPortNumber(), physicalPort,
+									null));
+						}
+					});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static long messageCount(DispatchHandle handle) {
+		return handle == null ? 0 : handle.getMessageCount();
+	}
+
+	private static OFPhysicalPort physicalPort(short portNumber, int state) {
+
+		OFPhysicalPort physicalPort = new OFPhysicalPort();
+		physicalPort.setPortNumber(portNumber);
+		physicalPort.setState(state);
+
+		return physicalPort;
+	}
+
+	private static String[] createValues(int valueCount) {
+
+		String[] values = new String[valueCount];
+
+		for (int i = 0; i < valueCount; i++) {
+			values[i] = (10 + i / 256) + "." + (i % 256) + ".0.0/16";
+		}
+
+		return values;
+	}
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalebenchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.iu.incntre.flowscale.FlowscaleController;
+import edu.iu.incntre.flowscale.Group;
+import edu.iu.incntre.flowscale.GroupRegistry;
+
+/**
+ * Measures the cost of finding the groups affected by a port status event.
+ * The same eight groups always own the flapping port while the total number
+ * of groups grows, the registry lookup should stay flat while the full scan
+ * previously done in FlowscaleController grows with the group count.
+ */
+public class GroupDispatchBenchmark {
+
+	private static final int[] GROUP_COUNTS = { 10, 100, 1000, 10000 };
+
+	private static final int SWITCH_COUNT = 8;
+	private static final int PORTS_PER_SWITCH = 48;
+	private static final int HOT_GROUPS = 8;
+
+	private static final long HOT_DATAPATH_ID = 1;
+	private static final short HOT_PORT = 1;
+
+	public static void main(String[] args) {
+
+		run(new MicroBenchmark());
+
+	}
+
+	public static void run(MicroBenchmark benchmark) {
+
+		benchmark.setOperationsPerRound(10000);
+
+		for (int groupCount : GROUP_COUNTS) {
+
+			final List<Group> groupList = createGroups(groupCount);
+			final GroupRegistry registry = new GroupRegistry();
+
+			for (Group group : groupList) {
+				registry.addGroup(group);
+			}
+
+			benchmark.measure("registry dispatch",
+					MicroBenchmark.parameters("groups", groupCount),
+					new MicroBenchmark.Operation() {
+
+						@Override
+						public long run(int iteration) {
+							return dispatchWithRegistry(registry);
+						}
+					});
+
+			benchmark.measure("full scan dispatch",
+					MicroBenchmark.parameters("groups", groupCount),
+					new MicroBenchmark.Operation() {
+
+						@Override
+						public long run(int iteration) {
+							return dispatchWithScan(groupList);
+						}
+					});
+
+		}
+
+	}
+
+	private static long dispatchWithRegistry(GroupRegistry registry) {
+
+		long matched = 0;
+
+		for (Group group : registry.getGroupsForPort(HOT_DATAPATH_ID, HOT_PORT)) {
+			matched += group.getGrouopId();
+		}
+
+		return matched;
+	}
+
+	/**
+	 * the check done by updateGroupsWithPortStatus before the registry
+	 */
+	private static long dispatchWithScan(List<Group> groupList) {
+
+		long matched = 0;
+
+		for (Group group : groupList) {
+
+			if ((HOT_DATAPATH_ID == group.getInputSwitchDatapathId() || HOT_DATAPATH_ID == group
+					.getOutputSwitchDatapathId())
+					&& (group.getInputPorts().contains(HOT_PORT) || group
+							.getOutputPorts().contains(HOT_PORT))) {
+				matched += group.getGrouopId();
+			}
+		}
+
+		return matched;
+	}
+
+	private static List<Group> createGroups(int groupCount) {
+
+		FlowscaleController controller = new FlowscaleController();
+		List<Group> groups = new ArrayList<Group>();
+
+		for (int i = 0; i < groupCount; i++) {
+
+			Group group = new Group(controller);
+			group.setGrouopId(i);
+
+			List<Short> inputPorts = new ArrayList<Short>();
+			List<Short> outputPorts = new ArrayList<Short>();
+
+			if (i < HOT_GROUPS) {
+
+				group.setInputSwitchDatapathId(HOT_DATAPATH_ID);
+				group.setOutputSwitchDatapathId(HOT_DATAPATH_ID);
+				inputPorts.add(HOT_PORT);
+
+			} else {
+
+				// background groups never use the hot port
+				long datapathId = 1 + (i % SWITCH_COUNT);
+				group.setInputSwitchDatapathId(datapathId);
+				group.setOutputSwitchDatapathId(datapathId);
+				inputPorts.add((short) (2 + (i % PORTS_PER_SWITCH)));
+
+			}
+
+			for (int port = 0; port < 4; port++) {
+				outputPorts.add((short) (2 + ((i + port + 1) % PORTS_PER_SWITCH)));
+			}
+
+			group.setInputPorts(inputPorts);
+			group.setOutputPorts(outputPorts);
+			groups.add(group);
+		}
+
+		return groups;
+	}
+
+}
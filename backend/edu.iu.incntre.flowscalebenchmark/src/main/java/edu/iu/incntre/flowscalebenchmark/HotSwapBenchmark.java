@@ -0,0 +1,116 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalebenchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import edu.iu.incntre.flowscaleflowupdate.FlowscaleFlowUpdate;
+import edu.iu.incntre.flowscaleflowupdate.LoadFlow;
+
+/**
+ * Measures a hot swapping round of FlowscaleFlowUpdate on synthetic flows, from
+ * the flows read from the database to the flows to move. Every subnet has a
+ * source and a destination flow, packet counts follow a Zipf distribution and
+ * half of the subnets are on the first port so it is always above its share.
+ */
+public class HotSwapBenchmark {
+
+	private static final int[] FLOW_COUNTS = { 100, 1000, 10000, 100000 };
+
+	private static final int[] PORT_COUNTS = { 2, 8, 64 };
+
+	// about this many flows are balanced in each round
+	private static final int FLOWS_PER_ROUND = 200000;
+
+	private static final long TOP_PACKET_COUNT = 1000000000L;
+
+	public static void main(String[] args) {
+
+		run(new MicroBenchmark(3, 7, 1));
+
+	}
+
+	public static void run(MicroBenchmark benchmark) {
+
+		final FlowscaleFlowUpdate flowUpdate = new FlowscaleFlowUpdate();
+
+		for (int flowCount : FLOW_COUNTS) {
+
+			benchmark.setOperationsPerRound(Math.max(1, FLOWS_PER_ROUND
+					/ flowCount));
+
+			for (final int portCount : PORT_COUNTS) {
+
+				final List<LoadFlow> flows = createFlows(flowCount, portCount);
+
+				benchmark.measure("hot swap", MicroBenchmark.parameters("flows",
+						flowCount, "ports", portCount),
+						new MicroBenchmark.PreparedOperation() {
+
+							private ArrayList<LoadFlow> switchFlows;
+
+							@Override
+							public void prepare(int iteration) {
+								// balanceFlows sorts the list, each run gets
+								// the flows in database order
+								switchFlows = new ArrayList<LoadFlow>(flows);
+							}
+
+							@Override
+							public long run(int iteration) {
+
+								HashMap<Short, TreeSet<LoadFlow>> newFlows = flowUpdate
+										.balanceFlows(switchFlows, portCount);
+
+								long moved = 0;
+								for (TreeSet<LoadFlow> portFlows : newFlows
+										.values()) {
+									moved += portFlows.size();
+								}
+
+								return moved;
+							}
+						});
+			}
+		}
+
+	}
+
+	/**
+	 * flows of flowCount / 2 subnets, as stored by the statistics bundle
+	 */
+	private static List<LoadFlow> createFlows(int flowCount, int portCount) {
+
+		List<LoadFlow> flows = new ArrayList<LoadFlow>();
+
+		for (int i = 0; i < flowCount / 2; i++) {
+
+			String subnet = (10 + i / 65536) + "." + ((i / 256) % 256) + "."
+					+ (i % 256) + ".0/24";
+			short port = (short) (i % 2 == 0 ? 1 : 1 + ((i / 2) % portCount));
+			// the subnets are shuffled over the ranks of the distribution
+			long rank = 1 + ((i * 7919L) % (flowCount / 2));
+			long packetCount = TOP_PACKET_COUNT / rank;
+
+			LoadFlow source = new LoadFlow("OFMatch[dl_type=0x800,nw_src="
+					+ subnet + "]", port, (short) 200);
+			source.setPacketCount(packetCount);
+			flows.add(source);
+
+			LoadFlow destination = new LoadFlow(
+					"OFMatch[dl_type=0x800,nw_dst=" + subnet + "]", port,
+					(short) 200);
+			destination.setPacketCount(packetCount / 2);
+			flows.add(destination);
+		}
+
+		return flows;
+	}
+
+}
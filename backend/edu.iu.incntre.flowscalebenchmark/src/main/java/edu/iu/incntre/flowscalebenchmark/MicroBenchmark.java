@@ -0,0 +1,251 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalebenchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Minimal timing harness shared by the benchmarks of this bundle. An operation
+ * is run for a number of warmup rounds so the JIT settles, then for a number
+ * of measured rounds, and the median time per operation is reported. The
+ * results are kept so BenchmarkRunner can write them out as JSON.
+ */
+public class MicroBenchmark {
+
+	/**
+	 * operation under measurement, the returned value is accumulated so the
+	 * work cannot be optimized away
+	 */
+	public interface Operation {
+		long run(int iteration);
+	}
+
+	/**
+	 * operation that needs its state set up before each run, only run is
+	 * timed
+	 */
+	public interface PreparedOperation extends Operation {
+		void prepare(int iteration);
+	}
+
+	/**
+	 * timing of one benchmark for one set of parameters
+	 */
+	public static class Result {
+
+		private final String benchmark;
+		private final Map<String, Object> parameters;
+		private final double median;
+		private final double min;
+		private final double max;
+		private final int operationsPerRound;
+
+		public Result(String benchmark, Map<String, Object> parameters,
+				double median, double min, double max, int operationsPerRound) {
+
+			this.benchmark = benchmark;
+			this.parameters = parameters;
+			this.median = median;
+			this.min = min;
+			this.max = max;
+			this.operationsPerRound = operationsPerRound;
+
+		}
+
+		public String getBenchmark() {
+			return benchmark;
+		}
+
+		public Map<String, Object> getParameters() {
+			return parameters;
+		}
+
+		/**
+		 * @return median nanoseconds per operation
+		 */
+		public double getMedian() {
+			return median;
+		}
+
+		/**
+		 * @return benchmark name followed by its parameters, identifies the
+		 *         result across runs
+		 */
+		public String getKey() {
+
+			StringBuilder key = new StringBuilder(benchmark);
+
+			for (Map.Entry<String, Object> parameter : parameters.entrySet()) {
+				key.append(", ").append(parameter.getKey()).append('=')
+						.append(parameter.getValue());
+			}
+
+			return key.toString();
+		}
+
+		@SuppressWarnings("unchecked")
+		public JSONObject toJSON() {
+
+			JSONObject jsonParameters = new JSONObject();
+			jsonParameters.putAll(parameters);
+
+			JSONObject jsonObject = new JSONObject();
+			jsonObject.put("benchmark", benchmark);
+			jsonObject.put("parameters", jsonParameters);
+			jsonObject.put("median_ns", median);
+			jsonObject.put("min_ns", min);
+			jsonObject.put("max_ns", max);
+			jsonObject.put("operations_per_round", operationsPerRound);
+
+			return jsonObject;
+		}
+
+	}
+
+	private static volatile long sink;
+
+	private int warmupRounds = 5;
+	private int measuredRounds = 10;
+	private int operationsPerRound = 10000;
+	private List<Result> results = new ArrayList<Result>();
+
+	public MicroBenchmark() {
+
+	}
+
+	public MicroBenchmark(int warmupRounds, int measuredRounds,
+			int operationsPerRound) {
+
+		this.warmupRounds = warmupRounds;
+		this.measuredRounds = measuredRounds;
+		this.operationsPerRound = operationsPerRound;
+
+	}
+
+	/**
+	 * @param namesAndValues
+	 *            parameter names each followed by its value
+	 * @return parameters of a benchmark in the given order
+	 */
+	public static Map<String, Object> parameters(Object... namesAndValues) {
+
+		Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+
+		for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+			parameters.put(namesAndValues[i].toString(), namesAndValues[i + 1]);
+		}
+
+		return parameters;
+	}
+
+	/**
+	 * number of operations timed together, lower it for operations taking
+	 * milliseconds
+	 */
+	public void setOperationsPerRound(int operationsPerRound) {
+		this.operationsPerRound = operationsPerRound;
+	}
+
+	/**
+	 * @return results of all the operations measured so far
+	 */
+	public List<Result> getResults() {
+		return Collections.unmodifiableList(results);
+	}
+
+	/**
+	 * run the operation and return the median time of one operation
+	 *
+	 * @param name
+	 *            printed along with the result
+	 * @param operation
+	 * @return median nanoseconds per operation
+	 */
+	public double measure(String name, Operation operation) {
+
+		return measure(name, new LinkedHashMap<String, Object>(), operation)
+				.getMedian();
+	}
+
+	/**
+	 * run the operation for one set of parameters
+	 *
+	 * @param benchmark
+	 *            name of the benchmark
+	 * @param parameters
+	 *            parameter names and values, in the order they are printed
+	 * @param operation
+	 * @return timing of the operation
+	 */
+	public Result measure(String benchmark, Map<String, Object> parameters,
+			Operation operation) {
+
+		for (int round = 0; round < warmupRounds; round++) {
+			runRound(operation);
+		}
+
+		double[] times = new double[measuredRounds];
+
+		for (int round = 0; round < measuredRounds; round++) {
+			times[round] = (double) runRound(operation) / operationsPerRound;
+		}
+
+		Arrays.sort(times);
+
+		Result result = new Result(benchmark, parameters,
+				times[measuredRounds / 2], times[0], times[measuredRounds - 1],
+				operationsPerRound);
+		results.add(result);
+
+		System.out.println(String.format("%-50s %12.1f ns/op (min %.1f, max %.1f)",
+				result.getKey(), result.getMedian(), times[0],
+				times[measuredRounds - 1]));
+
+		return result;
+	}
+
+	private long runRound(Operation operation) {
+
+		long accumulator = 0;
+		long elapsed = 0;
+
+		if (operation instanceof PreparedOperation) {
+
+			PreparedOperation preparedOperation = (PreparedOperation) operation;
+
+			for (int i = 0; i < operationsPerRound; i++) {
+
+				preparedOperation.prepare(i);
+
+				long start = System.nanoTime();
+				accumulator += operation.run(i);
+				elapsed += System.nanoTime() - start;
+			}
+
+		} else {
+
+			long start = System.nanoTime();
+
+			for (int i = 0; i < operationsPerRound; i++) {
+				accumulator += operation.run(i);
+			}
+
+			elapsed = System.nanoTime() - start;
+		}
+
+		sink += accumulator;
+
+		return elapsed;
+	}
+
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalebenchmark;
+
+import grnoc.net.util.ipaddress.IPv4Prefix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the prefix arithmetic of IPv4Prefix with the String based code it
+ * replaced in IPv4Address, IPAddressUtility, Group and FlowscaleFlowUpdate,
+ * kept here as the legacy methods. Each operation handles a whole group: its
+ * values are parsed and split into sub prefixes as Group.generateIPRules
+ * does, or the nw_src prefix of as many flow strings is parsed
+ * as FlowscaleFlowUpdate does when hot swapping.
+ */
+public class PrefixArithmeticBenchmark {
+
+	private static final int[] GROUP_SIZES = { 4, 32, 256 };
+
+	// flows allowed per value, each value is split in FLOWS_PER_VALUE / 2
+	// sub prefixes
+	private static final int FLOWS_PER_VALUE = 512;
+
+	private static final Pattern NW_SRC_PATTERN = Pattern
+			.compile("nw_src=([0-9]+.[0-9]+.[0-9]+.[0-9]+)/([0-9]*)");
+
+	public static void main(String[] args) {
+
+		run(new MicroBenchmark(5, 10, 2000));
+
+	}
+
+	public static void run(MicroBenchmark benchmark) {
+
+		benchmark.setOperationsPerRound(2000);
+
+		for (int groupSize : GROUP_SIZES) {
+
+			final String[] values = createValues(groupSize);
+			final String[] flowStrings = createFlowStrings(groupSize);
+
+			double legacySplit = benchmark.measure("legacy split",
+					MicroBenchmark.parameters("values", groupSize),
+					new MicroBenchmark.Operation() {
+
+						@Override
+						public long run(int iteration) {
+							return legacySplit(values);
+						}
+					}).getMedian();
+
+			double split = benchmark.measure("IPv4Prefix split",
+					MicroBenchmark.parameters("values", groupSize),
+					new MicroBenchmark.Operation() {
+
+						@Override
+						public long run(int iteration) {
+							return split(values);
+						}
+					}).getMedian();
+
+			double legacyFormat = benchmark.measure("legacy format",
+					MicroBenchmark.parameters("values", groupSize),
+					new MicroBenchmark.Operation() {
+
+						@Override
+						public long run(int iteration) {
+							return legacyFormat(values);
+						}
+					}).getMedian();
+
+			double format = benchmark.measure("IPv4Prefix format",
+					MicroBenchmark.parameters("values", groupSize),
+					new MicroBenchmark.Operation() {
+
+						@Override
+						public long run(int iteration) {
+							return format(values);
+						}
+					}).getMedian();
+
+			double legacyParse = benchmark.measure("legacy hot swap parse",
+					MicroBenchmark.parameters("flows", groupSize),
+					new MicroBenchmark.Operation() {
+
+						@Override
+						public long run(int iteration) {
+							return legacyParseFlows(flowStrings);
+						}
+					}).getMedian();
+
+			double parse = benchmark.measure("IPv4Prefix hot swap parse",
+					MicroBenchmark.parameters("flows", groupSize),
+					new MicroBenchmark.Operation() {
+
+						@Override
+						public long run(int iteration) {
+							return parseFlows(flowStrings);
+						}
+					}).getMedian();
+
+			System.out.println(String.format(
+					"values=%d: split %.1fx, format %.1fx, hot swap parse %.1fx",
+					groupSize, legacySplit / split, legacyFormat / format,
+					legacyParse / parse));
+		}
+
+	}
+
+	/**
+	 * values like the ones groups are configured with, /16 prefixes
+	 */
+	private static String[] createValues(int groupSize) {
+
+		String[] values = new String[groupSize];
+
+		for (int i = 0; i < groupSize; i++) {
+			values[i] = "10." + i + ".0.0/16";
+		}
+
+		return values;
+	}
+
+	/**
+	 * flow strings as stored by the statistics bundle
+	 */
+	private static String[] createFlowStrings(int count) {
+
+		String[] flowStrings = new String[count];
+
+		for (int i = 0; i < count; i++) {
+			flowStrings[i] = "in_port=0,dl_type=0x800,nw_proto=0,nw_src=10."
+					+ i + "." + (i % 256) + ".0/24,nw_dst=0.0.0.0/0";
+		}
+
+		return flowStrings;
+	}
+
+	private static long split(String[] values) {
+
+		long accumulator = 0;
+
+		for (String value : values) {
+
+			long prefix = IPv4Prefix.parsePrefix(value);
+			int length = IPv4Prefix.length(prefix);
+			int splitBits = 31 - Integer.numberOfLeadingZeros(FLOWS_PER_VALUE / 2);
+			int subLength = Math.min(32, length + splitBits);
+			long count = IPv4Prefix.subPrefixCount(length, subLength);
+
+			for (long i = 0; i < count; i++) {
+				accumulator += IPv4Prefix.subPrefix(IPv4Prefix.address(prefix),
+						length, subLength, i);
+			}
+		}
+
+		return accumulator;
+	}
+
+	private static long format(String[] values) {
+
+		long accumulator = 0;
+
+		for (String value : values) {
+			accumulator += IPv4Prefix.format(
+					IPv4Prefix.address(IPv4Prefix.parsePrefix(value))).length();
+		}
+
+		return accumulator;
+	}
+
+	private static long parseFlows(String[] flowStrings) {
+
+		long accumulator = 0;
+
+		for (String flowString : flowStrings) {
+
+			Matcher matcher = NW_SRC_PATTERN.matcher(flowString);
+
+			while (matcher.find()) {
+				accumulator += IPv4Prefix.parseAddress(flowString,
+						matcher.start(1), matcher.end(1))
+						+ IPv4Prefix.parseLength(flowString, matcher.start(2),
+								matcher.end(2));
+			}
+		}
+
+		return accumulator;
+	}
+
+	// the code replaced by IPv4Prefix
+
+	private static final class LegacyIPAddress {
+		int ipAddressValue;
+		int subnet;
+	}
+
+	private static long legacySplit(String[] values) {
+
+		long accumulator = 0;
+
+		for (String value : values) {
+
+			String[] ipAndSubnet = value.split("/");
+
+			for (LegacyIPAddress ipAddress : legacyGenerateIPandSubnets(
+					ipAndSubnet, FLOWS_PER_VALUE / 2)) {
+				accumulator += ipAddress.ipAddressValue;
+			}
+		}
+
+		return accumulator;
+	}
+
+	private static List<LegacyIPAddress> legacyGenerateIPandSubnets(
+			String[] ipAndSubnet, int flowForEachValue) {
+
+		ArrayList<LegacyIPAddress> ipAddressValues = new ArrayList<LegacyIPAddress>();
+		String byteValue = Long.toBinaryString(flowForEachValue);
+		int newSubnetValue = Integer.parseInt(ipAndSubnet[1])
+				+ byteValue.length() - 1;
+
+		if (newSubnetValue > 32) {
+			newSubnetValue = 32;
+		}
+
+		int numberOfValues = (int) Math.pow(2, (byteValue.length() - 1));
+		int originalNumberOfFlows = (int) Math.pow(2,
+				32 - Integer.parseInt(ipAndSubnet[1]));
+		if (originalNumberOfFlows < numberOfValues) {
+			numberOfValues = originalNumberOfFlows;
+		}
+
+		int ipAddressInt = legacyParseAddress(ipAndSubnet[0]);
+
+		for (int i = 0; i < numberOfValues; i++) {
+
+			LegacyIPAddress ipAddress = new LegacyIPAddress();
+			ipAddress.ipAddressValue = ipAddressInt;
+			ipAddress.subnet = newSubnetValue;
+			ipAddressValues.add(ipAddress);
+
+			ipAddressInt = ipAddressInt
+					+ (int) Math.pow(2, 32 - newSubnetValue);
+		}
+
+		return ipAddressValues;
+	}
+
+	private static int legacyParseAddress(String stringAddress) {
+
+		byte[] ipByteParts = new byte[4];
+
+		String[] ipPart = stringAddress.split("\\.");
+		int i = 0;
+		Short tempShort = 0;
+		for (String ipString : ipPart) {
+
+			tempShort = Short.parseShort(ipString);
+			byte b = (byte) (0xFF & tempShort);
+			if (tempShort > 128)
+				b = (byte) (b | 0x80);
+			ipByteParts[i++] = b;
+		}
+
+		int intValue = 0;
+		for (i = 0; i < 4; i++) {
+			intValue = (intValue << 8);
+			intValue = (intValue | (0xFF & ipByteParts[i]));
+		}
+
+		return intValue;
+	}
+
+	private static long legacyFormat(String[] values) {
+
+		long accumulator = 0;
+
+		for (String value : values) {
+			accumulator += legacyToIPString(
+					legacyParseAddress(value.split("/")[0])).length();
+		}
+
+		return accumulator;
+	}
+
+	private static String legacyToIPString(int ipValue) {
+
+		String a = Integer.toBinaryString(ipValue);
+		String zeroString = "";
+		for (int i = a.length(); i < 32; i++) {
+			zeroString += "0";
+		}
+		a = zeroString + a;
+
+		String ip = "";
+		for (int i = 0; i < 4; i++) {
+			ip = ip + "." + Integer.parseInt(a.substring(i * 8, 8 * (i + 1)), 2);
+		}
+
+		return ip.substring(1);
+	}
+
+	private static long legacyParseFlows(String[] flowStrings) {
+
+		long accumulator = 0;
+
+		for (String flowString : flowStrings) {
+
+			Pattern pattern = Pattern
+					.compile("nw_src=([0-9]+.[0-9]+.[0-9]+.[0-9]+)/([0-9]*)");
+			Matcher matcher = pattern.matcher(flowString);
+
+			while (matcher.find()) {
+				String fullValue = matcher.group().replaceAll("nw_src=", "");
+				String[] ipAndSubnet = fullValue.split("/");
+				accumulator += legacyParseAddress(ipAndSubnet[0])
+						+ Integer.parseInt(ipAndSubnet[1]);
+			}
+		}
+
+		return accumulator;
+	}
+
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalebenchmark;
+
+import java.util.List;
+
+import net.beaconcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFMessage;
+import org.openflow.util.HexString;
+
+import edu.iu.incntre.flowscale.DispatchHandle;
+import edu.iu.incntre.flowscale.FlowscaleController;
+import edu.iu.incntre.flowscale.Group;
+import edu.iu.incntre.flowscale.SwitchDevice;
+
+/**
+ * Controller connected to a single FakeSwitch. Flow mods are counted instead
+ * of being queued on a dispatcher, so the benchmarks time the work of the
+ * groups and not the socket.
+ */
+public class RecordingController extends FlowscaleController {
+
+	// mirror of a port no group uses, the groups need a mirror map for the
+	// switch but none of their ports is mirrored
+	private static final short UNUSED_PORT = 1000;
+
+	private final IOFSwitch sw;
+	private long submittedMessages;
+
+	public RecordingController(IOFSwitch sw) {
+
+		this.sw = sw;
+
+		setBeaconProvider(FakeSwitch.beaconProvider(sw));
+		setFlowMirrorPorts(Long.toHexString(sw.getId()) + ":" + UNUSED_PORT
+				+ "," + (UNUSED_PORT + 1));
+
+		SwitchDevice switchDevice = new SwitchDevice(sw.getId());
+		switchDevice.setOpenFlowSwitch(sw);
+		switchDevice.setPhysicalPorts(sw.getFeaturesReply().getPorts());
+		getSwitchDevices().put(sw.getId(), switchDevice);
+
+	}
+
+	/**
+	 * create an IP group sending the given prefixes to the ports of the
+	 * switch, the group rules are not generated yet
+	 *
+	 * @param groupId
+	 * @param values
+	 *            prefixes of the group
+	 * @param maximumFlows
+	 * @return the group
+	 */
+	public Group createIPGroup(int groupId, String[] values, int maximumFlows) {
+
+		StringBuilder outputPorts = new StringBuilder();
+		StringBuilder prefixes = new StringBuilder();
+
+		for (int port = 1; port <= sw.getFeaturesReply().getPorts().size(); port++) {
+			outputPorts.append(port == 1 ? "" : ",").append(port);
+		}
+
+		for (String value : values) {
+			prefixes.append(prefixes.length() == 0 ? "" : ",").append(value);
+		}
+
+		Group group = new Group(this);
+		group.addGroupDetails(Integer.toString(groupId), "benchmark "
+				+ groupId, HexString.toHexString(sw.getId()),
+				HexString.toHexString(sw.getId()), "", outputPorts.toString(),
+				Integer.toString(Group.IP_TYPE), "200", prefixes.toString(),
+				Integer.toString(maximumFlows), "0", "0");
+
+		return group;
+	}
+
+	public IOFSwitch getSwitch() {
+		return sw;
+	}
+
+	/**
+	 * @return number of messages submitted to the switch so far
+	 */
+	public long getSubmittedMessages() {
+		return submittedMessages;
+	}
+
+	@Override
+	public DispatchHandle submitFlowMods(IOFSwitch sw,
+			List<? extends OFMessage> messages) {
+
+		submittedMessages += messages.size();
+		return new DispatchHandle(messages.size());
+
+	}
+
+	@Override
+	public DispatchHandle submitUrgentFlowMods(IOFSwitch sw,
+			List<? extends OFMessage> messages) {
+
+		return submitFlowMods(sw, messages);
+
+	}
+
+}
@@ -0,0 +1,405 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalebenchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+
+import edu.iu.incntre.flowscale.stats.FlowSample;
+import edu.iu.incntre.flowscale.stats.PortSample;
+import edu.iu.incntre.flowscale.util.JSONConverter;
+import edu.iu.incntre.flowscalestatcollector.StatWriter;
+import edu.iu.incntre.flowscalestatcollector.SwitchCounters;
+
+/**
+ * Measures the statistics path of a poll: the conversion of the flow stats
+ * replies to JSON by JSONConverter and to FlowSample records, and the packet
+ * count deltas StatCollector computes before storing them, from the JSON of
+ * the flow and port stats as it used to and from the replies through the
+ * typed samples. The deltas are also measured over polls whose rules churn,
+ * with the boxed maps keyed by match and with SwitchCounters.
+ */
+public class StatBenchmark {
+
+	private static final int[] FLOW_COUNTS = { 100, 1000, 10000, 100000 };
+
+	private static final int[] PORT_COUNTS = { 2, 8, 64 };
+
+	// about this many flows are converted in each round
+	private static final int FLOWS_PER_ROUND = 20000;
+
+	private static final int[] CHURN_FLOW_COUNTS = { 1000, 10000, 100000 };
+
+	// polls cycled through, a tenth of the flows is replaced at each
+	private static final int CHURN_POLLS = 50;
+
+	public static void main(String[] args) {
+
+		run(new MicroBenchmark(3, 7, 1));
+
+	}
+
+	public static void run(MicroBenchmark benchmark) {
+
+		for (int flowCount : FLOW_COUNTS) {
+
+			benchmark.setOperationsPerRound(Math.max(1, FLOWS_PER_ROUND
+					/ flowCount));
+
+			// the actions do not depend on the number of ports but on the
+			// number of outputs, the largest port count is used
+			final List<OFStatistics> flowStats = createFlowStats(flowCount,
+					PORT_COUNTS[PORT_COUNTS.length - 1]);
+
+			benchmark.measure("JSONConverter.toFlowStat",
+					MicroBenchmark.parameters("flows", flowCount),
+					new MicroBenchmark.Operation() {
+
+						@Override
+						public long run(int iteration) {
+							return JSONConverter.toFlowStat(flowStats).size();
+						}
+					});
+
+			benchmark.measure("FlowSample.fromStatistics",
+					MicroBenchmark.parameters("flows", flowCount),
+					new MicroBenchmark.Operation() {
+
+						@Override
+						public long run(int iteration) {
+							return FlowSample.fromStatistics(flowStats).size();
+						}
+					});
+
+			for (int portCount : PORT_COUNTS) {
+
+				final List<OFStatistics> switchFlowStats = createFlowStats(
+						flowCount, portCount);
+				final List<OFStatistics> portStats = createPortStats(portCount);
+				final String flowStatsJSON = JSONConverter.toFlowStat(
+						switchFlowStats).toJSONString();
+				final String portStatsJSON = JSONConverter.toPortStat(
+						portStats).toJSONString();
+
+				benchmark.measure("JSON deltas", MicroBenchmark
+						.parameters("flows", flowCount, "ports", portCount),
+						new MicroBenchmark.Operation() {
+
+							private HashMap<Long, Long> lastTransmitted = new HashMap<Long, Long>();
+							private HashMap<Long, Long> lastReceived = new HashMap<Long, Long>();
+							private HashMap<String, Long> lastFlowCounts = new HashMap<String, Long>();
+
+							@Override
+							public long run(int iteration) {
+								return deltas(portStatsJSON, flowStatsJSON,
+										lastTransmitted, lastReceived,
+										lastFlowCounts);
+							}
+						});
+
+				benchmark.measure("sample deltas", MicroBenchmark.parameters(
+						"flows", flowCount, "ports", portCount),
+						new MicroBenchmark.Operation() {
+
+							private HashMap<Long, Long> lastTransmitted = new HashMap<Long, Long>();
+							private HashMap<Long, Long> lastReceived = new HashMap<Long, Long>();
+							private HashMap<String, Long> lastFlowCounts = new HashMap<String, Long>();
+
+							@Override
+							public long run(int iteration) {
+								return sampleDeltas(portStats, switchFlowStats,
+										lastTransmitted, lastReceived,
+										lastFlowCounts);
+							}
+						});
+			}
+		}
+
+		runChurn(benchmark);
+
+	}
+
+	/**
+	 * deltas of polls where a tenth of the rules is replaced each time, the
+	 * boxed maps keep every match ever seen while SwitchCounters evicts them
+	 */
+	private static void runChurn(MicroBenchmark benchmark) {
+
+		benchmark.setOperationsPerRound(5);
+
+		for (int flowCount : CHURN_FLOW_COUNTS) {
+
+			int churn = flowCount / 10;
+			final List<PortSample> ports = PortSample
+					.fromStatistics(createPortStats(PORT_COUNTS[PORT_COUNTS.length - 1]));
+			final List<FlowSample> allFlows = FlowSample
+					.fromStatistics(createFlowStats(flowCount + churn
+							* (CHURN_POLLS - 1), PORT_COUNTS[PORT_COUNTS.length - 1]));
+			final List<List<FlowSample>> polls = new ArrayList<List<FlowSample>>();
+			// ids a FlowIdentityDictionary would give the matches of each poll
+			final int[][] identityIds = new int[CHURN_POLLS][];
+
+			for (int poll = 0; poll < CHURN_POLLS; poll++) {
+
+				polls.add(allFlows.subList(poll * churn, poll * churn
+						+ flowCount));
+				identityIds[poll] = new int[flowCount];
+
+				for (int i = 0; i < flowCount; i++) {
+					identityIds[poll][i] = poll * churn + i + 1;
+				}
+			}
+
+			final HashMap<String, Long> lastFlowCounts = new HashMap<String, Long>();
+			final SwitchCounters counters = new SwitchCounters(
+					StatWriter.DEFAULT_EVICT_AFTER_POLLS);
+
+			double boxed = benchmark.measure("HashMap deltas, churn",
+					MicroBenchmark.parameters("flows", flowCount),
+					new MicroBenchmark.Operation() {
+
+						private HashMap<Long, Long> lastTransmitted = new HashMap<Long, Long>();
+						private HashMap<Long, Long> lastReceived = new HashMap<Long, Long>();
+						private int poll;
+
+						@Override
+						public long run(int iteration) {
+
+							long accumulator = 0;
+
+							for (PortSample port : ports) {
+
+								long portId = port.getPortNumber();
+
+								accumulator += legacyCounterDelta(
+										lastTransmitted, portId,
+										port.getTransmitPackets());
+								accumulator += legacyCounterDelta(
+										lastReceived, portId,
+										port.getReceivePackets());
+							}
+
+							for (FlowSample flow : polls.get(poll++
+									% CHURN_POLLS)) {
+								accumulator += legacyCounterDelta(
+										lastFlowCounts, flow.getMatch(),
+										flow.getPacketCount());
+							}
+
+							return accumulator;
+						}
+					}).getMedian();
+
+			double primitive = benchmark.measure("SwitchCounters deltas, churn",
+					MicroBenchmark.parameters("flows", flowCount),
+					new MicroBenchmark.Operation() {
+
+						private int poll;
+
+						@Override
+						public long run(int iteration) {
+
+							List<FlowSample> flows = polls.get(poll
+									% CHURN_POLLS);
+							int[] pollIdentityIds = identityIds[poll++
+									% CHURN_POLLS];
+							int[] flowIds = new int[flows.size()];
+							long accumulator = 0;
+
+							counters.begin();
+
+							for (PortSample port : ports) {
+								accumulator += counters.transmittedDelta(port);
+								accumulator += counters.receivedDelta(port);
+							}
+
+							for (int i = 0; i < flowIds.length; i++) {
+
+								FlowSample flow = flows.get(i);
+								flowIds[i] = counters
+										.flowId(pollIdentityIds[i]);
+
+								if (flowIds[i] >= 0) {
+									accumulator += counters.flowDelta(
+											flowIds[i], flow);
+								}
+							}
+
+							counters.commit(flows, flowIds, ports);
+
+							return accumulator;
+						}
+					}).getMedian();
+
+			System.out.println(String.format(
+					"flows=%d: HashMap %.2f ms/poll holding %d flows, SwitchCounters %.2f ms/poll holding %d flows (%.1fx)",
+					flowCount, boxed / 1e6, lastFlowCounts.size(),
+					primitive / 1e6, counters.getFlowCount(), boxed
+							/ primitive));
+		}
+
+	}
+
+	/**
+	 * what StatCollector used to do with the JSON of a poll before the inserts
+	 */
+	private static long deltas(String portStats, String flowStats,
+			HashMap<Long, Long> lastTransmitted,
+			HashMap<Long, Long> lastReceived,
+			HashMap<String, Long> lastFlowCounts) {
+
+		long accumulator = 0;
+
+		for (Object port : (JSONArray) JSONValue.parse(portStats)) {
+
+			JSONObject jsonObject = (JSONObject) port;
+			long portId = (Long) jsonObject.get("port_id");
+
+			accumulator += legacyCounterDelta(lastTransmitted, portId,
+					(Long) jsonObject.get("transmit_packets"));
+			accumulator += legacyCounterDelta(lastReceived, portId,
+					(Long) jsonObject.get("receive_packets"));
+		}
+
+		for (Object flow : (JSONArray) JSONValue.parse(flowStats)) {
+
+			JSONObject jsonObject = (JSONObject) flow;
+
+			accumulator += legacyCounterDelta(lastFlowCounts,
+					(String) jsonObject.get("match"),
+					(Long) jsonObject.get("packet_count"));
+		}
+
+		return accumulator;
+	}
+
+	/**
+	 * what StatCollector does with the replies of a poll before the inserts
+	 */
+	private static long sampleDeltas(List<OFStatistics> portStats,
+			List<OFStatistics> flowStats, HashMap<Long, Long> lastTransmitted,
+			HashMap<Long, Long> lastReceived,
+			HashMap<String, Long> lastFlowCounts) {
+
+		long accumulator = 0;
+
+		for (PortSample port : PortSample.fromStatistics(portStats)) {
+
+			long portId = port.getPortNumber();
+
+			accumulator += legacyCounterDelta(lastTransmitted, portId,
+					port.getTransmitPackets());
+			accumulator += legacyCounterDelta(lastReceived, portId,
+					port.getReceivePackets());
+		}
+
+		for (FlowSample flow : FlowSample.fromStatistics(flowStats)) {
+			accumulator += legacyCounterDelta(lastFlowCounts,
+					flow.getMatch(), flow.getPacketCount());
+		}
+
+		return accumulator;
+	}
+
+	/**
+	 * what StatCollector used to do with the count of a port or flow, packets
+	 * counted since the last poll, the whole count when the counter was not
+	 * seen before or went backwards
+	 * 
+	 * @param lastCounts
+	 *            counts of the last poll, updated with the new count
+	 * @param key
+	 *            port or match string of the counter
+	 * @param count
+	 *            count read from the switch
+	 * @return the count to store
+	 */
+	static <K> long legacyCounterDelta(HashMap<K, Long> lastCounts, K key,
+			long count) {
+
+		Long lastCount = lastCounts.put(key, count);
+
+		if (lastCount == null || count < lastCount) {
+			return count;
+		}
+
+		return count - lastCount;
+	}
+
+	/**
+	 * flow stats of the source and destination rules of flowCount / 2 subnets
+	 */
+	private static List<OFStatistics> createFlowStats(int flowCount,
+			int portCount) {
+
+		List<OFStatistics> flowStats = new ArrayList<OFStatistics>();
+
+		for (int i = 0; i < flowCount; i++) {
+
+			int subnet = (10 << 24) | ((i / 2) << 8);
+
+			OFMatch match = new OFMatch();
+			match.setDataLayerType((short) 0x0800);
+
+			if (i % 2 == 0) {
+				match.setNetworkSource(subnet);
+				match.setWildcards(OFMatch.OFPFW_ALL ^ OFMatch.OFPFW_DL_TYPE
+						^ OFMatch.OFPFW_NW_SRC_ALL
+						^ (23 << OFMatch.OFPFW_NW_SRC_SHIFT));
+			} else {
+				match.setNetworkDestination(subnet);
+				match.setWildcards(OFMatch.OFPFW_ALL ^ OFMatch.OFPFW_DL_TYPE
+						^ OFMatch.OFPFW_NW_DST_ALL
+						^ (23 << OFMatch.OFPFW_NW_DST_SHIFT));
+			}
+
+			OFActionOutput output = new OFActionOutput();
+			output.setPort((short) (1 + (i / 2) % portCount));
+			List<OFAction> actions = new ArrayList<OFAction>();
+			actions.add(output);
+
+			OFFlowStatisticsReply flowStat = new OFFlowStatisticsReply();
+			flowStat.setMatch(match);
+			flowStat.setActions(actions);
+			flowStat.setPriority((short) 200);
+			flowStat.setPacketCount(1000L * (i + 1));
+			flowStat.setByteCount(1500000L * (i + 1));
+			flowStats.add(flowStat);
+		}
+
+		return flowStats;
+	}
+
+	private static List<OFStatistics> createPortStats(int portCount) {
+
+		List<OFStatistics> portStats = new ArrayList<OFStatistics>();
+
+		for (int port = 1; port <= portCount; port++) {
+
+			OFPortStatisticsReply portStat = new OFPortStatisticsReply();
+			portStat.setPortNumber((short) port);
+			portStat.setreceivePackets(1000000L * port);
+			portStat.setTransmitPackets(2000000L * port);
+			portStat.setReceiveBytes(1500000000L * port);
+			portStat.setTransmitBytes(3000000000L * port);
+			portStats.add(portStat);
+		}
+
+		return portStats;
+	}
+
+}
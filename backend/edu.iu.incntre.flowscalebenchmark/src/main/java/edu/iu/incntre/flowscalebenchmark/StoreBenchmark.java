@@ -0,0 +1,517 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalebenchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import edu.iu.incntre.flowscale.stats.FlowIdentity;
+import edu.iu.incntre.flowscale.stats.FlowIdentityDictionary;
+import edu.iu.incntre.flowscale.stats.FlowLoad;
+import edu.iu.incntre.flowscale.stats.FlowSample;
+import edu.iu.incntre.flowscale.stats.PortSample;
+import edu.iu.incntre.flowscale.stats.PortStateSample;
+import edu.iu.incntre.flowscale.stats.SampleStore;
+import edu.iu.incntre.flowscale.stats.SwitchSample;
+import edu.iu.incntre.flowscalestatcollector.StatRollup;
+import edu.iu.incntre.flowscalestatcollector.StatWriter;
+
+/**
+ * Compares the rows per second StatCollector writes to the statistics tables
+ * with one statement and one commit per row, as it used to and kept here as
+ * the legacy method, and with StatWriter batches in one transaction per
+ * sample. Each operation stores the sample of one switch.
+ *
+ * It also compares reading back the flows of a switch, with the query the hot
+ * swap runs against flow_stats and from the in memory sample store. The
+ * database read is measured both against flow_stats, whose rows hold the id
+ * of the match resolved through a FlowIdentityDictionary, and against
+ * legacy_flow_stats, which holds the match strings as flow_stats used to and
+ * has them parsed on every read.
+ *
+ * usage: StoreBenchmark [jdbc url]
+ *
+ * The database defaults to an in memory H2 database, whose driver has to be on
+ * the class path. The tables are created if they do not exist and emptied
+ * before each operation.
+ */
+public class StoreBenchmark {
+
+	public static final String DEFAULT_URL = "jdbc:h2:mem:flowscale;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+	private static final int[] FLOW_COUNTS = { 10000, 50000, 100000 };
+
+	private static final int PORT_COUNT = 48;
+
+	private static final int BATCH_SIZE = 1000;
+
+	private static final String[] CREATE_TABLES = {
+			"create table if not exists flow_stats (datapath_id bigint not null, "
+					+ "timestamp bigint not null, flow_id int not null, "
+					+ "action varchar(30), packet_count int, priority int, "
+					+ "primary key (datapath_id, timestamp, flow_id)) engine=InnoDB",
+			"create table if not exists legacy_flow_stats (datapath_id bigint not null, "
+					+ "timestamp bigint not null, match_string varchar(100) not null, "
+					+ "action varchar(30), packet_count int, priority int, "
+					+ "primary key (datapath_id, timestamp, match_string)) engine=InnoDB",
+			"create table if not exists port_stats (datapath_id bigint not null, "
+					+ "timestamp bigint not null, port int not null, "
+					+ "packets_received bigint, packets_transmitted bigint, "
+					+ "primary key (datapath_id, timestamp, port)) engine=InnoDB",
+			"create table if not exists port_status (datapath_id varchar(30), "
+					+ "timestamp bigint not null, pord_id int not null, "
+					+ "port_address varchar(20) not null, port_status int not null)"
+					+ " engine=InnoDB" };
+
+	public static void main(String[] args) {
+
+		run(new MicroBenchmark(1, 5, 1), args.length > 0 ? args[0]
+				: DEFAULT_URL);
+
+	}
+
+	public static void run(MicroBenchmark benchmark) {
+		run(benchmark, DEFAULT_URL);
+	}
+
+	public static void run(MicroBenchmark benchmark, String url) {
+
+		final Connection conn;
+
+		try {
+			conn = DriverManager.getConnection(url);
+			createTables(conn);
+		} catch (SQLException e) {
+			System.out.println("skipping store benchmark, no database at "
+					+ url + ": " + e.getMessage());
+			return;
+		}
+
+		benchmark.setOperationsPerRound(1);
+
+		try {
+			for (int flowCount : FLOW_COUNTS) {
+
+				final List<SwitchSample> samples = new ArrayList<SwitchSample>();
+				for (int i = 0; i < 2; i++) {
+					samples.add(createSample(flowCount, i));
+				}
+				int rows = flowCount + 2 * PORT_COUNT;
+
+				double legacy = benchmark.measure("legacy store",
+						MicroBenchmark.parameters("flows", flowCount),
+						new StoreOperation(conn) {
+
+							private HashMap<Long, Long> lastTransmitted = new HashMap<Long, Long>();
+							private HashMap<Long, Long> lastReceived = new HashMap<Long, Long>();
+							private HashMap<String, Long> lastFlowCounts = new HashMap<String, Long>();
+
+							@Override
+							long store(int iteration) throws SQLException {
+								return legacyStore(conn,
+										samples.get(iteration % 2),
+										lastTransmitted, lastReceived,
+										lastFlowCounts);
+							}
+						}).getMedian();
+
+				double batched = benchmark.measure("StatWriter store",
+						MicroBenchmark.parameters("flows", flowCount),
+						new StoreOperation(conn) {
+
+							private StatWriter writer = new StatWriter(
+									BATCH_SIZE);
+
+							@Override
+							long store(int iteration) throws SQLException {
+								return writer.store(conn,
+										samples.get(iteration % 2));
+							}
+						}).getMedian();
+
+				System.out.println(String.format(
+						"flows=%d: legacy %.0f rows/s, StatWriter %.0f rows/s (%.1fx)",
+						flowCount, rows / (legacy / 1e9), rows
+								/ (batched / 1e9), legacy / batched));
+
+				// the last sample stored by StatWriter is still in the tables,
+				// it is copied with its match strings for the legacy read
+				try {
+					copyLegacyFlowStats(conn);
+				} catch (SQLException e) {
+					throw new IllegalStateException(e);
+				}
+
+				double legacyRead = benchmark.measure(
+						"legacy_flow_stats window read",
+						MicroBenchmark.parameters("flows", flowCount),
+						new MicroBenchmark.Operation() {
+
+							@Override
+							public long run(int iteration) {
+								try {
+									return readLegacyFlowStats(conn, 1, 0);
+								} catch (SQLException e) {
+									throw new IllegalStateException(e);
+								}
+							}
+						}).getMedian();
+
+				final FlowIdentityDictionary flowIdentities = new FlowIdentityDictionary();
+
+				double databaseRead = benchmark.measure("flow_stats window read",
+						MicroBenchmark.parameters("flows", flowCount),
+						new MicroBenchmark.Operation() {
+
+							@Override
+							public long run(int iteration) {
+								try {
+									return readFlowStats(conn, flowIdentities,
+											1, 0);
+								} catch (SQLException e) {
+									throw new IllegalStateException(e);
+								}
+							}
+						}).getMedian();
+
+				System.out.println(String.format(
+						"flows=%d: legacy_flow_stats read %.2f ms, flow_stats read %.2f ms (%.1fx)",
+						flowCount, legacyRead / 1e6, databaseRead / 1e6,
+						legacyRead / databaseRead));
+
+				// both samples are published for their deltas, the latest one
+				// is read as the database holds a single sample
+				final SampleStore sampleStore = new SampleStore(12);
+				for (SwitchSample sample : samples) {
+					sampleStore.publish(sample);
+				}
+				final long latest = sampleStore.getLatestTimestamp(1);
+
+				double storeRead = benchmark.measure("SampleStore window read",
+						MicroBenchmark.parameters("flows", flowCount),
+						new MicroBenchmark.Operation() {
+
+							@Override
+							public long run(int iteration) {
+
+								long packets = 0;
+
+								for (FlowLoad flowLoad : sampleStore
+										.getFlowLoads(1, latest)) {
+									packets += flowLoad.getPacketCount();
+								}
+
+								return packets;
+							}
+						}).getMedian();
+
+				System.out.println(String.format(
+						"flows=%d: flow_stats read %.2f ms, SampleStore read %.2f ms (%.1fx)",
+						flowCount, databaseRead / 1e6, storeRead / 1e6,
+						databaseRead / storeRead));
+			}
+		} finally {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				// nothing left to write
+			}
+		}
+
+	}
+
+	/**
+	 * empties the tables before each operation
+	 */
+	private abstract static class StoreOperation implements
+			MicroBenchmark.PreparedOperation {
+
+		private final Connection conn;
+
+		StoreOperation(Connection conn) {
+			this.conn = conn;
+		}
+
+		abstract long store(int iteration) throws SQLException;
+
+		@Override
+		public void prepare(int iteration) {
+
+			try {
+				Statement statement = conn.createStatement();
+				try {
+					statement.executeUpdate("delete from flow_stats");
+					statement.executeUpdate("delete from legacy_flow_stats");
+					statement.executeUpdate("delete from port_stats");
+					statement.executeUpdate("delete from port_status");
+				} finally {
+					statement.close();
+				}
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+
+		}
+
+		@Override
+		public long run(int iteration) {
+
+			try {
+				return store(iteration);
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	private static void createTables(Connection conn) throws SQLException {
+
+		Statement statement = conn.createStatement();
+
+		try {
+			for (String createTable : CREATE_TABLES) {
+				statement.executeUpdate(createTable);
+			}
+		} finally {
+			statement.close();
+		}
+
+		FlowIdentityDictionary.createTable(conn);
+		StatRollup.createTables(conn);
+
+	}
+
+	private static void copyLegacyFlowStats(Connection conn)
+			throws SQLException {
+
+		Statement statement = conn.createStatement();
+
+		try {
+			statement.executeUpdate("delete from legacy_flow_stats");
+			statement
+					.executeUpdate("insert into legacy_flow_stats select f.datapath_id, f.timestamp,"
+							+ " i.match_string, f.action, f.packet_count, f.priority"
+							+ " from flow_stats f join flow_identity i on f.flow_id = i.flow_id");
+		} finally {
+			statement.close();
+		}
+
+	}
+
+	/**
+	 * the query the hot swap runs every round when it reads the database, the
+	 * identity of each flow comes from the dictionary
+	 */
+	private static long readFlowStats(Connection conn,
+			FlowIdentityDictionary flowIdentities, long datapathId, long since)
+			throws SQLException {
+
+		PreparedStatement prep = conn
+				.prepareStatement("SELECT flow_id, action, packet_count, priority FROM flow_stats where datapath_id = ? AND  timestamp >= ?");
+		long packets = 0;
+
+		try {
+			prep.setLong(1, datapathId);
+			prep.setLong(2, since);
+
+			ResultSet resultSet = prep.executeQuery();
+
+			while (resultSet.next()) {
+
+				FlowIdentity identity = flowIdentities.getIdentity(conn,
+						resultSet.getInt(1));
+				resultSet.getString(2);
+
+				if (identity.isLayer3()) {
+					packets += resultSet.getLong(3);
+				}
+
+				resultSet.getShort(4);
+			}
+
+			resultSet.close();
+		} finally {
+			prep.close();
+		}
+
+		return packets;
+	}
+
+	/**
+	 * the query the hot swap ran when flow_stats held the match strings, each
+	 * of them parsed into the same identity
+	 */
+	private static long readLegacyFlowStats(Connection conn, long datapathId,
+			long since) throws SQLException {
+
+		PreparedStatement prep = conn
+				.prepareStatement("SELECT datapath_id, match_string, action, packet_count,priority FROM legacy_flow_stats where datapath_id = ? AND  timestamp >= ?");
+		long packets = 0;
+
+		try {
+			prep.setLong(1, datapathId);
+			prep.setLong(2, since);
+
+			ResultSet resultSet = prep.executeQuery();
+
+			while (resultSet.next()) {
+
+				FlowIdentity identity = FlowIdentity.parse(resultSet
+						.getString(2));
+				resultSet.getString(3);
+
+				if (identity.isLayer3()) {
+					packets += resultSet.getLong(4);
+				}
+
+				resultSet.getShort(5);
+			}
+
+			resultSet.close();
+		} finally {
+			prep.close();
+		}
+
+		return packets;
+	}
+
+	/**
+	 * what StatCollector.storeSwitchDetails used to do, one statement, batch
+	 * and commit for every row, the flows going to legacy_flow_stats
+	 */
+	private static long legacyStore(Connection conn, SwitchSample sample,
+			HashMap<Long, Long> lastTransmitted,
+			HashMap<Long, Long> lastReceived,
+			HashMap<String, Long> lastFlowCounts) throws SQLException {
+
+		long datapathId = sample.getDatapathId();
+		long timestamp = sample.getTimestamp();
+		long rows = 0;
+
+		for (PortSample port : sample.getPorts()) {
+
+			long portId = port.getPortNumber();
+			PreparedStatement prep = conn
+					.prepareStatement("insert into port_stats values (?,?,?,?,?);");
+
+			try {
+				prep.setLong(1, datapathId);
+				prep.setLong(2, timestamp);
+				prep.setLong(5, StatBenchmark.legacyCounterDelta(
+						lastTransmitted, portId, port.getTransmitPackets()));
+				prep.setLong(4, StatBenchmark.legacyCounterDelta(
+						lastReceived, portId, port.getReceivePackets()));
+				prep.setLong(3, portId);
+				prep.addBatch();
+
+				conn.setAutoCommit(false);
+				prep.executeBatch();
+				conn.setAutoCommit(true);
+			} finally {
+				prep.close();
+			}
+
+			rows++;
+		}
+
+		for (FlowSample flow : sample.getFlows()) {
+
+			PreparedStatement prep = conn
+					.prepareStatement("insert  into legacy_flow_stats values (?,?,?,?,?,?);");
+
+			try {
+				prep.setLong(1, datapathId);
+				prep.setLong(2, timestamp);
+				prep.setLong(5, StatBenchmark.legacyCounterDelta(
+						lastFlowCounts, flow.getMatch(), flow.getPacketCount()));
+				prep.setString(3, flow.getMatch());
+				prep.setString(4, flow.getActions());
+				prep.setShort(6, flow.getPriority());
+				prep.addBatch();
+
+				conn.setAutoCommit(false);
+				prep.executeBatch();
+				conn.setAutoCommit(true);
+			} finally {
+				prep.close();
+			}
+
+			rows++;
+		}
+
+		for (PortStateSample port : sample.getPortStates()) {
+
+			PreparedStatement prep = conn
+					.prepareStatement("insert into port_status	 values (?,?,?,?,?);");
+
+			try {
+				prep.setLong(1, datapathId);
+				prep.setLong(2, timestamp);
+				prep.setLong(3, port.getPortNumber());
+				prep.setString(4, port.getHardwareAddress());
+				prep.setByte(5, (byte) (port.isLinkDown() ? 1 : 0));
+				prep.addBatch();
+
+				conn.setAutoCommit(false);
+				prep.executeBatch();
+				conn.setAutoCommit(true);
+			} finally {
+				prep.close();
+			}
+
+			rows++;
+		}
+
+		return rows;
+	}
+
+	/**
+	 * sample of a switch with the source and destination flows of flowCount /
+	 * 2 subnets, the counts grow with the poll
+	 */
+	private static SwitchSample createSample(int flowCount, int poll) {
+
+		List<FlowSample> flows = new ArrayList<FlowSample>(flowCount);
+
+		for (int i = 0; i < flowCount; i++) {
+
+			int subnet = i / 2;
+			String match = "OFMatch[dl_type=0x800,"
+					+ (i % 2 == 0 ? "nw_src=" : "nw_dst=") + (10 + subnet / 65536)
+					+ "." + ((subnet / 256) % 256) + "." + (subnet % 256)
+					+ ".0/24]";
+
+			flows.add(new FlowSample(match, Integer.toString(1 + subnet
+					% PORT_COUNT), (short) 200, 1000L * (i + 1) * (poll + 1),
+					1500000L * (i + 1) * (poll + 1), 10L * poll, (short) 0,
+					(short) 0, (byte) 0));
+		}
+
+		List<PortSample> ports = new ArrayList<PortSample>(PORT_COUNT);
+		List<PortStateSample> portStates = new ArrayList<PortStateSample>(
+				PORT_COUNT);
+
+		for (int port = 1; port <= PORT_COUNT; port++) {
+
+			ports.add(new PortSample((short) port, 1000000L * port * (poll + 1),
+					2000000L * port * (poll + 1), 1500000000L * port
+							* (poll + 1), 3000000000L * port * (poll + 1)));
+			portStates.add(new PortStateSample((short) port, String.format(
+					"00:00:00:00:00:%02x", port), 0));
+		}
+
+		return new SwitchSample(1, 1000L * (poll + 1), flows, ports,
+				portStates);
+	}
+
+}
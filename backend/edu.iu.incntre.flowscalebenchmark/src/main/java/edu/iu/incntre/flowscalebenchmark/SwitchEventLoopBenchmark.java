@@ -0,0 +1,203 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalebenchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.OFPortStatus;
+import org.openflow.protocol.OFPortStatus.OFPortReason;
+
+import edu.iu.incntre.flowscale.FlowscaleController;
+import edu.iu.incntre.flowscale.Group;
+import edu.iu.incntre.flowscale.GroupRegistry;
+import edu.iu.incntre.flowscale.SwitchDevice;
+import edu.iu.incntre.flowscale.SwitchEventLoop;
+
+/**
+ * Measures how many events one SwitchEventLoop runs per second. Each
+ * operation queues a burst of events from the calling thread and waits until
+ * the loop has run them all, so the time includes the hand off between
+ * threads. Port events update the ports of a 48 port SwitchDevice, group
+ * events add and remove groups from a GroupRegistry.
+ */
+public class SwitchEventLoopBenchmark {
+
+	private static final int EVENTS_PER_OPERATION = 1000;
+	private static final int PORT_COUNT = 48;
+	private static final int GROUP_COUNT = 1000;
+
+	public static void main(String[] args) {
+
+		run(new MicroBenchmark(5, 10, 20));
+
+	}
+
+	public static void run(MicroBenchmark benchmark) {
+
+		benchmark.setOperationsPerRound(20);
+
+		final SwitchEventLoop eventLoop = new SwitchEventLoop(1);
+		eventLoop.startUp();
+
+		final SwitchDevice switchDevice = createSwitchDevice();
+		final OFPortStatus[] portEvents = createPortEvents();
+
+		double portNanos = benchmark.measure("event loop",
+				MicroBenchmark.parameters("events", "port", "burst",
+						EVENTS_PER_OPERATION), new MicroBenchmark.Operation() {
+
+			@Override
+			public long run(int iteration) {
+
+				for (int i = 0; i < EVENTS_PER_OPERATION; i++) {
+
+					final OFPortStatus portStatus = portEvents[i % PORT_COUNT];
+					eventLoop.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							switchDevice.updatePort(portStatus);
+						}
+					});
+				}
+
+				return drain(eventLoop);
+			}
+		}).getMedian();
+
+		final GroupRegistry registry = new GroupRegistry();
+		final List<Group> groups = createGroups();
+
+		double groupNanos = benchmark.measure("event loop",
+				MicroBenchmark.parameters("events", "group", "burst",
+						EVENTS_PER_OPERATION), new MicroBenchmark.Operation() {
+
+			@Override
+			public long run(int iteration) {
+
+				for (int i = 0; i < EVENTS_PER_OPERATION; i++) {
+
+					final Group group = groups.get(i % GROUP_COUNT);
+					final boolean add = ((i / GROUP_COUNT) + iteration) % 2 == 0;
+					eventLoop.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							if (add) {
+								registry.addGroup(group);
+							} else {
+								registry.removeGroup(group.getGrouopId());
+							}
+						}
+					});
+				}
+
+				return drain(eventLoop);
+			}
+		}).getMedian();
+
+		System.out.println(String.format("port events:  %,.0f events/sec",
+				EVENTS_PER_OPERATION * 1e9 / portNanos));
+		System.out.println(String.format("group events: %,.0f events/sec",
+				EVENTS_PER_OPERATION * 1e9 / groupNanos));
+
+		eventLoop.shutDown();
+
+	}
+
+	/**
+	 * wait until the loop ran every queued event
+	 */
+	private static long drain(SwitchEventLoop eventLoop) {
+
+		try {
+			return eventLoop.call(new Callable<Long>() {
+
+				@Override
+				public Long call() {
+					return 1L;
+				}
+			});
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+
+	}
+
+	private static SwitchDevice createSwitchDevice() {
+
+		List<OFPhysicalPort> ports = new ArrayList<OFPhysicalPort>();
+
+		for (int i = 0; i < PORT_COUNT; i++) {
+			ports.add(createPort(i, 0));
+		}
+
+		SwitchDevice switchDevice = new SwitchDevice(1);
+		switchDevice.setPhysicalPorts(ports);
+
+		return switchDevice;
+	}
+
+	/**
+	 * one link down or link up modification per port, alternating
+	 */
+	private static OFPortStatus[] createPortEvents() {
+
+		OFPortStatus[] portEvents = new OFPortStatus[PORT_COUNT];
+
+		for (int i = 0; i < PORT_COUNT; i++) {
+
+			OFPortStatus portStatus = new OFPortStatus();
+			portStatus.setReason((byte) OFPortReason.OFPPR_MODIFY.ordinal());
+			portStatus.setDesc(createPort(i, i % 2));
+			portEvents[i] = portStatus;
+		}
+
+		return portEvents;
+	}
+
+	private static OFPhysicalPort createPort(int portNumber, int state) {
+
+		OFPhysicalPort port = new OFPhysicalPort();
+		port.setPortNumber((short) (portNumber + 1));
+		port.setHardwareAddress(new byte[] { 0, 0, 0, 0, 0, (byte) portNumber });
+		port.setState(state);
+
+		return port;
+	}
+
+	private static List<Group> createGroups() {
+
+		FlowscaleController controller = new FlowscaleController();
+		List<Group> groups = new ArrayList<Group>();
+
+		for (int i = 0; i < GROUP_COUNT; i++) {
+
+			Group group = new Group(controller);
+			group.setGrouopId(i);
+			group.setInputSwitchDatapathId(1);
+			group.setOutputSwitchDatapathId(1);
+
+			List<Short> inputPorts = new ArrayList<Short>();
+			List<Short> outputPorts = new ArrayList<Short>();
+			inputPorts.add((short) (1 + (i % PORT_COUNT)));
+
+			for (int port = 0; port < 4; port++) {
+				outputPorts.add((short) (1 + ((i + port + 1) % PORT_COUNT)));
+			}
+
+			group.setInputPorts(inputPorts);
+			group.setOutputPorts(outputPorts);
+			groups.add(group);
+		}
+
+		return groups;
+	}
+
+}
@@ -5,7 +5,7 @@ http://www.apache.org/licenses/LICENSE-2.0
 
 package edu.iu.incntre.flowscaleflowupdate;
 
-import grnoc.net.util.ipaddress.IPv4Address;
+import grnoc.net.util.ipaddress.IPv4Prefix;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -18,8 +18,6 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFPhysicalPort;
@@ -28,8 +26,11 @@ import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.util.HexString;
 import edu.iu.incntre.flowscale.FlowscaleController;
-import edu.iu.incntre.flowscale.IPAddress;
 import edu.iu.incntre.flowscale.SwitchDevice;
+import edu.iu.incntre.flowscale.metrics.MetricsRegistry;
+import edu.iu.incntre.flowscale.stats.FlowIdentity;
+import edu.iu.incntre.flowscale.stats.FlowIdentityDictionary;
+import edu.iu.incntre.flowscale.stats.FlowLoad;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,6 +39,11 @@ import org.slf4j.LoggerFactory;
  * This class will hot swap flows in order to remove flows from highly loaded
  * ports
  * 
+ * The packet counts of the flows are read from the sample store the stat
+ * collector publishes to, or from the flow_stats table when the stat source is
+ * database. The window of samples looked at can be longer than the interval,
+ * so the hot swap can run more often than the switches are polled.
+ * 
  * 
  * @author Ali Khalfan (akhalfan@indiana.edu)
  * 
@@ -50,6 +56,8 @@ public class FlowscaleFlowUpdate {
 	private String databaseDriver;
 	private String databaseClass;
 	private static Connection conn;
+	private int flowIdentityCapacity = FlowIdentityDictionary.DEFAULT_CAPACITY;
+	private FlowIdentityDictionary flowIdentities;
 
 	protected Thread hotSwappingThread;
 	private FlowscaleController flowscaleController;
@@ -57,11 +65,16 @@ public class FlowscaleFlowUpdate {
 
 	private String dbUsername;
 	private String dbPassword;
+	private String statSource = STAT_SOURCE_MEMORY;
+	private int windowTime;
 	private HashMap<Long, HashMap<Short, Short>> switchFlowMirrorPortsHashMap;
 
 	private HashMap<Long, ArrayList<Short>> loadedPortsHashMap = new HashMap<Long, ArrayList<Short>>();
 	double optimalPercentage;
 
+	public static final String STAT_SOURCE_MEMORY = "memory";
+	public static final String STAT_SOURCE_DATABASE = "database";
+
 	public void setDatabaseDriver(String databaseDriver) {
 		this.databaseDriver = databaseDriver;
 	}
@@ -119,25 +132,72 @@ public class FlowscaleFlowUpdate {
 
 	}
 
+	/**
+	 * where the flow statistics are read from, memory for the sample store of
+	 * the controller or database for the flow_stats table
+	 * 
+	 * @param statSource
+	 */
+	public void setStatSource(String statSource) {
+
+		if (!STAT_SOURCE_MEMORY.equals(statSource)
+				&& !STAT_SOURCE_DATABASE.equals(statSource)) {
+			throw new IllegalArgumentException("stat source must be "
+					+ STAT_SOURCE_MEMORY + " or " + STAT_SOURCE_DATABASE);
+		}
+
+		this.statSource = statSource;
+	}
+
+	/**
+	 * ids of flow matches kept in memory when the statistics are read from
+	 * the database
+	 * 
+	 * @param flowIdentityCapacity
+	 */
+	public void setFlowIdentityCapacity(int flowIdentityCapacity) {
+		this.flowIdentityCapacity = flowIdentityCapacity;
+	}
+
+	/**
+	 * seconds of statistics each round looks at, the interval time when not
+	 * set
+	 * 
+	 * @param windowTime
+	 */
+	public void setWindowTime(int windowTime) {
+		this.windowTime = windowTime;
+	}
+
+	/**
+	 * @return milliseconds of statistics each round looks at
+	 */
+	private long getWindow() {
+		return (windowTime > 0 ? windowTime : intervalTime) * 1000L;
+	}
+
 	/**
 	 * starts up the bundle and creates a new thread that continuously reads the
-	 * database
+	 * flow statistics
 	 * 
 	 */
 
 	public void startUp() {
 
-		try {
-			Class.forName(databaseClass);
-			conn = DriverManager.getConnection(databaseDriver, dbUsername,
-					dbPassword);
-
-		} catch (SQLException e) {
-			// TODO Auto-generated catch block
-			logger.error("{}", e);
-		} catch (ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			logger.error("{}", e);
+		if (STAT_SOURCE_DATABASE.equals(statSource)) {
+			flowIdentities = new FlowIdentityDictionary(flowIdentityCapacity);
+			try {
+				Class.forName(databaseClass);
+				conn = DriverManager.getConnection(databaseDriver, dbUsername,
+						dbPassword);
+
+			} catch (SQLException e) {
+				// TODO Auto-generated catch block
+				logger.error("{}", e);
+			} catch (ClassNotFoundException e) {
+				// TODO Auto-generated catch block
+				logger.error("{}", e);
+			}
 		}
 
 		logger.info("Start up of flow updater ");
@@ -212,63 +272,27 @@ public class FlowscaleFlowUpdate {
 								removeDownPorts(flowscaleController,
 										datapathId, loadedPorts);
 
-								// obtain optimal percentage for each loaded
-								// ports
-								optimalPercentage = (double) (100 / loadedPorts
-										.size());
-
 								ArrayList<OFFlowMod> flowMods = new ArrayList<OFFlowMod>();
-						 
-								long totalPacketCount = 0;
 
 								ArrayList<LoadFlow> switchFlows = new ArrayList<LoadFlow>();
+								long swapTime = System.nanoTime();
 
 								try {
 
-									// call db to populate flowstats structures
-									// here
-
-									getFlowsFromDB(datapathId, queryTime,
-											loadedPorts, switchFlows);
-
-									totalPacketCount = getTotalPacketCount(switchFlows);
-									/* return totalPacketCount; */
-
-									logger.info("total packet count {}",
-											totalPacketCount);
-
-									// get flow percentages, iterate over all
-									// flow stats to get flow percentage
-
-									setFlowsPercentage(switchFlows,
-											totalPacketCount);
-
-									// sort flow percent by ascending order
-									Collections.sort(switchFlows,
-											new LoadFlowComparator());
-
-									// print debug messages
-
-									for (LoadFlow switchFlow : switchFlows) {
-
-										logger.info(
-												"flow {} has percentage {}",
-												switchFlow.getFlowString(),
-												switchFlow.getFlowPercent());
-										logger.info("its port is {}",
-												switchFlow.getLoadedPort());
+									// populate flowstats structures here
 
+									if (STAT_SOURCE_DATABASE.equals(statSource)) {
+										getFlowsFromDB(datapathId, queryTime,
+												loadedPorts, switchFlows);
+									} else {
+										getFlowsFromStore(datapathId,
+												queryTime, loadedPorts,
+												switchFlows);
 									}
 
-									// end print debug messages
-
-									// start the hot swapping
-
-									HashMap<Short, TreeSet<LoadFlow>> newFlows;
-
 									// call hot swapping method
-									newFlows = hotSwap(totalPacketCount,
-											switchFlows);
+									HashMap<Short, TreeSet<LoadFlow>> newFlows = balanceFlows(
+											switchFlows, loadedPorts.size());
 
 									// print debug messages after hot swapping
 
@@ -321,6 +345,21 @@ public class FlowscaleFlowUpdate {
 								flowscaleController.injectFlows(flowMods,
 										datapathId);
 
+								String switchId = HexString
+										.toHexString(datapathId);
+								MetricsRegistry metricsRegistry = flowscaleController
+										.getMetricsRegistry();
+								metricsRegistry.histogram(
+										"flowscale_hot_swap_seconds",
+										"time to balance and inject the flows of a switch",
+										"switch", switchId).observe(
+										System.nanoTime() - swapTime);
+								metricsRegistry.counter(
+										"flowscale_hot_swap_flow_mods_total",
+										"flow mods injected by hot swapping",
+										"switch", switchId).add(
+										flowMods.size());
+
 							}
 
 							try {
@@ -476,6 +515,49 @@ public class FlowscaleFlowUpdate {
 
 	}
 
+	/**
+	 * compute the share of each flow in the total packet count and hot swap
+	 * the flows of the ports above their optimal share, this is the part of a
+	 * hot swapping round done once the flows are read from the database
+	 *
+	 * @param switchFlows
+	 *            flows of the loaded ports of a switch, sorted by this method
+	 * @param loadedPortCount
+	 *            number of loaded ports that are up
+	 * @return the new flows that will be injected to the switch
+	 */
+	public HashMap<Short, TreeSet<LoadFlow>> balanceFlows(
+			ArrayList<LoadFlow> switchFlows, int loadedPortCount) {
+
+		// obtain optimal percentage for each loaded
+		// ports
+		optimalPercentage = (double) (100 / loadedPortCount);
+
+		long totalPacketCount = getTotalPacketCount(switchFlows);
+
+		logger.info("total packet count {}", totalPacketCount);
+
+		// get flow percentages, iterate over all
+		// flow stats to get flow percentage
+		setFlowsPercentage(switchFlows, totalPacketCount);
+
+		// sort flow percent by ascending order
+		Collections.sort(switchFlows, new LoadFlowComparator());
+
+		if (logger.isInfoEnabled()) {
+
+			for (LoadFlow switchFlow : switchFlows) {
+
+				logger.info("flow {} has percentage {}",
+						switchFlow.getFlowString(), switchFlow.getFlowPercent());
+				logger.info("its port is {}", switchFlow.getLoadedPort());
+
+			}
+		}
+
+		return hotSwap(totalPacketCount, switchFlows);
+	}
+
 	/**
 	 * The main method concertned with moving flows from high load ports to ones
 	 * with lower loads
@@ -533,7 +615,12 @@ public class FlowscaleFlowUpdate {
 
 				Short lowPort = this.getMinPort(belowPercentPorts,
 						portPercentages);
-				
+
+				// every port is at or above its share, nothing can move
+				if (lowPort == null) {
+					logger.debug("no port below optimal percentage");
+					break;
+				}
 
 				logger.debug("check if port {} with percentage {} can receive",
 						lowPort, portPercentages.get(lowPort));
@@ -688,34 +775,17 @@ public class FlowscaleFlowUpdate {
 
 				OFMatch ofMatch = null;
 
-				Pattern pattern = Pattern
-						.compile("nw_src=([0-9]+.[0-9]+.[0-9]+.[0-9]+)/([0-9]*)");
-
-				Matcher matcher = pattern.matcher(changedFlow.getFlowString());
-
-				while (matcher.find()) {
-					String fullValue = matcher.group()
-							.replaceAll("nw_src=", "");
+				// the prefixes were parsed once when the flow was identified
+				FlowIdentity identity = changedFlow.getIdentity();
+				long networkSource = identity.getNetworkSource();
 
-					String[] ipAndSubnet = fullValue.split("/");
+				if (networkSource != IPv4Prefix.NO_PREFIX) {
 
-					try {
-						logger.debug("ip address is {} and subnet is {}",
-
-						matcher.group(1), matcher.group(2));
-
-					} catch (IndexOutOfBoundsException ioe) {
-						break;
-					}
-					IPv4Address ipv4Address = new IPv4Address(ipAndSubnet[0]);
-					ipv4Address.setSubnet(Integer.parseInt(ipAndSubnet[1]));
-					int ipAddressInt = ipv4Address.getIPv4AddressInt();
-
-					IPAddress ipAddress = new IPAddress();
-					ipAddress.setIpAddressValue(ipAddressInt);
-					ipAddress.setSubnet(Integer.parseInt(ipAndSubnet[1]));
-
-					short maskingBits = (short) (ipAddress.getSubnet());
+					int ipAddressInt = IPv4Prefix.address(networkSource);
+					short maskingBits = (short) IPv4Prefix
+							.length(networkSource);
+					logger.debug("ip address is {} and subnet is {}",
+							IPv4Prefix.format(ipAddressInt), maskingBits);
 					int wildCardSource = OFMatch.OFPFW_ALL
 							^ OFMatch.OFPFW_DL_TYPE
 							^ OFMatch.OFPFW_NW_SRC_ALL
@@ -724,8 +794,7 @@ public class FlowscaleFlowUpdate {
 					OFMatch ofMatchSource = new OFMatch();
 					ofMatchSource.setDataLayerType((short) 0x0800);
 
-					ofMatchSource.setNetworkSource(ipAddress
-							.getIpAddressValue());
+					ofMatchSource.setNetworkSource(ipAddressInt);
 
 					ofMatchSource.setWildcards(wildCardSource);
 					ofMatch = ofMatchSource;
@@ -759,8 +828,7 @@ public class FlowscaleFlowUpdate {
 
 					OFMatch ofMatchDest = new OFMatch();
 					ofMatchDest.setDataLayerType((short) 0x0800);
-					ofMatchDest.setNetworkDestination(ipAddress
-							.getIpAddressValue());
+					ofMatchDest.setNetworkDestination(ipAddressInt);
 
 					int wildCardDest = OFMatch.OFPFW_ALL
 							^ OFMatch.OFPFW_DL_TYPE
@@ -785,30 +853,15 @@ public class FlowscaleFlowUpdate {
 
 				}
 
-				pattern = Pattern
-						.compile("nw_dst=([0-9]+.[0-9]+.[0-9]+.[0-9]+)/([0-9]*)");
+				long networkDestination = identity.getNetworkDestination();
 
-				matcher = pattern.matcher(changedFlow.getFlowString());
+				if (networkDestination != IPv4Prefix.NO_PREFIX) {
 
-				while (matcher.find()) {
-
-					try {
-						logger.debug("ip address is {} and subnet is {}",
-
-						matcher.group(1), matcher.group(2));
-
-					} catch (IndexOutOfBoundsException ioe) {
-						break;
-					}
-					IPv4Address ipv4Address = new IPv4Address(matcher.group(1));
-					ipv4Address.setSubnet(Integer.parseInt(matcher.group(2)));
-					int ipAddressInt = ipv4Address.getIPv4AddressInt();
-
-					IPAddress ipAddress = new IPAddress();
-					ipAddress.setIpAddressValue(ipAddressInt);
-					ipAddress.setSubnet(Integer.parseInt(matcher.group(2)));
-
-					short maskingBits = (short) (ipAddress.getSubnet());
+					int ipAddressInt = IPv4Prefix.address(networkDestination);
+					short maskingBits = (short) IPv4Prefix
+							.length(networkDestination);
+					logger.debug("ip address is {} and subnet is {}",
+							IPv4Prefix.format(ipAddressInt), maskingBits);
 					int wildCardDestination = OFMatch.OFPFW_ALL
 							^ OFMatch.OFPFW_DL_TYPE
 							^ OFMatch.OFPFW_NW_DST_ALL
@@ -817,8 +870,7 @@ public class FlowscaleFlowUpdate {
 					OFMatch ofMatchDestination = new OFMatch();
 					ofMatchDestination.setDataLayerType((short) 0x0800);
 
-					ofMatchDestination.setNetworkDestination(ipAddress
-							.getIpAddressValue());
+					ofMatchDestination.setNetworkDestination(ipAddressInt);
 
 					ofMatchDestination.setWildcards(wildCardDestination);
 					ofMatch = ofMatchDestination;
@@ -848,7 +900,7 @@ public class FlowscaleFlowUpdate {
 
 					OFMatch ofMatchSrc = new OFMatch();
 					ofMatchSrc.setDataLayerType((short) 0x0800);
-					ofMatchSrc.setNetworkSource(ipAddress.getIpAddressValue());
+					ofMatchSrc.setNetworkSource(ipAddressInt);
 
 					int wildCardSrc = OFMatch.OFPFW_ALL
 							^ OFMatch.OFPFW_DL_TYPE
@@ -928,75 +980,131 @@ public class FlowscaleFlowUpdate {
 			ArrayList<Short> loadedPorts, ArrayList<LoadFlow> switchFlows)
 			throws SQLException {
 
-		String flowStatQuery = "SELECT datapath_id, match_string, action, packet_count,priority FROM flow_stats where datapath_id = ? AND  timestamp >= ?";
+		String flowStatQuery = "SELECT flow_id, action, packet_count, priority FROM flow_stats where datapath_id = ? AND  timestamp >= ?";
 		PreparedStatement flowStatPs = null;
 		ResultSet flowStatRs = null;
 		flowStatPs = conn.prepareStatement(flowStatQuery);
-		flowStatPs.setLong(1, datapathId);
-		flowStatPs.setLong(2, queryTime - (intervalTime * 1000));
 
-		flowStatRs = flowStatPs.executeQuery();
+		// flows of the window by their id in flow_identity
+		HashMap<Integer, LoadFlow> windowFlows = new HashMap<Integer, LoadFlow>();
 
-		logger.debug(
-				"query : SELECT datapath_id, match_string, action, packet_count priority FROM flow_stats where datapath_id = {} AND  timestamp >= {} ",
-				datapathId, queryTime - (intervalTime * 1000));
+		try {
+			flowStatPs.setLong(1, datapathId);
+			flowStatPs.setLong(2, queryTime - getWindow());
 
-		while (flowStatRs.next()) {
+			flowStatRs = flowStatPs.executeQuery();
 
-			String matchString = flowStatRs.getString(2);
-			String action = flowStatRs.getString(3);
-			long packetCount = flowStatRs.getLong(4);
-			short priority = flowStatRs.getShort(5);
-			
-			if (!(matchString.contains("nw_src") || matchString
-					.contains("nw_dst"))) {
+			logger.debug(
+					"query : SELECT flow_id, action, packet_count, priority FROM flow_stats where datapath_id = {} AND  timestamp >= {} ",
+					datapathId, queryTime - getWindow());
 
-				// skip saving of flow if not layer 3
-				continue;
-			}
+			while (flowStatRs.next()) {
 
-			Short loadedPort = 0;
-			logger.trace("obtained  flow {} with packet count {}", matchString,
-					packetCount);
+				int flowId = flowStatRs.getInt(1);
+				String action = flowStatRs.getString(2);
+				long packetCount = flowStatRs.getLong(3);
+				short priority = flowStatRs.getShort(4);
 
-			String[] actions = action.split(",");
-			try {
-				loadedPort = Short.parseShort(actions[0]);
+				FlowIdentity identity = flowIdentities.getIdentity(conn,
+						flowId);
 
-			} catch (NumberFormatException nfe) {
+				if (identity == null || !identity.isLayer3()) {
 
-				continue;
+					// skip saving of flow if not layer 3
+					continue;
+				}
 
-			}
-			logger.debug("and port is {}", loadedPort);
-			if (loadedPorts.contains(loadedPort)) {
+				Short loadedPort = 0;
+				logger.trace("obtained  flow {} with packet count {}",
+						identity, packetCount);
 
-				// add new flow here, or if exist increment packet count
-				LoadFlow tempLoadFlow = new LoadFlow(matchString, loadedPort,priority);
+				int comma = action.indexOf(',');
+				try {
+					loadedPort = Short.parseShort(comma < 0 ? action : action
+							.substring(0, comma));
 
-				LoadFlow loadFlowInstance = getFlowByString(matchString,
-						switchFlows);
-				if (loadFlowInstance != null) {
-					if (loadFlowInstance.getLoadedPort() != loadedPort) {
-						switchFlows.remove(loadFlowInstance);
-						tempLoadFlow.setPacketCount(packetCount);
-						switchFlows.add(tempLoadFlow);
-					} else {
+				} catch (NumberFormatException nfe) {
+
+					continue;
+
+				}
+				logger.debug("and port is {}", loadedPort);
+				if (loadedPorts.contains(loadedPort)) {
+
+					// add new flow here, or if exist increment packet count
+					LoadFlow loadFlowInstance = windowFlows.get(flowId);
+
+					if (loadFlowInstance != null
+							&& loadFlowInstance.getLoadedPort() == loadedPort) {
 						logger.trace("tempLoad Flow is {}", loadFlowInstance);
 						loadFlowInstance.setPacketCount(loadFlowInstance
 								.getPacketCount() + packetCount);
+					} else {
+
+						// a flow moved to another port is only counted since
+						// the move
+						LoadFlow tempLoadFlow = new LoadFlow(identity,
+								loadedPort, priority);
+						tempLoadFlow.setPacketCount(packetCount);
+						logger.trace("adding flow {}", tempLoadFlow);
+						windowFlows.put(flowId, tempLoadFlow);
 					}
 
-				} else {
+				}
+			}
+		} finally {
+			if (flowStatRs != null) {
+				flowStatRs.close();
+			}
+			flowStatPs.close();
+		}
 
-					logger.trace("adding flow {}", tempLoadFlow);
+		switchFlows.addAll(windowFlows.values());
 
-					tempLoadFlow.setPacketCount(packetCount);
-					logger.trace("adding of switch flow is {}",
-							switchFlows.add(tempLoadFlow));
-					;
-				}
+	}
+
+	/**
+	 * reads the flows of the switch from the sample store for the same window
+	 * as getFlowsFromDB, the store already counts each flow once
+	 * 
+	 * @param datapathId
+	 * @param queryTime
+	 * @param loadedPorts
+	 *            only look for flows containing the loaded ports
+	 * @param switchFlows
+	 *            object used to store all the LoadFlows
+	 */
+	private void getFlowsFromStore(long datapathId, long queryTime,
+			ArrayList<Short> loadedPorts, ArrayList<LoadFlow> switchFlows) {
+
+		for (FlowLoad flowLoad : flowscaleController.getSampleStore()
+				.getFlowLoads(datapathId, queryTime - getWindow())) {
+
+			FlowIdentity identity = flowLoad.getIdentity();
+
+			if (!identity.isLayer3()) {
+
+				// skip flow if not layer 3
+				continue;
+			}
+
+			String action = flowLoad.getActions();
+			int comma = action.indexOf(',');
+			short loadedPort;
+
+			try {
+				loadedPort = Short.parseShort(comma < 0 ? action : action
+						.substring(0, comma));
+			} catch (NumberFormatException nfe) {
+				continue;
+			}
+
+			if (loadedPorts.contains(loadedPort)) {
 
+				LoadFlow loadFlow = new LoadFlow(identity, loadedPort,
+						flowLoad.getPriority());
+				loadFlow.setPacketCount(flowLoad.getPacketCount());
+				switchFlows.add(loadFlow);
 			}
 		}
 
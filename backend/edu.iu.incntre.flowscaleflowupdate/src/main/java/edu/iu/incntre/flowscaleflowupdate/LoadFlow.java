@@ -2,9 +2,12 @@ package edu.iu.incntre.flowscaleflowupdate;
 
 import java.util.HashSet;
 
+import edu.iu.incntre.flowscale.stats.FlowIdentity;
+
 public class LoadFlow implements Comparable{
 
 	private String flowString;
+	private FlowIdentity identity;
 	private double flowPercent = 0f;
 	private short loadedPort;
 	private long packetCount = 0;
@@ -13,11 +16,17 @@ public class LoadFlow implements Comparable{
 	public LoadFlow(String flowString) {
 
 		this.flowString = flowString;
+		this.identity = FlowIdentity.parse(flowString);
 
 	}
 
 	public LoadFlow(String flowString, short loadedPort, short priority) {
-		this.flowString = flowString;
+		this(FlowIdentity.parse(flowString), loadedPort, priority);
+	}
+
+	public LoadFlow(FlowIdentity identity, short loadedPort, short priority) {
+		this.flowString = identity.getMatch();
+		this.identity = identity;
 		this.loadedPort = loadedPort;
 		this.priroity = priority;
 	}
@@ -41,6 +50,10 @@ public class LoadFlow implements Comparable{
 
 	}
 
+	public FlowIdentity getIdentity() {
+		return this.identity;
+	}
+
 	public short getLoadedPort() {
 		return this.loadedPort;
 	}
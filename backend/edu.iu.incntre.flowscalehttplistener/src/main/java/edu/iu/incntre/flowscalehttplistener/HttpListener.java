@@ -112,6 +112,17 @@ public class HttpListener implements Handler {
 
 		String requestAction = request.getHeader("action");
 
+		// the metrics are scraped from /metrics, which sends no action header
+		if ("/metrics".equals(arg0) || "getMetrics".equals(requestAction)) {
+
+			response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.getWriter().print(
+					flowscaleController.getMetricsRegistry().toText());
+
+			return;
+		}
+
 		logger.debug("action is {}", requestAction);
 		if (requestAction.equals("getSwitchStatus")) {
 
@@ -0,0 +1,468 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalesimulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.statistics.OFAggregateStatisticsReply;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFTableStatistics;
+
+/**
+ * The single flow table of a simulated switch. Flow mods are applied with the
+ * OpenFlow 1.0 semantics of their command, and every flow forwards a synthetic
+ * packet rate to its output ports: the rates follow a Zipf distribution over
+ * the matches, so a flow keeps its rate when it is moved to another port, and
+ * a flow stops counting while one of its output ports is down. Idle and hard
+ * timeouts are kept for the statistics but flows never expire.
+ */
+public class SimulatedFlowTable {
+
+	public static final int PACKET_SIZE = 800;
+
+	// number of ranks of the Zipf distribution of the flow rates
+	private static final int RATE_RANKS = 1000;
+
+	private static final short OFPP_NONE = OFPort.OFPP_NONE.getValue();
+
+	private final int maximumEntries;
+	private final double maximumPacketRate;
+
+	private final LinkedHashMap<FlowKey, FlowEntry> entries = new LinkedHashMap<FlowKey, FlowEntry>();
+
+	private double lookupCount = 0;
+	private double matchedCount = 0;
+
+	/**
+	 * @param maximumEntries
+	 *            flows the table can hold before adds are refused
+	 * @param maximumPacketRate
+	 *            packets per second of the flows of the first rank
+	 */
+	public SimulatedFlowTable(int maximumEntries, double maximumPacketRate) {
+
+		this.maximumEntries = maximumEntries;
+		this.maximumPacketRate = maximumPacketRate;
+
+	}
+
+	/**
+	 * apply a flow mod to the table
+	 *
+	 * @return false if the flow mod adds a flow to a full table
+	 */
+	public synchronized boolean apply(OFFlowMod flowMod) {
+
+		FlowKey key = new FlowKey(flowMod.getMatch(), flowMod.getPriority());
+
+		switch (flowMod.getCommand()) {
+
+		case OFFlowMod.OFPFC_ADD:
+			// an identical flow is replaced and its counters are cleared
+			if (!entries.containsKey(key) && entries.size() >= maximumEntries) {
+				return false;
+			}
+			entries.put(key, new FlowEntry(flowMod));
+			return true;
+
+		case OFFlowMod.OFPFC_MODIFY_STRICT:
+			FlowEntry entry = entries.get(key);
+			if (entry != null) {
+				entry.actions = flowMod.getActions();
+				entry.cookie = flowMod.getCookie();
+				return true;
+			}
+			break;
+
+		case OFFlowMod.OFPFC_MODIFY:
+			boolean modified = false;
+			for (FlowEntry coveredEntry : entries.values()) {
+				if (covers(flowMod.getMatch(), coveredEntry.match)) {
+					coveredEntry.actions = flowMod.getActions();
+					coveredEntry.cookie = flowMod.getCookie();
+					modified = true;
+				}
+			}
+			if (modified) {
+				return true;
+			}
+			break;
+
+		case OFFlowMod.OFPFC_DELETE_STRICT:
+			FlowEntry deletedEntry = entries.get(key);
+			if (deletedEntry != null
+					&& deletedEntry.outputsTo(flowMod.getOutPort())) {
+				entries.remove(key);
+			}
+			return true;
+
+		case OFFlowMod.OFPFC_DELETE:
+			Iterator<FlowEntry> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				FlowEntry coveredEntry = iterator.next();
+				if (covers(flowMod.getMatch(), coveredEntry.match)
+						&& coveredEntry.outputsTo(flowMod.getOutPort())) {
+					iterator.remove();
+				}
+			}
+			return true;
+
+		default:
+			return true;
+		}
+
+		// a modify of no flow adds it
+		if (entries.size() >= maximumEntries) {
+			return false;
+		}
+		entries.put(key, new FlowEntry(flowMod));
+		return true;
+	}
+
+	/**
+	 * count the packets the flows forwarded since they were last counted
+	 *
+	 * @param now
+	 *            System.nanoTime() to count the packets up to
+	 * @param portUp
+	 *            state of each port by port number
+	 * @param receivedPackets
+	 *            packets received on each port, incremented by the packets of
+	 *            the flows that match an input port
+	 * @param transmittedPackets
+	 *            packets transmitted by each port, incremented by the packets
+	 *            of the flows that output to the port
+	 */
+	public synchronized void advance(long now, boolean[] portUp,
+			double[] receivedPackets, double[] transmittedPackets) {
+
+		for (FlowEntry entry : entries.values()) {
+
+			double packets = entry.packetRate * (now - entry.countedUntil)
+					/ 1000000000.0;
+			entry.countedUntil = now;
+			lookupCount += packets;
+
+			if (!entry.forwardsTo(portUp)) {
+				continue;
+			}
+
+			entry.packetCount += packets;
+			matchedCount += packets;
+
+			if ((entry.match.getWildcards() & OFMatch.OFPFW_IN_PORT) == 0) {
+				int inputPort = entry.match.getInputPort();
+				if (inputPort > 0 && inputPort < receivedPackets.length) {
+					receivedPackets[inputPort] += packets;
+				}
+			}
+
+			if (entry.actions == null) {
+				continue;
+			}
+
+			for (OFAction action : entry.actions) {
+				if (action instanceof OFActionOutput) {
+					int port = ((OFActionOutput) action).getPort();
+					if (port > 0 && port < transmittedPackets.length) {
+						transmittedPackets[port] += packets;
+					}
+				}
+			}
+		}
+
+	}
+
+	public synchronized List<OFFlowStatisticsReply> getFlowStatistics(
+			OFMatch match, short outPort) {
+
+		List<OFFlowStatisticsReply> flowStats = new ArrayList<OFFlowStatisticsReply>();
+		long now = System.nanoTime();
+
+		for (FlowEntry entry : entries.values()) {
+
+			if (!covers(match, entry.match) || !entry.outputsTo(outPort)) {
+				continue;
+			}
+
+			long duration = now - entry.installTime;
+			int length = OFFlowStatisticsReply.MINIMUM_LENGTH;
+
+			if (entry.actions != null) {
+				for (OFAction action : entry.actions) {
+					length += action.getLengthU();
+				}
+			}
+
+			OFFlowStatisticsReply flowStat = new OFFlowStatisticsReply();
+			flowStat.setTableId((byte) 0);
+			flowStat.setMatch(entry.match);
+			flowStat.setDurationSeconds((int) (duration / 1000000000L));
+			flowStat.setDurationNanoseconds((int) (duration % 1000000000L));
+			flowStat.setPriority(entry.priority);
+			flowStat.setIdleTimeout(entry.idleTimeout);
+			flowStat.setHardTimeout(entry.hardTimeout);
+			flowStat.setCookie(entry.cookie);
+			flowStat.setPacketCount((long) entry.packetCount);
+			flowStat.setByteCount((long) entry.packetCount * PACKET_SIZE);
+			flowStat.setActions(entry.actions);
+			flowStat.setLength((short) length);
+			flowStats.add(flowStat);
+		}
+
+		return flowStats;
+	}
+
+	public synchronized OFAggregateStatisticsReply getAggregateStatistics(
+			OFMatch match, short outPort) {
+
+		double packetCount = 0;
+		int flowCount = 0;
+
+		for (FlowEntry entry : entries.values()) {
+			if (covers(match, entry.match) && entry.outputsTo(outPort)) {
+				packetCount += entry.packetCount;
+				flowCount++;
+			}
+		}
+
+		OFAggregateStatisticsReply aggregateStat = new OFAggregateStatisticsReply();
+		aggregateStat.setPacketCount((long) packetCount);
+		aggregateStat.setByteCount((long) packetCount * PACKET_SIZE);
+		aggregateStat.setFlowCount(flowCount);
+
+		return aggregateStat;
+	}
+
+	public synchronized OFTableStatistics getTableStatistics() {
+
+		OFTableStatistics tableStat = new OFTableStatistics();
+		tableStat.setTableId((byte) 0);
+		tableStat.setName("simulated");
+		tableStat.setWildcards(OFMatch.OFPFW_ALL);
+		tableStat.setMaximumEntries(maximumEntries);
+		tableStat.setActiveCount(entries.size());
+		tableStat.setLookupCount((long) lookupCount);
+		tableStat.setMatchedCount((long) matchedCount);
+
+		return tableStat;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return true if every field matched by the pattern is matched by match
+	 *         with the same value, the pattern of a non strict modify or
+	 *         delete and of a statistics request selects the flows it covers
+	 */
+	static boolean covers(OFMatch pattern, OFMatch match) {
+
+		if (pattern == null) {
+			return true;
+		}
+
+		int patternWildcards = pattern.getWildcards();
+		int wildcards = match.getWildcards();
+
+		if (!coversField(patternWildcards, wildcards, OFMatch.OFPFW_IN_PORT,
+				pattern.getInputPort() == match.getInputPort())
+				|| !coversField(patternWildcards, wildcards,
+						OFMatch.OFPFW_DL_VLAN,
+						pattern.getDataLayerVirtualLan() == match
+								.getDataLayerVirtualLan())
+				|| !coversField(patternWildcards, wildcards,
+						OFMatch.OFPFW_DL_SRC, Arrays.equals(
+								pattern.getDataLayerSource(),
+								match.getDataLayerSource()))
+				|| !coversField(patternWildcards, wildcards,
+						OFMatch.OFPFW_DL_DST, Arrays.equals(
+								pattern.getDataLayerDestination(),
+								match.getDataLayerDestination()))
+				|| !coversField(patternWildcards, wildcards,
+						OFMatch.OFPFW_DL_TYPE,
+						pattern.getDataLayerType() == match.getDataLayerType())
+				|| !coversField(patternWildcards, wildcards,
+						OFMatch.OFPFW_NW_PROTO,
+						pattern.getNetworkProtocol() == match
+								.getNetworkProtocol())
+				|| !coversField(patternWildcards, wildcards,
+						OFMatch.OFPFW_TP_SRC,
+						pattern.getTransportSource() == match
+								.getTransportSource())
+				|| !coversField(patternWildcards, wildcards,
+						OFMatch.OFPFW_TP_DST,
+						pattern.getTransportDestination() == match
+								.getTransportDestination())
+				|| !coversField(patternWildcards, wildcards,
+						OFMatch.OFPFW_DL_VLAN_PCP,
+						pattern.getDataLayerVirtualLanPriorityCodePoint() == match
+								.getDataLayerVirtualLanPriorityCodePoint())
+				|| !coversField(patternWildcards, wildcards,
+						OFMatch.OFPFW_NW_TOS,
+						pattern.getNetworkTypeOfService() == match
+								.getNetworkTypeOfService())) {
+			return false;
+		}
+
+		return coversPrefix(pattern.getNetworkSource(),
+				pattern.getNetworkSourceMaskLen(), match.getNetworkSource(),
+				match.getNetworkSourceMaskLen())
+				&& coversPrefix(pattern.getNetworkDestination(),
+						pattern.getNetworkDestinationMaskLen(),
+						match.getNetworkDestination(),
+						match.getNetworkDestinationMaskLen());
+	}
+
+	private static boolean coversField(int patternWildcards, int wildcards,
+			int field, boolean equal) {
+
+		if ((patternWildcards & field) != 0) {
+			return true;
+		}
+
+		return (wildcards & field) == 0 && equal;
+	}
+
+	private static boolean coversPrefix(int patternAddress, int patternLength,
+			int address, int length) {
+
+		if (patternLength == 0) {
+			return true;
+		}
+
+		if (length < patternLength) {
+			return false;
+		}
+
+		int mask = patternLength >= 32 ? -1 : ~(-1 >>> patternLength);
+
+		return (patternAddress & mask) == (address & mask);
+	}
+
+	/**
+	 * flows are identified by their match and priority
+	 */
+	private static class FlowKey {
+
+		private final OFMatch match;
+		private final short priority;
+
+		FlowKey(OFMatch match, short priority) {
+			this.match = match;
+			this.priority = priority;
+		}
+
+		@Override
+		public int hashCode() {
+			return match.hashCode() * 31 + priority;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+
+			if (!(object instanceof FlowKey)) {
+				return false;
+			}
+
+			FlowKey key = (FlowKey) object;
+
+			return priority == key.priority && match.equals(key.match);
+		}
+
+	}
+
+	private class FlowEntry {
+
+		private final OFMatch match;
+		private final short priority;
+		private final short idleTimeout;
+		private final short hardTimeout;
+		private final long installTime = System.nanoTime();
+		private final double packetRate;
+
+		private long cookie;
+		private List<OFAction> actions;
+		private double packetCount = 0;
+		private long countedUntil = installTime;
+
+		FlowEntry(OFFlowMod flowMod) {
+
+			this.match = flowMod.getMatch();
+			this.priority = flowMod.getPriority();
+			this.idleTimeout = flowMod.getIdleTimeout();
+			this.hardTimeout = flowMod.getHardTimeout();
+			this.cookie = flowMod.getCookie();
+			this.actions = flowMod.getActions();
+
+			int rank = 1 + (match.hashCode() & 0x7fffffff) % RATE_RANKS;
+			this.packetRate = maximumPacketRate / rank;
+
+		}
+
+		/**
+		 * @return true if outPort is OFPP_NONE or one of the output ports of
+		 *         the flow
+		 */
+		boolean outputsTo(short outPort) {
+
+			if (outPort == OFPP_NONE) {
+				return true;
+			}
+
+			if (actions == null) {
+				return false;
+			}
+
+			for (OFAction action : actions) {
+				if (action instanceof OFActionOutput
+						&& ((OFActionOutput) action).getPort() == outPort) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		/**
+		 * @return false if the flow drops its packets or outputs to a port
+		 *         that is down
+		 */
+		boolean forwardsTo(boolean[] portUp) {
+
+			boolean forwards = false;
+
+			if (actions == null) {
+				return false;
+			}
+
+			for (OFAction action : actions) {
+				if (!(action instanceof OFActionOutput)) {
+					continue;
+				}
+				int port = ((OFActionOutput) action).getPort();
+				if (port > 0 && port < portUp.length && !portUp[port]) {
+					return false;
+				}
+				forwards = true;
+			}
+
+			return forwards;
+		}
+
+	}
+
+}
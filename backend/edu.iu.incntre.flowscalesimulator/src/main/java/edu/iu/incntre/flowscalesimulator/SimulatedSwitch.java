@@ -0,0 +1,684 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalesimulator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openflow.io.OFMessageAsyncStream;
+import org.openflow.protocol.OFEchoReply;
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFError;
+import org.openflow.protocol.OFError.OFErrorType;
+import org.openflow.protocol.OFError.OFFlowModFailedCode;
+import org.openflow.protocol.OFFeaturesReply;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFGetConfigReply;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.OFPhysicalPort.OFPortState;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFPortStatus;
+import org.openflow.protocol.OFPortStatus.OFPortReason;
+import org.openflow.protocol.OFStatisticsReply;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.factory.BasicFactory;
+import org.openflow.protocol.factory.OFMessageFactory;
+import org.openflow.protocol.statistics.OFAggregateStatisticsRequest;
+import org.openflow.protocol.statistics.OFDescriptionStatistics;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFPortStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.openflow.util.HexString;
+
+/**
+ * An OpenFlow 1.0 switch connected to the controller over TCP. It answers the
+ * handshake, echo, barrier and statistics requests, applies flow mods to a
+ * SimulatedFlowTable after an optional processing delay and sends a port
+ * status message when one of its ports is set up or down. The switch connects
+ * again a second after the controller closes the connection.
+ *
+ * The flow mods and statistics requests received are counted for the reports
+ * of SwitchSimulator, and the flow mods received after a port status message
+ * are timed from the moment it was sent to measure the failover latency of the
+ * controller.
+ */
+public class SimulatedSwitch implements Runnable {
+
+	private static final long RECONNECT_DELAY = 1000;
+
+	// statistics replies are split to stay below the 16 bit message length
+	private static final int MAXIMUM_REPLY_LENGTH = 65535;
+	private static final short OFPSF_REPLY_MORE = 0x0001;
+
+	// OFPPF_1GB_FD | OFPPF_COPPER
+	private static final int PORT_FEATURES = (1 << 5) | (1 << 7);
+
+	private static final int OFPC_FLOW_STATS = 1 << 0;
+	private static final int OFPC_TABLE_STATS = 1 << 1;
+	private static final int OFPC_PORT_STATS = 1 << 2;
+
+	private final long datapathId;
+	private final InetSocketAddress controllerAddress;
+	private final SimulatedFlowTable flowTable;
+	private final OFMessageFactory messageFactory = new BasicFactory();
+
+	// indexed by port number, port 0 is not used
+	private final OFPhysicalPort[] ports;
+	private final boolean[] portUp;
+	private final double[] receivedPackets;
+	private final double[] transmittedPackets;
+
+	private final Object writeLock = new Object();
+	private OFMessageAsyncStream stream;
+	private SocketChannel channel;
+
+	private volatile long flowModDelay = 0;
+	private volatile boolean running = true;
+	private Thread thread;
+
+	// counters since the last report
+	private long flowModCount = 0;
+	private long tableFullCount = 0;
+	private long statsRequestCount = 0;
+	private long statsEntryCount = 0;
+	private long statsReplyTime = 0;
+	private long lastReportTime = System.nanoTime();
+
+	private PortEvent portEvent;
+
+	/**
+	 * @param datapathId
+	 * @param portCount
+	 *            ports of the switch, numbered from 1 and up at start
+	 * @param controllerAddress
+	 *            address of the OpenFlow listener of the controller
+	 * @param flowTable
+	 */
+	public SimulatedSwitch(long datapathId, int portCount,
+			InetSocketAddress controllerAddress, SimulatedFlowTable flowTable) {
+
+		this.datapathId = datapathId;
+		this.controllerAddress = controllerAddress;
+		this.flowTable = flowTable;
+
+		this.ports = new OFPhysicalPort[portCount + 1];
+		this.portUp = new boolean[portCount + 1];
+		this.receivedPackets = new double[portCount + 1];
+		this.transmittedPackets = new double[portCount + 1];
+
+		for (int portNumber = 1; portNumber <= portCount; portNumber++) {
+
+			OFPhysicalPort port = new OFPhysicalPort();
+			port.setPortNumber((short) portNumber);
+			port.setHardwareAddress(new byte[] { 0x02, (byte) (datapathId >> 24),
+					(byte) (datapathId >> 16), (byte) (datapathId >> 8),
+					(byte) datapathId, (byte) portNumber });
+			port.setName("s" + datapathId + "-eth" + portNumber);
+			port.setCurrentFeatures(PORT_FEATURES);
+			port.setAdvertisedFeatures(PORT_FEATURES);
+			port.setSupportedFeatures(PORT_FEATURES);
+
+			ports[portNumber] = port;
+			portUp[portNumber] = true;
+		}
+
+	}
+
+	public long getDatapathId() {
+		return datapathId;
+	}
+
+	public int getPortCount() {
+		return ports.length - 1;
+	}
+
+	/**
+	 * @param flowModDelay
+	 *            microseconds spent on each flow mod before it is applied,
+	 *            the flow mods that follow wait in the socket as they would
+	 *            for the CPU of a hardware switch
+	 */
+	public void setFlowModDelay(long flowModDelay) {
+		this.flowModDelay = flowModDelay * 1000;
+	}
+
+	public void start() {
+
+		thread = new Thread(this, "switch " + HexString.toHexString(datapathId));
+		thread.setDaemon(true);
+		thread.start();
+
+	}
+
+	public void shutDown() {
+
+		running = false;
+		closeChannel();
+
+		if (thread != null) {
+			thread.interrupt();
+		}
+
+	}
+
+	@Override
+	public void run() {
+
+		while (running) {
+
+			try {
+				connect();
+				readMessages();
+			} catch (IOException e) {
+				if (running) {
+					System.err.println(HexString.toHexString(datapathId)
+							+ ": " + e);
+				}
+			} finally {
+				closeChannel();
+			}
+
+			if (!running) {
+				return;
+			}
+
+			try {
+				Thread.sleep(RECONNECT_DELAY);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+
+	}
+
+	private void connect() throws IOException {
+
+		SocketChannel newChannel = SocketChannel.open(controllerAddress);
+		newChannel.socket().setTcpNoDelay(true);
+
+		synchronized (writeLock) {
+			channel = newChannel;
+			stream = new OFMessageAsyncStream(newChannel, messageFactory);
+		}
+
+		System.out.println(HexString.toHexString(datapathId)
+				+ ": connected to " + controllerAddress);
+
+		write(messageFactory.getMessage(OFType.HELLO));
+
+	}
+
+	private void closeChannel() {
+
+		synchronized (writeLock) {
+
+			if (channel == null) {
+				return;
+			}
+
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// the connection is gone either way
+			}
+
+			channel = null;
+			stream = null;
+		}
+
+	}
+
+	private void readMessages() throws IOException {
+
+		OFMessageAsyncStream inStream;
+
+		synchronized (writeLock) {
+			inStream = stream;
+		}
+
+		while (running) {
+
+			List<OFMessage> messages = inStream.read();
+
+			if (messages == null) {
+				throw new IOException("connection closed by the controller");
+			}
+
+			for (OFMessage message : messages) {
+				handleMessage(message);
+			}
+		}
+
+	}
+
+	private void handleMessage(OFMessage message) throws IOException {
+
+		switch (message.getType()) {
+
+		case ECHO_REQUEST:
+			byte[] payload = ((OFEchoRequest) message).getPayload();
+			OFEchoReply echoReply = (OFEchoReply) messageFactory
+					.getMessage(OFType.ECHO_REPLY);
+			echoReply.setXid(message.getXid());
+			if (payload != null) {
+				echoReply.setPayload(payload);
+				echoReply.setLengthU(OFEchoReply.MINIMUM_LENGTH + payload.length);
+			}
+			write(echoReply);
+			break;
+
+		case FEATURES_REQUEST:
+			write(featuresReply(message.getXid()));
+			break;
+
+		case GET_CONFIG_REQUEST:
+			OFGetConfigReply configReply = (OFGetConfigReply) messageFactory
+					.getMessage(OFType.GET_CONFIG_REPLY);
+			configReply.setXid(message.getXid());
+			configReply.setFlags((short) 0);
+			configReply.setMissSendLength((short) 0xffff);
+			write(configReply);
+			break;
+
+		case BARRIER_REQUEST:
+			OFMessage barrierReply = messageFactory
+					.getMessage(OFType.BARRIER_REPLY);
+			barrierReply.setXid(message.getXid());
+			write(barrierReply);
+			break;
+
+		case FLOW_MOD:
+			handleFlowMod((OFFlowMod) message);
+			break;
+
+		case STATS_REQUEST:
+			handleStatisticsRequest((OFStatisticsRequest) message);
+			break;
+
+		default:
+			// hello, set config, packet out and port mod need no answer
+			break;
+		}
+
+	}
+
+	private void handleFlowMod(OFFlowMod flowMod) throws IOException {
+
+		long delay = flowModDelay;
+
+		if (delay > 0) {
+			// a sleep would round the delay up to the timer resolution
+			long end = System.nanoTime() + delay;
+			while (System.nanoTime() < end) {
+				LockSupport.parkNanos(end - System.nanoTime());
+			}
+		}
+
+		boolean applied = flowTable.apply(flowMod);
+		long now = System.nanoTime();
+
+		synchronized (this) {
+
+			flowModCount++;
+			if (!applied) {
+				tableFullCount++;
+			}
+
+			if (portEvent != null) {
+				portEvent.flowModReceived(now);
+			}
+		}
+
+		if (!applied) {
+			OFError error = (OFError) messageFactory.getMessage(OFType.ERROR);
+			error.setXid(flowMod.getXid());
+			error.setErrorType((short) OFErrorType.OFPET_FLOW_MOD_FAILED
+					.ordinal());
+			error.setErrorCode((short) OFFlowModFailedCode.OFPFMFC_ALL_TABLES_FULL
+					.ordinal());
+			write(error);
+		}
+
+	}
+
+	private void handleStatisticsRequest(OFStatisticsRequest request)
+			throws IOException {
+
+		long start = System.nanoTime();
+		OFStatistics requestBody = request.getStatistics() == null
+				|| request.getStatistics().isEmpty() ? null : request
+				.getStatistics().get(0);
+		List<OFStatistics> statistics = new ArrayList<OFStatistics>();
+
+		switch (request.getStatisticType()) {
+
+		case DESC:
+			OFDescriptionStatistics description = new OFDescriptionStatistics();
+			description.setManufacturerDescription("InCNTRE");
+			description.setHardwareDescription("FlowScale switch simulator");
+			description.setSoftwareDescription("flowscalesimulator");
+			description.setSerialNumber(HexString.toHexString(datapathId));
+			description.setDatapathDescription("simulated switch "
+					+ HexString.toHexString(datapathId));
+			statistics.add(description);
+			break;
+
+		case FLOW:
+			OFFlowStatisticsRequest flowRequest = (OFFlowStatisticsRequest) requestBody;
+			countPackets();
+			statistics.addAll(flowRequest == null ? flowTable.getFlowStatistics(
+					null, OFPort.OFPP_NONE.getValue()) : flowTable
+					.getFlowStatistics(flowRequest.getMatch(),
+							flowRequest.getOutPort()));
+			break;
+
+		case AGGREGATE:
+			OFAggregateStatisticsRequest aggregateRequest = (OFAggregateStatisticsRequest) requestBody;
+			countPackets();
+			statistics.add(aggregateRequest == null ? flowTable
+					.getAggregateStatistics(null, OFPort.OFPP_NONE.getValue())
+					: flowTable.getAggregateStatistics(
+							aggregateRequest.getMatch(),
+							aggregateRequest.getOutPort()));
+			break;
+
+		case TABLE:
+			countPackets();
+			statistics.add(flowTable.getTableStatistics());
+			break;
+
+		case PORT:
+			OFPortStatisticsRequest portRequest = (OFPortStatisticsRequest) requestBody;
+			short portNumber = portRequest == null ? OFPort.OFPP_NONE
+					.getValue() : portRequest.getPortNumber();
+			statistics.addAll(portStatistics(portNumber));
+			break;
+
+		default:
+			break;
+		}
+
+		writeStatisticsReply(request, statistics);
+
+		synchronized (this) {
+			statsRequestCount++;
+			statsEntryCount += statistics.size();
+			statsReplyTime += System.nanoTime() - start;
+		}
+
+	}
+
+	/**
+	 * send the statistics in as many replies as needed, every reply but the
+	 * last one is flagged with more replies to follow
+	 */
+	private void writeStatisticsReply(OFStatisticsRequest request,
+			List<OFStatistics> statistics) throws IOException {
+
+		int first = 0;
+
+		do {
+
+			int length = OFStatisticsReply.MINIMUM_LENGTH;
+			int last = first;
+
+			while (last < statistics.size()
+					&& length + statistics.get(last).getLength() <= MAXIMUM_REPLY_LENGTH) {
+				length += statistics.get(last).getLength();
+				last++;
+			}
+
+			OFStatisticsReply reply = (OFStatisticsReply) messageFactory
+					.getMessage(OFType.STATS_REPLY);
+			reply.setXid(request.getXid());
+			reply.setStatisticType(request.getStatisticType());
+			reply.setStatistics(new ArrayList<OFStatistics>(statistics.subList(
+					first, last)));
+			reply.setFlags(last < statistics.size() ? OFPSF_REPLY_MORE : 0);
+			reply.setLengthU(length);
+			write(reply);
+
+			first = last;
+
+		} while (first < statistics.size());
+
+	}
+
+	private List<OFStatistics> portStatistics(short portNumber) {
+
+		List<OFStatistics> portStats = new ArrayList<OFStatistics>();
+
+		synchronized (this) {
+
+			countPackets();
+
+			for (int port = 1; port < ports.length; port++) {
+
+				if (portNumber != OFPort.OFPP_NONE.getValue()
+						&& portNumber != port) {
+					continue;
+				}
+
+				OFPortStatisticsReply portStat = new OFPortStatisticsReply();
+				portStat.setPortNumber((short) port);
+				portStat.setreceivePackets((long) receivedPackets[port]);
+				portStat.setTransmitPackets((long) transmittedPackets[port]);
+				portStat.setReceiveBytes((long) receivedPackets[port]
+						* SimulatedFlowTable.PACKET_SIZE);
+				portStat.setTransmitBytes((long) transmittedPackets[port]
+						* SimulatedFlowTable.PACKET_SIZE);
+				portStats.add(portStat);
+			}
+		}
+
+		return portStats;
+	}
+
+	/**
+	 * bring the flow and port counters up to now with the current port states
+	 */
+	private synchronized void countPackets() {
+		flowTable.advance(System.nanoTime(), portUp, receivedPackets,
+				transmittedPackets);
+	}
+
+	private OFFeaturesReply featuresReply(int xid) {
+
+		List<OFPhysicalPort> portList = new ArrayList<OFPhysicalPort>();
+
+		synchronized (this) {
+			for (int port = 1; port < ports.length; port++) {
+				portList.add(ports[port]);
+			}
+		}
+
+		OFFeaturesReply featuresReply = (OFFeaturesReply) messageFactory
+				.getMessage(OFType.FEATURES_REPLY);
+		featuresReply.setXid(xid);
+		featuresReply.setDatapathId(datapathId);
+		featuresReply.setBuffers(0);
+		featuresReply.setTables((byte) 1);
+		featuresReply.setCapabilities(OFPC_FLOW_STATS | OFPC_TABLE_STATS
+				| OFPC_PORT_STATS);
+		featuresReply.setActions(1 << 0);
+		featuresReply.setPorts(portList);
+		featuresReply.setLengthU(OFFeaturesReply.MINIMUM_LENGTH
+				+ portList.size() * OFPhysicalPort.MINIMUM_LENGTH);
+
+		return featuresReply;
+	}
+
+	/**
+	 * set a port up or down and send its port status to the controller, the
+	 * flow mods received from then on are timed until the next port change
+	 *
+	 * @return the result of the previous port change, null if there was none
+	 */
+	public String setPortState(short portNumber, boolean up) throws IOException {
+
+		if (portNumber < 1 || portNumber >= ports.length) {
+			throw new IllegalArgumentException("switch "
+					+ HexString.toHexString(datapathId) + " has no port "
+					+ portNumber);
+		}
+
+		OFPortStatus portStatus = (OFPortStatus) messageFactory
+				.getMessage(OFType.PORT_STATUS);
+		String previousEvent;
+
+		synchronized (this) {
+
+			// the packets so far were forwarded with the previous state
+			countPackets();
+
+			OFPhysicalPort port = ports[portNumber];
+			OFPhysicalPort newPort = new OFPhysicalPort();
+			newPort.setPortNumber(port.getPortNumber());
+			newPort.setHardwareAddress(port.getHardwareAddress());
+			newPort.setName(port.getName());
+			newPort.setCurrentFeatures(port.getCurrentFeatures());
+			newPort.setAdvertisedFeatures(port.getAdvertisedFeatures());
+			newPort.setSupportedFeatures(port.getSupportedFeatures());
+			newPort.setState(up ? 0 : OFPortState.OFPPS_LINK_DOWN.getValue());
+
+			ports[portNumber] = newPort;
+			portUp[portNumber] = up;
+
+			portStatus.setReason((byte) OFPortReason.OFPPR_MODIFY.ordinal());
+			portStatus.setDesc(newPort);
+			portStatus.setLengthU(OFPortStatus.MINIMUM_LENGTH);
+
+			previousEvent = portEvent == null ? null : portEvent.toString();
+			portEvent = new PortEvent(portNumber, up);
+		}
+
+		write(portStatus);
+
+		return previousEvent;
+	}
+
+	/**
+	 * @param quietTime
+	 *            nanoseconds without flow mods after which the controller is
+	 *            considered done with the last port change
+	 * @return the counters since the last report and the result of the last
+	 *         port change once it is done
+	 */
+	public synchronized String report(long quietTime) {
+
+		long now = System.nanoTime();
+		double seconds = (now - lastReportTime) / 1000000000.0;
+
+		StringBuilder report = new StringBuilder();
+		report.append(HexString.toHexString(datapathId));
+		report.append(": ").append(flowTable.size()).append(" flows, ");
+		report.append(flowModCount).append(" flow mods (");
+		report.append(String.format("%.0f", flowModCount / seconds));
+		report.append("/s)");
+
+		if (tableFullCount > 0) {
+			report.append(", ").append(tableFullCount)
+					.append(" refused by a full table");
+		}
+
+		report.append(", ").append(statsRequestCount)
+				.append(" stats requests");
+
+		if (statsRequestCount > 0) {
+			report.append(" (").append(statsEntryCount).append(" entries, ");
+			report.append(String.format("%.1f", statsReplyTime / 1000000.0));
+			report.append(" ms answering)");
+		}
+
+		if (portEvent != null && portEvent.isDone(now, quietTime)) {
+			report.append("\n  ").append(portEvent);
+			portEvent = null;
+		}
+
+		flowModCount = 0;
+		tableFullCount = 0;
+		statsRequestCount = 0;
+		statsEntryCount = 0;
+		statsReplyTime = 0;
+		lastReportTime = now;
+
+		return report.toString();
+	}
+
+	private void write(OFMessage message) throws IOException {
+
+		synchronized (writeLock) {
+
+			if (stream == null) {
+				throw new IOException("switch "
+						+ HexString.toHexString(datapathId)
+						+ " is not connected");
+			}
+
+			stream.write(message);
+			stream.flush();
+		}
+
+	}
+
+	/**
+	 * the flow mods the controller sent in answer to a port change
+	 */
+	private static class PortEvent {
+
+		private final short portNumber;
+		private final boolean up;
+		private final long sentTime = System.nanoTime();
+
+		private long firstFlowModTime = 0;
+		private long lastFlowModTime = 0;
+		private long flowModCount = 0;
+
+		PortEvent(short portNumber, boolean up) {
+			this.portNumber = portNumber;
+			this.up = up;
+		}
+
+		void flowModReceived(long now) {
+
+			if (flowModCount == 0) {
+				firstFlowModTime = now;
+			}
+
+			lastFlowModTime = now;
+			flowModCount++;
+		}
+
+		boolean isDone(long now, long quietTime) {
+			return now - Math.max(sentTime, lastFlowModTime) >= quietTime;
+		}
+
+		@Override
+		public String toString() {
+
+			if (flowModCount == 0) {
+				return "port " + portNumber + (up ? " up" : " down")
+						+ ": no flow mods";
+			}
+
+			return String.format(
+					"port %d %s: %d flow mods, first after %.1f ms, last after %.1f ms",
+					portNumber, up ? "up" : "down", flowModCount,
+					(firstFlowModTime - sentTime) / 1000000.0,
+					(lastFlowModTime - sentTime) / 1000000.0);
+		}
+
+	}
+
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2012 InCNTRE, This file is released under Apache 2.0 license except for component libraries under different licenses
+http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.iu.incntre.flowscalesimulator;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Connects simulated OpenFlow 1.0 switches to a running controller for load
+ * testing on a single machine, and prints for each switch every report
+ * interval the flow mods and statistics requests it received.
+ *
+ * usage: SwitchSimulator [options] [script]
+ *
+ * <pre>
+ * -controller host:port  OpenFlow listener of the controller (localhost:6633)
+ * -switches n            number of switches (1)
+ * -dpid n                datapath id of the first switch, the others follow (1)
+ * -ports n               ports of each switch (48)
+ * -table n               flows each flow table can hold (100000)
+ * -rate n                packets per second of the busiest flows (100000)
+ * -delay n               microseconds spent on each flow mod (0)
+ * -report n              seconds between reports (5)
+ * </pre>
+ *
+ * The script is a file of commands run in order once the switches are
+ * started, a switch is given by its position from 1 or * for every switch:
+ *
+ * <pre>
+ * sleep milliseconds
+ * port switch port up|down
+ * delay switch microseconds
+ * report
+ * </pre>
+ *
+ * The flow mods received after a port command are timed from the port status
+ * message, their number and the time of the first and last one are reported
+ * once no flow mod came for a report interval. The simulator exits after the
+ * last command of the script and a last report interval, and runs until it is
+ * killed when there is no script.
+ */
+public class SwitchSimulator {
+
+	private final List<SimulatedSwitch> switches = new ArrayList<SimulatedSwitch>();
+	private final long reportInterval;
+
+	public SwitchSimulator(long reportInterval) {
+		this.reportInterval = reportInterval;
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+
+		String controller = "localhost:6633";
+		int switchCount = 1;
+		long firstDatapathId = 1;
+		int portCount = 48;
+		int tableSize = 100000;
+		double packetRate = 100000;
+		long flowModDelay = 0;
+		long reportInterval = 5000;
+		String script = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+
+				String arg = args[i];
+
+				if (!arg.startsWith("-")) {
+					script = arg;
+				} else if (i + 1 == args.length) {
+					usage("missing value of " + arg);
+				} else if (arg.equals("-controller")) {
+					controller = args[++i];
+				} else if (arg.equals("-switches")) {
+					switchCount = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-dpid")) {
+					firstDatapathId = Long.parseLong(args[++i]);
+				} else if (arg.equals("-ports")) {
+					portCount = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-table")) {
+					tableSize = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-rate")) {
+					packetRate = Double.parseDouble(args[++i]);
+				} else if (arg.equals("-delay")) {
+					flowModDelay = Long.parseLong(args[++i]);
+				} else if (arg.equals("-report")) {
+					reportInterval = Long.parseLong(args[++i]) * 1000;
+				} else {
+					usage("unknown option " + arg);
+				}
+			}
+		} catch (NumberFormatException e) {
+			usage(e.getMessage());
+		}
+
+		int separator = controller.lastIndexOf(':');
+		InetSocketAddress controllerAddress = separator < 0 ? new InetSocketAddress(
+				controller, 6633) : new InetSocketAddress(controller.substring(
+				0, separator), Integer.parseInt(controller
+				.substring(separator + 1)));
+
+		SwitchSimulator simulator = new SwitchSimulator(reportInterval);
+
+		for (int i = 0; i < switchCount; i++) {
+
+			SimulatedSwitch simulatedSwitch = new SimulatedSwitch(
+					firstDatapathId + i, portCount, controllerAddress,
+					new SimulatedFlowTable(tableSize, packetRate));
+			simulatedSwitch.setFlowModDelay(flowModDelay);
+			simulator.addSwitch(simulatedSwitch);
+		}
+
+		simulator.start();
+
+		if (script == null) {
+			Thread.sleep(Long.MAX_VALUE);
+		}
+
+		BufferedReader reader = new BufferedReader(new FileReader(script));
+
+		try {
+			simulator.runScript(reader);
+		} finally {
+			reader.close();
+		}
+
+		// the controller gets a report interval to answer the last command
+		Thread.sleep(reportInterval);
+		simulator.report();
+		simulator.shutDown();
+
+	}
+
+	private static void usage(String error) {
+
+		System.err.println(error);
+		System.err.println("usage: SwitchSimulator [-controller host:port] "
+				+ "[-switches n] [-dpid n] [-ports n] [-table n] [-rate n] "
+				+ "[-delay n] [-report n] [script]");
+		System.exit(2);
+
+	}
+
+	public void addSwitch(SimulatedSwitch simulatedSwitch) {
+		switches.add(simulatedSwitch);
+	}
+
+	/**
+	 * connect the switches and print a report every report interval
+	 */
+	public void start() {
+
+		for (SimulatedSwitch simulatedSwitch : switches) {
+			simulatedSwitch.start();
+		}
+
+		Timer timer = new Timer("simulator reports", true);
+		timer.scheduleAtFixedRate(new TimerTask() {
+
+			@Override
+			public void run() {
+				report();
+			}
+		}, reportInterval, reportInterval);
+
+	}
+
+	public void shutDown() {
+
+		for (SimulatedSwitch simulatedSwitch : switches) {
+			simulatedSwitch.shutDown();
+		}
+
+	}
+
+	public synchronized void report() {
+
+		for (SimulatedSwitch simulatedSwitch : switches) {
+			System.out.println(simulatedSwitch.report(reportInterval * 1000000));
+		}
+
+	}
+
+	public void runScript(BufferedReader reader) throws IOException,
+			InterruptedException {
+
+		String line;
+		int lineNumber = 0;
+
+		while ((line = reader.readLine()) != null) {
+
+			lineNumber++;
+			line = line.trim();
+
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+
+			try {
+				runCommand(line.split("\\s+"));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("line " + lineNumber + ": "
+						+ e.getMessage());
+			}
+		}
+
+	}
+
+	private void runCommand(String[] command) throws IOException,
+			InterruptedException {
+
+		if (command[0].equals("sleep") && command.length == 2) {
+
+			Thread.sleep(Long.parseLong(command[1]));
+
+		} else if (command[0].equals("port") && command.length == 4) {
+
+			boolean up = command[3].equals("up");
+
+			if (!up && !command[3].equals("down")) {
+				throw new IllegalArgumentException("port state must be up or down");
+			}
+
+			for (SimulatedSwitch simulatedSwitch : selectSwitches(command[1])) {
+
+				String previousEvent = simulatedSwitch.setPortState(
+						Short.parseShort(command[2]), up);
+
+				// the previous change was not reported yet
+				if (previousEvent != null) {
+					System.out.println("  " + previousEvent);
+				}
+			}
+
+		} else if (command[0].equals("delay") && command.length == 3) {
+
+			for (SimulatedSwitch simulatedSwitch : selectSwitches(command[1])) {
+				simulatedSwitch.setFlowModDelay(Long.parseLong(command[2]));
+			}
+
+		} else if (command[0].equals("report") && command.length == 1) {
+
+			report();
+
+		} else {
+			throw new IllegalArgumentException("unknown command "
+					+ command[0] + " with " + (command.length - 1)
+					+ " arguments");
+		}
+
+	}
+
+	private List<SimulatedSwitch> selectSwitches(String selector) {
+
+		if (selector.equals("*")) {
+			return switches;
+		}
+
+		int position = Integer.parseInt(selector);
+
+		if (position < 1 || position > switches.size()) {
+			throw new IllegalArgumentException("no switch " + selector);
+		}
+
+		return switches.subList(position - 1, position);
+	}
+
+}
@@ -0,0 +1,200 @@
+/**
+ *Copyright 2012, InCNTRE. This file is licensed under Apache 2.0 *
+ **/
+
+package edu.iu.incntre.flowscalestatcollector;
+
+/**
+ * The last count of counters keyed by a long such as a port number, in an
+ * open addressing table so nothing is boxed. Each counter also keeps the poll
+ * it was last seen in so the counters a switch stopped reporting can be
+ * evicted.
+ */
+public class CounterTable {
+
+	private long[] keys;
+	private long[] counts;
+	private long[] lastPolls;
+	private boolean[] used;
+	private int size;
+
+	public CounterTable() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize
+	 *            counters the table holds before it grows
+	 */
+	public CounterTable(int expectedSize) {
+		allocate(tableLength(expectedSize));
+	}
+
+	/**
+	 * @return slot of the counter, -1 if the table does not have it
+	 */
+	public int find(long key) {
+
+		int mask = keys.length - 1;
+
+		for (int slot = hash(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * packets counted since the count in the table, the whole count when the
+	 * counter is not in the table or went backwards
+	 *
+	 * @param key
+	 * @param count
+	 *            count read from the switch
+	 * @return the count to store
+	 */
+	public long delta(long key, long count) {
+
+		int slot = find(key);
+
+		if (slot < 0 || count < counts[slot]) {
+			return count;
+		}
+
+		return count - counts[slot];
+	}
+
+	public void put(long key, long count, long poll) {
+
+		if ((size + 1) * 4 > keys.length * 3) {
+			resize(keys.length * 2);
+		}
+
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+
+		while (used[slot] && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+
+		if (!used[slot]) {
+			used[slot] = true;
+			keys[slot] = key;
+			size++;
+		}
+
+		counts[slot] = count;
+		lastPolls[slot] = poll;
+
+	}
+
+	/**
+	 * remove the counters last seen before oldestPoll
+	 *
+	 * @return counters removed
+	 */
+	public int evict(long oldestPoll) {
+
+		int evicted = 0;
+		int slot = 0;
+
+		while (slot < keys.length) {
+
+			if (!used[slot] || lastPolls[slot] >= oldestPoll) {
+				slot++;
+				continue;
+			}
+
+			// the slot is filled again by the shift, look at it again
+			remove(slot);
+			evicted++;
+		}
+
+		return evicted;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * empty the slot and shift back the counters after it that would not be
+	 * found past the empty slot, so the table never needs tombstones
+	 */
+	private void remove(int slot) {
+
+		int mask = keys.length - 1;
+		int empty = slot;
+		int next = (slot + 1) & mask;
+
+		while (used[next]) {
+
+			int home = hash(keys[next]) & mask;
+
+			// move the counter if its home is not between the empty slot and
+			// its own slot
+			if (((next - home) & mask) >= ((next - empty) & mask)) {
+				keys[empty] = keys[next];
+				counts[empty] = counts[next];
+				lastPolls[empty] = lastPolls[next];
+				empty = next;
+			}
+
+			next = (next + 1) & mask;
+		}
+
+		used[empty] = false;
+		size--;
+
+	}
+
+	private void resize(int length) {
+
+		long[] oldKeys = keys;
+		long[] oldCounts = counts;
+		long[] oldLastPolls = lastPolls;
+		boolean[] oldUsed = used;
+
+		allocate(length);
+		size = 0;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldUsed[i]) {
+				put(oldKeys[i], oldCounts[i], oldLastPolls[i]);
+			}
+		}
+
+	}
+
+	private void allocate(int length) {
+
+		keys = new long[length];
+		counts = new long[length];
+		lastPolls = new long[length];
+		used = new boolean[length];
+
+	}
+
+	/**
+	 * @return power of two with room for expectedSize counters at 3/4 load
+	 */
+	private static int tableLength(int expectedSize) {
+
+		int length = 16;
+
+		while (length * 3 < expectedSize * 4) {
+			length *= 2;
+		}
+
+		return length;
+	}
+
+	private static int hash(long key) {
+
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ *Copyright 2012, InCNTRE. This file is licensed under Apache 2.0 *
+ **/
+
+package edu.iu.incntre.flowscalestatcollector;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import edu.iu.incntre.flowscale.stats.SwitchSample;
+
+/**
+ * Bounded queue of the samples waiting to be written to the database. The
+ * overflow policy decides what happens to a sample offered to a full queue.
+ *
+ * Packet counts are stored as deltas from the last sample written for the
+ * same switch, so a sample that is dropped does not lose packets, they are
+ * counted in the next sample written for that switch.
+ */
+public class SampleQueue {
+
+	public enum OverflowPolicy {
+
+		/**
+		 * wait until a writer takes a sample, polling waits for the database
+		 */
+		BLOCK,
+
+		/**
+		 * drop the oldest sample waiting
+		 */
+		DROP_OLDEST,
+
+		/**
+		 * drop the oldest sample waiting for the same switch, so a busy switch
+		 * is written less often instead of pushing out the samples of others,
+		 * the oldest sample of any switch is dropped if the switch has none
+		 * waiting
+		 */
+		DOWNSAMPLE
+	}
+
+	/**
+	 * a sample and the time it was queued
+	 */
+	static class Entry {
+
+		final SwitchSample sample;
+		final long queueTime;
+
+		Entry(SwitchSample sample, long queueTime) {
+			this.sample = sample;
+			this.queueTime = queueTime;
+		}
+	}
+
+	private final LinkedList<Entry> entries = new LinkedList<Entry>();
+	private final int capacity;
+	private final OverflowPolicy overflowPolicy;
+	private boolean closed;
+
+	public SampleQueue(int capacity, OverflowPolicy overflowPolicy) {
+		this.capacity = Math.max(1, capacity);
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * queue a sample, applying the overflow policy if the queue is full
+	 *
+	 * @param sample
+	 * @return the sample dropped to make room, null if none was
+	 * @throws InterruptedException
+	 *             if interrupted while blocking
+	 * @throws IllegalStateException
+	 *             if the queue is closed
+	 */
+	public synchronized SwitchSample offer(SwitchSample sample)
+			throws InterruptedException {
+
+		while (overflowPolicy == OverflowPolicy.BLOCK && !closed
+				&& entries.size() >= capacity) {
+			wait();
+		}
+
+		if (closed) {
+			throw new IllegalStateException("sample queue is closed");
+		}
+
+		Entry entry = new Entry(sample, System.nanoTime());
+		SwitchSample dropped = null;
+
+		if (entries.size() >= capacity) {
+
+			if (overflowPolicy == OverflowPolicy.DOWNSAMPLE) {
+
+				for (Iterator<Entry> iterator = entries.iterator(); iterator
+						.hasNext();) {
+
+					Entry queued = iterator.next();
+
+					if (queued.sample.getDatapathId() == sample.getDatapathId()) {
+						iterator.remove();
+						dropped = queued.sample;
+						break;
+					}
+				}
+			}
+
+			if (dropped == null) {
+				dropped = entries.removeFirst().sample;
+			}
+		}
+
+		entries.addLast(entry);
+		notifyAll();
+
+		return dropped;
+	}
+
+	/**
+	 * wait for the next sample
+	 *
+	 * @return the oldest entry, null once the queue is closed and empty
+	 * @throws InterruptedException
+	 */
+	synchronized Entry take() throws InterruptedException {
+
+		while (entries.isEmpty() && !closed) {
+			wait();
+		}
+
+		Entry entry = entries.pollFirst();
+		notifyAll();
+
+		return entry;
+	}
+
+	/**
+	 * stop accepting samples, the samples already queued can still be taken
+	 */
+	public synchronized void close() {
+
+		closed = true;
+		notifyAll();
+
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+}
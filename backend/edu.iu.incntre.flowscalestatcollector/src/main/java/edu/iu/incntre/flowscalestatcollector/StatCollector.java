@@ -12,8 +12,18 @@ import org.openflow.protocol.statistics.OFStatistics;
 import org.openflow.util.HexString;
 
 import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,12 +31,14 @@ import org.slf4j.LoggerFactory;
 import edu.iu.incntre.flowscale.FlowscaleController;
 import edu.iu.incntre.flowscale.SwitchDevice;
 
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
-
 import edu.iu.incntre.flowscale.exception.NoSwitchException;
-import edu.iu.incntre.flowscale.util.JSONConverter;
+import edu.iu.incntre.flowscale.metrics.Gauge;
+import edu.iu.incntre.flowscale.metrics.MetricsRegistry;
+import edu.iu.incntre.flowscale.stats.FlowIdentityDictionary;
+import edu.iu.incntre.flowscale.stats.FlowSample;
+import edu.iu.incntre.flowscale.stats.PortSample;
+import edu.iu.incntre.flowscale.stats.PortStateSample;
+import edu.iu.incntre.flowscale.stats.SwitchSample;
 
 import java.io.IOException;
 import java.sql.*;
@@ -35,6 +47,20 @@ import java.sql.*;
  * The class responsible for polling all statistics from the switch and storing
  * them in a database
  * 
+ * Every round the port and flow statistics of all switches are requested at
+ * once, the replies are awaited by a pool of threads and each switch is queued
+ * for writing as soon as both of its replies are in. A switch that does not
+ * reply within the stat timeout is left out of the round.
+ * 
+ * The samples are written to the database by writer threads, each with its
+ * own connection and a bounded queue, and every switch always goes to the same
+ * writer so its samples are written in order. A slow database fills the
+ * queues instead of delaying the next round, what happens to a sample that
+ * finds its queue full is set by the overflow policy.
+ * 
+ * Every sample is also published to the sample store of the controller, where
+ * the hot swap reads it without waiting for the database.
+ * 
  * 
  * @author Ali Khalfan (akhalfan@indiana.edu)
  * 
@@ -50,20 +76,238 @@ public class StatCollector {
 
 	private String datapathIdStrings;
 
-	private Connection conn;
-
 	private String databaseDriver;
 	private String databaseClass;
 	protected Thread statThread;
 
-	private HashMap<Long, HashMap<Long, Long>> tempPortStatTransmittedHashMap = new HashMap<Long, HashMap<Long, Long>>();
-	private HashMap<Long, HashMap<Long, Long>> tempPortStatReceivedHashMap = new HashMap<Long, HashMap<Long, Long>>();
-	private HashMap<Long, HashMap<String, Long>> tempFlowStatHashMap = new HashMap<Long, HashMap<String, Long>>();
+	private int batchSize = 1000;
+	private int evictAfterPolls = StatWriter.DEFAULT_EVICT_AFTER_POLLS;
+	// the writers share the ids of the matches they have seen, created by
+	// startWriters
+	private int flowIdentityCapacity = FlowIdentityDictionary.DEFAULT_CAPACITY;
+	private FlowIdentityDictionary flowIdentities;
+	private int writerThreads = 1;
+	private int queueCapacity = 16;
+	private SampleQueue.OverflowPolicy overflowPolicy = SampleQueue.OverflowPolicy.DOWNSAMPLE;
+	private SampleQueue[] sampleQueues;
+	private Thread[] writers;
+	// every tier is kept forever unless a retention is configured, the
+	// first purge runs as soon as the collector starts
+	private long[] retentionHours = { 0, 0, 0, 0 };
+	private long purgeInterval = 600000;
+	private ScheduledExecutorService purgeExecutor;
 	private String dbUsername;
 	private String dbPassword;
 
 	private Calendar calendar;
 
+	private static final String[] STAT_TYPES = { "port", "flow" };
+
+	private long statTimeout = 10000;
+	private ExecutorService requestExecutor;
+	private volatile long lastRoundSkew = -1;
+
+	/**
+	 * a statistics request sent to a switch, waits for the reply until the
+	 * deadline of the round and returns itself with the statistics or the
+	 * error
+	 */
+	private class StatRequest implements Callable<StatRequest> {
+
+		final String datapathIdString;
+		final String type;
+		final long requestTime;
+		private final Future<List<OFStatistics>> future;
+		private final long deadline;
+
+		List<OFStatistics> statistics;
+		String error;
+		long replyTime;
+
+		StatRequest(String datapathIdString, String type,
+				Future<List<OFStatistics>> future, long requestTime,
+				long deadline) {
+			this.datapathIdString = datapathIdString;
+			this.type = type;
+			this.future = future;
+			this.requestTime = requestTime;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public StatRequest call() throws InterruptedException {
+
+			try {
+				if (future == null) {
+					error = "unknown statistics type";
+				} else {
+					statistics = future.get(deadline - System.nanoTime(),
+							TimeUnit.NANOSECONDS);
+					if (statistics == null) {
+						error = "no statistics returned";
+					}
+				}
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				error = "no reply after " + statTimeout + " ms";
+			} catch (ExecutionException e) {
+				error = String.valueOf(e.getCause());
+			} finally {
+				replyTime = System.nanoTime();
+				flowscaleController.observeStatisticsRequest(
+						HexString.toLong(datapathIdString), type,
+						requestTime);
+			}
+
+			return this;
+		}
+	}
+
+	/**
+	 * writes the samples of its queue with its own connection, a sample that
+	 * fails because the connection was lost is written again once it is back
+	 */
+	private class SampleWriter implements Runnable {
+
+		// seconds to wait for the database to answer once a write failed
+		private static final int CONNECTION_VALID_TIMEOUT = 5;
+
+		private final SampleQueue queue;
+		private final StatWriter statWriter = new StatWriter(batchSize,
+				evictAfterPolls, flowIdentities);
+		private Connection conn;
+
+		SampleWriter(SampleQueue queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+
+			try {
+
+				SampleQueue.Entry entry = null;
+
+				while (true) {
+
+					if (entry == null) {
+						entry = queue.take();
+						if (entry == null) {
+							break;
+						}
+					}
+
+					if (conn == null) {
+						try {
+							conn = DriverManager.getConnection(databaseDriver,
+									dbUsername, dbPassword);
+							FlowIdentityDictionary.createTable(conn);
+							StatRollup.createTables(conn);
+							StatWriter.checkTables(conn);
+						} catch (SQLException e) {
+							logger.error("could not connect to the database {}",
+									e);
+							closeConnection();
+							Thread.sleep(intervalTime);
+							continue;
+						}
+					}
+
+					if (write(entry)) {
+						entry = null;
+					}
+				}
+
+			} catch (InterruptedException e) {
+				logger.warn("writer interrupted, {} samples not written",
+						queue.size());
+			}
+
+			if (conn != null) {
+				try {
+					statWriter.flushRollups(conn);
+				} catch (SQLException e) {
+					logger.error("could not write the rollups in progress {}", e);
+				}
+			}
+
+			closeConnection();
+
+		}
+
+		/**
+		 * @return false if the sample should be written again
+		 */
+		private boolean write(SampleQueue.Entry entry) {
+
+			SwitchSample sample = entry.sample;
+			String datapathIdString = HexString.toHexString(sample
+					.getDatapathId());
+			long storeTime = System.nanoTime();
+
+			try {
+				statWriter.store(conn, sample);
+			} catch (SQLException e) {
+
+				// the driver does not always report a lost connection as
+				// recoverable, the connection itself is checked
+				if (e instanceof SQLRecoverableException || isConnectionLost()) {
+					logger.error("connection lost while storing statistics of switch {}: {}",
+							datapathIdString, e);
+					closeConnection();
+					return false;
+				}
+
+				logger.error("could not store statistics of switch {}: {}",
+						datapathIdString, e);
+				countDropped(sample, "error");
+				return true;
+			}
+
+			long storedTime = System.nanoTime();
+			MetricsRegistry metricsRegistry = flowscaleController
+					.getMetricsRegistry();
+			metricsRegistry.histogram("flowscale_stat_store_seconds",
+					"time to store the statistics of a switch", "switch",
+					datapathIdString).observe(storedTime - storeTime);
+			metricsRegistry.histogram("flowscale_stat_queue_wait_seconds",
+					"time the statistics of a switch waited to be stored",
+					"switch", datapathIdString).observe(
+					storeTime - entry.queueTime);
+
+			return true;
+		}
+
+		/**
+		 * @return true if the connection is closed or does not answer
+		 */
+		private boolean isConnectionLost() {
+
+			try {
+				return conn.isClosed()
+						|| !conn.isValid(CONNECTION_VALID_TIMEOUT);
+			} catch (SQLException e) {
+				return true;
+			}
+		}
+
+		private void closeConnection() {
+
+			if (conn == null) {
+				return;
+			}
+
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				logger.error("{}", e);
+			}
+
+			conn = null;
+
+		}
+	}
+
 	public void setIsQuery(boolean isQuery) {
 
 		this.isQuery = isQuery;
@@ -100,6 +344,117 @@ public class StatCollector {
 
 	}
 
+	/**
+	 * @param statTimeout
+	 *            milliseconds a round waits for the replies of the switches
+	 */
+	public void setStatTimeout(long statTimeout) {
+		this.statTimeout = statTimeout;
+	}
+
+	/**
+	 * @param batchSize
+	 *            rows sent to the database at once
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param evictAfterPolls
+	 *            samples of a switch a flow or port can be missing from before
+	 *            its last count is forgotten, a flow that comes back after
+	 *            that has its whole count stored
+	 */
+	public void setEvictAfterPolls(int evictAfterPolls) {
+		this.evictAfterPolls = evictAfterPolls;
+	}
+
+	/**
+	 * @param flowIdentityCapacity
+	 *            ids of flow matches kept in memory for all writers, more
+	 *            distinct flows than that are looked up in flow_identity at
+	 *            every sample
+	 */
+	public void setFlowIdentityCapacity(int flowIdentityCapacity) {
+		this.flowIdentityCapacity = flowIdentityCapacity;
+	}
+
+	/**
+	 * @param writerThreads
+	 *            threads writing samples to the database, each with its own
+	 *            connection
+	 */
+	public void setWriterThreads(int writerThreads) {
+		this.writerThreads = writerThreads;
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            samples waiting to be written per writer thread
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @param overflowPolicy
+	 *            what to do with a sample when the queue of its writer is full
+	 */
+	public void setOverflowPolicy(SampleQueue.OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * @param rawRetention
+	 *            hours flow_stats, port_stats and port_status are kept, 0 to
+	 *            keep them forever
+	 */
+	public void setRawRetention(long rawRetention) {
+		this.retentionHours[0] = rawRetention;
+	}
+
+	/**
+	 * @param minuteRetention
+	 *            hours the 1 minute rollups are kept, 0 to keep them forever
+	 */
+	public void setMinuteRetention(long minuteRetention) {
+		this.retentionHours[1] = minuteRetention;
+	}
+
+	/**
+	 * @param fiveMinuteRetention
+	 *            hours the 5 minute rollups are kept, 0 to keep them forever
+	 */
+	public void setFiveMinuteRetention(long fiveMinuteRetention) {
+		this.retentionHours[2] = fiveMinuteRetention;
+	}
+
+	/**
+	 * @param hourRetention
+	 *            hours the 1 hour rollups are kept, 0 to keep them forever
+	 */
+	public void setHourRetention(long hourRetention) {
+		this.retentionHours[3] = hourRetention;
+	}
+
+	/**
+	 * @param purgeInterval
+	 *            milliseconds between two purges of the rows past their
+	 *            retention
+	 */
+	public void setPurgeInterval(long purgeInterval) {
+		this.purgeInterval = purgeInterval;
+	}
+
+	/**
+	 * @return milliseconds between the first and the last switch sampled in
+	 *         the last round, -1 if no round completed yet
+	 */
+	public long getLastRoundSkew() {
+		return lastRoundSkew;
+	}
+
 	public void killThread() {
 
 		this.statThread = null;
@@ -117,20 +472,30 @@ public class StatCollector {
 			try {
 
 				Class.forName(databaseClass);
-				conn = DriverManager.getConnection(databaseDriver, dbUsername,
-						dbPassword);
 				
 			} catch (ClassNotFoundException e2) {
 
 				logger.error("{}", e2);
-			} catch (SQLException e1) {
-				// TODO Auto-generated catch block
-				logger.error("{}", e1);
 			}
 
 			// end initiate database
 
-			// start up thread
+			// start up threads
+
+			startWriters();
+			startPurge();
+			requestExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+				private AtomicInteger threadCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Stat Collector Request "
+							+ threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 
 			statThread = new Thread(new Runnable() {
 
@@ -142,170 +507,20 @@ public class StatCollector {
 								"Getting flows from switch every {} seconds",
 								intervalTime);
 
-						List<OFStatistics> portStats;
-						List<OFStatistics> flowStats;
-						List<OFPhysicalPort> portStatus;
-						SwitchDevice swd = null;
 						String[] datapathIdStringElements = datapathIdStrings.split(",");
 						try {
 
 							while (statThread != null) {
 								calendar = Calendar.getInstance();
 								logger.trace("getting flows from switches");
-								
-								//check if conn is null if it is, reset connection 
-								if(conn == null){
-								conn = DriverManager.getConnection(databaseDriver, dbUsername,
-										dbPassword);
-								}
-								
-								
-								for (String datapathIdString : datapathIdStringElements) {
-
-									try {
-
-									
-										swd = flowscaleController
-												.getSwitchDevices()
-												.get(HexString
-														.toLong(datapathIdString));
-										
-										
-										
-										if (swd == null) {
-											logger.info("switch {} does not exist, is it connected?",
-													datapathIdString);
-											continue;
-										}
-										
-										
-										logger.info(
-												"Getting flows from switch {} with ID {}",
-												swd.getSwitchName(), datapathIdString);
-
-										
-
-										try {
-											portStats = flowscaleController
-													.getSwitchStatisticsFromInterface(
-															datapathIdString,
-															"port");
-
-											flowStats = flowscaleController
-													.getSwitchStatisticsFromInterface(
-															datapathIdString,
-															"flow");
-
-											portStatus = swd.getPortStates();
-
-											if (flowStats != null
-													&& portStats != null) {
-
-												String flowStatsJSON = JSONConverter
-														.toStat(flowStats,
-																"flow")
-														.toJSONString();
-												String portStatsJSON = JSONConverter
-														.toStat(portStats,
-																"port")
-														.toJSONString();
-												String portStatusJSON = JSONConverter
-														.toPortStatus(
-																portStatus)
-														.toJSONString();
-
-												// initialize or set hashmaps
-
-												HashMap<Long, Long> tempPortStatTransmitted;
-												HashMap<Long, Long> tempPortStatReceived;
-												HashMap<String, Long> tempFlowStat;
-
-												long datapathId = HexString
-														.toLong(datapathIdString);
-												if (tempPortStatTransmittedHashMap
-														.get(datapathId) == null) {
-
-													tempPortStatTransmitted = new HashMap<Long, Long>();
-													tempPortStatTransmittedHashMap
-															.put(datapathId,
-																	tempPortStatTransmitted);
-												} else {
-													tempPortStatTransmitted = tempPortStatTransmittedHashMap
-															.get(datapathId);
-
-												}
-
-												if (tempPortStatReceivedHashMap
-														.get(datapathId) == null) {
-													tempPortStatReceived = new HashMap<Long, Long>();
-													tempPortStatReceivedHashMap
-															.put(datapathId,
-																	tempPortStatReceived);
-												} else {
-													tempPortStatReceived = tempPortStatReceivedHashMap
-															.get(datapathId);
-												}
-												if (tempFlowStatHashMap
-														.get(datapathId) == null) {
-													tempFlowStat = new HashMap<String, Long>();
-													tempFlowStatHashMap.put(
-															datapathId,
-															tempFlowStat);
-												} else {
-
-													tempFlowStat = tempFlowStatHashMap
-															.get(datapathId);
-												}
-
-												storeSwitchDetails(
-														HexString
-																.toLong(datapathIdString),
-														portStatsJSON,
-														flowStatsJSON,
-														portStatusJSON,
-														tempPortStatTransmitted,
-														tempPortStatReceived,
-														tempFlowStat);
-											} else {
-												logger.error(
-														"Switch {} returned a null result possibility because the switch is not connected to the controller",
-														datapathIdString);
-											}
-										} catch (NoSwitchException e1) {
-											// TODO Auto-generated catch block
-											logger.error(
-													"Switch {} with ID {} is not connected aborting",
-													swd.getSwitchName(),datapathIdString);  
-										} catch (IOException e1) {
-											logger.error("IOException {}", e1);
-
-										} catch (InterruptedException e1) {
-											logger.error(
-													"Thread Interrupted {}", e1);
-											killThread();
-										} catch (ExecutionException e1) {
-											logger.error(
-													"Execution Exception {}",
-													e1);
-										} catch (TimeoutException e1) {
-											logger.error(
-													"Switch Timeout Exception {}",
-													e1);
-											killThread();
-
-										}
-
-									} catch (Exception e) {
-										logger.error(
-												"unchecked exception here {}",
-												e);
-
-										killThread();
-										shutDown();
-										Thread.yield();
-
-									}
 
+								try {
+
+									pollSwitches(datapathIdStringElements);
+
+								} catch (InterruptedException e) {
+									logger.error("Thread Interrupted {}", e);
+									break;
 								}
 
 								try {
@@ -326,268 +541,312 @@ public class StatCollector {
 
 						}
 
-						try {
-							conn.close();
-						} catch (SQLException e) {
-							// TODO Auto-generated catch block
-							logger.error("{}", e);
-						}
-
 					} catch (Exception generalException) {
 						logger.error("General Exception throws {} ",
 								generalException);
 
 					}
 				}
-/**
- * insert details into database, 3 tables will be populated: flow_stats, port_stats ,and port_status
- * 
- * @param datapathId
- * @param portStats
- * @param flowStats
- * @param portStatus
- * @param tempPortStatTransmitted
- * @param tempPortStatReceived
- * @param tempFlowStat
- */
-				private void storeSwitchDetails(long datapathId,
-						String portStats, String flowStats, String portStatus,
-						HashMap<Long, Long> tempPortStatTransmitted,
-						HashMap<Long, Long> tempPortStatReceived,
-						HashMap<String, Long> tempFlowStat) {
-
-					Object obj = JSONValue.parse(portStats);
-					JSONArray jsonArray = (JSONArray) obj;
-
-					for (int i = 0; i < jsonArray.size(); i++) {
-
-						JSONObject jsonObject = (JSONObject) jsonArray.get(i);
-						long transmittedPackets = (Long) jsonObject
-								.get("transmit_packets");
-						long receivedPackets = (Long) jsonObject
-								.get("receive_packets");
-
-						long portId = (Long) jsonObject.get("port_id");
-
-						// logger.info("the port is {}", portId);
-						// logger.info("{} packets transmitted and {} packets received",
-						// receivedPackets,transmittedPackets);
-
-						PreparedStatement prep = null;
-						try {
-							prep = null;
-							if (conn != null) {
-								prep = conn
-										.prepareStatement("insert into port_stats values (?,?,?,?,?);");
 
-							} else {
+				/**
+				 * request the port and flow statistics of every switch at once
+				 * and queue each switch as soon as both of its replies are in.
+				 * A switch that does not reply before the round timeout only
+				 * loses its own sample
+				 * 
+				 * @param datapathIdStringElements
+				 * @throws InterruptedException
+				 */
+				private void pollSwitches(String[] datapathIdStringElements)
+						throws InterruptedException {
+
+					CompletionService<StatRequest> completionService = new ExecutorCompletionService<StatRequest>(
+							requestExecutor);
+					long deadline = System.nanoTime()
+							+ TimeUnit.MILLISECONDS.toNanos(statTimeout);
+					int outstanding = 0;
+
+					// every request is sent before waiting for any reply
+					for (String datapathIdString : datapathIdStringElements) {
+
+						SwitchDevice swd = flowscaleController
+								.getSwitchDevices().get(
+										HexString.toLong(datapathIdString));
+
+						if (swd == null) {
+							logger.info(
+									"switch {} does not exist, is it connected?",
+									datapathIdString);
+							continue;
+						}
 
-								logger.error("no connection object instantiated aborting .. ");
-								return;
+						logger.info("Getting flows from switch {} with ID {}",
+								swd.getSwitchName(), datapathIdString);
+
+						for (String type : STAT_TYPES) {
+
+							try {
+
+								long requestTime = System.nanoTime();
+								Future<List<OFStatistics>> future = flowscaleController
+										.requestSwitchStatistics(
+												datapathIdString, type);
+								completionService.submit(new StatRequest(
+										datapathIdString, type, future,
+										requestTime, deadline));
+								outstanding++;
+
+							} catch (NoSwitchException e) {
+								logger.error(
+										"Switch {} with ID {} is not connected aborting",
+										swd.getSwitchName(), datapathIdString);
+								break;
+							} catch (IOException e) {
+								logger.error("IOException {}", e);
+								break;
 							}
+						}
+					}
 
-							prep.setLong(1, datapathId);
-							prep.setLong(2, calendar.getTimeInMillis());
-
-							if (tempPortStatTransmitted.get(portId) != null) {
+					HashMap<String, StatRequest> portReplies = new HashMap<String, StatRequest>();
+					HashMap<String, StatRequest> flowReplies = new HashMap<String, StatRequest>();
+					long firstSampleTime = Long.MAX_VALUE;
+					long lastSampleTime = Long.MIN_VALUE;
 
-								long currentTransmittedPackets = transmittedPackets
-										- tempPortStatTransmitted.get(portId);
+					// every request ends by the deadline, replied or not
+					for (; outstanding > 0; outstanding--) {
 
-								if (currentTransmittedPackets < 0) {
+						StatRequest reply;
 
-									prep.setLong(5, transmittedPackets);
-								} else {
+						try {
+							reply = completionService.take().get();
+						} catch (ExecutionException e) {
+							logger.error("Execution Exception {}", e);
+							continue;
+						}
 
-									prep.setLong(5, currentTransmittedPackets);
-								}
-							} else {
+						if (reply.statistics == null) {
+							logger.warn(
+									"dropping sample of switch {}, {} statistics failed: {}",
+									new Object[] { reply.datapathIdString,
+											reply.type, reply.error });
+							continue;
+						}
 
-								prep.setLong(5, transmittedPackets);
-							}
+						(reply.type.equals("port") ? portReplies : flowReplies)
+								.put(reply.datapathIdString, reply);
 
-							tempPortStatTransmitted.put(portId,
-									transmittedPackets);
+						StatRequest portReply = portReplies
+								.get(reply.datapathIdString);
+						StatRequest flowReply = flowReplies
+								.get(reply.datapathIdString);
 
-							// take care of port received
+						if (portReply == null || flowReply == null) {
+							continue;
+						}
 
-							if (tempPortStatReceived.get(portId) != null) {
+						try {
+							queueReplies(portReply, flowReply);
+						} catch (RuntimeException e) {
+							logger.error("could not queue statistics of switch {}: {}",
+									reply.datapathIdString, e);
+							continue;
+						}
 
-								long currentReceivedPackets = receivedPackets
-										- tempPortStatReceived.get(portId);
+						long sampleTime = Math.max(portReply.replyTime,
+								flowReply.replyTime);
+						firstSampleTime = Math.min(firstSampleTime, sampleTime);
+						lastSampleTime = Math.max(lastSampleTime, sampleTime);
+					}
 
-								if (currentReceivedPackets < 0) {
+					if (firstSampleTime <= lastSampleTime) {
 
-									prep.setLong(4, receivedPackets);
-								} else {
+						long skew = lastSampleTime - firstSampleTime;
+						lastRoundSkew = TimeUnit.NANOSECONDS.toMillis(skew);
+						flowscaleController
+								.getMetricsRegistry()
+								.histogram("flowscale_stat_round_skew_seconds",
+										"time between the first and the last switch sampled in a round")
+								.observe(skew);
 
-									prep.setLong(4, currentReceivedPackets);
-								}
-							} else {
+						logger.debug("switches sampled within {} ms",
+								lastRoundSkew);
+					}
 
-								prep.setLong(4, receivedPackets);
-							}
+				}
 
-							tempPortStatReceived.put(portId, receivedPackets);
+				/**
+				 * convert the replies of one switch, publish them to the
+				 * sample store of the controller and queue them for its writer
+				 */
+				private void queueReplies(StatRequest portReply,
+						StatRequest flowReply) throws InterruptedException {
+
+					long datapathId = HexString.toLong(portReply.datapathIdString);
+					List<OFPhysicalPort> portStatus = flowscaleController
+							.getSwitchDevices().get(datapathId).getPortStates();
+
+					SwitchSample sample = new SwitchSample(datapathId,
+							calendar.getTimeInMillis(),
+							FlowSample.fromStatistics(flowReply.statistics),
+							PortSample.fromStatistics(portReply.statistics),
+							PortStateSample.fromPorts(portStatus));
+
+					// the sample store is kept current even when the database
+					// falls behind
+					flowscaleController.getSampleStore().publish(sample);
+
+					SwitchSample dropped = sampleQueue(datapathId).offer(sample);
+
+					if (dropped != null) {
+						logger.warn(
+								"queue full, dropped sample of switch {} taken at {}",
+								HexString.toHexString(dropped.getDatapathId()),
+								dropped.getTimestamp());
+						countDropped(dropped, "overflow");
+					}
 
-							prep.setLong(3, portId);
-							prep.addBatch();
+					flowscaleController
+							.getMetricsRegistry()
+							.histogram("flowscale_stat_poll_seconds",
+									"time to request the statistics of a switch and queue them",
+									"switch", HexString.toHexString(datapathId))
+							.observe(
+									System.nanoTime()
+											- Math.min(portReply.requestTime,
+													flowReply.requestTime));
 
-							conn.setAutoCommit(false);
-							prep.executeBatch();
-							conn.setAutoCommit(true);
-						}catch(SQLRecoverableException sqlRecoverableException){
-							
-							logger.error("{}", sqlRecoverableException);
-							//exit function since there is a timeout
-							return;
-						} catch (SQLException e) {
+				}
 
-							logger.error("{}", e);
-						} finally {
-							if (prep != null) {
-								try {
-									prep.close();
-								} catch (SQLException e) {
-									// TODO Auto-generated catch block
-									logger.error("{}", e);
-								}
-							}
-						}
-					}
+			}, "Switch Stat Collector");
+			statThread.start();
 
-					Object flowJSONobj = JSONValue.parse(flowStats);
-					JSONArray flowJsonArray = (JSONArray) flowJSONobj;
+		}
+		}catch(Exception e){
+			logger.error("general excecption thrown {}", e);
+		}
+	}
 
-					for (int i = 0; i < flowJsonArray.size(); i++) {
+	/**
+	 * start a writer thread for each queue, with gauges of their depth
+	 */
+	private void startWriters() {
 
-						JSONObject jsonObject = (JSONObject) flowJsonArray
-								.get(i);
-						long packets = (Long) jsonObject.get("packet_count");
-						String matchString = (String) jsonObject.get("match");
-						String action = (String) jsonObject.get("actions");
-						long priority = (Long) jsonObject.get("priority");
-						
-						PreparedStatement prep = null;
+		int writerCount = Math.max(1, writerThreads);
+		flowIdentities = new FlowIdentityDictionary(flowIdentityCapacity);
+		sampleQueues = new SampleQueue[writerCount];
+		writers = new Thread[writerCount];
+		MetricsRegistry metricsRegistry = flowscaleController
+				.getMetricsRegistry();
 
-						try {
-							prep = conn
-									.prepareStatement("insert  into flow_stats values (?,?,?,?,?,?);");
-							String insertString = datapathId +","+calendar.getTimeInMillis()+","+
-							matchString+ "," + action ;
-							logger.debug("flow_stat values to insert are {}",insertString);
-							prep.setLong(1, datapathId);
-							prep.setLong(2, calendar.getTimeInMillis());
+		for (int i = 0; i < writerCount; i++) {
 
-							if (tempFlowStat.get(matchString) != null) {
+			final SampleQueue queue = new SampleQueue(queueCapacity,
+					overflowPolicy);
+			sampleQueues[i] = queue;
 
-								long packetsReceived = packets
-										- tempFlowStat.get(matchString);
+			metricsRegistry.gauge("flowscale_stat_queue_depth",
+					"samples waiting to be written to the database",
+					new Gauge() {
 
-								if (packetsReceived < 0) {
+						@Override
+						public double getValue() {
+							return queue.size();
+						}
+					}, "writer", Integer.toString(i + 1));
 
-									prep.setLong(5, packets);
-								} else {
+			writers[i] = new Thread(new SampleWriter(queue),
+					"Stat Collector Writer " + (i + 1));
+			writers[i].setDaemon(true);
+			writers[i].start();
+		}
 
-									prep.setLong(5, packetsReceived);
-								}
-							} else {
+	}
 
-								prep.setLong(5, packets);
-							}
+	/**
+	 * delete the rows past the retention of their tier every purge interval,
+	 * with a connection of its own so the writers are not held up
+	 */
+	private void startPurge() {
 
-							tempFlowStat.put(matchString, packets);
+		final long[] retentions = new long[retentionHours.length];
 
-							prep.setString(3, matchString);
-							prep.setString(4, action);
-							
+		for (int i = 0; i < retentions.length; i++) {
+			retentions[i] = TimeUnit.HOURS.toMillis(retentionHours[i]);
+		}
 
-							prep.setShort(6, (short)priority);
-							prep.addBatch();
+		purgeExecutor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
 
-							conn.setAutoCommit(false);
-							prep.executeBatch();
-							conn.setAutoCommit(true);
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"Stat Collector Purge");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		purgeExecutor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+
+				Connection purgeConn = null;
+
+				try {
+					purgeConn = DriverManager.getConnection(databaseDriver,
+							dbUsername, dbPassword);
+					StatRollup.createTables(purgeConn);
+					long deleted = StatRollup.purge(purgeConn, retentions,
+							intervalTime, System.currentTimeMillis(), 10000);
+					logger.debug("purged {} statistics rows", deleted);
+				} catch (SQLException e) {
+					logger.error("could not purge statistics {}", e);
+				} finally {
+					if (purgeConn != null) {
+						try {
+							purgeConn.close();
 						} catch (SQLException e) {
-							// TODO Auto-generated catch block
-							logger.error("error when insert flow {} in switch {}", matchString,datapathId);
 							logger.error("{}", e);
-						} finally {
-							if (prep != null) {
-								try {
-									prep.close();
-								} catch (SQLException e) {
-									// TODO Auto-generated catch block
-									logger.error("{}", e);
-								}
-							}
 						}
-
 					}
+				}
 
-					Object portStatusJSONobj = JSONValue.parse(portStatus);
-					JSONArray portStatusJsonArray = (JSONArray) portStatusJSONobj;
-
-					for (int i = 0; i < portStatusJsonArray.size(); i++) {
-						byte portStatusValue = 0;
-						JSONObject jsonObject = (JSONObject) portStatusJsonArray
-								.get(i);
-						long portId = (Long) jsonObject.get("port_id");
-						String portAddress = (String) jsonObject
-								.get("port_address");
-						try {
-							portStatusValue = (byte) (Integer
-									.parseInt(jsonObject.get("state")
-											.toString()) % 2);
-						} catch (NumberFormatException nfe) {
-							logger.error("{}", nfe);
-							continue;
-						}
-						PreparedStatement prep = null;
-						try {
-							prep = conn
-									.prepareStatement("insert into port_status	 values (?,?,?,?,?);");
-							prep.setLong(1, datapathId);
-							prep.setLong(2, calendar.getTimeInMillis());
-							prep.setLong(3, portId);
+			}
+		}, 0, purgeInterval, TimeUnit.MILLISECONDS);
 
-							prep.setString(4, portAddress);
+	}
 
-							prep.setByte(5, portStatusValue);
-							prep.addBatch();
+	/**
+	 * @return the queue of the writer of a switch
+	 */
+	private SampleQueue sampleQueue(long datapathId) {
+		return sampleQueues[(int) ((datapathId & Long.MAX_VALUE) % sampleQueues.length)];
+	}
 
-							conn.setAutoCommit(false);
-							prep.executeBatch();
-							
-							conn.setAutoCommit(true);
-						} catch (SQLException e) {
-							// TODO Auto-generated catch block
-							logger.error("{}", e);
-						} finally {
-							if (prep != null) {
-								try {
-									prep.close();
-								} catch (SQLException e) {
-									// TODO Auto-generated catch block
-									logger.error("{}", e);
-								}
-							}
-						}
+	private void countDropped(SwitchSample sample, String reason) {
 
-					}
+		flowscaleController
+				.getMetricsRegistry()
+				.counter("flowscale_stat_samples_dropped_total",
+						"samples of a switch that were not written to the database",
+						"switch", HexString.toHexString(sample.getDatapathId()),
+						"reason", reason).increment();
 
-				}
+	}
 
-			}, "Switch Stat Collector");
-			statThread.start();
+	public void shutDown() {
 
+		if (requestExecutor != null) {
+			requestExecutor.shutdownNow();
 		}
-		}catch(Exception e){
-			logger.error("general excecption thrown {}", e);
+
+		if (purgeExecutor != null) {
+			purgeExecutor.shutdownNow();
 		}
-	}
 
-	public void shutDown() {
+		stopWriters();
 
 		statThread.interrupt();
 		statThread = null;
@@ -595,6 +854,39 @@ public class StatCollector {
 
 	}
 
+	/**
+	 * let the writers finish the samples already queued, for at most the stat
+	 * timeout
+	 */
+	private void stopWriters() {
+
+		if (writers == null) {
+			return;
+		}
+
+		for (SampleQueue queue : sampleQueues) {
+			queue.close();
+		}
+
+		long deadline = System.currentTimeMillis() + statTimeout;
+
+		for (Thread writer : writers) {
+			try {
+				writer.join(Math.max(1, deadline - System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		for (Thread writer : writers) {
+			writer.interrupt();
+		}
+
+		writers = null;
+
+	}
+
 	public String getName() {
 		// TODO Auto-generated method stub
 		return "statCollector";
@@ -0,0 +1,360 @@
+/**
+ *Copyright 2012, InCNTRE. This file is licensed under Apache 2.0 *
+ **/
+
+package edu.iu.incntre.flowscalestatcollector;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the 1 minute, 5 minute and 1 hour rollups of flow_stats and
+ * port_stats, in the tables of the same name with the suffix of the tier. A
+ * rollup row holds the packets counted in its period, under the timestamp the
+ * period starts at.
+ *
+ * The minute in progress of each switch is kept in memory. When the first
+ * sample of the next minute is written, the rows of the minute are summed from
+ * the raw tables into the 1 minute tier, and the 5 minute and 1 hour periods
+ * holding it are summed again from the tier below, in the same transaction. A
+ * period is only complete in the database once the minute after it started.
+ * Rows are written with insert ... select ... on duplicate key update, which
+ * is MySQL syntax, and replace what is there, so a minute written again after
+ * a failure or a restart gives the same rows. The action and priority of a
+ * flow are the greatest of its period.
+ *
+ * A minute in progress is lost when the collector is killed before it is
+ * written. The first sample a writer gets from a switch therefore writes the
+ * last minute the raw tables have for that switch before its own minute, so
+ * the rollups catch up as soon as the switch is polled again.
+ *
+ * The tiers and their retention are also written to the stat_tiers table, for
+ * the web interface to pick the coarsest tier covering the range it shows.
+ */
+public class StatRollup {
+
+	protected static Logger logger = LoggerFactory.getLogger(StatRollup.class);
+
+	public static final String[] TIERS = { "raw", "1m", "5m", "1h" };
+
+	/**
+	 * milliseconds covered by a row of each tier, the raw tier is as fine as
+	 * the polling interval
+	 */
+	public static final long[] RESOLUTIONS = { 0, 60000L, 300000L, 3600000L };
+
+	private static final String[] RAW_TABLES = { "flow_stats", "port_stats",
+			"port_status" };
+
+	private static final String[] ROLLUP_TABLES = { "flow_stats", "port_stats" };
+
+	private static final String SUM_FLOW_STATS = " (datapath_id, timestamp, flow_id, action, packet_count, priority)"
+			+ " select datapath_id, ?, flow_id, max(action), sum(packet_count), max(priority) from ";
+	private static final String SUM_PORT_STATS = " (datapath_id, timestamp, port, packets_received, packets_transmitted)"
+			+ " select datapath_id, ?, port, sum(packets_received), sum(packets_transmitted) from ";
+	private static final String PERIOD = " where datapath_id = ? and timestamp >= ? and timestamp < ?";
+	private static final String REPLACE_FLOW_STATS = " group by datapath_id, flow_id"
+			+ " on duplicate key update packet_count = values(packet_count),"
+			+ " action = values(action), priority = values(priority)";
+	private static final String REPLACE_PORT_STATS = " group by datapath_id, port"
+			+ " on duplicate key update packets_received = values(packets_received),"
+			+ " packets_transmitted = values(packets_transmitted)";
+	private static final String LAST_TIMESTAMP = "select max(timestamp) from %s"
+			+ " where datapath_id = ? and timestamp < ?";
+	private static final String UPSERT_STAT_TIER = "insert into stat_tiers (tier, resolution, retention) values (?,?,?)"
+			+ " on duplicate key update resolution = values(resolution), retention = values(retention)";
+
+	/**
+	 * start of the minute in progress of each switch
+	 */
+	private final HashMap<Long, Long> minutes = new HashMap<Long, Long>();
+
+	/**
+	 * write the minute of the switch to every tier if the sample starts another
+	 * one, the minute is kept until the sample is committed
+	 *
+	 * @return rows written
+	 * @throws SQLException
+	 */
+	public int writeClosedMinute(Connection conn, long datapathId,
+			long timestamp) throws SQLException {
+
+		Long minute = minutes.get(datapathId);
+
+		if (minute == null) {
+			// first sample of the switch since the writer started, the minute
+			// before it may have been in progress when the collector stopped
+			minute = lastRawMinute(conn, datapathId, periodStart(timestamp, 1));
+		}
+
+		if (minute == null || minute == periodStart(timestamp, 1)) {
+			return 0;
+		}
+
+		return write(conn, datapathId, minute);
+	}
+
+	/**
+	 * make the minute of a committed sample the minute in progress of its
+	 * switch
+	 *
+	 * @param datapathId
+	 * @param timestamp
+	 *            timestamp of the sample
+	 */
+	public void add(long datapathId, long timestamp) {
+		minutes.put(datapathId, periodStart(timestamp, 1));
+	}
+
+	/**
+	 * write the minutes in progress, before the writer stops, in one
+	 * transaction
+	 *
+	 * @throws SQLException
+	 */
+	public void flush(Connection conn) throws SQLException {
+
+		if (minutes.isEmpty()) {
+			return;
+		}
+
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+
+		try {
+
+			for (Map.Entry<Long, Long> entry : minutes.entrySet()) {
+				write(conn, entry.getKey(), entry.getValue());
+			}
+
+			conn.commit();
+			minutes.clear();
+
+		} catch (SQLException e) {
+			StatWriter.rollback(conn);
+			throw e;
+		} finally {
+			StatWriter.restoreAutoCommit(conn, autoCommit);
+		}
+
+	}
+
+	/**
+	 * @param timestamp
+	 *            milliseconds since the epoch
+	 * @param tier
+	 *            index of a rollup tier in TIERS
+	 * @return start of the period of the tier the timestamp is in
+	 */
+	public static long periodStart(long timestamp, int tier) {
+		return timestamp - timestamp % RESOLUTIONS[tier];
+	}
+
+	/**
+	 * @param tier
+	 *            index in TIERS
+	 * @return suffix of the tables of the tier
+	 */
+	public static String tableSuffix(int tier) {
+		return tier == 0 ? "" : "_" + TIERS[tier];
+	}
+
+	/**
+	 * delete the rows older than the retention of their tier and record the
+	 * tiers in stat_tiers. Rows are deleted deleteLimit at a time so the
+	 * tables are not locked for long
+	 *
+	 * @param retentions
+	 *            milliseconds each tier is kept, 0 to keep it forever
+	 * @param rawResolution
+	 *            milliseconds between two polls
+	 * @return rows deleted
+	 * @throws SQLException
+	 */
+	public static long purge(Connection conn, long[] retentions,
+			long rawResolution, long now, int deleteLimit) throws SQLException {
+
+		PreparedStatement tierStatement = conn.prepareStatement(UPSERT_STAT_TIER);
+
+		try {
+			for (int tier = 0; tier < TIERS.length; tier++) {
+				tierStatement.setString(1, TIERS[tier]);
+				tierStatement.setLong(2, tier == 0 ? rawResolution
+						: RESOLUTIONS[tier]);
+				tierStatement.setLong(3, retentions[tier]);
+				tierStatement.addBatch();
+			}
+			tierStatement.executeBatch();
+		} finally {
+			tierStatement.close();
+		}
+
+		long deleted = 0;
+
+		for (int tier = 0; tier < TIERS.length; tier++) {
+
+			if (retentions[tier] <= 0) {
+				continue;
+			}
+
+			for (String table : tier == 0 ? RAW_TABLES : ROLLUP_TABLES) {
+
+				PreparedStatement deleteStatement = conn
+						.prepareStatement("delete from " + table
+								+ tableSuffix(tier)
+								+ " where timestamp < ? limit " + deleteLimit);
+
+				try {
+					deleteStatement.setLong(1, now - retentions[tier]);
+
+					int rows;
+					do {
+						rows = deleteStatement.executeUpdate();
+						deleted += rows;
+					} while (rows == deleteLimit);
+
+				} finally {
+					deleteStatement.close();
+				}
+			}
+		}
+
+		return deleted;
+	}
+
+	/**
+	 * @return start of the last minute of the switch in the raw tables before
+	 *         the given one, null if they have none
+	 */
+	private static Long lastRawMinute(Connection conn, long datapathId,
+			long before) throws SQLException {
+
+		long last = -1;
+
+		for (String table : ROLLUP_TABLES) {
+
+			PreparedStatement statement = conn.prepareStatement(String.format(
+					LAST_TIMESTAMP, table));
+
+			try {
+				statement.setLong(1, datapathId);
+				statement.setLong(2, before);
+
+				ResultSet resultSet = statement.executeQuery();
+
+				if (resultSet.next()) {
+					long timestamp = resultSet.getLong(1);
+					if (!resultSet.wasNull()) {
+						last = Math.max(last, timestamp);
+					}
+				}
+
+				resultSet.close();
+			} finally {
+				statement.close();
+			}
+		}
+
+		return last < 0 ? null : periodStart(last, 1);
+	}
+
+	private int write(Connection conn, long datapathId, long minute)
+			throws SQLException {
+
+		int rows = 0;
+
+		for (int tier = 1; tier < TIERS.length; tier++) {
+
+			long timestamp = periodStart(minute, tier);
+
+			rows += sum(conn, ROLLUP_TABLES[0], SUM_FLOW_STATS,
+					REPLACE_FLOW_STATS, tier, datapathId, timestamp);
+			rows += sum(conn, ROLLUP_TABLES[1], SUM_PORT_STATS,
+					REPLACE_PORT_STATS, tier, datapathId, timestamp);
+		}
+
+		logger.debug("rolled up minute {} of switch {}", minute, datapathId);
+
+		return rows;
+	}
+
+	/**
+	 * replace the rows of the period of a tier by the sums of the rows of the
+	 * tier below it
+	 *
+	 * @return rows written
+	 */
+	private int sum(Connection conn, String table, String columns,
+			String replace, int tier, long datapathId, long timestamp)
+			throws SQLException {
+
+		PreparedStatement statement = conn.prepareStatement("insert into "
+				+ table + tableSuffix(tier) + columns + table
+				+ tableSuffix(tier - 1) + PERIOD + replace);
+
+		try {
+			statement.setLong(1, timestamp);
+			statement.setLong(2, datapathId);
+			statement.setLong(3, timestamp);
+			statement.setLong(4, timestamp + RESOLUTIONS[tier]);
+
+			return statement.executeUpdate();
+		} finally {
+			statement.close();
+		}
+
+	}
+
+	/**
+	 * create the rollup tables and stat_tiers if they do not exist, for
+	 * databases created before the rollups. They are InnoDB tables so a
+	 * minute is only written once its transaction commits
+	 *
+	 * @throws SQLException
+	 */
+	public static void createTables(Connection conn) throws SQLException {
+
+		Statement statement = conn.createStatement();
+
+		try {
+			for (int tier = 1; tier < TIERS.length; tier++) {
+
+				String suffix = tableSuffix(tier);
+
+				statement.executeUpdate("create table if not exists flow_stats"
+						+ suffix
+						+ " (datapath_id bigint not null, timestamp bigint not null,"
+						+ " flow_id int not null, action varchar(30),"
+						+ " packet_count bigint, priority int,"
+						+ " primary key (datapath_id, timestamp, flow_id),"
+						+ " key flow_stats" + suffix
+						+ "_timestamp (timestamp)) engine=InnoDB");
+				statement.executeUpdate("create table if not exists port_stats"
+						+ suffix
+						+ " (datapath_id bigint not null, timestamp bigint not null,"
+						+ " port int not null, packets_received bigint,"
+						+ " packets_transmitted bigint,"
+						+ " primary key (datapath_id, timestamp, port),"
+						+ " key port_stats" + suffix
+						+ "_timestamp (timestamp)) engine=InnoDB");
+			}
+
+			statement.executeUpdate("create table if not exists stat_tiers"
+					+ " (tier varchar(10) not null, resolution bigint not null,"
+					+ " retention bigint not null, primary key (tier))"
+					+ " engine=InnoDB");
+		} finally {
+			statement.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,335 @@
+/**
+ *Copyright 2012, InCNTRE. This file is licensed under Apache 2.0 *
+ **/
+
+package edu.iu.incntre.flowscalestatcollector;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.iu.incntre.flowscale.stats.FlowIdentityDictionary;
+import edu.iu.incntre.flowscale.stats.FlowSample;
+import edu.iu.incntre.flowscale.stats.PortSample;
+import edu.iu.incntre.flowscale.stats.PortStateSample;
+import edu.iu.incntre.flowscale.stats.SwitchSample;
+
+/**
+ * Writes the samples of a switch to the port_stats, flow_stats and
+ * port_status tables. Each table is written with one prepared statement per
+ * sample whose rows are sent in batches of batchSize, and a sample is written
+ * in a single transaction. With MySQL, rewriteBatchedStatements=true in the
+ * connection string turns each batch into one multi-row insert. The tables
+ * have to be InnoDB, MyISAM ignores the transaction and keeps the rows of a
+ * sample that failed.
+ *
+ * Packet counts are stored as the difference with the count of the last
+ * sample written for the same switch, kept in its SwitchCounters. The counts
+ * of a sample only replace the last counts once its transaction is committed.
+ * The rows of a minute are summed in the rollup tables by StatRollup, in the
+ * transaction of the first sample of the next minute.
+ *
+ * Flows are stored under the id their match has in the flow_identity table,
+ * the matches new to the FlowIdentityDictionary are added to it before the
+ * transaction of the sample starts.
+ */
+public class StatWriter {
+
+	protected static Logger logger = LoggerFactory.getLogger(StatWriter.class);
+
+	private static final String INSERT_PORT_STATS = "insert into port_stats values (?,?,?,?,?)";
+	private static final String INSERT_FLOW_STATS = "insert into flow_stats (datapath_id, timestamp, flow_id, action, packet_count, priority) values (?,?,?,?,?,?)";
+	private static final String INSERT_PORT_STATUS = "insert into port_status values (?,?,?,?,?)";
+
+	public static final int DEFAULT_EVICT_AFTER_POLLS = 10;
+
+	private final int batchSize;
+	private final int evictAfterPolls;
+	private final StatRollup rollup;
+	private final FlowIdentityDictionary flowIdentities;
+
+	private final HashMap<Long, SwitchCounters> switchCounters = new HashMap<Long, SwitchCounters>();
+
+	/**
+	 * @param batchSize
+	 *            rows sent to the database at once
+	 */
+	public StatWriter(int batchSize) {
+		this(batchSize, DEFAULT_EVICT_AFTER_POLLS);
+	}
+
+	/**
+	 * @param batchSize
+	 *            rows sent to the database at once
+	 * @param evictAfterPolls
+	 *            samples of a switch a flow or port can be missing from before
+	 *            its last count is forgotten
+	 */
+	public StatWriter(int batchSize, int evictAfterPolls) {
+		this(batchSize, evictAfterPolls, new FlowIdentityDictionary());
+	}
+
+	/**
+	 * @param batchSize
+	 *            rows sent to the database at once
+	 * @param evictAfterPolls
+	 *            samples of a switch a flow or port can be missing from before
+	 *            its last count is forgotten
+	 * @param flowIdentities
+	 *            ids of the matches, can be shared with other writers
+	 */
+	public StatWriter(int batchSize, int evictAfterPolls,
+			FlowIdentityDictionary flowIdentities) {
+		this.batchSize = Math.max(1, batchSize);
+		this.evictAfterPolls = evictAfterPolls;
+		this.rollup = new StatRollup();
+		this.flowIdentities = flowIdentities;
+	}
+
+	/**
+	 * write a sample in one transaction, rolled back if any row fails
+	 *
+	 * @param conn
+	 * @param sample
+	 * @return number of rows written
+	 * @throws SQLException
+	 */
+	public int store(Connection conn, SwitchSample sample) throws SQLException {
+
+		long datapathId = sample.getDatapathId();
+		long timestamp = sample.getTimestamp();
+
+		SwitchCounters counters = switchCounters.get(datapathId);
+
+		if (counters == null) {
+			counters = new SwitchCounters(evictAfterPolls);
+			switchCounters.put(datapathId, counters);
+		}
+
+		int[] flowIds = new int[sample.getFlows().size()];
+
+		// rows added to flow_identity are kept even if the sample fails
+		int[] identityIds = flowIdentities.getFlowIds(conn, sample.getFlows());
+
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+
+		PreparedStatement portStats = null;
+		PreparedStatement flowStats = null;
+		PreparedStatement portStatus = null;
+		int rows = 0;
+		boolean committed = false;
+
+		try {
+
+			counters.begin();
+			rows += rollup.writeClosedMinute(conn, datapathId, timestamp);
+
+			portStats = conn.prepareStatement(INSERT_PORT_STATS);
+			int pending = 0;
+
+			for (PortSample port : sample.getPorts()) {
+
+				portStats.setLong(1, datapathId);
+				portStats.setLong(2, timestamp);
+				portStats.setLong(3, port.getPortNumber());
+				portStats.setLong(4, counters.receivedDelta(port));
+				portStats.setLong(5, counters.transmittedDelta(port));
+				portStats.addBatch();
+
+				pending = flushIfFull(portStats, pending + 1);
+				rows++;
+			}
+
+			flush(portStats, pending);
+
+			flowStats = conn.prepareStatement(INSERT_FLOW_STATS);
+			pending = 0;
+			int flowIndex = 0;
+
+			for (FlowSample flow : sample.getFlows()) {
+
+				int index = flowIndex++;
+
+				flowIds[index] = counters.flowId(identityIds[index]);
+
+				// the id of the match is part of the key of flow_stats, a
+				// second flow with the same match and another priority is not
+				// stored
+				if (flowIds[index] < 0) {
+					logger.debug(
+							"flow {} of switch {} is already in this sample",
+							flow.getMatch(), datapathId);
+					continue;
+				}
+
+				flowStats.setLong(1, datapathId);
+				flowStats.setLong(2, timestamp);
+				flowStats.setInt(3, identityIds[index]);
+				flowStats.setString(4, flow.getActions());
+				flowStats.setLong(5, counters.flowDelta(flowIds[index], flow));
+				flowStats.setShort(6, flow.getPriority());
+				flowStats.addBatch();
+
+				pending = flushIfFull(flowStats, pending + 1);
+				rows++;
+			}
+
+			flush(flowStats, pending);
+
+			portStatus = conn.prepareStatement(INSERT_PORT_STATUS);
+			pending = 0;
+
+			for (PortStateSample port : sample.getPortStates()) {
+
+				portStatus.setLong(1, datapathId);
+				portStatus.setLong(2, timestamp);
+				portStatus.setLong(3, port.getPortNumber());
+				portStatus.setString(4, port.getHardwareAddress());
+				portStatus.setByte(5, (byte) (port.isLinkDown() ? 1 : 0));
+				portStatus.addBatch();
+
+				pending = flushIfFull(portStatus, pending + 1);
+				rows++;
+			}
+
+			flush(portStatus, pending);
+
+			conn.commit();
+			committed = true;
+
+		} finally {
+
+			if (!committed) {
+				rollback(conn);
+				counters.rollback();
+			}
+
+			close(portStats);
+			close(flowStats);
+			close(portStatus);
+			restoreAutoCommit(conn, autoCommit);
+		}
+
+		counters.commit(sample.getFlows(), flowIds, sample.getPorts());
+		rollup.add(datapathId, timestamp);
+
+		return rows;
+	}
+
+	/**
+	 * write the rollups of the minutes in progress, before the connection is
+	 * given up
+	 *
+	 * @param conn
+	 * @throws SQLException
+	 */
+	public void flushRollups(Connection conn) throws SQLException {
+		rollup.flush(conn);
+	}
+
+	/**
+	 * make sure flow_stats and its rollups are keyed by flow_id, the tables of
+	 * a database created before flow_identity hold the match string instead
+	 * and have to be upgraded with database/upgrade_flow_identity.sql
+	 *
+	 * @throws SQLException
+	 *             naming the table that has no flow_id
+	 */
+	public static void checkTables(Connection conn) throws SQLException {
+
+		Statement statement = conn.createStatement();
+
+		try {
+			for (int tier = 0; tier < StatRollup.TIERS.length; tier++) {
+
+				String table = "flow_stats" + StatRollup.tableSuffix(tier);
+
+				try {
+					statement.executeQuery(
+							"select flow_id from " + table + " where 1 = 0")
+							.close();
+				} catch (SQLException e) {
+					throw new SQLException("could not read flow_id from "
+							+ table
+							+ ", run database/upgrade_flow_identity.sql", e);
+				}
+			}
+		} finally {
+			statement.close();
+		}
+
+	}
+
+	/**
+	 * @return rows left in the batch
+	 */
+	private int flushIfFull(PreparedStatement statement, int pending)
+			throws SQLException {
+
+		if (pending < batchSize) {
+			return pending;
+		}
+
+		statement.executeBatch();
+		return 0;
+	}
+
+	private void flush(PreparedStatement statement, int pending)
+			throws SQLException {
+
+		if (pending > 0) {
+			statement.executeBatch();
+		}
+
+	}
+
+	/**
+	 * roll back without hiding the exception that caused it, a failure is
+	 * only logged
+	 */
+	static void rollback(Connection conn) {
+
+		try {
+			conn.rollback();
+		} catch (SQLException e) {
+			logger.error("{}", e);
+		}
+
+	}
+
+	/**
+	 * put back the auto commit mode of the connection. On a connection that
+	 * was lost the driver throws again, that failure is only logged so it does
+	 * not replace the exception of the write
+	 */
+	static void restoreAutoCommit(Connection conn, boolean autoCommit) {
+
+		try {
+			conn.setAutoCommit(autoCommit);
+		} catch (SQLException e) {
+			logger.error("could not restore auto commit {}", e);
+		}
+
+	}
+
+	private void close(PreparedStatement statement) {
+
+		if (statement == null) {
+			return;
+		}
+
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			logger.error("{}", e);
+		}
+
+	}
+
+}
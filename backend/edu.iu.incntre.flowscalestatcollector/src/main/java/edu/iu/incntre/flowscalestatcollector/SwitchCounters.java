@@ -0,0 +1,366 @@
+/**
+ *Copyright 2012, InCNTRE. This file is licensed under Apache 2.0 *
+ **/
+
+package edu.iu.incntre.flowscalestatcollector;
+
+import java.util.Arrays;
+import java.util.List;
+
+import edu.iu.incntre.flowscale.stats.FlowSample;
+import edu.iu.incntre.flowscale.stats.PortSample;
+
+/**
+ * The last counts written for one switch, to store each sample as the packets
+ * counted since the previous one.
+ *
+ * Flows are given a compact id the first time the id of their match in
+ * flow_identity is seen, and their last count, duration and poll are kept in
+ * arrays indexed by that id. The compact ids are found in an open addressing
+ * table keyed by the match id, and ports are kept in CounterTables keyed by
+ * their number. A sample is read with
+ * begin, then its counts replace the last ones with commit once it is
+ * written, or are forgotten with rollback.
+ *
+ * The counters of flows and ports missing from evictAfterPolls committed
+ * samples are removed, and the compact id of such a flow is given to the next
+ * new match, so rules replaced by the hot swap do not stay in memory.
+ */
+public class SwitchCounters {
+
+	private final int evictAfterPolls;
+
+	private final CounterTable received = new CounterTable();
+	private final CounterTable transmitted = new CounterTable();
+
+	private final FlowIdIndex flowIds = new FlowIdIndex();
+	// id in flow_identity of the match of each flow
+	private int[] identityIds = new int[64];
+	private long[] lastCounts = new long[64];
+	private long[] lastDurations = new long[64];
+	// last poll each flow was committed in, 0 if it has not been yet
+	private long[] lastPolls = new long[64];
+	private long[] lastAttempts = new long[64];
+	private int flowIdCount;
+	private int[] freeFlowIds = new int[16];
+	private int freeFlowIdCount;
+	private int flowCount;
+
+	// ids given to new matches by the sample being read
+	private int[] newFlowIds = new int[16];
+	private int newFlowIdCount;
+
+	private long poll;
+	private long attempt;
+
+	/**
+	 * @param evictAfterPolls
+	 *            committed samples a counter can be missing from before it is
+	 *            removed
+	 */
+	public SwitchCounters(int evictAfterPolls) {
+		this.evictAfterPolls = Math.max(1, evictAfterPolls);
+	}
+
+	/**
+	 * start reading a sample
+	 */
+	public void begin() {
+
+		attempt++;
+		newFlowIdCount = 0;
+
+	}
+
+	/**
+	 * @param identityId
+	 *            id of the match of the flow in flow_identity
+	 * @return compact id of the flow, -1 if it is already in the sample being
+	 *         read
+	 */
+	public int flowId(int identityId) {
+
+		int flowId = flowIds.get(identityId);
+
+		if (flowId >= 0) {
+
+			if (lastAttempts[flowId] == attempt) {
+				return -1;
+			}
+
+			lastAttempts[flowId] = attempt;
+			return flowId;
+		}
+
+		int newFlowId;
+
+		if (freeFlowIdCount > 0) {
+			newFlowId = freeFlowIds[--freeFlowIdCount];
+		} else {
+
+			if (flowIdCount == identityIds.length) {
+				int length = identityIds.length * 2;
+				identityIds = Arrays.copyOf(identityIds, length);
+				lastCounts = Arrays.copyOf(lastCounts, length);
+				lastDurations = Arrays.copyOf(lastDurations, length);
+				lastPolls = Arrays.copyOf(lastPolls, length);
+				lastAttempts = Arrays.copyOf(lastAttempts, length);
+			}
+
+			newFlowId = flowIdCount++;
+		}
+
+		flowIds.put(identityId, newFlowId);
+		identityIds[newFlowId] = identityId;
+		lastPolls[newFlowId] = 0;
+		lastAttempts[newFlowId] = attempt;
+
+		if (newFlowIdCount == newFlowIds.length) {
+			newFlowIds = Arrays.copyOf(newFlowIds, newFlowIds.length * 2);
+		}
+
+		newFlowIds[newFlowIdCount++] = newFlowId;
+
+		return newFlowId;
+	}
+
+	/**
+	 * packets counted by the flow since the last sample committed, the whole
+	 * count when the flow is new or was reset. A flow was reset when its count
+	 * went backwards or its duration is lower than the one stored, the rule
+	 * having been replaced since
+	 *
+	 * @param flowId
+	 *            id given by flowId
+	 * @param flow
+	 * @return the count to store
+	 */
+	public long flowDelta(int flowId, FlowSample flow) {
+
+		long count = flow.getPacketCount();
+
+		if (lastPolls[flowId] == 0 || count < lastCounts[flowId]
+				|| flow.getDurationSeconds() < lastDurations[flowId]) {
+			return count;
+		}
+
+		return count - lastCounts[flowId];
+	}
+
+	/**
+	 * @return packets received by the port since the last sample committed
+	 */
+	public long receivedDelta(PortSample port) {
+		return received.delta(port.getPortNumber(), port.getReceivePackets());
+	}
+
+	/**
+	 * @return packets transmitted by the port since the last sample committed
+	 */
+	public long transmittedDelta(PortSample port) {
+		return transmitted.delta(port.getPortNumber(),
+				port.getTransmitPackets());
+	}
+
+	/**
+	 * keep the counts of the sample that was read as the last counts, and
+	 * evict the counters missing from the last evictAfterPolls samples
+	 *
+	 * @param flowSamples
+	 *            flows of the sample
+	 * @param sampleFlowIds
+	 *            id of each flow of the sample, -1 for a flow that was not
+	 *            stored
+	 * @param portSamples
+	 *            ports of the sample
+	 */
+	public void commit(List<FlowSample> flowSamples, int[] sampleFlowIds,
+			List<PortSample> portSamples) {
+
+		poll++;
+
+		for (int i = 0; i < sampleFlowIds.length; i++) {
+
+			int flowId = sampleFlowIds[i];
+
+			if (flowId < 0) {
+				continue;
+			}
+
+			if (lastPolls[flowId] == 0) {
+				flowCount++;
+			}
+
+			FlowSample flow = flowSamples.get(i);
+			lastCounts[flowId] = flow.getPacketCount();
+			lastDurations[flowId] = flow.getDurationSeconds();
+			lastPolls[flowId] = poll;
+		}
+
+		for (PortSample port : portSamples) {
+			received.put(port.getPortNumber(), port.getReceivePackets(), poll);
+			transmitted.put(port.getPortNumber(), port.getTransmitPackets(),
+					poll);
+		}
+
+		long oldestPoll = poll - evictAfterPolls + 1;
+
+		for (int flowId = 0; flowId < flowIdCount; flowId++) {
+
+			if (lastPolls[flowId] != 0 && lastPolls[flowId] < oldestPoll) {
+				releaseFlowId(flowId);
+				flowCount--;
+			}
+		}
+
+		received.evict(oldestPoll);
+		transmitted.evict(oldestPoll);
+		newFlowIdCount = 0;
+
+	}
+
+	/**
+	 * forget the sample that was read, the ids it gave to new matches are
+	 * released
+	 */
+	public void rollback() {
+
+		for (int i = 0; i < newFlowIdCount; i++) {
+			releaseFlowId(newFlowIds[i]);
+		}
+
+		newFlowIdCount = 0;
+
+	}
+
+	/**
+	 * @return flows whose last count is kept
+	 */
+	public int getFlowCount() {
+		return flowCount;
+	}
+
+	private void releaseFlowId(int flowId) {
+
+		flowIds.remove(identityIds[flowId]);
+		lastPolls[flowId] = 0;
+
+		if (freeFlowIdCount == freeFlowIds.length) {
+			freeFlowIds = Arrays.copyOf(freeFlowIds, freeFlowIds.length * 2);
+		}
+
+		freeFlowIds[freeFlowIdCount++] = flowId;
+
+	}
+
+	/**
+	 * compact ids of the flows keyed by the id of their match, probed and
+	 * shifted back on removal as in CounterTable
+	 */
+	private static class FlowIdIndex {
+
+		private int[] keys = new int[64];
+		private int[] values = new int[64];
+		private boolean[] used = new boolean[64];
+		private int size;
+
+		/**
+		 * @return compact id of the match, -1 if the index does not have it
+		 */
+		int get(int key) {
+
+			int mask = keys.length - 1;
+
+			for (int slot = hash(key) & mask; used[slot]; slot = (slot + 1)
+					& mask) {
+				if (keys[slot] == key) {
+					return values[slot];
+				}
+			}
+
+			return -1;
+		}
+
+		void put(int key, int value) {
+
+			if ((size + 1) * 4 > keys.length * 3) {
+				resize(keys.length * 2);
+			}
+
+			int mask = keys.length - 1;
+			int slot = hash(key) & mask;
+
+			while (used[slot] && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+
+			if (!used[slot]) {
+				used[slot] = true;
+				keys[slot] = key;
+				size++;
+			}
+
+			values[slot] = value;
+
+		}
+
+		void remove(int key) {
+
+			int mask = keys.length - 1;
+			int empty = hash(key) & mask;
+
+			while (used[empty] && keys[empty] != key) {
+				empty = (empty + 1) & mask;
+			}
+
+			if (!used[empty]) {
+				return;
+			}
+
+			int next = (empty + 1) & mask;
+
+			while (used[next]) {
+
+				int home = hash(keys[next]) & mask;
+
+				if (((next - home) & mask) >= ((next - empty) & mask)) {
+					keys[empty] = keys[next];
+					values[empty] = values[next];
+					empty = next;
+				}
+
+				next = (next + 1) & mask;
+			}
+
+			used[empty] = false;
+			size--;
+
+		}
+
+		private void resize(int length) {
+
+			int[] oldKeys = keys;
+			int[] oldValues = values;
+			boolean[] oldUsed = used;
+
+			keys = new int[length];
+			values = new int[length];
+			used = new boolean[length];
+			size = 0;
+
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldUsed[i]) {
+					put(oldKeys[i], oldValues[i]);
+				}
+			}
+
+		}
+
+		private static int hash(int key) {
+
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+}
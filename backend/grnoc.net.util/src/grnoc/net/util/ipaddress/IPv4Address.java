@@ -6,7 +6,6 @@ public class IPv4Address {
 
     private int subnet;
     private int ipv4Address;
-    private StringBuffer ipv4StringBuffer = new StringBuffer();
     public IPv4Address(int ipv4Address){
 
             this.ipv4Address = ipv4Address;
@@ -14,31 +13,7 @@ public class IPv4Address {
 
     public IPv4Address(String stringAddress){
             //convert to ipv4 int address
-            byte[] ipByteParts = new byte[4];
-         
-            String [] ipPart = stringAddress.split("\\.");
-            int i =0;
-            Short tempShort = 0;
-            for(String ipString : ipPart){
-                  
-                    tempShort = Short.parseShort(ipString);
-                    byte b = (byte) (0xFF & tempShort) ;
-                    if (tempShort > 128)
-                            b = (byte)(b | 0x80);
-                    ipByteParts[i++] = b;
-            }
-
-
-            int intValue = 0;
-            for ( i = 0; i < 4; i++) {
-
-                    intValue = (intValue << 8);
-
-                    intValue = (intValue | (0xFF & ipByteParts[i]));
-
-            }
-            this.ipv4Address = intValue;
-  
+            this.ipv4Address = IPv4Prefix.parseAddress(stringAddress);
     }
 
     public int getIPv4AddressInt(){
@@ -71,20 +46,8 @@ public class IPv4Address {
 
     }
     public String getIPv4AddressValue(){
-        String ipv4AddressValue ="";
-        int tempValue =0 ;
-        for(int i =0 ; i < 4; i++){
-
-                 tempValue =  (this.ipv4Address >>> ((4-i-1)*8) ) & 0xFF;
-
-                if(tempValue < 0)
-                        tempValue = tempValue & 0xFF;
-                ipv4AddressValue += tempValue +".";
-
-        }
-        return (ipv4AddressValue.substring(0,ipv4AddressValue.length() -1 ));
-
-}
+        return IPv4Prefix.format(this.ipv4Address);
+    }
 
 
 }
@@ -0,0 +1,280 @@
+package grnoc.net.util.ipaddress;
+
+/**
+ * IPv4 address and prefix arithmetic on primitives. Addresses are ints in
+ * network order, prefix lengths are ints from 0 to 32 and a prefix can be
+ * packed in a single long with pack. Parsing reads the characters in place,
+ * nothing but the format methods allocates.
+ */
+public final class IPv4Prefix {
+
+    /**
+     * returned by merge when the two prefixes can not be merged, no packed
+     * prefix is negative
+     */
+    public static final long NO_PREFIX = -1L;
+
+    private IPv4Prefix() {
+
+    }
+
+    /**
+     * @param length
+     *            prefix length, clamped to 0..32
+     * @return netmask of the prefix length
+     */
+    public static int mask(int length) {
+
+        if (length <= 0) {
+            return 0;
+        }
+
+        if (length >= 32) {
+            return -1;
+        }
+
+        return -1 << (32 - length);
+    }
+
+    /**
+     * @return address with the host bits cleared
+     */
+    public static int network(int address, int length) {
+        return address & mask(length);
+    }
+
+    /**
+     * @return number of addresses in a prefix of the given length
+     */
+    public static long size(int length) {
+        return 1L << (32 - length);
+    }
+
+    /**
+     * next prefix of the same length, 192.168.0.0/24 becomes 192.168.1.0/24
+     */
+    public static int increment(int address, int length) {
+        return (int) (address + size(length));
+    }
+
+    /**
+     * @return true if otherAddress/otherLength is inside address/length
+     */
+    public static boolean contains(int address, int length, int otherAddress,
+            int otherLength) {
+
+        return otherLength >= length
+                && ((address ^ otherAddress) & mask(length)) == 0;
+    }
+
+    /**
+     * @return number of prefixes of subLength a prefix of length splits into
+     */
+    public static long subPrefixCount(int length, int subLength) {
+
+        if (subLength <= length) {
+            return 1;
+        }
+
+        return 1L << (subLength - length);
+    }
+
+    /**
+     * @param address
+     * @param length
+     * @param subLength
+     *            length of the prefixes the prefix is split into
+     * @param index
+     *            from 0 to subPrefixCount(length, subLength) - 1
+     * @return address of the index-th sub prefix
+     */
+    public static int subPrefix(int address, int length, int subLength,
+            long index) {
+
+        return (int) (network(address, length) + index * size(subLength));
+    }
+
+    /**
+     * @return true if the two prefixes of the given length only differ in
+     *         their last bit, that is if they have the same parent
+     */
+    public static boolean isSibling(int address, int otherAddress, int length) {
+
+        if (length <= 0 || length > 32) {
+            return false;
+        }
+
+        return (network(address, length) ^ network(otherAddress, length)) == 1 << (32 - length);
+    }
+
+    /**
+     * @return packed parent of two sibling prefixes, NO_PREFIX if they are not
+     *         siblings
+     */
+    public static long merge(int address, int otherAddress, int length) {
+
+        if (!isSibling(address, otherAddress, length)) {
+            return NO_PREFIX;
+        }
+
+        return pack(network(address, length - 1), length - 1);
+    }
+
+    public static long pack(int address, int length) {
+        return ((long) length << 32) | (address & 0xffffffffL);
+    }
+
+    public static int address(long prefix) {
+        return (int) prefix;
+    }
+
+    public static int length(long prefix) {
+        return (int) (prefix >>> 32);
+    }
+
+    public static int parseAddress(CharSequence text) {
+        return parseAddress(text, 0, text.length());
+    }
+
+    /**
+     * parse a dotted quad
+     *
+     * @param text
+     * @param start
+     *            index of the first character
+     * @param end
+     *            index after the last character
+     * @return the address
+     * @throws NumberFormatException
+     *             if the text is not a dotted quad
+     */
+    public static int parseAddress(CharSequence text, int start, int end) {
+
+        int address = 0;
+        int octet = 0;
+        int digits = 0;
+        int octets = 0;
+
+        for (int i = start; i < end; i++) {
+
+            char c = text.charAt(i);
+
+            if (c == '.') {
+
+                if (digits == 0 || octets == 3) {
+                    throw invalid(text, start, end);
+                }
+
+                address = (address << 8) | octet;
+                octets++;
+                octet = 0;
+                digits = 0;
+
+            } else if (c >= '0' && c <= '9') {
+
+                octet = octet * 10 + (c - '0');
+                digits++;
+
+                if (octet > 255) {
+                    throw invalid(text, start, end);
+                }
+
+            } else {
+                throw invalid(text, start, end);
+            }
+        }
+
+        if (digits == 0 || octets != 3) {
+            throw invalid(text, start, end);
+        }
+
+        return (address << 8) | octet;
+    }
+
+    /**
+     * parse a prefix length from 0 to 32
+     *
+     * @throws NumberFormatException
+     */
+    public static int parseLength(CharSequence text, int start, int end) {
+
+        int length = 0;
+
+        if (start >= end || end - start > 2) {
+            throw invalid(text, start, end);
+        }
+
+        for (int i = start; i < end; i++) {
+
+            char c = text.charAt(i);
+
+            if (c < '0' || c > '9') {
+                throw invalid(text, start, end);
+            }
+
+            length = length * 10 + (c - '0');
+        }
+
+        if (length > 32) {
+            throw invalid(text, start, end);
+        }
+
+        return length;
+    }
+
+    /**
+     * parse address/length, an address without a length is a /32
+     *
+     * @return packed prefix
+     * @throws NumberFormatException
+     */
+    public static long parsePrefix(CharSequence text) {
+
+        int end = text.length();
+        int slash = end;
+
+        for (int i = 0; i < end; i++) {
+            if (text.charAt(i) == '/') {
+                slash = i;
+                break;
+            }
+        }
+
+        int address = parseAddress(text, 0, slash);
+        int length = slash == end ? 32 : parseLength(text, slash + 1, end);
+
+        return pack(address, length);
+    }
+
+    public static StringBuilder appendAddress(StringBuilder builder,
+            int address) {
+
+        return builder.append((address >>> 24) & 0xff).append('.')
+                .append((address >>> 16) & 0xff).append('.')
+                .append((address >>> 8) & 0xff).append('.')
+                .append(address & 0xff);
+    }
+
+    public static String format(int address) {
+        return appendAddress(new StringBuilder(15), address).toString();
+    }
+
+    /**
+     * @param prefix
+     *            packed prefix
+     * @return address/length
+     */
+    public static String formatPrefix(long prefix) {
+
+        return appendAddress(new StringBuilder(18), address(prefix))
+                .append('/').append(length(prefix)).toString();
+    }
+
+    private static NumberFormatException invalid(CharSequence text, int start,
+            int end) {
+
+        return new NumberFormatException("invalid IPv4 address or prefix: "
+                + text.subSequence(start, end));
+    }
+
+}
@@ -47,6 +47,34 @@ LOCK TABLES `flow_group` WRITE;
 /*!40000 ALTER TABLE `flow_group` ENABLE KEYS */;
 UNLOCK TABLES;
 
+--
+-- Table structure for table `flow_identity`
+--
+
+DROP TABLE IF EXISTS `flow_identity`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `flow_identity` (
+  `flow_id` int(11) NOT NULL AUTO_INCREMENT,
+  `match_string` varchar(255) NOT NULL,
+  `nw_src` bigint(20) DEFAULT NULL,
+  `nw_src_length` int(11) DEFAULT NULL,
+  `nw_dst` bigint(20) DEFAULT NULL,
+  `nw_dst_length` int(11) DEFAULT NULL,
+  PRIMARY KEY (`flow_id`),
+  UNIQUE KEY `flow_identity_match` (`match_string`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `flow_identity`
+--
+
+LOCK TABLES `flow_identity` WRITE;
+/*!40000 ALTER TABLE `flow_identity` DISABLE KEYS */;
+/*!40000 ALTER TABLE `flow_identity` ENABLE KEYS */;
+UNLOCK TABLES;
+
 --
 -- Table structure for table `flow_stats`
 --
@@ -57,13 +85,13 @@ DROP TABLE IF EXISTS `flow_stats`;
 CREATE TABLE `flow_stats` (
   `datapath_id` bigint(30) NOT NULL DEFAULT '0',
   `timestamp` bigint(20) NOT NULL DEFAULT '0',
-  `match_string` varchar(100) NOT NULL DEFAULT '',
+  `flow_id` int(11) NOT NULL DEFAULT '0',
   `action` varchar(30) DEFAULT NULL,
   `packet_count` int(11) DEFAULT NULL,
   `priority` int(5) DEFAULT NULL,
-  PRIMARY KEY (`datapath_id`,`timestamp`,`match_string`),
+  PRIMARY KEY (`datapath_id`,`timestamp`,`flow_id`),
   KEY `timestamp` (`timestamp`) USING HASH
-) ENGINE=MyISAM DEFAULT CHARSET=latin1;
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
 --
@@ -75,6 +103,90 @@ LOCK TABLES `flow_stats` WRITE;
 /*!40000 ALTER TABLE `flow_stats` ENABLE KEYS */;
 UNLOCK TABLES;
 
+--
+-- Table structure for table `flow_stats_1h`
+--
+
+DROP TABLE IF EXISTS `flow_stats_1h`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `flow_stats_1h` (
+  `datapath_id` bigint(30) NOT NULL DEFAULT '0',
+  `timestamp` bigint(20) NOT NULL DEFAULT '0',
+  `flow_id` int(11) NOT NULL DEFAULT '0',
+  `action` varchar(30) DEFAULT NULL,
+  `packet_count` bigint(20) DEFAULT NULL,
+  `priority` int(5) DEFAULT NULL,
+  PRIMARY KEY (`datapath_id`,`timestamp`,`flow_id`),
+  KEY `flow_stats_1h_timestamp` (`timestamp`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `flow_stats_1h`
+--
+
+LOCK TABLES `flow_stats_1h` WRITE;
+/*!40000 ALTER TABLE `flow_stats_1h` DISABLE KEYS */;
+/*!40000 ALTER TABLE `flow_stats_1h` ENABLE KEYS */;
+UNLOCK TABLES;
+
+--
+-- Table structure for table `flow_stats_1m`
+--
+
+DROP TABLE IF EXISTS `flow_stats_1m`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `flow_stats_1m` (
+  `datapath_id` bigint(30) NOT NULL DEFAULT '0',
+  `timestamp` bigint(20) NOT NULL DEFAULT '0',
+  `flow_id` int(11) NOT NULL DEFAULT '0',
+  `action` varchar(30) DEFAULT NULL,
+  `packet_count` bigint(20) DEFAULT NULL,
+  `priority` int(5) DEFAULT NULL,
+  PRIMARY KEY (`datapath_id`,`timestamp`,`flow_id`),
+  KEY `flow_stats_1m_timestamp` (`timestamp`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `flow_stats_1m`
+--
+
+LOCK TABLES `flow_stats_1m` WRITE;
+/*!40000 ALTER TABLE `flow_stats_1m` DISABLE KEYS */;
+/*!40000 ALTER TABLE `flow_stats_1m` ENABLE KEYS */;
+UNLOCK TABLES;
+
+--
+-- Table structure for table `flow_stats_5m`
+--
+
+DROP TABLE IF EXISTS `flow_stats_5m`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `flow_stats_5m` (
+  `datapath_id` bigint(30) NOT NULL DEFAULT '0',
+  `timestamp` bigint(20) NOT NULL DEFAULT '0',
+  `flow_id` int(11) NOT NULL DEFAULT '0',
+  `action` varchar(30) DEFAULT NULL,
+  `packet_count` bigint(20) DEFAULT NULL,
+  `priority` int(5) DEFAULT NULL,
+  PRIMARY KEY (`datapath_id`,`timestamp`,`flow_id`),
+  KEY `flow_stats_5m_timestamp` (`timestamp`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `flow_stats_5m`
+--
+
+LOCK TABLES `flow_stats_5m` WRITE;
+/*!40000 ALTER TABLE `flow_stats_5m` DISABLE KEYS */;
+/*!40000 ALTER TABLE `flow_stats_5m` ENABLE KEYS */;
+UNLOCK TABLES;
+
 --
 -- Table structure for table `group_port`
 --
@@ -184,7 +296,7 @@ CREATE TABLE `port_stats` (
   `packets_transmitted` bigint(20) DEFAULT NULL,
   PRIMARY KEY (`datapath_id`,`timestamp`,`port`),
   KEY `timestamp_index` (`timestamp`)
-) ENGINE=MyISAM DEFAULT CHARSET=latin1;
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
 --
@@ -196,6 +308,87 @@ LOCK TABLES `port_stats` WRITE;
 /*!40000 ALTER TABLE `port_stats` ENABLE KEYS */;
 UNLOCK TABLES;
 
+--
+-- Table structure for table `port_stats_1h`
+--
+
+DROP TABLE IF EXISTS `port_stats_1h`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `port_stats_1h` (
+  `datapath_id` bigint(30) NOT NULL DEFAULT '0',
+  `timestamp` bigint(20) NOT NULL DEFAULT '0',
+  `port` int(4) NOT NULL DEFAULT '0',
+  `packets_received` bigint(20) DEFAULT NULL,
+  `packets_transmitted` bigint(20) DEFAULT NULL,
+  PRIMARY KEY (`datapath_id`,`timestamp`,`port`),
+  KEY `port_stats_1h_timestamp` (`timestamp`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `port_stats_1h`
+--
+
+LOCK TABLES `port_stats_1h` WRITE;
+/*!40000 ALTER TABLE `port_stats_1h` DISABLE KEYS */;
+/*!40000 ALTER TABLE `port_stats_1h` ENABLE KEYS */;
+UNLOCK TABLES;
+
+--
+-- Table structure for table `port_stats_1m`
+--
+
+DROP TABLE IF EXISTS `port_stats_1m`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `port_stats_1m` (
+  `datapath_id` bigint(30) NOT NULL DEFAULT '0',
+  `timestamp` bigint(20) NOT NULL DEFAULT '0',
+  `port` int(4) NOT NULL DEFAULT '0',
+  `packets_received` bigint(20) DEFAULT NULL,
+  `packets_transmitted` bigint(20) DEFAULT NULL,
+  PRIMARY KEY (`datapath_id`,`timestamp`,`port`),
+  KEY `port_stats_1m_timestamp` (`timestamp`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `port_stats_1m`
+--
+
+LOCK TABLES `port_stats_1m` WRITE;
+/*!40000 ALTER TABLE `port_stats_1m` DISABLE KEYS */;
+/*!40000 ALTER TABLE `port_stats_1m` ENABLE KEYS */;
+UNLOCK TABLES;
+
+--
+-- Table structure for table `port_stats_5m`
+--
+
+DROP TABLE IF EXISTS `port_stats_5m`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `port_stats_5m` (
+  `datapath_id` bigint(30) NOT NULL DEFAULT '0',
+  `timestamp` bigint(20) NOT NULL DEFAULT '0',
+  `port` int(4) NOT NULL DEFAULT '0',
+  `packets_received` bigint(20) DEFAULT NULL,
+  `packets_transmitted` bigint(20) DEFAULT NULL,
+  PRIMARY KEY (`datapath_id`,`timestamp`,`port`),
+  KEY `port_stats_5m_timestamp` (`timestamp`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `port_stats_5m`
+--
+
+LOCK TABLES `port_stats_5m` WRITE;
+/*!40000 ALTER TABLE `port_stats_5m` DISABLE KEYS */;
+/*!40000 ALTER TABLE `port_stats_5m` ENABLE KEYS */;
+UNLOCK TABLES;
+
 --
 -- Table structure for table `port_status`
 --
@@ -209,7 +402,7 @@ CREATE TABLE `port_status` (
   `pord_id` int(4) NOT NULL,
   `port_address` varchar(20) NOT NULL,
   `port_status` int(1) NOT NULL
-) ENGINE=MyISAM DEFAULT CHARSET=latin1;
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
 /*!40101 SET character_set_client = @saved_cs_client */;
 
 --
@@ -222,6 +415,30 @@ INSERT INTO `port_status` VALUES ('1',1351833791439,7,'a6:c9:61:51:50:f0',0),('1
 /*!40000 ALTER TABLE `port_status` ENABLE KEYS */;
 UNLOCK TABLES;
 
+--
+-- Table structure for table `stat_tiers`
+--
+
+DROP TABLE IF EXISTS `stat_tiers`;
+/*!40101 SET @saved_cs_client     = @@character_set_client */;
+/*!40101 SET character_set_client = utf8 */;
+CREATE TABLE `stat_tiers` (
+  `tier` varchar(10) NOT NULL,
+  `resolution` bigint(20) NOT NULL,
+  `retention` bigint(20) NOT NULL,
+  PRIMARY KEY (`tier`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+/*!40101 SET character_set_client = @saved_cs_client */;
+
+--
+-- Dumping data for table `stat_tiers`
+--
+
+LOCK TABLES `stat_tiers` WRITE;
+/*!40000 ALTER TABLE `stat_tiers` DISABLE KEYS */;
+/*!40000 ALTER TABLE `stat_tiers` ENABLE KEYS */;
+UNLOCK TABLES;
+
 --
 -- Table structure for table `switch`
 --
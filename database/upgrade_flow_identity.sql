@@ -0,0 +1,71 @@
+--
+-- Moves flow_stats of an existing flowscale_db from match_string to flow_id.
+--
+-- Each distinct match is added to flow_identity with its source and
+-- destination prefixes, parsed as FlowIdentity.parse does, then flow_stats
+-- gets the id of its match and loses the match string. Stop the stat
+-- collector first, it refuses to write to a flow_stats without flow_id.
+--
+-- The rollup tables only exist once a collector with rollups has run. If they
+-- were created with match_string, uncomment the lines of the rollup tables.
+--
+
+CREATE TABLE IF NOT EXISTS `flow_identity` (
+  `flow_id` int(11) NOT NULL AUTO_INCREMENT,
+  `match_string` varchar(255) NOT NULL,
+  `nw_src` bigint(20) DEFAULT NULL,
+  `nw_src_length` int(2) DEFAULT NULL,
+  `nw_dst` bigint(20) DEFAULT NULL,
+  `nw_dst_length` int(2) DEFAULT NULL,
+  PRIMARY KEY (`flow_id`),
+  UNIQUE KEY `flow_identity_match` (`match_string`)
+) ENGINE=InnoDB DEFAULT CHARSET=latin1;
+
+CREATE TEMPORARY TABLE `flow_matches` (
+  `match_string` varchar(255) NOT NULL,
+  PRIMARY KEY (`match_string`)
+);
+
+INSERT IGNORE INTO `flow_matches` SELECT DISTINCT `match_string` FROM `flow_stats`;
+-- INSERT IGNORE INTO `flow_matches` SELECT DISTINCT `match_string` FROM `flow_stats_1m`;
+-- INSERT IGNORE INTO `flow_matches` SELECT DISTINCT `match_string` FROM `flow_stats_5m`;
+-- INSERT IGNORE INTO `flow_matches` SELECT DISTINCT `match_string` FROM `flow_stats_1h`;
+
+--
+-- the field of a prefix runs to the next ',' or ']', a bare address is a /32
+--
+
+INSERT IGNORE INTO `flow_identity` (`match_string`, `nw_src`, `nw_src_length`, `nw_dst`, `nw_dst_length`)
+SELECT `match_string`,
+  INET_ATON(SUBSTRING_INDEX(`src`, '/', 1)),
+  IF(INET_ATON(SUBSTRING_INDEX(`src`, '/', 1)) IS NULL, NULL,
+    IF(LOCATE('/', `src`) > 0, SUBSTRING_INDEX(`src`, '/', -1), 32)),
+  INET_ATON(SUBSTRING_INDEX(`dst`, '/', 1)),
+  IF(INET_ATON(SUBSTRING_INDEX(`dst`, '/', 1)) IS NULL, NULL,
+    IF(LOCATE('/', `dst`) > 0, SUBSTRING_INDEX(`dst`, '/', -1), 32))
+FROM (
+  SELECT `match_string`,
+    IF(LOCATE('nw_src=', `match_string`) = 0, NULL,
+      SUBSTRING_INDEX(SUBSTRING_INDEX(SUBSTRING_INDEX(`match_string`, 'nw_src=', -1), ',', 1), ']', 1)) AS `src`,
+    IF(LOCATE('nw_dst=', `match_string`) = 0, NULL,
+      SUBSTRING_INDEX(SUBSTRING_INDEX(SUBSTRING_INDEX(`match_string`, 'nw_dst=', -1), ',', 1), ']', 1)) AS `dst`
+  FROM `flow_matches`
+) AS `fields`;
+
+ALTER TABLE `flow_stats` ADD COLUMN `flow_id` int(11) NOT NULL DEFAULT '0' AFTER `timestamp`;
+UPDATE `flow_stats` JOIN `flow_identity` USING (`match_string`) SET `flow_stats`.`flow_id` = `flow_identity`.`flow_id`;
+ALTER TABLE `flow_stats` DROP PRIMARY KEY, DROP COLUMN `match_string`,
+  ADD PRIMARY KEY (`datapath_id`, `timestamp`, `flow_id`);
+
+-- ALTER TABLE `flow_stats_1m` ADD COLUMN `flow_id` int(11) NOT NULL DEFAULT '0' AFTER `timestamp`;
+-- UPDATE `flow_stats_1m` JOIN `flow_identity` USING (`match_string`) SET `flow_stats_1m`.`flow_id` = `flow_identity`.`flow_id`;
+-- ALTER TABLE `flow_stats_1m` DROP PRIMARY KEY, DROP COLUMN `match_string`,
+--   ADD PRIMARY KEY (`datapath_id`, `timestamp`, `flow_id`);
+-- ALTER TABLE `flow_stats_5m` ADD COLUMN `flow_id` int(11) NOT NULL DEFAULT '0' AFTER `timestamp`;
+-- UPDATE `flow_stats_5m` JOIN `flow_identity` USING (`match_string`) SET `flow_stats_5m`.`flow_id` = `flow_identity`.`flow_id`;
+-- ALTER TABLE `flow_stats_5m` DROP PRIMARY KEY, DROP COLUMN `match_string`,
+--   ADD PRIMARY KEY (`datapath_id`, `timestamp`, `flow_id`);
+-- ALTER TABLE `flow_stats_1h` ADD COLUMN `flow_id` int(11) NOT NULL DEFAULT '0' AFTER `timestamp`;
+-- UPDATE `flow_stats_1h` JOIN `flow_identity` USING (`match_string`) SET `flow_stats_1h`.`flow_id` = `flow_identity`.`flow_id`;
+-- ALTER TABLE `flow_stats_1h` DROP PRIMARY KEY, DROP COLUMN `match_string`,
+--   ADD PRIMARY KEY (`datapath_id`, `timestamp`, `flow_id`);
@@ -0,0 +1,22 @@
+--
+-- Moves the statistics tables of an existing flowscale_db to InnoDB.
+--
+-- The stat collector writes each switch sample in one transaction and only
+-- keeps its counters once the transaction commits. MyISAM ignores
+-- transactions, so a sample that fails half way leaves its rows behind and
+-- its packets are counted again by the next sample.
+--
+-- The rollup tables and stat_tiers only exist once a collector with rollups
+-- has run, use mysql --force to go past the ones that are missing.
+--
+
+ALTER TABLE `flow_stats` ENGINE=InnoDB;
+ALTER TABLE `port_stats` ENGINE=InnoDB;
+ALTER TABLE `port_status` ENGINE=InnoDB;
+ALTER TABLE `flow_stats_1m` ENGINE=InnoDB;
+ALTER TABLE `flow_stats_5m` ENGINE=InnoDB;
+ALTER TABLE `flow_stats_1h` ENGINE=InnoDB;
+ALTER TABLE `port_stats_1m` ENGINE=InnoDB;
+ALTER TABLE `port_stats_5m` ENGINE=InnoDB;
+ALTER TABLE `port_stats_1h` ENGINE=InnoDB;
+ALTER TABLE `stat_tiers` ENGINE=InnoDB;
@@ -10,6 +10,7 @@ use Date::Manip;
 package Flowscale::Graph;
 use CGI;
 use RRDs;
+use Flowscale::StatTier;
 
 
 sub new {
@@ -113,8 +114,8 @@ open $log, ">> /home/akhalfan/somlogfile" or die $!;
 				"-t packets on  port $pt_index  for switch $datapath_id",
 				"DEF:output=$rrdfile:out-port:AVERAGE",
 				"DEF:input=$rrdfile:in-port:AVERAGE",
-				"CDEF:outputCDEF=output,30,/",                                                                         
-                                "CDEF:inputCDEF=input,30,/",                                                                           
+				"CDEF:outputCDEF=output,$self->{'step'},/",
+                                "CDEF:inputCDEF=input,$self->{'step'},/",                                                                           
                                 "AREA:outputCDEF#00FF00:packets sent",                                                                 
                                 "LINE:inputCDEF#0000FF:packets received",   
 			);
@@ -194,10 +195,13 @@ my $starttime = $timestamp1;
 
 #print $log "start time is $starttime";
 
-		RRDs::create($file,"--step",30,
+my $rrd_step = $self->{'step'};
+my $heartbeat = $rrd_step * 3;
+
+		RRDs::create($file,"--step",$rrd_step,
 "--start","$starttime",
-"DS:out-port:GAUGE:90:U:U",
-"DS:in-port:GAUGE:90:U:U",
+"DS:out-port:GAUGE:$heartbeat:U:U",
+"DS:in-port:GAUGE:$heartbeat:U:U",
 "RRA:AVERAGE:0.5:1:1600",
 "RRA:AVERAGE:0.5:1:1600");
 my $rrderror = RRDs::error;
@@ -290,26 +294,16 @@ $time1 = $time2 - 600;
 	$time1 = $time1 * 1000;
 	$time2 = $time2 * 1000;	
 
-	my %cred_args = (config => '/var/www/flowscale_ui/conf/database.xml', @_,);
-
-	#get the credentials to get access to statistics tables
-	my $config_filename = $cred_args{'config'};
-	my $config = XML::Simple::XMLin($config_filename);
-	my $database_name = $config->{'flowstat_credentials'}->{'database_name'};
-	my $hostname = $config->{'flowstat_credentials'}->{'hostname'};
-	my $database_port = $config->{'flowstat_credentials'}->{'port'};
-	my $username = $config->{'flowstat_credentials'}->{'username'};
-	my $password = $config->{'flowstat_credentials'}->{'password'};
+	#get access to the statistics tables, and the tier that covers the range
+	my $stat_tier = Flowscale::StatTier->new( config => '/var/www/flowscale_ui/conf/database.xml', @_ );
+	my $dbh = $stat_tier->get_dbh();
+	my $tier = $stat_tier->get_tier( time1 => $time1, time2 => $time2 );
 
-
-	
-	my $dbh ;
- $dbh           = DBI->connect(
-		"DBI:mysql:database=$database_name;host=$hostname;port=$database_port",
-		$username, $password, { AutoCommit => 0 } );
+	# the graphs step is the period of a row of the tier, 30 seconds for the raw tables
+	$self->{'step'} = $tier->{'resolution'} > 30000 ? $tier->{'resolution'} / 1000 : 30;
 
 	#database query 
-my $query = 	"SELECT datapath_id, port, packets_transmitted FROM port_stats where datapath_id = $datapath_id  AND  timestamp >= $time1 AND timestamp <= $time2";
+my $query = 	"SELECT datapath_id, port, timestamp , packets_transmitted ,packets_received FROM port_stats$tier->{'suffix'} where datapath_id = ? AND  timestamp >= ? AND timestamp <= ?";
 
 
 my $log;
@@ -318,9 +312,9 @@ open $log, ">> /home/akhalfan/somlogfile" or die $!;
 print $log "$query\n";
 
 	my $db_result ;
-	$db_result = $dbh->prepare("SELECT datapath_id, port, timestamp , packets_transmitted ,packets_received FROM port_stats where datapath_id =  $datapath_id   AND  timestamp >=  $time1  AND timestamp <=  $time2 ; ");
+	$db_result = $dbh->prepare($query);
 	my $port_value;
-	$db_result->execute();
+	$db_result->execute($datapath_id, $time1, $time2);
 
 	while(my $port_stat_row = $db_result->fetchrow_hashref()){
 
@@ -0,0 +1,118 @@
+#!/opt/local/bin/perl5.12
+
+use strict;
+use warnings;
+
+package Flowscale::StatTier;
+
+use DBI;
+use XML::Simple;
+
+our $VERSION = '0.0.1';
+
+# the statistics collector writes flow_stats and port_stats at every poll and
+# rolls them up in the tables with the suffix of each tier. stat_tiers holds
+# the milliseconds a row of each tier covers and how long it is kept, the raw
+# tier covers one polling interval
+
+our $DEFAULT_MAX_POINTS = 500;
+
+sub new {
+	my $that = shift;
+	my $class = ref($that) || $that;
+
+	my %args = (
+		config =>
+'/var/www/flowscale_ui/conf/database.xml',
+		@_,
+	);
+
+	my $self = \%args;
+	bless $self, $class;
+
+	my $config_filename = $args{'config'};
+
+	my $config = XML::Simple::XMLin($config_filename);
+
+	my $username      = $config->{'flowstat_credentials'}->{'username'};
+	my $password      = $config->{'flowstat_credentials'}->{'password'};
+	my $database_name = $config->{'flowstat_credentials'}->{'database_name'};
+	my $port          = $config->{'flowstat_credentials'}->{'port'};
+	my $hostname      = $config->{'flowstat_credentials'}->{'hostname'};
+	my $dbh           = DBI->connect(
+		"DBI:mysql:database=$database_name;host=$hostname;port=$port",
+		$username, $password, { AutoCommit => 1 } );
+
+	if ( !$dbh ) {
+		return undef;
+	}
+
+	$self->{'dbh'} = $dbh;
+
+	return $self;
+}
+
+sub get_dbh {
+	my $self = shift;
+
+	return $self->{'dbh'};
+}
+
+# returns the tier to read the range time1 to time2, in milliseconds, from:
+# the finest tier still holding time1 that needs at most max_points rows per
+# port or flow, else the coarsest tier holding time1. The raw tables are used
+# until the collector has filled stat_tiers
+sub get_tier {
+	my $self = shift;
+	my %args = (
+		max_points => $DEFAULT_MAX_POINTS,
+		@_,
+	);
+
+	my $time1      = $args{'time1'};
+	my $time2      = $args{'time2'};
+	my $max_points = $args{'max_points'};
+
+	my $tiers = $self->{'dbh'}->selectall_arrayref(
+		"SELECT tier, resolution, retention FROM stat_tiers ORDER BY resolution",
+		{ Slice => {} } );
+
+	my $raw = { tier => 'raw', suffix => '', resolution => 0 };
+
+	if ( !$tiers || !@$tiers ) {
+		return $raw;
+	}
+
+	my $now      = time * 1000;
+	my $coarsest;
+
+	foreach my $tier (@$tiers) {
+
+		# a retention of 0 keeps the tier forever
+		if ( $tier->{'retention'} > 0
+			&& $time1 < $now - $tier->{'retention'} )
+		{
+			next;
+		}
+
+		$tier->{'suffix'} = $tier->{'tier'} eq 'raw' ? '' : "_$tier->{'tier'}";
+
+		if ( $tier->{'resolution'} > 0
+			&& ( $time2 - $time1 ) / $tier->{'resolution'} <= $max_points )
+		{
+			return $tier;
+		}
+
+		$coarsest = $tier;
+	}
+
+	if ( !$coarsest ) {
+		$coarsest = $tiers->[-1];
+		$coarsest->{'suffix'} =
+		  $coarsest->{'tier'} eq 'raw' ? '' : "_$coarsest->{'tier'}";
+	}
+
+	return $coarsest;
+}
+
+return 1;
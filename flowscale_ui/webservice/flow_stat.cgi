@@ -8,11 +8,14 @@ use DBI;
 use JSON;
 use Date::Manip;
 
-my $cgi = new CGI;
+use lib "../lib";
+
+use Flowscale::StatTier;
 
+my $cgi = new CGI;
 
-my $db = DBI->connect("dbi:SQLite:/var/flowscale/linux.gtk.x86_64/flowscale.db", "", "",
-{RaiseError => 1, AutoCommit => 1});
+my $stat_tier = new Flowscale::StatTier();
+my $db = $stat_tier->get_dbh();
 
 my $first_time = $cgi->param('first_time');
 my $second_time = $cgi->param('second_time');
@@ -26,7 +29,9 @@ $time2 = $time2 *1000 ;
 my $totalPackets = 0;
 my %port_packets ;
 my $output =[] ;
-my $all = $db->selectall_arrayref("SELECT * FROM flow_stats where timex >= $time2 and timex <= $time1 ");
+my $tier = $stat_tier->get_tier(time1 => $time2, time2 => $time1);
+# the rows hold the id of the flow, its match is in flow_identity
+my $all = $db->selectall_arrayref("SELECT s.timestamp, s.packet_count, i.match_string, s.action FROM flow_stats$tier->{'suffix'} s JOIN flow_identity i ON i.flow_id = s.flow_id where s.timestamp >= ? and s.timestamp <= ?", undef, $time2, $time1);
 foreach my $row (@$all) {
 my ($timex, $packet_received, $match_string,$actions) = @$row;
 push (@$output, {
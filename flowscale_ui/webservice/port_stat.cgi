@@ -8,12 +8,16 @@ use DBI;
 use JSON;
 use Date::Manip;
 
+use lib "../lib";
+
+use Flowscale::StatTier;
+
 my $cgi = new CGI;
 
 my $loader =0;
 
-my $db = DBI->connect("dbi:SQLite:/var/flowscale/linux.gtk.x86_64/flowscale.db", "", "",
-{RaiseError => 1, AutoCommit => 1});
+my $stat_tier = new Flowscale::StatTier();
+my $db = $stat_tier->get_dbh();
 
 my $first_time = $cgi->param('first_time');
 my $second_time = $cgi->param('second_time');
@@ -31,12 +35,13 @@ my $total_packet_received =0;
 #$second_time =1328124008271 ;
  #$first_time =1328123708271;
  my @port_values = split(',', $ports);
+my $tier = $stat_tier->get_tier(time1 => $time2, time2 => $time1);
 
 my $output ="" ;
 if ($combination_type eq "side_by_side"){
   foreach my $port_id (@port_values) {
 
-my $all = $db->selectall_arrayref("SELECT * FROM port_stats where timex >= $time2 and timex <= $time1 and port_id = $port_id");
+my $all = $db->selectall_arrayref("SELECT timestamp, packets_transmitted, packets_received, port FROM port_stats$tier->{'suffix'} where timestamp >= ? and timestamp <= ? and port = ?", undef, $time2, $time1, $port_id);
 foreach my $row (@$all) {
 my ($timex, $packet_transmitted, $packet_received, $port_id) = @$row;
 #push (@$output, {
@@ -65,7 +70,7 @@ elsif($combination_type eq "aggregate"){
 
 my %intervals  =();
 
-my $all = $db->selectall_arrayref("SELECT * FROM port_stats where timex >= $time2 and timex <= $time1 ");
+my $all = $db->selectall_arrayref("SELECT timestamp, packets_transmitted, packets_received, port FROM port_stats$tier->{'suffix'} where timestamp >= ? and timestamp <= ?", undef, $time2, $time1);
 my %port_hash = map { $_ => 1 } @port_values;
 $loader =0;
 foreach my $row (@$all){